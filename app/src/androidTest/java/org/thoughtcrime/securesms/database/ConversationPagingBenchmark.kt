@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Rule
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+/**
+ * Compares how long it takes to load a page of a long conversation with an offset query, by counting down from the
+ * newest key to the key of the message just before the page, and by seeking straight to that key, at increasing depths.
+ *
+ * Not run as part of the normal test suite. Remove the [Ignore] to run on a device.
+ */
+@Ignore("Benchmark, run manually")
+class ConversationPagingBenchmark {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    val recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+
+    SignalDatabase.runInTransaction {
+      for (i in 0 until MESSAGE_COUNT) {
+        MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = i.toLong())
+      }
+    }
+  }
+
+  @Test
+  fun pageLoadLatencyByDepth() {
+    for (depth in DEPTHS) {
+      val offsetIds = ArrayList<Long>()
+      val offsetMs = measure {
+        offsetIds.clear()
+        SignalDatabase.mmsSms.getConversation(threadId, depth.toLong(), PAGE_SIZE.toLong()).use { offsetIds.addAll(readIds(it)) }
+      }
+
+      val newest = SignalDatabase.mmsSms.getNewestConversationKey(threadId)!!
+      val keysetIds = ArrayList<Long>()
+      val keysetMs = measure {
+        keysetIds.clear()
+        val key = SignalDatabase.mmsSms.getConversationKeyOlderThan(threadId, newest, depth - 2)!!
+        SignalDatabase.mmsSms.getConversationOlderThan(threadId, key, 0, PAGE_SIZE.toLong()).use { keysetIds.addAll(readIds(it)) }
+      }
+
+      val anchor = SignalDatabase.mmsSms.getConversationKeyOlderThan(threadId, newest, depth - 2)!!
+      val seekMs = measure {
+        SignalDatabase.mmsSms.getConversationOlderThan(threadId, anchor, 0, PAGE_SIZE.toLong()).use { readIds(it) }
+      }
+
+      assertEquals(offsetIds, keysetIds)
+
+      Log.i(TAG, "depth $depth: offset ${offsetMs}ms, counting from the newest key + seek ${keysetMs}ms, seek from a known key ${seekMs}ms")
+    }
+  }
+
+  private fun readIds(cursor: android.database.Cursor): List<Long> {
+    val ids = ArrayList<Long>()
+    while (cursor.moveToNext()) {
+      ids.add(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)))
+    }
+    return ids
+  }
+
+  private fun measure(operation: () -> Unit): Double {
+    for (i in 0 until WARMUP_ITERATIONS) {
+      operation()
+    }
+
+    val start = System.nanoTime()
+    for (i in 0 until ITERATIONS) {
+      operation()
+    }
+    return (System.nanoTime() - start) / ITERATIONS / 1_000_000.0
+  }
+
+  companion object {
+    private val TAG = Log.tag(ConversationPagingBenchmark::class.java)
+
+    private const val MESSAGE_COUNT = 50_000
+    private const val PAGE_SIZE = 25
+    private const val WARMUP_ITERATIONS = 3
+    private const val ITERATIONS = 10
+
+    private val DEPTHS = listOf(25, 1_000, 10_000, 25_000, 49_000)
+  }
+}
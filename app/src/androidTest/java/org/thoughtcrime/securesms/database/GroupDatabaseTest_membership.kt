@@ -0,0 +1,134 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.requireLong
+import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ACI
+import java.security.SecureRandom
+import java.util.UUID
+
+@RunWith(AndroidJUnit4::class)
+class GroupDatabaseTest_membership {
+
+  @get:Rule
+  val harness = SignalDatabaseRule()
+
+  private lateinit var groupDatabase: GroupDatabase
+  private lateinit var alice: RecipientId
+  private lateinit var bob: RecipientId
+  private lateinit var carol: RecipientId
+
+  @Before
+  fun setUp() {
+    groupDatabase = SignalDatabase.groups
+
+    alice = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    bob = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+    carol = SignalDatabase.recipients.getOrInsertFromServiceId(ACI.from(UUID.randomUUID()))
+  }
+
+  @Test
+  fun givenANewGroup_whenICreateIt_thenIExpectAMembershipRowPerMember() {
+    val groupId = createGroup(alice, bob)
+
+    assertEquals(setOf(alice, bob), getMembership(groupId))
+  }
+
+  @Test
+  fun givenAGroup_whenIUpdateMembers_thenIExpectTheMembershipToBeReplaced() {
+    val groupId = createGroup(alice, bob)
+
+    groupDatabase.updateMembers(groupId, mutableListOf(bob, carol))
+
+    assertEquals(setOf(bob, carol), getMembership(groupId))
+    assertEquals(listOf(bob, carol).sorted(), groupDatabase.getGroup(groupId).get().members)
+  }
+
+  @Test
+  fun givenAGroup_whenIRemoveAMember_thenIExpectItsMembershipToBeRemoved() {
+    val groupId = createGroup(alice, bob)
+
+    groupDatabase.remove(groupId, alice)
+
+    assertEquals(setOf(bob), getMembership(groupId))
+  }
+
+  @Test
+  fun givenAGroup_whenIRemoveEveryMember_thenIExpectNoMembership() {
+    val groupId = createGroup(alice)
+
+    groupDatabase.updateMembers(groupId, mutableListOf())
+
+    assertEquals(emptySet<RecipientId>(), getMembership(groupId))
+  }
+
+  @Test
+  fun givenAMemberOfTwoGroups_whenIRemapIt_thenIExpectBothGroupsToHaveTheNewMemberInstead() {
+    val first = createGroup(alice, bob)
+    val second = createGroup(alice, carol)
+    val other = createGroup(bob, carol)
+
+    groupDatabase.remapMember(alice, carol)
+
+    assertEquals(setOf(bob, carol), getMembership(first))
+    assertEquals(setOf(carol), getMembership(second))
+    assertEquals(setOf(bob, carol), getMembership(other))
+    assertEquals(listOf(carol), groupDatabase.getGroup(second).get().members)
+  }
+
+  @Test
+  fun givenMoreRecipientsThanSqliteAllowsArguments_whenIQueryGroupsByMembership_thenIExpectEachGroupOnce() {
+    val first = createGroup(alice, bob)
+    val second = createGroup(carol)
+    val unrelated = createGroup(bob)
+
+    val recipientIds: MutableSet<RecipientId> = (1L..2000L).map { RecipientId.from(Long.MAX_VALUE - it) }.toMutableSet()
+    recipientIds += alice
+    recipientIds += carol
+
+    val found: List<GroupId> = groupDatabase.queryGroupsByMembership(recipientIds, true, false, false).use { reader ->
+      generateSequence { reader.next }.map { it.id }.toList()
+    }
+
+    assertEquals(1, found.count { it == first })
+    assertEquals(1, found.count { it == second })
+    assertFalse(unrelated in found)
+  }
+
+  @Test
+  fun givenAMember_whenICheckIsCurrentMember_thenIExpectOnlyMembersToBeCurrent() {
+    val groupId = GroupId.createV1(SecureRandom())
+    groupDatabase.create(groupId, null, listOf(alice), null, null)
+
+    assertTrue(groupDatabase.isCurrentMember(groupId, alice))
+    assertFalse(groupDatabase.isCurrentMember(groupId, bob))
+  }
+
+  private fun createGroup(vararg members: RecipientId): GroupId.Mms {
+    val groupId = GroupId.createMms(SecureRandom())
+    groupDatabase.create(groupId, null, members.toList())
+    SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(SignalDatabase.recipients.getOrInsertFromGroupId(groupId)))
+    return groupId
+  }
+
+  private fun getMembership(groupId: GroupId): Set<RecipientId> {
+    return SignalDatabase.rawDatabase.query("group_membership", arrayOf("recipient_id"), "group_id = ?", SqlUtil.buildArgs(groupId), null, null, null).use { cursor ->
+      val members = mutableSetOf<RecipientId>()
+      while (cursor.moveToNext()) {
+        members += RecipientId.from(cursor.requireLong("recipient_id"))
+      }
+      members
+    }
+  }
+}
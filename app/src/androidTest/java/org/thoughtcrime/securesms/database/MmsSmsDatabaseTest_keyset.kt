@@ -0,0 +1,102 @@
+package org.thoughtcrime.securesms.database
+
+import android.database.Cursor
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+@Suppress("ClassName")
+class MmsSmsDatabaseTest_keyset {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    val recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+
+    for (i in 0 until 30) {
+      MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = i.toLong())
+    }
+  }
+
+  @Test
+  fun givenAConversation_whenIWalkTheKeys_thenIExpectTheSameOrderAsAnOffsetQuery() {
+    val all = SignalDatabase.mmsSms.getConversation(threadId).use { readIds(it) }
+
+    assertEquals(all, getKeys().map { it.messageId.id })
+  }
+
+  @Test
+  fun givenAConversation_whenIReadOlderThanEachKey_thenIExpectTheSameRowsAsAnOffsetQuery() {
+    val all = SignalDatabase.mmsSms.getConversation(threadId).use { readIds(it) }
+
+    getKeys().forEachIndexed { position, key ->
+      val older = SignalDatabase.mmsSms.getConversationOlderThan(threadId, key, 0, 10).use { readIds(it) }
+      val from = SignalDatabase.mmsSms.getConversationFrom(threadId, key, 10).use { readIds(it) }
+
+      assertEquals(all.drop(position + 1).take(10), older)
+      assertEquals(all.drop(position).take(10), from)
+    }
+  }
+
+  @Test
+  fun givenAConversation_whenIReadNewerThanEachKey_thenIExpectTheRowsBeforeItInReverse() {
+    val all = SignalDatabase.mmsSms.getConversation(threadId).use { readIds(it) }
+
+    getKeys().forEachIndexed { position, key ->
+      val newer = SignalDatabase.mmsSms.getConversationNewerThan(threadId, key, 10).use { readIds(it) }
+
+      assertEquals(all.take(position).reversed().take(10), newer)
+      assertEquals(position, SignalDatabase.mmsSms.getConversationCountNewerThan(threadId, key))
+    }
+  }
+
+  @Test
+  fun givenAKey_whenICountAwayFromIt_thenIExpectTheKeyThatManyRowsAway() {
+    val keys = getKeys()
+
+    for (offset in 0 until 29) {
+      assertEquals(keys[offset + 1].messageId, SignalDatabase.mmsSms.getConversationKeyOlderThan(threadId, keys[0], offset)!!.messageId)
+      assertEquals(keys[28 - offset].messageId, SignalDatabase.mmsSms.getConversationKeyNewerThan(threadId, keys[29], offset)!!.messageId)
+    }
+
+    assertNull(SignalDatabase.mmsSms.getConversationKeyOlderThan(threadId, keys[0], 29))
+    assertNull(SignalDatabase.mmsSms.getConversationKeyNewerThan(threadId, keys[29], 29))
+  }
+
+  @Test
+  fun givenADate_whenIGetTheKeyBeforeIt_thenIExpectTheKeyAtItsPosition() {
+    val keys = getKeys()
+
+    for (key in keys) {
+      val position = SignalDatabase.mmsSms.getMessagePositionOnOrAfterTimestamp(threadId, key.dateReceived)
+      val before = SignalDatabase.mmsSms.getConversationKeyBefore(threadId, key.dateReceived)
+
+      assertEquals(keys.getOrNull(position)?.messageId, before?.messageId)
+    }
+  }
+
+  private fun getKeys(): List<ConversationKey> {
+    return generateSequence(SignalDatabase.mmsSms.getNewestConversationKey(threadId)) { SignalDatabase.mmsSms.getConversationKeyOlderThan(threadId, it, 0) }.toList()
+  }
+
+  private fun readIds(cursor: Cursor): List<Long> {
+    val ids = ArrayList<Long>()
+    while (cursor.moveToNext()) {
+      ids.add(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)))
+    }
+    return ids
+  }
+}
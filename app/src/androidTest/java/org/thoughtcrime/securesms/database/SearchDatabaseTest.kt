@@ -0,0 +1,208 @@
+package org.thoughtcrime.securesms.database
+
+import android.os.CancellationSignal
+import androidx.core.content.contentValuesOf
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.signal.core.util.CursorUtil
+import org.signal.core.util.SqlUtil
+import org.thoughtcrime.securesms.database.model.MessageId
+import org.thoughtcrime.securesms.linkpreview.LinkPreview
+import org.thoughtcrime.securesms.mms.IncomingMediaMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.sms.IncomingTextMessage
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.Optional
+import java.util.UUID
+
+class SearchDatabaseTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+  }
+
+  @Test
+  fun givenAnSmsMessage_whenISearchItsBody_thenIExpectToFindIt() {
+    val smsId = insertSms("the apricot is ripe")
+
+    assertEquals(listOf(MessageId(smsId, false)), search("apricot"))
+  }
+
+  @Test
+  fun givenAnMmsMessage_whenISearchItsBody_thenIExpectToFindIt() {
+    val mmsId = insertMms("the banana is ripe")
+
+    assertEquals(listOf(MessageId(mmsId, true)), search("banana"))
+  }
+
+  @Test
+  fun givenAnSmsAndMmsMessage_whenTheyAreIndexed_thenIExpectSmsAtEvenRowIdsAndMmsAtOddRowIds() {
+    val smsId = insertSms("cherry")
+    val mmsId = insertMms("cherry")
+
+    val rowIds = indexedRowIds()
+    assertTrue(smsId * 2 in rowIds)
+    assertTrue(mmsId * 2 + 1 in rowIds)
+    assertEquals(setOf(MessageId(smsId, false), MessageId(mmsId, true)), search("cherry").toSet())
+  }
+
+  @Test
+  fun givenAnAttachmentWithACaption_whenISearchTheCaption_thenIExpectToFindItsMessage() {
+    val mmsId = insertMms("photo")
+    insertCaption(mmsId, "a damson on the table")
+
+    assertEquals(listOf(MessageId(mmsId, true)), search("damson"))
+  }
+
+  @Test
+  fun givenAnAttachmentWhoseCaptionIsRemoved_whenISearchTheCaption_thenIExpectNothing() {
+    val mmsId = insertMms("photo")
+    val partId = insertCaption(mmsId, "elderberry")
+
+    SignalDatabase.rawDatabase.delete(AttachmentDatabase.TABLE_NAME, "${AttachmentDatabase.ROW_ID} = ?", SqlUtil.buildArgs(partId))
+
+    assertEquals(emptyList<MessageId>(), search("elderberry"))
+  }
+
+  @Test
+  fun givenALinkPreview_whenISearchItsTitle_thenIExpectToFindItsMessage() {
+    val mmsId = insertMms("look at this")
+
+    SignalDatabase.messageSearch.updateLinkPreviewTitles(mmsId, listOf(LinkPreview("https://signal.org", "Fig recipes", "", 0, Optional.empty())))
+
+    assertEquals(listOf(MessageId(mmsId, true)), search("fig"))
+  }
+
+  @Test
+  fun givenAQuote_whenISearchTheQuotedText_thenIExpectToFindTheReply() {
+    val mmsId = insertMms("agreed")
+    setQuoteBody(mmsId, "grapes are the best")
+
+    assertEquals(listOf(MessageId(mmsId, true)), search("grapes"))
+  }
+
+  @Test
+  fun givenAnEmptyIndex_whenIRebuildIt_thenIExpectEveryKindOfHitToBeRestored() {
+    // GIVEN
+    val smsId = insertSms("huckleberry")
+    val bodyId = insertMms("jackfruit")
+    val captionId = insertMms("photo")
+    insertCaption(captionId, "kiwi")
+    val linkId = insertMms("link")
+    setLinkPreviews(linkId, """[{"url":"https://signal.org","title":"Lemon tart"}]""")
+    val quoteId = insertMms("reply")
+    setQuoteBody(quoteId, "mango")
+
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${SearchDatabase.MESSAGE_FTS_TABLE_NAME}")
+    assertEquals(emptyList<MessageId>(), search("huckleberry"))
+
+    // WHEN
+    var smsBatches = 0
+    var lastId = 0L
+    while (SignalDatabase.messageSearch.indexSmsBatch(lastId, 1).also { lastId = it } != -1L) {
+      smsBatches++
+    }
+
+    var mmsBatches = 0
+    lastId = 0L
+    while (SignalDatabase.messageSearch.indexMmsBatch(lastId, 1).also { lastId = it } != -1L) {
+      mmsBatches++
+    }
+
+    // THEN
+    assertEquals(1, smsBatches)
+    assertEquals(4, mmsBatches)
+    assertEquals(listOf(MessageId(smsId, false)), search("huckleberry"))
+    assertEquals(listOf(MessageId(bodyId, true)), search("jackfruit"))
+    assertEquals(listOf(MessageId(captionId, true)), search("kiwi"))
+    assertEquals(listOf(MessageId(linkId, true)), search("lemon"))
+    assertEquals(listOf(MessageId(quoteId, true)), search("mango"))
+  }
+
+  @Test
+  fun givenAnIndexedMessage_whenIIndexItAgain_thenIExpectOneHit() {
+    val mmsId = insertMms("nectarine")
+
+    SignalDatabase.messageSearch.indexMmsBatch(0, 10)
+
+    assertEquals(listOf(MessageId(mmsId, true)), search("nectarine"))
+  }
+
+  private fun search(query: String): List<MessageId> {
+    val results = mutableListOf<MessageId>()
+
+    SignalDatabase.messageSearch.queryRankedMessageIds(query, null, CancellationSignal())!!.use { cursor ->
+      while (cursor.moveToNext()) {
+        results += MessageId(CursorUtil.requireLong(cursor, SearchDatabase.MESSAGE_ID), CursorUtil.requireBoolean(cursor, SearchDatabase.IS_MMS))
+      }
+    }
+
+    return results
+  }
+
+  private fun indexedRowIds(): List<Long> {
+    val rowIds = mutableListOf<Long>()
+
+    SignalDatabase.rawDatabase.rawQuery("SELECT ${SearchDatabase.ID} FROM ${SearchDatabase.MESSAGE_FTS_TABLE_NAME}", null).use { cursor ->
+      while (cursor.moveToNext()) {
+        rowIds += cursor.getLong(0)
+      }
+    }
+
+    return rowIds
+  }
+
+  private fun insertSms(body: String): Long {
+    val now = System.currentTimeMillis()
+    val message = IncomingTextMessage(recipient.id, 1, now, now, now, body, Optional.empty(), 0, false, null)
+
+    return SignalDatabase.sms.insertMessageInbox(message).get().messageId
+  }
+
+  private fun insertMms(body: String): Long {
+    val now = System.currentTimeMillis()
+    val message = IncomingMediaMessage(
+      from = recipient.id,
+      body = body,
+      isPushMessage = true,
+      sentTimeMillis = now,
+      serverTimeMillis = now,
+      receivedTimeMillis = now
+    )
+
+    return MmsHelper.insert(message, threadId).get().messageId
+  }
+
+  private fun insertCaption(mmsId: Long, caption: String): Long {
+    return SignalDatabase.rawDatabase.insert(
+      AttachmentDatabase.TABLE_NAME,
+      null,
+      contentValuesOf(
+        AttachmentDatabase.MMS_ID to mmsId,
+        AttachmentDatabase.UNIQUE_ID to System.currentTimeMillis(),
+        AttachmentDatabase.CAPTION to caption
+      )
+    )
+  }
+
+  private fun setQuoteBody(mmsId: Long, quoteBody: String) {
+    SignalDatabase.rawDatabase.update(MmsDatabase.TABLE_NAME, contentValuesOf(MmsDatabase.QUOTE_BODY to quoteBody), "${MmsDatabase.ID} = ?", SqlUtil.buildArgs(mmsId))
+  }
+
+  private fun setLinkPreviews(mmsId: Long, json: String) {
+    SignalDatabase.rawDatabase.update(MmsDatabase.TABLE_NAME, contentValuesOf(MmsDatabase.LINK_PREVIEWS to json), "${MmsDatabase.ID} = ?", SqlUtil.buildArgs(mmsId))
+  }
+}
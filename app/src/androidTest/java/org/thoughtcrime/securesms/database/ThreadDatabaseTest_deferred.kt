@@ -0,0 +1,153 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.mms.IncomingMediaMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
+
+@Suppress("ClassName")
+class ThreadDatabaseTest_deferred {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+  private lateinit var observer: DatabaseObserver
+
+  private val conversationListNotified = AtomicBoolean(false)
+  private val conversationListObserver = DatabaseObserver.Observer { conversationListNotified.set(true) }
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+    observer = ApplicationDependencies.getDatabaseObserver()
+    observer.registerConversationListObserver(conversationListObserver)
+  }
+
+  @After
+  fun tearDown() {
+    observer.unregisterObserver(conversationListObserver)
+  }
+
+  @Test
+  fun givenDeferredUpdates_whenIReceiveMessages_thenIExpectTheThreadToOnlyBeRecomputedAtTheEnd() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "first", 1000)
+
+    // WHEN
+    val updated = SignalDatabase.threads.runWithDeferredUpdates {
+      receive(threadId, "second", 2000)
+      receive(threadId, "third", 3000)
+
+      assertNotEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+    }
+
+    // THEN
+    assertEquals(setOf(threadId), updated)
+    assertEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+    assertEquals("third", SignalDatabase.threads.getThreadRecord(threadId)!!.body)
+  }
+
+  @Test
+  fun givenDeferredUpdates_whenTheOperationThrows_thenIExpectNothingToBeRecomputed() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "first", 1000)
+
+    // WHEN
+    try {
+      SignalDatabase.threads.runWithDeferredUpdates {
+        receive(threadId, "second", 2000)
+        throw IllegalStateException()
+      }
+    } catch (e: IllegalStateException) {
+      // expected
+    }
+
+    // THEN
+    assertEquals("first", SignalDatabase.threads.getThreadRecord(threadId)!!.body)
+  }
+
+  @Test
+  fun givenDeferredUpdates_whenIOnlyUpdateSilently_thenIExpectTheRecomputeToBeSilent() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "first", 1000)
+    observer.flush()
+    conversationListNotified.set(false)
+
+    // WHEN
+    SignalDatabase.threads.runWithDeferredUpdates {
+      SignalDatabase.threads.updateSilently(threadId, false)
+      SignalDatabase.threads.updateSilently(threadId, false)
+    }
+    observer.flush()
+
+    // THEN
+    assertFalse(conversationListNotified.get())
+  }
+
+  @Test
+  fun givenDeferredUpdates_whenIUpdateSilentlyAndThenNormally_thenIExpectTheRecomputeToNotify() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "first", 1000)
+    observer.flush()
+    conversationListNotified.set(false)
+
+    // WHEN
+    SignalDatabase.threads.runWithDeferredUpdates {
+      SignalDatabase.threads.updateSilently(threadId, false)
+      SignalDatabase.threads.update(threadId, false)
+    }
+    observer.flush()
+
+    // THEN
+    assertTrue(conversationListNotified.get())
+  }
+
+  @Test
+  fun givenDeferredUpdates_whenIDeleteTheLastMessage_thenIExpectToBeToldTheThreadWasDeleted() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val messageId = receive(threadId, "only", 1000)
+    var threadDeleted = false
+
+    // WHEN
+    SignalDatabase.threads.runWithDeferredUpdates {
+      threadDeleted = SignalDatabase.mms.deleteMessage(messageId)
+    }
+
+    // THEN
+    assertTrue(threadDeleted)
+    assertNull(SignalDatabase.threads.getThreadRecord(threadId))
+  }
+
+  private fun receive(threadId: Long, body: String, receivedTime: Long): Long {
+    return MmsHelper.insert(
+      IncomingMediaMessage(
+        from = recipient.id,
+        body = body,
+        isPushMessage = true,
+        sentTimeMillis = receivedTime,
+        serverTimeMillis = receivedTime,
+        receivedTimeMillis = receivedTime
+      ),
+      threadId
+    ).get().messageId
+  }
+}
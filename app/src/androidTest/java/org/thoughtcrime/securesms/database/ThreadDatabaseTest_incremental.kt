@@ -0,0 +1,109 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.thoughtcrime.securesms.mms.IncomingMediaMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+@Suppress("ClassName")
+class ThreadDatabaseTest_incremental {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+  }
+
+  @Test
+  fun givenAnEmptyThread_whenIReceiveAMessage_thenIExpectAConsistentSummary() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+
+    // WHEN
+    receive(threadId, "first", 1000)
+
+    // THEN
+    assertEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+  }
+
+  @Test
+  fun givenAThreadWithMessages_whenIReceiveNewerMessages_thenIExpectAConsistentSummary() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "first", 1000)
+
+    // WHEN
+    receive(threadId, "second", 2000)
+    receive(threadId, "third", 3000)
+
+    // THEN
+    assertEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+  }
+
+  @Test
+  fun givenAThreadWithMessages_whenIReceiveAnOlderMessage_thenIExpectTheSnippetToRemainTheNewest() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "newest", 3000)
+
+    // WHEN
+    receive(threadId, "oldest", 1000)
+
+    // THEN
+    assertEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+    assertEquals("newest", SignalDatabase.threads.getThreadRecord(threadId)!!.body)
+  }
+
+  @Test
+  fun givenAnOutgoingSnippet_whenIReceiveADeliveryReceipt_thenIExpectAConsistentSummary() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = 5000)
+    SignalDatabase.threads.update(threadId, false)
+
+    // WHEN
+    SignalDatabase.mmsSms.incrementDeliveryReceiptCount(MessageDatabase.SyncMessageId(recipient.id, 5000), 6000)
+
+    // THEN
+    assertEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+  }
+
+  @Test
+  fun givenAnOutgoingMessageThatIsNotTheSnippet_whenIReceiveADeliveryReceipt_thenIExpectAConsistentSummary() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    MmsHelper.insert(recipient = recipient, threadId = threadId, sentTimeMillis = 5000)
+    SignalDatabase.threads.update(threadId, false)
+    receive(threadId, "reply", System.currentTimeMillis() + 1000)
+
+    // WHEN
+    SignalDatabase.mmsSms.incrementDeliveryReceiptCount(MessageDatabase.SyncMessageId(recipient.id, 5000), 6000)
+
+    // THEN
+    assertEquals(emptyList<String>(), SignalDatabase.threads.findSummaryInconsistencies(threadId))
+  }
+
+  private fun receive(threadId: Long, body: String, receivedTime: Long) {
+    MmsHelper.insert(
+      IncomingMediaMessage(
+        from = recipient.id,
+        body = body,
+        isPushMessage = true,
+        sentTimeMillis = receivedTime,
+        serverTimeMillis = receivedTime,
+        receivedTimeMillis = receivedTime
+      ),
+      threadId
+    )
+  }
+}
@@ -0,0 +1,112 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import org.junit.Assert.assertEquals
+import org.junit.Rule
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.SqlUtil
+import org.signal.core.util.requireLong
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import java.security.SecureRandom
+
+@RunWith(AndroidJUnit4::class)
+class GroupMembershipMigrationTest {
+
+  @get:Rule val harness = SignalDatabaseRule(deleteAllThreadsOnEachRun = false)
+
+  @Test
+  fun givenGroupsWithMembers_whenIMigrate_thenIExpectAMembershipRowPerMember() {
+    // GIVEN
+    val first = insertGroup("1,2,3")
+    val second = insertGroup("3")
+    dropMembershipTable()
+
+    // WHEN
+    runMigration()
+
+    // THEN
+    assertEquals(setOf(1L, 2L, 3L), getMembership(first))
+    assertEquals(setOf(3L), getMembership(second))
+  }
+
+  @Test
+  fun givenGroupsWithoutMembers_whenIMigrate_thenIExpectNoMembershipRows() {
+    // GIVEN
+    val empty = insertGroup("")
+    val missing = insertGroup(null)
+    dropMembershipTable()
+
+    // WHEN
+    runMigration()
+
+    // THEN
+    assertEquals(emptySet<Long>(), getMembership(empty))
+    assertEquals(emptySet<Long>(), getMembership(missing))
+  }
+
+  @Test
+  fun givenAMemberListWithDuplicatesAndJunk_whenIMigrate_thenIExpectOneRowPerValidMember() {
+    // GIVEN
+    val groupId = insertGroup("4,4, 5,,abc,6")
+    dropMembershipTable()
+
+    // WHEN
+    runMigration()
+
+    // THEN
+    assertEquals(setOf(4L, 5L, 6L), getMembership(groupId))
+    assertEquals(3, countMembershipRows(groupId))
+  }
+
+  private fun insertGroup(members: String?): GroupId {
+    val groupId = GroupId.createMms(SecureRandom())
+
+    SignalDatabase.rawDatabase.insert(
+      "groups",
+      null,
+      contentValuesOf(
+        "group_id" to groupId.toString(),
+        "recipient_id" to SignalDatabase.recipients.getOrInsertFromGroupId(groupId).toLong(),
+        "members" to members,
+        "mms" to 1
+      )
+    )
+
+    return groupId
+  }
+
+  private fun dropMembershipTable() {
+    SignalDatabase.rawDatabase.execSQL("DROP TABLE group_membership")
+  }
+
+  private fun getMembership(groupId: GroupId): Set<Long> {
+    return SignalDatabase.rawDatabase.query("group_membership", arrayOf("recipient_id"), "group_id = ?", SqlUtil.buildArgs(groupId), null, null, null).use { cursor ->
+      val members = mutableSetOf<Long>()
+      while (cursor.moveToNext()) {
+        members += cursor.requireLong("recipient_id")
+      }
+      members
+    }
+  }
+
+  private fun countMembershipRows(groupId: GroupId): Int {
+    return SignalDatabase.rawDatabase.query("group_membership", SqlUtil.COUNT, "group_id = ?", SqlUtil.buildArgs(groupId), null, null, null).use { cursor ->
+      if (cursor.moveToFirst()) cursor.getInt(0) else 0
+    }
+  }
+
+  private fun runMigration() {
+    V158_GroupMembershipMigration.migrate(
+      InstrumentationRegistry.getInstrumentation().targetContext.applicationContext as Application,
+      SignalDatabase.rawDatabase,
+      0,
+      1
+    )
+  }
+}
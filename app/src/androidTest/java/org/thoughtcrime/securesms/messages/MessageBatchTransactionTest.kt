@@ -0,0 +1,152 @@
+package org.thoughtcrime.securesms.messages
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
+import org.signal.libsignal.protocol.IdentityKey
+import org.signal.libsignal.protocol.SignalProtocolAddress
+import org.thoughtcrime.securesms.crypto.IdentityKeyUtil
+import org.thoughtcrime.securesms.crypto.storage.SignalIdentityKeyStore
+import org.thoughtcrime.securesms.database.MmsHelper
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.JobManager
+import org.thoughtcrime.securesms.mms.IncomingMediaMessage
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+class MessageBatchTransactionTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+  private lateinit var jobManager: JobManager
+  private lateinit var identityStore: SignalIdentityKeyStore
+  private lateinit var address: SignalProtocolAddress
+  private lateinit var identityKey: IdentityKey
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+    jobManager = mock()
+    identityStore = ApplicationDependencies.getProtocolStore().aci().identities()
+    address = SignalProtocolAddress(ServiceId.from(UUID.randomUUID()).toString(), 1)
+    identityKey = IdentityKeyUtil.generateIdentityKeyPair().publicKey
+  }
+
+  @Test
+  fun givenABatch_whenItCompletes_thenIExpectItsChangesAndJobsToBeKept() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+
+    // WHEN
+    val updated = MessageBatchTransaction.run(jobManager) {
+      receive(threadId, "first", 1000)
+      receive(threadId, "second", 2000)
+      identityStore.saveIdentity(address, identityKey)
+    }
+
+    // THEN
+    assertEquals(setOf(threadId), updated)
+    assertEquals(2, SignalDatabase.mmsSms.getConversationCount(threadId))
+    assertEquals("second", SignalDatabase.threads.getThreadRecord(threadId)!!.body)
+    assertEquals(identityKey, identityStore.getIdentity(address))
+    verify(jobManager).beginDeferredSubmission()
+    verify(jobManager).endDeferredSubmission(true)
+  }
+
+  @Test
+  fun givenABatch_whenItFailsPartWayThrough_thenIExpectTheDatabaseAndStoresToBeUntouched() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    receive(threadId, "before", 500)
+
+    // WHEN
+    val updated = MessageBatchTransaction.run(jobManager) {
+      receive(threadId, "first", 1000)
+      identityStore.saveIdentity(address, identityKey)
+      assertEquals(identityKey, identityStore.getIdentity(address))
+      receive(threadId, "second", 2000)
+
+      throw IllegalStateException("Failed part way through the batch")
+    }
+
+    // THEN
+    assertNull(updated)
+    assertEquals(1, SignalDatabase.mmsSms.getConversationCount(threadId))
+    assertEquals("before", SignalDatabase.threads.getThreadRecord(threadId)!!.body)
+    assertNull(SignalDatabase.identities.getIdentityStoreRecord(address.name))
+    assertNull(identityStore.getIdentity(address))
+    verify(jobManager).endDeferredSubmission(false)
+  }
+
+  @Test
+  fun givenABatch_whenItCompletes_thenIExpectSideEffectsToRunAfterCommitInOrder() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val sideEffects = mutableListOf<String>()
+
+    // WHEN
+    MessageBatchTransaction.run(jobManager) {
+      receive(threadId, "first", 1000)
+      MessageBatchTransaction.runAfterCommit { sideEffects += "first" }
+      MessageBatchTransaction.runAfterCommit { throw IllegalStateException("Failing side effect") }
+      MessageBatchTransaction.runAfterCommit { sideEffects += "second" }
+
+      assertEquals(emptyList<String>(), sideEffects)
+    }
+
+    // THEN
+    assertEquals(listOf("first", "second"), sideEffects)
+  }
+
+  @Test
+  fun givenABatch_whenItFails_thenIExpectSideEffectsToBeDropped() {
+    // GIVEN
+    val sideEffects = mutableListOf<String>()
+
+    // WHEN
+    MessageBatchTransaction.run(jobManager) {
+      MessageBatchTransaction.runAfterCommit { sideEffects += "first" }
+
+      throw IllegalStateException("Failed part way through the batch")
+    }
+
+    // THEN
+    assertEquals(emptyList<String>(), sideEffects)
+  }
+
+  @Test
+  fun givenNoBatch_whenIRunASideEffect_thenIExpectItToRunImmediately() {
+    // GIVEN
+    val sideEffects = mutableListOf<String>()
+
+    // WHEN
+    MessageBatchTransaction.runAfterCommit { sideEffects += "first" }
+
+    // THEN
+    assertEquals(listOf("first"), sideEffects)
+  }
+
+  private fun receive(threadId: Long, body: String, receivedTime: Long) {
+    MmsHelper.insert(
+      IncomingMediaMessage(
+        from = recipient.id,
+        body = body,
+        isPushMessage = true,
+        sentTimeMillis = receivedTime,
+        serverTimeMillis = receivedTime,
+        receivedTimeMillis = receivedTime
+      ),
+      threadId
+    )
+  }
+}
@@ -0,0 +1,88 @@
+package org.thoughtcrime.securesms.recipients
+
+import android.app.Application
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.io.File
+import java.security.SecureRandom
+import java.util.UUID
+
+class RecipientSnapshotTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var context: Application
+
+  @Before
+  fun setUp() {
+    context = ApplicationDependencies.getApplication()
+    RecipientSnapshot.delete(context)
+  }
+
+  @Test
+  fun givenIndividualGroupAndDistributionListRecipients_whenIWriteAndReadTheSnapshot_thenIExpectEachToBeBuiltForItsType() {
+    // GIVEN
+    val serviceId = ServiceId.from(UUID.randomUUID())
+    val individual = SignalDatabase.recipients.getOrInsertFromServiceId(serviceId)
+
+    val groupId = GroupId.createMms(SecureRandom())
+    SignalDatabase.groups.create(groupId, "Group title", listOf(individual))
+    val group = SignalDatabase.recipients.getOrInsertFromGroupId(groupId)
+
+    val distributionListId = SignalDatabase.distributionLists.createList("List name", listOf(individual))!!
+    val distributionList = SignalDatabase.distributionLists.getRecipientId(distributionListId)!!
+
+    // WHEN
+    RecipientSnapshot.write(context, listOf(individual, group, distributionList))
+    val snapshot = RecipientSnapshot.read(context).associateBy { it.id }
+
+    // THEN
+    assertEquals(3, snapshot.size)
+
+    val readIndividual = snapshot[individual]!!
+    assertEquals(serviceId, readIndividual.serviceId.get())
+    assertFalse(readIndividual.groupId.isPresent)
+    assertFalse(readIndividual.distributionListId.isPresent)
+
+    val readGroup = snapshot[group]!!
+    assertEquals(groupId, readGroup.groupId.get())
+    assertEquals("Group title", readGroup.getGroupName(context))
+
+    val readDistributionList = snapshot[distributionList]!!
+    assertEquals(distributionListId, readDistributionList.distributionListId.get())
+    assertFalse(readDistributionList.groupId.isPresent)
+    assertEquals("List name", readDistributionList.getGroupName(context))
+
+    assertTrue(snapshot.values.all { it.isResolving })
+  }
+
+  @Test
+  fun givenNoSnapshot_whenIRead_thenIExpectNothing() {
+    assertEquals(emptyList<Recipient>(), RecipientSnapshot.read(context))
+  }
+
+  @Test
+  fun givenACorruptSnapshot_whenIRead_thenIExpectNothingAndTheFileToBeDeleted() {
+    // GIVEN
+    val file = File(context.cacheDir, "recipient-snapshot")
+    file.writeBytes(byteArrayOf(1, 2, 3, 4))
+
+    // WHEN
+    val snapshot = RecipientSnapshot.read(context)
+
+    // THEN
+    assertEquals(emptyList<Recipient>(), snapshot)
+    assertFalse(file.exists())
+  }
+}
@@ -0,0 +1,294 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
+import org.thoughtcrime.securesms.backup.BackupProtos.AttachmentReference;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
+import org.thoughtcrime.securesms.backup.BackupProtos.Increment;
+import org.thoughtcrime.securesms.backup.BackupProtos.SqlStatement;
+import org.thoughtcrime.securesms.backup.BackupProtos.Tombstone;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects what an incremental backup leaves to the earlier backups in its chain, and then reads it out of them.
+ *
+ * An increment with high-water marks only has the message rows that were new or changed when it was written, so the
+ * rest are restored from its dependencies, newest first. A row is only restored if no newer backup has already restored
+ * it or left a {@link Tombstone} for it, and the attachments of the restored rows come along with them. Older increments
+ * without marks have every row, and only need their {@link AttachmentReference}s read.
+ *
+ * Everything needed has to be found. If an earlier backup is missing, unreadable, or doesn't have an attachment it's
+ * meant to, the restore fails with a {@link FullBackupImporter.MissingBackupDependencyException} rather than quietly
+ * restoring without it.
+ */
+final class BackupChainReader {
+
+  private static final String TAG = Log.tag(BackupChainReader.class);
+
+  private final Map<String, Map<AttachmentId, AttachmentReference>> references = new LinkedHashMap<>();
+  private final Map<String, Set<Long>>                              tombstones = new HashMap<>();
+
+  private List<String> dependencies       = Collections.emptyList();
+  private boolean      rowsInDependencies = false;
+
+  void setIncrement(@NonNull Increment increment) {
+    this.dependencies       = increment.getDependenciesList();
+    this.rowsInDependencies = increment.getHighWaterMarksCount() > 0;
+  }
+
+  void addTombstone(@NonNull Tombstone tombstone) {
+    addTombstone(tombstones, tombstone);
+  }
+
+  void addReference(@NonNull AttachmentReference reference) {
+    Map<AttachmentId, AttachmentReference> fileReferences = references.get(reference.getFileName());
+
+    if (fileReferences == null) {
+      fileReferences = new HashMap<>();
+      references.put(reference.getFileName(), fileReferences);
+    }
+
+    fileReferences.put(new AttachmentId(reference.getRowId(), reference.getAttachmentId()), reference);
+  }
+
+  /**
+   * Restores everything the backup left to its dependencies.
+   */
+  void readChain(@NonNull String passphrase, @NonNull BackupFileResolver resolver, @NonNull RowProcessor rowProcessor, @NonNull AttachmentProcessor attachmentProcessor)
+      throws IOException
+  {
+    if (!rowsInDependencies) {
+      readReferencedAttachments(passphrase, resolver, attachmentProcessor);
+      return;
+    }
+
+    for (int i = dependencies.size() - 1; i >= 0; i--) {
+      String                                 fileName = dependencies.get(i);
+      Map<AttachmentId, AttachmentReference> wanted   = references.remove(fileName);
+
+      readDependency(passphrase, resolver, rowProcessor, attachmentProcessor, fileName, wanted != null ? new HashMap<>(wanted) : new HashMap<>());
+    }
+
+    if (!references.isEmpty()) {
+      String fileName = references.keySet().iterator().next();
+      Log.w(TAG, "Attachments referenced in " + fileName + ", which isn't an earlier backup in the chain!");
+      throw new FullBackupImporter.MissingBackupDependencyException(fileName);
+    }
+  }
+
+  /**
+   * Reads every referenced attachment out of the backup that has it, skipping over everything else.
+   */
+  void readReferencedAttachments(@NonNull String passphrase, @NonNull BackupFileResolver resolver, @NonNull AttachmentProcessor processor) throws IOException {
+    for (Map.Entry<String, Map<AttachmentId, AttachmentReference>> entry : references.entrySet()) {
+      readReferencedBackup(passphrase, resolver, processor, entry.getKey(), new HashMap<>(entry.getValue()));
+    }
+  }
+
+  private static void readReferencedBackup(@NonNull String passphrase,
+                                           @NonNull BackupFileResolver resolver,
+                                           @NonNull AttachmentProcessor processor,
+                                           @NonNull String fileName,
+                                           @NonNull Map<AttachmentId, AttachmentReference> wanted)
+      throws IOException
+  {
+    Log.i(TAG, "Restoring " + wanted.size() + " attachments from " + fileName);
+
+    try (InputStream is = resolver.open(fileName)) {
+      if (is == null) {
+        Log.w(TAG, "Couldn't find " + fileName + "!");
+        throw new FullBackupImporter.MissingBackupDependencyException(fileName);
+      }
+
+      BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+      BackupFrame             frame;
+
+      while (!wanted.isEmpty() && !(frame = inputStream.readFrame()).getEnd()) {
+        if (frame.hasAttachment()) {
+          Attachment attachment = frame.getAttachment();
+
+          if (wanted.remove(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId())) != null) {
+            processor.process(attachment, inputStream);
+          } else {
+            inputStream.readAttachmentTo(DiscardingOutputStream.INSTANCE, attachment.getLength());
+          }
+        } else if (frame.hasSticker()) {
+          inputStream.readAttachmentTo(DiscardingOutputStream.INSTANCE, frame.getSticker().getLength());
+        } else if (frame.hasAvatar()) {
+          inputStream.readAttachmentTo(DiscardingOutputStream.INSTANCE, frame.getAvatar().getLength());
+        }
+      }
+    } catch (FullBackupImporter.MissingBackupDependencyException e) {
+      throw e;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read " + fileName + "!", e);
+      throw new FullBackupImporter.MissingBackupDependencyException(fileName, e);
+    }
+
+    if (!wanted.isEmpty()) {
+      Log.w(TAG, "Missing " + wanted.size() + " attachments from " + fileName + "!");
+      throw new FullBackupImporter.MissingBackupDependencyException(fileName);
+    }
+  }
+
+  private void readDependency(@NonNull String passphrase,
+                              @NonNull BackupFileResolver resolver,
+                              @NonNull RowProcessor rowProcessor,
+                              @NonNull AttachmentProcessor attachmentProcessor,
+                              @NonNull String fileName,
+                              @NonNull Map<AttachmentId, AttachmentReference> wanted)
+      throws IOException
+  {
+    Map<String, Set<Long>> fileTombstones = new HashMap<>();
+    Set<Long>              restoredParts  = new HashSet<>();
+    int                    restoredRows   = 0;
+
+    try (InputStream is = resolver.open(fileName)) {
+      if (is == null) {
+        Log.w(TAG, "Couldn't find " + fileName + "!");
+        throw new FullBackupImporter.MissingBackupDependencyException(fileName);
+      }
+
+      BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+      BackupFrame             frame;
+
+      while (!(frame = inputStream.readFrame()).getEnd()) {
+        if (frame.hasStatement()) {
+          String table = getTrackedTable(frame.getStatement());
+
+          if (table != null) {
+            long rowId = rowProcessor.insertIfAbsent(frame.getStatement());
+
+            if (rowId == -1) {
+              continue;
+            }
+
+            if (isTombstoned(tombstones, table, rowId)) {
+              rowProcessor.delete(table, rowId);
+            } else {
+              restoredRows++;
+
+              if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+                restoredParts.add(rowId);
+              }
+            }
+          }
+        } else if (frame.hasAttachment()) {
+          Attachment attachment = frame.getAttachment();
+
+          if (wanted.remove(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId())) != null || restoredParts.contains(attachment.getRowId())) {
+            attachmentProcessor.process(attachment, inputStream);
+          } else {
+            inputStream.readAttachmentTo(DiscardingOutputStream.INSTANCE, attachment.getLength());
+          }
+        } else if (frame.hasAttachmentReference()) {
+          if (restoredParts.contains(frame.getAttachmentReference().getRowId())) {
+            addReference(frame.getAttachmentReference());
+          }
+        } else if (frame.hasTombstone()) {
+          addTombstone(fileTombstones, frame.getTombstone());
+        } else if (frame.hasSticker()) {
+          inputStream.readAttachmentTo(DiscardingOutputStream.INSTANCE, frame.getSticker().getLength());
+        } else if (frame.hasAvatar()) {
+          inputStream.readAttachmentTo(DiscardingOutputStream.INSTANCE, frame.getAvatar().getLength());
+        }
+      }
+    } catch (FullBackupImporter.MissingBackupDependencyException e) {
+      throw e;
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read " + fileName + "!", e);
+      throw new FullBackupImporter.MissingBackupDependencyException(fileName, e);
+    }
+
+    if (!wanted.isEmpty()) {
+      Log.w(TAG, "Missing " + wanted.size() + " attachments from " + fileName + "!");
+      throw new FullBackupImporter.MissingBackupDependencyException(fileName);
+    }
+
+    Log.i(TAG, "Restored " + restoredRows + " rows from " + fileName);
+
+    for (Map.Entry<String, Set<Long>> entry : fileTombstones.entrySet()) {
+      getOrCreate(tombstones, entry.getKey()).addAll(entry.getValue());
+    }
+  }
+
+  private static @Nullable String getTrackedTable(@NonNull SqlStatement statement) {
+    for (String table : IncrementalBackup.TRACKED_TABLES) {
+      if (statement.getStatement().startsWith("INSERT INTO " + table + " ")) {
+        return table;
+      }
+    }
+
+    return null;
+  }
+
+  private static boolean isTombstoned(@NonNull Map<String, Set<Long>> tombstones, @NonNull String table, long rowId) {
+    Set<Long> rowIds = tombstones.get(table);
+    return rowIds != null && rowIds.contains(rowId);
+  }
+
+  private static void addTombstone(@NonNull Map<String, Set<Long>> tombstones, @NonNull Tombstone tombstone) {
+    getOrCreate(tombstones, tombstone.getTable()).add(tombstone.getRowId());
+  }
+
+  private static @NonNull Set<Long> getOrCreate(@NonNull Map<String, Set<Long>> tombstones, @NonNull String table) {
+    Set<Long> rowIds = tombstones.get(table);
+
+    if (rowIds == null) {
+      rowIds = new HashSet<>();
+      tombstones.put(table, rowIds);
+    }
+
+    return rowIds;
+  }
+
+  interface BackupFileResolver {
+    /**
+     * @return The backup with the provided name, or null if it can't be found.
+     */
+    @Nullable InputStream open(@NonNull String fileName) throws IOException;
+  }
+
+  interface RowProcessor {
+    /**
+     * Inserts the row unless there's already one with the same id.
+     *
+     * @return The id of the inserted row, or -1 if it was already there.
+     */
+    long insertIfAbsent(@NonNull SqlStatement statement) throws IOException;
+
+    void delete(@NonNull String table, long rowId) throws IOException;
+  }
+
+  interface AttachmentProcessor {
+    /**
+     * Reads the attachment's data from the stream, which is positioned right after its frame.
+     */
+    void process(@NonNull Attachment attachment, @NonNull BackupRecordInputStream inputStream) throws IOException;
+  }
+
+  static final class DiscardingOutputStream extends OutputStream {
+    static final DiscardingOutputStream INSTANCE = new DiscardingOutputStream();
+
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {}
+  }
+}
@@ -0,0 +1,874 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.core.util.Conversions;
+import org.signal.core.util.logging.Log;
+import org.signal.libsignal.protocol.kdf.HKDF;
+import org.signal.libsignal.protocol.util.ByteUtil;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Writes the backup format read by {@link BackupRecordInputStream}.
+ *
+ * Every frame and attachment is encrypted with its own counter, so they don't depend on one another and the work is
+ * split into a pipeline:
+ * - The calling thread encrypts frames and collects them into batches.
+ * - Attachments small enough to hold in memory are read, decrypted, and re-encrypted on a pool of threads.
+ * - Larger attachments are read in chunks on a read thread, one attachment after another, and each chunk is encrypted
+ *   on the same pool of threads. If the pool only has one thread, they're streamed through on the writer thread instead.
+ * - A writer thread writes everything to the output, in the order it was submitted, and computes the MACs of the
+ *   larger attachments as their chunks go by.
+ *
+ * How much is held in memory is bounded, so the caller blocks when it gets too far ahead of the output. The output is
+ * byte-for-byte what writing everything serially would produce.
+ *
+ * Streams passed in are owned by this class from then on, and are closed once they've been written or the backup fails.
+ */
+class BackupFrameOutputStream extends FullBackupBase.BackupStream implements Closeable {
+
+  private static final String TAG = Log.tag(BackupFrameOutputStream.class);
+
+  private static final int MAC_LENGTH             = 10;
+  private static final int BUFFER_SIZE            = 64 * 1024;
+  private static final int FRAME_BATCH_SIZE       = 64 * 1024;
+  private static final int MAX_QUEUED_SEGMENTS    = 128;
+  private static final int MAX_ENCRYPTION_THREADS = 4;
+
+  /** Streams larger than this are encrypted as they're written instead of being held in memory. */
+  @VisibleForTesting
+  static final int MAX_IN_MEMORY_STREAM = 1024 * 1024;
+
+  /**
+   * A multiple of the AES block size, so that every chunk starts on a block boundary and can be encrypted on its own by
+   * starting the counter at that block.
+   */
+  @VisibleForTesting
+  static final int STREAM_CHUNK_SIZE = 256 * 1024;
+
+  /** The most chunks of a stream that can be encrypting or waiting to be written at once. */
+  private static final int MAX_QUEUED_CHUNKS = 4;
+
+  /** Reserved for a stream that's encrypted in chunks: the queued chunks, plus the one being read and the one being written. */
+  private static final int CHUNKED_STREAM_BYTES = (MAX_QUEUED_CHUNKS + 2) * STREAM_CHUNK_SIZE;
+
+  /**
+   * The most encrypted bytes that can be held in memory at once, across the encryption threads and the queue. Space is
+   * reserved before a stream starts encrypting, and every stream is encrypted straight into a buffer of its final size,
+   * so this is a bound on the whole pipeline rather than per task.
+   */
+  private static final int MAX_BUFFERED_BYTES = 8 * 1024 * 1024;
+
+  private final OutputStream          outputStream;
+  private final SecretKeySpec         cipherKey;
+  private final SecretKeySpec         macKey;
+  private final Cipher                frameCipher;
+  private final Mac                   frameMac;
+  private final byte[]                frameIv;
+  private final ByteArrayOutputStream frameBatch;
+
+  private final ExecutorService        encryptionExecutor;
+  private final ExecutorService        readExecutor;
+  private final boolean                chunkLargeStreams;
+  private final BlockingQueue<Segment> segments;
+  private final Semaphore              bufferedBytes;
+  private final Thread                 writerThread;
+
+  private          int         counter;
+  private          boolean     finished;
+  private volatile boolean     aborted;
+  private volatile IOException failure;
+
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
+    this(output, passphrase, Math.max(1, Math.min(MAX_ENCRYPTION_THREADS, Runtime.getRuntime().availableProcessors() - 1)));
+  }
+
+  /**
+   * With a single encryption thread, there's nothing to spread the chunks of a large stream across, so they're streamed
+   * through on the writer thread instead, which skips handing every chunk between threads.
+   */
+  @VisibleForTesting
+  BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, int encryptionThreads) throws IOException {
+    try {
+      byte[]   salt    = Util.getSecretBytes(32);
+      byte[]   key     = getBackupKey(passphrase, salt);
+      byte[]   derived = HKDF.deriveSecrets(key, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+      byte[]   iv      = Util.getSecretBytes(16);
+
+      this.cipherKey    = new SecretKeySpec(split[0], "AES");
+      this.macKey       = new SecretKeySpec(split[1], "HmacSHA256");
+      this.frameCipher  = Cipher.getInstance("AES/CTR/NoPadding");
+      this.frameMac     = Mac.getInstance("HmacSHA256");
+      this.frameIv      = iv.clone();
+      this.frameBatch   = new ByteArrayOutputStream(FRAME_BATCH_SIZE + 1024);
+      this.outputStream = output;
+      this.counter      = Conversions.byteArrayToInt(iv);
+
+      frameMac.init(macKey);
+
+      byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
+                                                                                         .setIv(ByteString.copyFrom(iv))
+                                                                                         .setSalt(ByteString.copyFrom(salt)))
+                                              .build().toByteArray();
+
+      outputStream.write(Conversions.intToByteArray(header.length));
+      outputStream.write(header);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+
+    this.encryptionExecutor = Executors.newFixedThreadPool(encryptionThreads, new NamedThreadFactory("signal-backup-encrypt"));
+    this.readExecutor       = Executors.newSingleThreadExecutor(new NamedThreadFactory("signal-backup-read"));
+    this.chunkLargeStreams  = encryptionThreads > 1;
+    this.segments           = new ArrayBlockingQueue<>(MAX_QUEUED_SEGMENTS);
+    this.bufferedBytes      = new Semaphore(MAX_BUFFERED_BYTES);
+    this.writerThread       = new Thread(this::runWriter, "signal-backup-writer");
+
+    writerThread.start();
+  }
+
+  public void write(BackupProtos.SharedPreference preference) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+  }
+
+  public void write(BackupProtos.KeyValue keyValue) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
+  }
+
+  public void write(BackupProtos.SqlStatement statement) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+  }
+
+  public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
+    try {
+      writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                         .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                       .setRecipientId(avatarName)
+                                                                       .setLength(Util.toIntExact(size))
+                                                                       .build())
+                                         .build());
+    } catch (ArithmeticException e) {
+      Log.w(TAG, "Unable to write avatar to backup", e);
+      closeQuietly(in);
+      throw new FullBackupExporter.InvalidBackupStreamException();
+    } catch (IOException e) {
+      closeQuietly(in);
+      throw e;
+    }
+
+    writeStream(in, size);
+  }
+
+  public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
+    try {
+      writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                         .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                               .setRowId(attachmentId.getRowId())
+                                                                               .setAttachmentId(attachmentId.getUniqueId())
+                                                                               .setLength(Util.toIntExact(size))
+                                                                               .build())
+                                         .build());
+    } catch (ArithmeticException e) {
+      Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
+      closeQuietly(in);
+      throw new FullBackupExporter.InvalidBackupStreamException();
+    } catch (IOException e) {
+      closeQuietly(in);
+      throw e;
+    }
+
+    writeStream(in, size);
+  }
+
+  public void writeAttachmentReference(@NonNull AttachmentId attachmentId, long size, @NonNull String fileName) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                       .setAttachmentReference(BackupProtos.AttachmentReference.newBuilder()
+                                                                                               .setRowId(attachmentId.getRowId())
+                                                                                               .setAttachmentId(attachmentId.getUniqueId())
+                                                                                               .setLength((int) size)
+                                                                                               .setFileName(fileName)
+                                                                                               .build())
+                                       .build());
+  }
+
+  public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
+    try {
+      writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                         .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                         .setRowId(rowId)
+                                                                         .setLength(Util.toIntExact(size))
+                                                                         .build())
+                                         .build());
+    } catch (ArithmeticException e) {
+      Log.w(TAG, "Unable to write sticker to backup", e);
+      closeQuietly(in);
+      throw new FullBackupExporter.InvalidBackupStreamException();
+    } catch (IOException e) {
+      closeQuietly(in);
+      throw e;
+    }
+
+    writeStream(in, size);
+  }
+
+  void writeDatabaseVersion(int version) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                       .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                       .build());
+  }
+
+  void writeIncrement(@NonNull List<String> dependencies, @NonNull List<BackupProtos.HighWaterMark> highWaterMarks) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                       .setIncrement(BackupProtos.Increment.newBuilder().addAllDependencies(dependencies).addAllHighWaterMarks(highWaterMarks))
+                                       .build());
+  }
+
+  void writeTombstone(@NonNull String table, long rowId) throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                       .setTombstone(BackupProtos.Tombstone.newBuilder().setTable(table).setRowId(rowId))
+                                       .build());
+  }
+
+  /**
+   * Writes the final frame and waits for everything before it to reach the output.
+   */
+  void writeEnd() throws IOException {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    flushFrameBatch();
+
+    finished = true;
+    stopWriter();
+
+    if (failure != null) {
+      throw failure;
+    }
+
+    outputStream.flush();
+  }
+
+  /**
+   * Stops the pipeline without closing the output. If {@link #writeEnd()} hasn't been called, anything that hasn't
+   * been written yet is dropped.
+   */
+  void cancel() throws IOException {
+    if (!finished) {
+      aborted  = true;
+      finished = true;
+      frameBatch.reset();
+      stopWriter();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    cancel();
+
+    outputStream.flush();
+    outputStream.close();
+  }
+
+  private void writeFrame(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+    throwIfFailed();
+
+    try {
+      Conversions.intToByteArray(frameIv, 0, counter++);
+      frameCipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(frameIv));
+
+      byte[] frameCiphertext = frameCipher.doFinal(frame.toByteArray());
+      byte[] frameMacBytes   = frameMac.doFinal(frameCiphertext);
+
+      frameBatch.write(Conversions.intToByteArray(frameCiphertext.length + MAC_LENGTH));
+      frameBatch.write(frameCiphertext);
+      frameBatch.write(frameMacBytes, 0, MAC_LENGTH);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+
+    if (frameBatch.size() >= FRAME_BATCH_SIZE) {
+      flushFrameBatch();
+    }
+  }
+
+  private void writeStream(@NonNull InputStream in, long size) throws IOException {
+    int streamCounter = counter++;
+
+    try {
+      flushFrameBatch();
+
+      if (size <= MAX_IN_MEMORY_STREAM) {
+        int length = (int) size + MAC_LENGTH;
+
+        acquireBufferedBytes(length);
+
+        Future<byte[]> result;
+        try {
+          result = encryptionExecutor.submit(() -> {
+            try (InputStream stream = in) {
+              FixedSizeOutputStream out = new FixedSizeOutputStream(length);
+              encryptStream(stream, streamCounter, size, out, new byte[BUFFER_SIZE]);
+              return out.getBuffer();
+            }
+          });
+        } catch (RuntimeException e) {
+          bufferedBytes.release(length);
+          throw e;
+        }
+
+        enqueue(new EncryptedStreamSegment(result, in, length));
+      } else if (!chunkLargeStreams) {
+        enqueue(new StreamingSegment(in, streamCounter, size));
+      } else {
+        acquireBufferedBytes(CHUNKED_STREAM_BYTES);
+
+        ChunkedStreamSegment segment = new ChunkedStreamSegment(in, streamCounter, size);
+
+        try {
+          readExecutor.execute(segment);
+        } catch (RuntimeException e) {
+          bufferedBytes.release(CHUNKED_STREAM_BYTES);
+          throw e;
+        }
+
+        enqueue(segment);
+      }
+    } catch (IOException | RuntimeException e) {
+      closeQuietly(in);
+      throw e;
+    }
+  }
+
+  private void flushFrameBatch() throws IOException {
+    if (frameBatch.size() == 0) {
+      return;
+    }
+
+    byte[] batch = frameBatch.toByteArray();
+    frameBatch.reset();
+
+    acquireBufferedBytes(batch.length);
+    enqueue(new FrameSegment(batch));
+  }
+
+  private void acquireBufferedBytes(int length) throws IOException {
+    try {
+      bufferedBytes.acquire(Math.min(length, MAX_BUFFERED_BYTES));
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void enqueue(@NonNull Segment segment) throws IOException {
+    try {
+      segments.put(segment);
+    } catch (InterruptedException e) {
+      segment.abort();
+      throw new InterruptedIOException();
+    }
+
+    throwIfFailed();
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void stopWriter() throws IOException {
+    try {
+      segments.put(Segment.END);
+      writerThread.join();
+    } catch (InterruptedException e) {
+      aborted = true;
+      writerThread.interrupt();
+      throw new InterruptedIOException();
+    } finally {
+      readExecutor.shutdownNow();
+      encryptionExecutor.shutdownNow();
+    }
+  }
+
+  /**
+   * Takes segments off the queue in order and writes them. Once anything has failed, or the backup has been abandoned,
+   * the rest of the queue is drained without being written so that the caller is never left blocked.
+   */
+  private void runWriter() {
+    byte[] buffer = new byte[BUFFER_SIZE];
+
+    while (true) {
+      Segment segment;
+
+      try {
+        segment = segments.take();
+      } catch (InterruptedException e) {
+        failure = new InterruptedIOException();
+        return;
+      }
+
+      if (segment == Segment.END) {
+        return;
+      }
+
+      if (failure != null || aborted) {
+        segment.abort();
+        continue;
+      }
+
+      try {
+        segment.writeTo(outputStream, buffer);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write backup segment.", e);
+        failure = e;
+        segment.abort();
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to write backup segment.", e);
+        failure = new IOException(e);
+        segment.abort();
+      }
+    }
+  }
+
+  /**
+   * Encrypts the stream the same way {@link BackupRecordInputStream#readAttachmentTo(OutputStream, int)} decrypts it:
+   * the ciphertext followed by the first bytes of a MAC over the IV and the ciphertext.
+   */
+  private void encryptStream(@NonNull InputStream in, int streamCounter, long size, @NonNull OutputStream out, @NonNull byte[] buffer) throws IOException {
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Mac    mac    = Mac.getInstance("HmacSHA256");
+      byte[] iv     = getStreamIv(streamCounter);
+
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      mac.init(macKey);
+      mac.update(iv);
+
+      byte[] ciphertext = new byte[BUFFER_SIZE];
+      long   total      = 0;
+      int    read;
+
+      while ((read = in.read(buffer)) != -1) {
+        int written = cipher.update(buffer, 0, read, ciphertext, 0);
+
+        out.write(ciphertext, 0, written);
+        mac.update(ciphertext, 0, written);
+
+        total += read;
+      }
+
+      byte[] remainder = cipher.doFinal();
+      out.write(remainder);
+      mac.update(remainder);
+
+      out.write(mac.doFinal(), 0, MAC_LENGTH);
+
+      if (total != size) {
+        throw new IOException("Size mismatch!");
+      }
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private @NonNull byte[] getStreamIv(int streamCounter) {
+    byte[] iv = frameIv.clone();
+    Conversions.intToByteArray(iv, 0, streamCounter);
+    return iv;
+  }
+
+  /**
+   * Encrypts a chunk of a stream in place, as it would have been if the whole stream had been encrypted in one go. The
+   * counter is the whole 16-byte IV, so the block number is added to all of it.
+   */
+  private @NonNull byte[] encryptChunk(@NonNull byte[] chunk, int length, @NonNull byte[] streamIv, long offset) {
+    byte[] iv     = streamIv.clone();
+    long   blocks = offset / 16;
+    int    carry  = 0;
+
+    for (int i = iv.length - 1; i >= 0 && (blocks != 0 || carry != 0); i--) {
+      int sum = (iv[i] & 0xff) + (int) (blocks & 0xff) + carry;
+
+      iv[i]   = (byte) sum;
+      carry   = sum >>> 8;
+      blocks >>>= 8;
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      // Finishing with update() rather than doFinal(input) avoids a copy of the chunk when encrypting in place
+      int written = cipher.update(chunk, 0, length, chunk, 0);
+      cipher.doFinal(chunk, written);
+
+      return chunk;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void closeQuietly(@Nullable Closeable closeable) {
+    if (closeable == null) return;
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private abstract static class Segment {
+
+    static final Segment END = new Segment() {
+      @Override
+      void writeTo(@NonNull OutputStream out, @NonNull byte[] buffer) {}
+
+      @Override
+      void abort() {}
+    };
+
+    abstract void writeTo(@NonNull OutputStream out, @NonNull byte[] buffer) throws IOException;
+
+    /**
+     * Called instead of {@link #writeTo(OutputStream, byte[])} when the segment won't be written.
+     */
+    abstract void abort();
+  }
+
+  private final class FrameSegment extends Segment {
+
+    private final byte[] frames;
+
+    FrameSegment(@NonNull byte[] frames) {
+      this.frames = frames;
+    }
+
+    @Override
+    void writeTo(@NonNull OutputStream out, @NonNull byte[] buffer) throws IOException {
+      try {
+        out.write(frames);
+      } finally {
+        bufferedBytes.release(Math.min(frames.length, MAX_BUFFERED_BYTES));
+      }
+    }
+
+    @Override
+    void abort() {
+      bufferedBytes.release(Math.min(frames.length, MAX_BUFFERED_BYTES));
+    }
+  }
+
+  private final class EncryptedStreamSegment extends Segment {
+
+    private final Future<byte[]> result;
+    private final InputStream    in;
+    private final int            length;
+
+    EncryptedStreamSegment(@NonNull Future<byte[]> result, @NonNull InputStream in, int length) {
+      this.result = result;
+      this.in     = in;
+      this.length = length;
+    }
+
+    @Override
+    void writeTo(@NonNull OutputStream out, @NonNull byte[] buffer) throws IOException {
+      try {
+        out.write(result.get());
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        } else {
+          throw new IOException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      } finally {
+        bufferedBytes.release(Math.min(length, MAX_BUFFERED_BYTES));
+      }
+    }
+
+    @Override
+    void abort() {
+      result.cancel(false);
+      closeQuietly(in);
+      bufferedBytes.release(Math.min(length, MAX_BUFFERED_BYTES));
+    }
+  }
+
+  private final class StreamingSegment extends Segment {
+
+    private final InputStream in;
+    private final int         streamCounter;
+    private final long        size;
+
+    StreamingSegment(@NonNull InputStream in, int streamCounter, long size) {
+      this.in            = in;
+      this.streamCounter = streamCounter;
+      this.size          = size;
+    }
+
+    @Override
+    void writeTo(@NonNull OutputStream out, @NonNull byte[] buffer) throws IOException {
+      try (InputStream stream = in) {
+        encryptStream(stream, streamCounter, size, out, buffer);
+      }
+    }
+
+    @Override
+    void abort() {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * A stream too large to hold in memory. It's read in chunks on the read thread, each chunk is encrypted on the pool of
+   * encryption threads, and the writer takes the chunks in order, adding each to the MAC as it writes it. A null chunk
+   * marks the end of the stream.
+   */
+  private final class ChunkedStreamSegment extends Segment implements Runnable {
+
+    private final InputStream                   in;
+    private final byte[]                        iv;
+    private final long                          size;
+    private final BlockingQueue<Future<byte[]>> chunks;
+    private final BlockingQueue<byte[]>         spareChunks;
+    private final AtomicBoolean                 released;
+
+    private volatile boolean cancelled;
+
+    ChunkedStreamSegment(@NonNull InputStream in, int streamCounter, long size) {
+      this.in          = in;
+      this.iv          = getStreamIv(streamCounter);
+      this.size        = size;
+      this.chunks      = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS);
+      this.spareChunks = new ArrayBlockingQueue<>(MAX_QUEUED_CHUNKS + 2);
+      this.released    = new AtomicBoolean(false);
+    }
+
+    /**
+     * Reads the stream on the read thread. Blocks whenever {@link #MAX_QUEUED_CHUNKS} chunks are waiting on the writer.
+     */
+    @Override
+    public void run() {
+      IOException failure = null;
+
+      try (InputStream stream = in) {
+        long offset = 0;
+
+        while (offset < size && !cancelled) {
+          byte[] chunk       = nextChunk();
+          int    length      = (int) Math.min(STREAM_CHUNK_SIZE, size - offset);
+          long   chunkOffset = offset;
+
+          readFully(stream, chunk, length);
+          chunks.put(encryptionExecutor.submit(() -> encryptChunk(chunk, length, iv, chunkOffset)));
+
+          offset += length;
+        }
+
+        if (!cancelled && stream.read() != -1) {
+          throw new IOException("Size mismatch!");
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (InterruptedException e) {
+        failure = new InterruptedIOException();
+      } catch (RuntimeException e) {
+        failure = new IOException(e);
+      }
+
+      if (cancelled) {
+        return;
+      }
+
+      // The queue may be full, and the writer can only fail or finish once it sees this, so it has to wait for room
+      try {
+        chunks.put(endOfStream(failure));
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Interrupted while finishing a stream.", e);
+      }
+    }
+
+    @Override
+    void writeTo(@NonNull OutputStream out, @NonNull byte[] buffer) throws IOException {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        mac.update(iv);
+
+        long   remaining = size;
+        byte[] chunk;
+
+        while ((chunk = chunks.take().get()) != null) {
+          int length = (int) Math.min(STREAM_CHUNK_SIZE, remaining);
+
+          out.write(chunk, 0, length);
+          mac.update(chunk, 0, length);
+
+          remaining -= length;
+          spareChunks.offer(chunk);
+        }
+
+        out.write(mac.doFinal(), 0, MAC_LENGTH);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        } else {
+          throw new IOException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException();
+      } catch (GeneralSecurityException e) {
+        throw new AssertionError(e);
+      } finally {
+        release();
+      }
+    }
+
+    /**
+     * Closing the stream stops the read thread if it's in the middle of a read, and clearing the queue frees it up if
+     * it's waiting to queue a chunk.
+     */
+    @Override
+    void abort() {
+      cancelled = true;
+      closeQuietly(in);
+      chunks.clear();
+      release();
+    }
+
+    private void release() {
+      if (released.compareAndSet(false, true)) {
+        bufferedBytes.release(CHUNKED_STREAM_BYTES);
+      }
+    }
+
+    /**
+     * Chunks are handed back once they've been written, so a stream only ever allocates as many as can be in flight at
+     * once, rather than one for every chunk it's made of.
+     */
+    private @NonNull byte[] nextChunk() {
+      byte[] chunk = spareChunks.poll();
+      return chunk != null ? chunk : new byte[STREAM_CHUNK_SIZE];
+    }
+
+    private void readFully(@NonNull InputStream stream, @NonNull byte[] chunk, int length) throws IOException {
+      int position = 0;
+
+      while (position < length) {
+        int read = stream.read(chunk, position, length - position);
+
+        if (read == -1) {
+          throw new IOException("Size mismatch!");
+        }
+
+        position += read;
+      }
+    }
+
+    /**
+     * @param failure If set, the writer fails with it instead of finishing the stream.
+     */
+    private @NonNull Future<byte[]> endOfStream(@Nullable IOException failure) {
+      FutureTask<byte[]> future = new FutureTask<>(() -> {
+        if (failure != null) {
+          throw failure;
+        }
+        return null;
+      });
+
+      future.run();
+      return future;
+    }
+  }
+
+  /**
+   * Writes into a buffer of the exact size that's expected, so the result doesn't need to be copied out.
+   */
+  private static final class FixedSizeOutputStream extends OutputStream {
+
+    private final byte[] buffer;
+    private       int    position;
+
+    FixedSizeOutputStream(int size) {
+      this.buffer = new byte[size];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (position >= buffer.length) {
+        throw new IOException("Size mismatch!");
+      }
+
+      buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] bytes, int offset, int length) throws IOException {
+      if (length > buffer.length - position) {
+        throw new IOException("Size mismatch!");
+      }
+
+      System.arraycopy(bytes, offset, buffer, position, length);
+      position += length;
+    }
+
+    @NonNull byte[] getBuffer() throws IOException {
+      if (position != buffer.length) {
+        throw new IOException("Size mismatch!");
+      }
+
+      return buffer;
+    }
+  }
+
+  private static final class NamedThreadFactory implements ThreadFactory {
+
+    private final String        name;
+    private final AtomicInteger count = new AtomicInteger();
+
+    NamedThreadFactory(@NonNull String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(@NonNull Runnable runnable) {
+      return new Thread(runnable, name + "-" + count.getAndIncrement());
+    }
+  }
+}
@@ -14,18 +14,27 @@ object BackupVerifier {
 
   private val TAG = Log.tag(BackupVerifier::class.java)
 
+  /**
+   * @param incrementalBackup The chain the backup was written against, if it was written as an increment. Attachment references are checked
+   * against what the chain says is in the earlier backups, rather than by reading them again.
+   */
   @JvmStatic
-  fun verifyFile(cipherStream: InputStream, passphrase: String, expectedCount: Long): Boolean {
+  @JvmOverloads
+  fun verifyFile(cipherStream: InputStream, passphrase: String, expectedCount: Long, incrementalBackup: IncrementalBackup? = null): Boolean {
     val inputStream = BackupRecordInputStream(cipherStream, passphrase)
 
     var count = 0L
     var frame: BackupFrame = inputStream.readFrame()
+    var increment = false
 
     while (!frame.end) {
       val verified = when {
         frame.hasAttachment() -> verifyAttachment(frame.attachment, inputStream)
         frame.hasSticker() -> verifySticker(frame.sticker, inputStream)
         frame.hasAvatar() -> verifyAvatar(frame.avatar, inputStream)
+        frame.hasIncrement() -> verifyIncrement(frame.increment, incrementalBackup).also { increment = it }
+        frame.hasAttachmentReference() -> increment && verifyAttachmentReference(frame.attachmentReference, incrementalBackup!!)
+        frame.hasTombstone() -> increment && verifyTombstone(frame.tombstone)
         else -> true
       }
 
@@ -54,6 +63,43 @@ object BackupVerifier {
     return true
   }
 
+  private fun verifyIncrement(increment: BackupProtos.Increment, incrementalBackup: IncrementalBackup?): Boolean {
+    if (incrementalBackup == null || increment.dependenciesList != incrementalBackup.dependencies) {
+      Log.w(TAG, "Increment doesn't match the chain: ${increment.dependenciesList}")
+      return false
+    }
+
+    if (increment.highWaterMarksList.associate { it.table to it.rowId } != incrementalBackup.previousHighWaterMarks.associate { it.table to it.rowId }) {
+      Log.w(TAG, "Increment's high-water marks don't match the chain")
+      return false
+    }
+
+    if (!incrementalBackup.isChainIntact) {
+      Log.w(TAG, "A backup the increment depends on is missing or has changed")
+      return false
+    }
+
+    return true
+  }
+
+  private fun verifyAttachmentReference(reference: BackupProtos.AttachmentReference, incrementalBackup: IncrementalBackup): Boolean {
+    if (!incrementalBackup.isValidReference(reference)) {
+      Log.w(TAG, "Bad attachment reference: ${reference.attachmentId} in ${reference.fileName}")
+      return false
+    }
+
+    return true
+  }
+
+  private fun verifyTombstone(tombstone: BackupProtos.Tombstone): Boolean {
+    if (tombstone.table !in IncrementalBackup.TRACKED_TABLES) {
+      Log.w(TAG, "Tombstone for an untracked table: ${tombstone.table}")
+      return false
+    }
+
+    return true
+  }
+
   private fun verifySticker(sticker: BackupProtos.Sticker, inputStream: BackupRecordInputStream): Boolean {
     try {
       inputStream.readAttachmentTo(NullOutputStream, sticker.length)
@@ -16,18 +16,17 @@ import com.google.protobuf.ByteString;
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
 
 import org.greenrobot.eventbus.EventBus;
-import org.signal.core.util.Conversions;
 import org.signal.core.util.CursorUtil;
 import org.signal.core.util.SetUtil;
+import org.signal.core.util.SqlUtil;
 import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
-import org.signal.libsignal.protocol.kdf.HKDF;
-import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.BackupChangeDatabase;
 import org.thoughtcrime.securesms.database.EmojiSearchDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesms.database.KeyValueDatabase;
@@ -51,7 +50,6 @@ import org.thoughtcrime.securesms.keyvalue.KeyValueDataSet;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
-import org.thoughtcrime.securesms.util.Util;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -59,22 +57,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
 public class FullBackupExporter extends FullBackupBase {
 
   private static final String TAG = Log.tag(FullBackupExporter.class);
@@ -90,11 +80,14 @@ public class FullBackupExporter extends FullBackupBase {
       SessionDatabase.TABLE_NAME,
       SearchDatabase.SMS_FTS_TABLE_NAME,
       SearchDatabase.MMS_FTS_TABLE_NAME,
+      SearchDatabase.MESSAGE_FTS_TABLE_NAME,
       EmojiSearchDatabase.TABLE_NAME,
       SenderKeyDatabase.TABLE_NAME,
       SenderKeySharedDatabase.TABLE_NAME,
       PendingRetryReceiptDatabase.TABLE_NAME,
-      AvatarPickerDatabase.TABLE_NAME
+      AvatarPickerDatabase.TABLE_NAME,
+      BackupChangeDatabase.TABLE_NAME,
+      BackupChangeDatabase.TRACKING_TABLE_NAME
   );
 
   public static BackupEvent export(@NonNull Context context,
@@ -104,9 +97,26 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull String passphrase,
                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
+  {
+    return export(context, attachmentSecret, input, output, passphrase, null, cancellationSignal);
+  }
+
+  /**
+   * @param incrementalBackup If provided, only the message rows that are new or changed since the previous backup of its
+   *                          chain are written, and attachments already in an earlier backup are written as references
+   *                          to that backup rather than in full.
+   */
+  public static BackupEvent export(@NonNull Context context,
+                            @NonNull AttachmentSecret attachmentSecret,
+                            @NonNull SQLiteDatabase input,
+                            @NonNull File output,
+                            @NonNull String passphrase,
+                            @Nullable IncrementalBackup incrementalBackup,
+                            @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, incrementalBackup, true, cancellationSignal);
     }
   }
 
@@ -120,7 +130,7 @@ public class FullBackupExporter extends FullBackupBase {
       throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, null, true, cancellationSignal);
     }
   }
 
@@ -131,7 +141,7 @@ public class FullBackupExporter extends FullBackupBase {
                               @NonNull String passphrase)
       throws IOException
   {
-    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false));
+    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, null, false, () -> false));
   }
 
   private static BackupEvent internalExport(@NonNull Context context,
@@ -139,6 +149,7 @@ public class FullBackupExporter extends FullBackupBase {
                                             @NonNull SQLiteDatabase input,
                                             @NonNull OutputStream fileOutputStream,
                                             @NonNull String passphrase,
+                                            @Nullable IncrementalBackup incrementalBackup,
                                             boolean closeOutputStream,
                                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
@@ -151,6 +162,14 @@ public class FullBackupExporter extends FullBackupBase {
       outputStream.writeDatabaseVersion(input.getVersion());
       count++;
 
+      if (incrementalBackup != null) {
+        incrementalBackup.onExportStarted(getHighWaterMarks(input), getCount(input, "SELECT MAX(" + BackupChangeDatabase.ID + ") FROM " + BackupChangeDatabase.TABLE_NAME));
+      }
+
+      if (incrementalBackup != null && incrementalBackup.isIncrement()) {
+        outputStream.writeIncrement(incrementalBackup.getDependencies(), incrementalBackup.getPreviousHighWaterMarks());
+      }
+
       List<String> tables = exportSchema(input, outputStream);
       count += tables.size() * TABLE_RECORD_COUNT_MULTIPLIER;
 
@@ -161,18 +180,20 @@ public class FullBackupExporter extends FullBackupBase {
 
       for (String table : tables) {
         throwIfCanceled(cancellationSignal);
+        Long highWaterMark = incrementalBackup != null ? incrementalBackup.getPreviousHighWaterMark(table) : null;
+
         if (table.equals(MmsDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMmsMessage, null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, highWaterMark, FullBackupExporter::isNonExpiringMmsMessage, null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(SmsDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringSmsMessage, null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, highWaterMark, FullBackupExporter::isNonExpiringSmsMessage, null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(ReactionDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, new MessageId(CursorUtil.requireLong(cursor, ReactionDatabase.MESSAGE_ID), CursorUtil.requireBoolean(cursor, ReactionDatabase.IS_MMS))), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, highWaterMark, cursor -> isForNonExpiringMessage(input, new MessageId(CursorUtil.requireLong(cursor, ReactionDatabase.MESSAGE_ID), CursorUtil.requireBoolean(cursor, ReactionDatabase.IS_MMS))), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(MentionDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, CursorUtil.requireLong(cursor, MentionDatabase.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count, estimatedCount, cancellationSignal);
         } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, highWaterMark, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, incrementalBackup, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (table.equals(StickerDatabase.TABLE_NAME)) {
           count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
         } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
@@ -197,9 +218,7 @@ public class FullBackupExporter extends FullBackupBase {
         throwIfCanceled(cancellationSignal);
         if (avatar != null) {
           EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          try (InputStream inputStream = avatar.getInputStream()) {
-            outputStream.write(avatar.getFilename(), inputStream, avatar.getLength());
-          }
+          outputStream.write(avatar.getFilename(), avatar.getInputStream(), avatar.getLength());
         }
       }
 
@@ -210,6 +229,8 @@ public class FullBackupExporter extends FullBackupBase {
     } finally {
       if (closeOutputStream) {
         outputStream.close();
+      } else {
+        outputStream.cancel();
       }
     }
     return new BackupEvent(BackupEvent.Type.FINISHED, ++count, estimatedCountOutside);
@@ -257,6 +278,31 @@ public class FullBackupExporter extends FullBackupBase {
     }
   }
 
+  /**
+   * @return The highest row id in each of the tables an incremental backup tracks.
+   */
+  private static @NonNull Map<String, Long> getHighWaterMarks(@NonNull SQLiteDatabase input) {
+    Map<String, Long> marks = new HashMap<>();
+
+    for (String table : IncrementalBackup.TRACKED_TABLES) {
+      marks.put(table, getCount(input, "SELECT IFNULL(MAX(_id), 0) FROM " + table));
+    }
+
+    return marks;
+  }
+
+  private static @NonNull Set<Long> getChangedRowIds(@NonNull SQLiteDatabase input, @NonNull String table) {
+    Set<Long> rowIds = new HashSet<>();
+
+    try (Cursor cursor = input.rawQuery("SELECT DISTINCT " + BackupChangeDatabase.ROW_ID + " FROM " + BackupChangeDatabase.TABLE_NAME + " WHERE " + BackupChangeDatabase.TABLE + " = ?", SqlUtil.buildArgs(table))) {
+      while (cursor.moveToNext()) {
+        rowIds.add(cursor.getLong(0));
+      }
+    }
+
+    return rowIds;
+  }
+
   private static void throwIfCanceled(@NonNull BackupCancellationSignal cancellationSignal) throws BackupCanceledException {
     if (cancellationSignal.isCanceled()) {
       throw new BackupCanceledException();
@@ -275,11 +321,12 @@ public class FullBackupExporter extends FullBackupBase {
         String type = cursor.getString(2);
 
         if (sql != null) {
-          boolean isSmsFtsSecretTable   = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
-          boolean isMmsFtsSecretTable   = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
-          boolean isEmojiFtsSecretTable = name != null && !name.equals(EmojiSearchDatabase.TABLE_NAME) && name.startsWith(EmojiSearchDatabase.TABLE_NAME);
+          boolean isSmsFtsSecretTable     = name != null && !name.equals(SearchDatabase.SMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME);
+          boolean isMmsFtsSecretTable     = name != null && !name.equals(SearchDatabase.MMS_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME);
+          boolean isMessageFtsSecretTable = name != null && !name.equals(SearchDatabase.MESSAGE_FTS_TABLE_NAME) && name.startsWith(SearchDatabase.MESSAGE_FTS_TABLE_NAME);
+          boolean isEmojiFtsSecretTable   = name != null && !name.equals(EmojiSearchDatabase.TABLE_NAME) && name.startsWith(EmojiSearchDatabase.TABLE_NAME);
 
-          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable && !isEmojiFtsSecretTable) {
+          if (!isSmsFtsSecretTable && !isMmsFtsSecretTable && !isMessageFtsSecretTable && !isEmojiFtsSecretTable) {
             if ("table".equals(type)) {
               tables.add(name);
             }
@@ -303,13 +350,44 @@ public class FullBackupExporter extends FullBackupBase {
                                  @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
-    String template = "INSERT INTO " + table + " VALUES ";
+    return exportTable(table, input, outputStream, null, predicate, postProcess, count, estimatedCount, cancellationSignal);
+  }
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+  /**
+   * @param highWaterMark If provided, only rows above it or recorded as changed since the previous backup are written,
+   *                      and every changed row that isn't written gets a tombstone instead.
+   */
+  private static int exportTable(@NonNull String table,
+                                 @NonNull SQLiteDatabase input,
+                                 @NonNull BackupFrameOutputStream outputStream,
+                                 @Nullable Long highWaterMark,
+                                 @Nullable Predicate<Cursor> predicate,
+                                 @Nullable PostProcessor postProcess,
+                                 int count,
+                                 long estimatedCount,
+                                 @NonNull BackupCancellationSignal cancellationSignal)
+      throws IOException
+  {
+    String    template   = "INSERT INTO " + table + " VALUES ";
+    String    query      = "SELECT * FROM " + table;
+    String[]  args       = null;
+    Set<Long> changedIds = null;
+
+    if (highWaterMark != null) {
+      changedIds = getChangedRowIds(input, table);
+      query     += " WHERE _id > ? OR _id IN (SELECT " + BackupChangeDatabase.ROW_ID + " FROM " + BackupChangeDatabase.TABLE_NAME + " WHERE " + BackupChangeDatabase.TABLE + " = ?)";
+      args       = SqlUtil.buildArgs(highWaterMark, table);
+    }
+
+    try (Cursor cursor = input.rawQuery(query, args)) {
       while (cursor != null && cursor.moveToNext()) {
         throwIfCanceled(cancellationSignal);
 
         if (predicate == null || predicate.test(cursor)) {
+          if (changedIds != null) {
+            changedIds.remove(CursorUtil.requireLong(cursor, "_id"));
+          }
+
           StringBuilder                     statement        = new StringBuilder(template);
           BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
 
@@ -349,12 +427,19 @@ public class FullBackupExporter extends FullBackupBase {
       }
     }
 
+    if (changedIds != null) {
+      for (long rowId : changedIds) {
+        outputStream.writeTombstone(table, rowId);
+      }
+    }
+
     return count;
   }
 
   private static int exportAttachment(@NonNull AttachmentSecret attachmentSecret,
                                       @NonNull Cursor cursor,
                                       @NonNull BackupFrameOutputStream outputStream,
+                                      @Nullable IncrementalBackup incrementalBackup,
                                       int count,
                                       long estimatedCount)
       throws IOException
@@ -378,10 +463,28 @@ public class FullBackupExporter extends FullBackupBase {
 
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
     if (!TextUtils.isEmpty(data) && size > 0) {
-      try (InputStream inputStream = openAttachmentStream(attachmentSecret, random, data)) {
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+      AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
+      String       exportedIn   = incrementalBackup != null ? incrementalBackup.findExportedAttachment(attachmentId, data, size) : null;
+
+      if (exportedIn != null) {
+        outputStream.writeAttachmentReference(attachmentId, size, exportedIn);
+        incrementalBackup.onAttachmentExported(attachmentId, data, size, exportedIn);
+        return count;
+      }
+
+      InputStream inputStream;
+
+      try {
+        inputStream = openAttachmentStream(attachmentSecret, random, data);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing attachment: " + e.getMessage());
+        return count;
+      }
+
+      outputStream.write(attachmentId, inputStream, size);
+
+      if (incrementalBackup != null) {
+        incrementalBackup.onAttachmentExported(attachmentId, data, size, null);
       }
     }
 
@@ -403,11 +506,16 @@ public class FullBackupExporter extends FullBackupBase {
 
     if (!TextUtils.isEmpty(data) && size > 0) {
       EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
-        outputStream.writeSticker(rowId, inputStream, size);
+      InputStream inputStream;
+
+      try {
+        inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing sticker: " + e.getMessage());
+        return count;
       }
+
+      outputStream.writeSticker(rowId, inputStream, size);
     }
 
     return count;
@@ -538,185 +646,6 @@ public class FullBackupExporter extends FullBackupBase {
     return false;
   }
 
-  private static class BackupFrameOutputStream extends BackupStream {
-
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
-
-    private final byte[] cipherKey;
-    private final byte[] iv;
-    private       int    counter;
-
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
-      try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = HKDF.deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        byte[] macKey  = split[1];
-
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
-
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
-
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
-    }
-
-    public void write(BackupProtos.KeyValue keyValue) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
-    }
-
-    public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
-    }
-
-    public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      try {
-        write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                    .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                  .setRecipientId(avatarName)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                    .build());
-      } catch (ArithmeticException e) {
-        Log.w(TAG, "Unable to write avatar to backup", e);
-        throw new InvalidBackupStreamException();
-      }
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      try {
-        write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                    .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                          .setRowId(attachmentId.getRowId())
-                                                                                          .setAttachmentId(attachmentId.getUniqueId())
-                                                                                          .setLength(Util.toIntExact(size))
-                                                                                          .build())
-                                                    .build());
-      } catch (ArithmeticException e) {
-        Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
-        throw new InvalidBackupStreamException();
-      }
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      try {
-        write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                    .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                    .setRowId(rowId)
-                                                                                    .setLength(Util.toIntExact(size))
-                                                                                    .build())
-                                                    .build());
-      } catch (ArithmeticException e) {
-        Log.w(TAG, "Unable to write sticker to backup", e);
-        throw new InvalidBackupStreamException();
-      }
-
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
-    }
-
-    void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
-    }
-
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
-    }
-
-    /**
-     * @return The amount of data written from the provided InputStream.
-     */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
-
-        byte[] buffer = new byte[8192];
-        long   total  = 0;
-
-        int read;
-
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
-
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
-
-          total += read;
-        }
-
-        byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
-        mac.update(remainder);
-
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
-
-        return total;
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
-
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-
-    public void close() throws IOException {
-      outputStream.flush();
-      outputStream.close();
-    }
-  }
-
   public interface PostProcessor {
     int postProcess(@NonNull Cursor cursor, int count) throws IOException;
   }
@@ -7,11 +7,15 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.SqlUtil;
@@ -39,6 +43,7 @@ import org.thoughtcrime.securesms.util.BackupUtil;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -70,7 +75,7 @@ public class FullBackupImporter extends FullBackupBase {
       throws IOException
   {
     try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
+      importFile(context, attachmentSecret, db, is, passphrase, name -> getSiblingInputStream(context, uri, name));
     }
   }
 
@@ -78,7 +83,16 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    importFile(context, attachmentSecret, db, is, passphrase, name -> null);
+  }
+
+  private static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                                 @NonNull BackupChainReader.BackupFileResolver resolver)
+      throws IOException
+  {
+    int               count       = 0;
+    BackupChainReader chainReader = new BackupChainReader();
 
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
 
@@ -95,16 +109,34 @@ public class FullBackupImporter extends FullBackupBase {
         if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, 0));
         count++;
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
-        else if (frame.hasKeyValue())   processKeyValue(frame.getKeyValue());
-        else                            count--;
+        if      (frame.hasVersion())             processVersion(db, frame.getVersion());
+        else if (frame.hasStatement())           processStatement(db, frame.getStatement());
+        else if (frame.hasPreference())          processPreference(context, frame.getPreference());
+        else if (frame.hasAttachment())          processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
+        else if (frame.hasSticker())             processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
+        else if (frame.hasAvatar())              processAvatar(context, db, frame.getAvatar(), inputStream);
+        else if (frame.hasKeyValue())            processKeyValue(frame.getKeyValue());
+        else if (frame.hasAttachmentReference()) chainReader.addReference(frame.getAttachmentReference());
+        else if (frame.hasIncrement())           processIncrement(db, chainReader, frame.getIncrement());
+        else if (frame.hasTombstone())           chainReader.addTombstone(frame.getTombstone());
+        else                                     count--;
       }
 
+      chainReader.readChain(passphrase,
+                            resolver,
+                            new BackupChainReader.RowProcessor() {
+                              @Override
+                              public long insertIfAbsent(@NonNull SqlStatement statement) {
+                                return processStatementIfAbsent(db, statement);
+                              }
+
+                              @Override
+                              public void delete(@NonNull String table, long rowId) {
+                                db.delete(table, "_id = ?", SqlUtil.buildArgs(rowId));
+                              }
+                            },
+                            (attachment, stream) -> processAttachment(context, attachmentSecret, db, attachment, stream));
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
@@ -123,6 +155,59 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Incremental backups can reference attachments in earlier backups, which are expected to be in the same folder as
+   * the one being restored. They're looked up next to the picked file, since nothing from the old install (like its
+   * backup folder setting) is available yet.
+   */
+  private static @Nullable InputStream getSiblingInputStream(@NonNull Context context, @NonNull Uri uri, @NonNull String fileName) throws IOException {
+    if (!"content".equals(uri.getScheme())) {
+      File file = new File(new File(Objects.requireNonNull(uri.getPath())).getParentFile(), fileName);
+      return file.isFile() ? new FileInputStream(file) : null;
+    }
+
+    Uri siblingUri = getSiblingDocumentUri(context, uri, fileName);
+    if (siblingUri == null) {
+      Log.w(TAG, "Can't find documents next to the backup.");
+      return null;
+    }
+
+    try {
+      return context.getContentResolver().openInputStream(siblingUri);
+    } catch (FileNotFoundException | SecurityException e) {
+      Log.w(TAG, "Can't open " + fileName + " next to the backup.", e);
+      return null;
+    }
+  }
+
+  /**
+   * Document ids for files in shared storage are paths, so a sibling's id is made by swapping out the file name. It can
+   * only be opened if the backup was picked from a folder the user granted access to.
+   */
+  private static @Nullable Uri getSiblingDocumentUri(@NonNull Context context, @NonNull Uri uri, @NonNull String fileName) {
+    List<String> segments       = uri.getPathSegments();
+    boolean      isTreeDocument = segments.size() >= 4 && "tree".equals(segments.get(0)) && "document".equals(segments.get(2));
+
+    if (!isTreeDocument && !DocumentsContract.isDocumentUri(context, uri)) {
+      return null;
+    }
+
+    String documentId = DocumentsContract.getDocumentId(uri);
+    int    separator  = documentId.lastIndexOf('/');
+
+    if (separator < 0) {
+      return null;
+    }
+
+    String siblingId = documentId.substring(0, separator + 1) + fileName;
+
+    if (isTreeDocument && Build.VERSION.SDK_INT >= 21) {
+      return DocumentsContract.buildDocumentUriUsingTree(uri, siblingId);
+    } else {
+      return DocumentsContract.buildDocumentUri(uri.getAuthority(), siblingId);
+    }
+  }
+
   private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
     if (version.getVersion() > db.getVersion()) {
       throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
@@ -131,13 +216,26 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
+  /**
+   * An increment with high-water marks leaves most message rows to its dependencies, which are only read once this backup
+   * is done, so anything referring to them is restored first. Foreign keys are then only checked when it all commits.
+   */
+  private static void processIncrement(@NonNull SQLiteDatabase db, @NonNull BackupChainReader chainReader, @NonNull BackupProtos.Increment increment) {
+    chainReader.setIncrement(increment);
+
+    if (increment.getHighWaterMarksCount() > 0) {
+      db.execSQL("PRAGMA defer_foreign_keys = ON");
+    }
+  }
+
   private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
-    boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
-    boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
-    boolean isForEmojiSecretTable  = statement.getStatement().contains(EmojiSearchDatabase.TABLE_NAME + "_");
-    boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
+    boolean isForSmsFtsSecretTable     = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
+    boolean isForMmsFtsSecretTable     = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
+    boolean isForMessageFtsSecretTable = statement.getStatement().contains(SearchDatabase.MESSAGE_FTS_TABLE_NAME + "_");
+    boolean isForEmojiSecretTable      = statement.getStatement().contains(EmojiSearchDatabase.TABLE_NAME + "_");
+    boolean isForSqliteSecretTable     = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
 
-    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
+    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForMessageFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
       Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
       return;
     }
@@ -156,6 +254,31 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.getStatement());
   }
 
+  /**
+   * Inserts a row from an earlier backup in the chain, unless a newer one already restored a row with the same id.
+   *
+   * @return The id of the inserted row, or -1 if it was already there.
+   */
+  private static long processStatementIfAbsent(@NonNull SQLiteDatabase db, @NonNull SqlStatement statement) {
+    SQLiteStatement insert = db.compileStatement(statement.getStatement().replaceFirst("^INSERT INTO ", "INSERT OR IGNORE INTO "));
+
+    try {
+      for (int i = 0; i < statement.getParametersCount(); i++) {
+        SqlStatement.SqlParameter parameter = statement.getParameters(i);
+
+        if      (parameter.hasStringParamter())   insert.bindString(i + 1, parameter.getStringParamter());
+        else if (parameter.hasDoubleParameter())  insert.bindDouble(i + 1, parameter.getDoubleParameter());
+        else if (parameter.hasIntegerParameter()) insert.bindLong(i + 1, parameter.getIntegerParameter());
+        else if (parameter.hasBlobParameter())    insert.bindBlob(i + 1, parameter.getBlobParameter().toByteArray());
+        else                                      insert.bindNull(i + 1);
+      }
+
+      return insert.executeInsert();
+    } finally {
+      insert.close();
+    }
+  }
+
   private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
@@ -290,4 +413,25 @@ public class FullBackupImporter extends FullBackupBase {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
     }
   }
+
+  /**
+   * Thrown when an incremental backup needs rows or attachments from an earlier backup that can't be found or read.
+   */
+  public static class MissingBackupDependencyException extends IOException {
+    private final String fileName;
+
+    MissingBackupDependencyException(@NonNull String fileName) {
+      super("Couldn't restore what the backup needs from " + fileName);
+      this.fileName = fileName;
+    }
+
+    MissingBackupDependencyException(@NonNull String fileName, @NonNull Throwable cause) {
+      super("Couldn't restore what the backup needs from " + fileName, cause);
+      this.fileName = fileName;
+    }
+
+    public @NonNull String getFileName() {
+      return fileName;
+    }
+  }
 }
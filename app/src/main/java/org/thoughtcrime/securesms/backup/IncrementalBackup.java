@@ -0,0 +1,392 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.core.util.SetUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupManifest;
+import org.thoughtcrime.securesms.backup.BackupProtos.HighWaterMark;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.ReactionDatabase;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.database.helpers.SignalDatabaseMigrations;
+import org.thoughtcrime.securesms.util.EncryptedStreamUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of what earlier local backups contain, so that a new backup can leave out what's already in one of them.
+ *
+ * Backups form chains: a full base backup followed by increments. For the message tables in {@link #TRACKED_TABLES},
+ * every backup records the highest row id it has. An increment only writes the rows above the marks of the backup before
+ * it, plus the ones {@link org.thoughtcrime.securesms.database.BackupChangeDatabase} says were changed since, with a
+ * {@link BackupProtos.Tombstone} for each one that was deleted. Every other table is small and is written in full. An
+ * increment also writes an {@link BackupProtos.AttachmentReference} in place of an attachment whose data is already in
+ * an earlier file of the chain.
+ *
+ * The manifest describing the current chain is kept encrypted on the device. A new base is started whenever the chain
+ * gets too long, the passphrase or database version changes, or any file in the chain has gone missing or changed.
+ */
+public final class IncrementalBackup {
+
+  private static final String TAG = Log.tag(IncrementalBackup.class);
+
+  private static final String MANIFEST_FILE  = "backup-manifest";
+  private static final int    MAX_INCREMENTS = 6;
+
+  /** The tables that an increment only writes new and changed rows of. Their rows are all keyed by _id. */
+  public static final Set<String> TRACKED_TABLES = SetUtil.newHashSet(SmsDatabase.TABLE_NAME,
+                                                                      MmsDatabase.TABLE_NAME,
+                                                                      AttachmentDatabase.TABLE_NAME,
+                                                                      ReactionDatabase.TABLE_NAME);
+
+  private final File                                           directory;
+  private final String                                         fileName;
+  private final byte[]                                         passphraseHash;
+  private final int                                            databaseVersion;
+  private final List<BackupManifest.File>                      chain;
+  private final List<String>                                   previousChain;
+  private final Map<String, BackupManifest.ExportedAttachment> previousAttachments;
+  private final Map<String, Long>                              previousHighWaterMarks;
+  private final List<BackupManifest.ExportedAttachment>        exportedAttachments;
+
+  private Map<String, Long> highWaterMarks = Collections.emptyMap();
+  private long              lastChangeId   = -1;
+
+  private IncrementalBackup(@NonNull File directory,
+                            @NonNull String fileName,
+                            @NonNull byte[] passphraseHash,
+                            int databaseVersion,
+                            @NonNull List<BackupManifest.File> chain,
+                            @NonNull List<String> previousChain,
+                            @NonNull Map<String, BackupManifest.ExportedAttachment> previousAttachments,
+                            @NonNull Map<String, Long> previousHighWaterMarks)
+  {
+    this.directory              = directory;
+    this.fileName               = fileName;
+    this.passphraseHash         = passphraseHash;
+    this.databaseVersion        = databaseVersion;
+    this.chain                  = chain;
+    this.previousChain          = previousChain;
+    this.previousAttachments    = previousAttachments;
+    this.previousHighWaterMarks = previousHighWaterMarks;
+    this.exportedAttachments    = new ArrayList<>();
+  }
+
+  private static @NonNull IncrementalBackup newChain(@NonNull File directory, @NonNull String fileName, @NonNull byte[] passphraseHash, int databaseVersion, @NonNull List<String> previousChain) {
+    return new IncrementalBackup(directory, fileName, passphraseHash, databaseVersion, Collections.emptyList(), previousChain, Collections.emptyMap(), Collections.emptyMap());
+  }
+
+  /**
+   * Decides whether the backup about to be written to the provided file can be an increment on the current chain, or
+   * has to start a new one. Also makes sure changes to the tracked tables are being recorded from here on.
+   */
+  @WorkerThread
+  public static @NonNull IncrementalBackup start(@NonNull Context context, @NonNull File directory, @NonNull String fileName, @NonNull String passphrase) {
+    SignalDatabase.backupChanges().setTracking(true);
+    return start(directory, fileName, passphrase, SignalDatabaseMigrations.DATABASE_VERSION, readManifest(context));
+  }
+
+  @VisibleForTesting
+  static @NonNull IncrementalBackup start(@NonNull File directory, @NonNull String fileName, @NonNull String passphrase, int databaseVersion, @Nullable BackupManifest manifest) {
+    byte[] passphraseHash = hashPassphrase(passphrase);
+
+    if (manifest == null) {
+      Log.i(TAG, "No manifest. Starting a new chain.");
+      return newChain(directory, fileName, passphraseHash, databaseVersion, Collections.emptyList());
+    }
+
+    List<String> previousChain = new ArrayList<>(manifest.getFilesCount());
+    for (BackupManifest.File file : manifest.getFilesList()) {
+      previousChain.add(file.getName());
+    }
+
+    if (!MessageDigest.isEqual(passphraseHash, manifest.getPassphraseHash().toByteArray())) {
+      Log.i(TAG, "Passphrase changed. Starting a new chain.");
+      return newChain(directory, fileName, passphraseHash, databaseVersion, previousChain);
+    }
+
+    if (manifest.getDatabaseVersion() != databaseVersion) {
+      Log.i(TAG, "Database version changed from " + manifest.getDatabaseVersion() + " to " + databaseVersion + ". Starting a new chain.");
+      return newChain(directory, fileName, passphraseHash, databaseVersion, previousChain);
+    }
+
+    if (manifest.getHighWaterMarksCount() != TRACKED_TABLES.size()) {
+      Log.i(TAG, "Manifest has " + manifest.getHighWaterMarksCount() + " high-water marks. Starting a new chain.");
+      return newChain(directory, fileName, passphraseHash, databaseVersion, previousChain);
+    }
+
+    if (manifest.getFilesCount() == 0 || manifest.getFilesCount() >= MAX_INCREMENTS) {
+      Log.i(TAG, "Chain has " + manifest.getFilesCount() + " files. Starting a new chain.");
+      return newChain(directory, fileName, passphraseHash, databaseVersion, previousChain);
+    }
+
+    for (BackupManifest.File file : manifest.getFilesList()) {
+      if (!isIntact(directory, file)) {
+        Log.w(TAG, "Backup " + file.getName() + " is missing or has changed. Starting a new chain.");
+        return newChain(directory, fileName, passphraseHash, databaseVersion, previousChain);
+      }
+    }
+
+    Map<String, BackupManifest.ExportedAttachment> previousAttachments = new LinkedHashMap<>(manifest.getAttachmentsCount());
+    for (BackupManifest.ExportedAttachment attachment : manifest.getAttachmentsList()) {
+      previousAttachments.put(key(attachment.getRowId(), attachment.getAttachmentId()), attachment);
+    }
+
+    Map<String, Long> previousHighWaterMarks = new HashMap<>(manifest.getHighWaterMarksCount());
+    for (HighWaterMark mark : manifest.getHighWaterMarksList()) {
+      previousHighWaterMarks.put(mark.getTable(), mark.getRowId());
+    }
+
+    Log.i(TAG, "Writing an increment on a chain of " + manifest.getFilesCount() + " files with " + previousAttachments.size() + " attachments. Marks: " + previousHighWaterMarks);
+    return new IncrementalBackup(directory, fileName, passphraseHash, databaseVersion, manifest.getFilesList(), manifest.getPreviousChainList(), previousAttachments, previousHighWaterMarks);
+  }
+
+  /**
+   * Forgets the current chain, so the next backup is a full one, and stops recording changes for it.
+   */
+  @WorkerThread
+  public static void clear(@NonNull Context context) {
+    getManifestFile(context).delete();
+    SignalDatabase.backupChanges().setTracking(false);
+  }
+
+  /**
+   * @return The names of every backup file that a backup in the current or previous chain depends on.
+   */
+  @WorkerThread
+  public static @NonNull Set<String> getRetainedFileNames(@NonNull Context context) {
+    return getRetainedFileNames(readManifest(context));
+  }
+
+  @VisibleForTesting
+  static @NonNull Set<String> getRetainedFileNames(@Nullable BackupManifest manifest) {
+    if (manifest == null) {
+      return Collections.emptySet();
+    }
+
+    Set<String> names = new HashSet<>(manifest.getPreviousChainList());
+    for (BackupManifest.File file : manifest.getFilesList()) {
+      names.add(file.getName());
+    }
+
+    return names;
+  }
+
+  public boolean isIncrement() {
+    return !chain.isEmpty();
+  }
+
+  public @NonNull String getFileName() {
+    return fileName;
+  }
+
+  public @NonNull List<String> getDependencies() {
+    List<String> names = new ArrayList<>(chain.size());
+
+    for (BackupManifest.File file : chain) {
+      names.add(file.getName());
+    }
+
+    return names;
+  }
+
+  /**
+   * @return The high-water marks of the previous backup in the chain, which this one only writes rows above, or an empty
+   *         list if it's a full backup.
+   */
+  public @NonNull List<HighWaterMark> getPreviousHighWaterMarks() {
+    List<HighWaterMark> marks = new ArrayList<>(previousHighWaterMarks.size());
+
+    for (Map.Entry<String, Long> mark : previousHighWaterMarks.entrySet()) {
+      marks.add(HighWaterMark.newBuilder().setTable(mark.getKey()).setRowId(mark.getValue()).build());
+    }
+
+    return marks;
+  }
+
+  /**
+   * @return The highest row id of the table that an earlier backup in the chain already has, or null if the table has to
+   *         be written in full.
+   */
+  @Nullable Long getPreviousHighWaterMark(@NonNull String table) {
+    return previousHighWaterMarks.get(table);
+  }
+
+  /**
+   * Called before any rows are read, with the marks and the last recorded change as they were at that point. Rows
+   * changed after this are written again by the next increment, even if this backup happens to pick them up too.
+   */
+  void onExportStarted(@NonNull Map<String, Long> highWaterMarks, long lastChangeId) {
+    this.highWaterMarks = highWaterMarks;
+    this.lastChangeId   = lastChangeId;
+  }
+
+  /**
+   * @return The name of the earlier backup that already has this attachment's data, or null if it needs to be
+   *         written out again.
+   */
+  @Nullable String findExportedAttachment(@NonNull AttachmentId attachmentId, @NonNull String dataPath, long length) {
+    BackupManifest.ExportedAttachment previous = previousAttachments.get(key(attachmentId.getRowId(), attachmentId.getUniqueId()));
+
+    if (previous != null && previous.getLength() == length && previous.getDataPath().equals(dataPath)) {
+      return previous.getFileName();
+    } else {
+      return null;
+    }
+  }
+
+  /**
+   * Records where an attachment in this backup has its data.
+   *
+   * @param containingFileName The earlier backup that has the data, or null if this backup has it.
+   */
+  void onAttachmentExported(@NonNull AttachmentId attachmentId, @NonNull String dataPath, long length, @Nullable String containingFileName) {
+    exportedAttachments.add(BackupManifest.ExportedAttachment.newBuilder()
+                                                             .setRowId(attachmentId.getRowId())
+                                                             .setAttachmentId(attachmentId.getUniqueId())
+                                                             .setLength((int) length)
+                                                             .setDataPath(dataPath)
+                                                             .setFileName(containingFileName != null ? containingFileName : fileName)
+                                                             .build());
+  }
+
+  /**
+   * @return True if every file this backup depends on is still where it was, unchanged.
+   */
+  boolean isChainIntact() {
+    for (BackupManifest.File file : chain) {
+      if (!isIntact(directory, file)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @return True if the reference points at an attachment the manifest says is in one of this backup's dependencies.
+   */
+  boolean isValidReference(@NonNull BackupProtos.AttachmentReference reference) {
+    BackupManifest.ExportedAttachment previous = previousAttachments.get(key(reference.getRowId(), reference.getAttachmentId()));
+
+    return previous != null &&
+           previous.getLength() == reference.getLength() &&
+           previous.getFileName().equals(reference.getFileName()) &&
+           getDependencies().contains(reference.getFileName());
+  }
+
+  /**
+   * Makes this backup the newest in the chain, and forgets the changes it contains. Should only be called once it's
+   * been verified and is in place.
+   */
+  @WorkerThread
+  public void finish(@NonNull Context context, long fileLength) {
+    File file = getManifestFile(context);
+    File temp = new File(file.getParentFile(), MANIFEST_FILE + ".tmp");
+
+    try (OutputStream out = EncryptedStreamUtils.INSTANCE.getOutputStream(context, temp)) {
+      buildManifest(fileLength).writeTo(out);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write the manifest. The next backup will start a new chain.", e);
+      temp.delete();
+      file.delete();
+      return;
+    }
+
+    if (!temp.renameTo(file)) {
+      Log.w(TAG, "Failed to move the manifest into place. The next backup will start a new chain.");
+      temp.delete();
+      file.delete();
+      return;
+    }
+
+    SignalDatabase.backupChanges().deleteChangesUpTo(lastChangeId);
+  }
+
+  /**
+   * Attachments that this backup didn't write at all are still where the earlier backups in the chain put them, so they
+   * stay in the manifest alongside the ones it did write.
+   */
+  @VisibleForTesting
+  @NonNull BackupManifest buildManifest(long fileLength) {
+    Map<String, BackupManifest.ExportedAttachment> attachments = new LinkedHashMap<>(previousAttachments);
+    for (BackupManifest.ExportedAttachment attachment : exportedAttachments) {
+      attachments.put(key(attachment.getRowId(), attachment.getAttachmentId()), attachment);
+    }
+
+    BackupManifest.Builder builder = BackupManifest.newBuilder()
+                                                   .setPassphraseHash(ByteString.copyFrom(passphraseHash))
+                                                   .setDatabaseVersion(databaseVersion)
+                                                   .addAllFiles(chain)
+                                                   .addFiles(BackupManifest.File.newBuilder().setName(fileName).setLength(fileLength))
+                                                   .addAllAttachments(attachments.values())
+                                                   .addAllPreviousChain(previousChain);
+
+    for (Map.Entry<String, Long> mark : highWaterMarks.entrySet()) {
+      builder.addHighWaterMarks(HighWaterMark.newBuilder().setTable(mark.getKey()).setRowId(mark.getValue()));
+    }
+
+    return builder.build();
+  }
+
+  private static @Nullable BackupManifest readManifest(@NonNull Context context) {
+    File file = getManifestFile(context);
+
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (InputStream in = EncryptedStreamUtils.INSTANCE.getInputStream(context, file)) {
+      return BackupManifest.parseFrom(in);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read the manifest.", e);
+      return null;
+    }
+  }
+
+  private static boolean isIntact(@NonNull File directory, @NonNull BackupManifest.File file) {
+    File backup = new File(directory, file.getName());
+    return backup.isFile() && backup.length() == file.getLength();
+  }
+
+  private static @NonNull String key(long rowId, long uniqueId) {
+    return rowId + ":" + uniqueId;
+  }
+
+  private static @NonNull byte[] hashPassphrase(@NonNull String passphrase) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(passphrase.replace(" ", "").getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static @NonNull File getManifestFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), MANIFEST_FILE);
+  }
+}
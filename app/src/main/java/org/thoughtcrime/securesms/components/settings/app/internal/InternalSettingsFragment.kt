@@ -19,7 +19,6 @@ import org.thoughtcrime.securesms.components.settings.DSLSettingsFragment
 import org.thoughtcrime.securesms.components.settings.DSLSettingsText
 import org.thoughtcrime.securesms.components.settings.configure
 import org.thoughtcrime.securesms.database.LocalMetricsDatabase
-import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.database.MegaphoneDatabase
 import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
@@ -35,6 +34,7 @@ import org.thoughtcrime.securesms.jobs.StorageForcePushJob
 import org.thoughtcrime.securesms.jobs.SubscriptionKeepAliveJob
 import org.thoughtcrime.securesms.jobs.SubscriptionReceiptRequestResponseJob
 import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.logging.PersistentLogStore
 import org.thoughtcrime.securesms.megaphone.MegaphoneRepository
 import org.thoughtcrime.securesms.megaphone.Megaphones
 import org.thoughtcrime.securesms.payments.DataExportUtil
@@ -119,6 +119,24 @@ class InternalSettingsFragment : DSLSettingsFragment(R.string.preferences__inter
         }
       )
 
+      switchPref(
+        title = DSLSettingsText.from(R.string.preferences__internal_ring_buffer_logs),
+        summary = DSLSettingsText.from(R.string.preferences__internal_ring_buffer_logs_description),
+        isChecked = state.ringBufferLogs,
+        onClick = {
+          viewModel.setRingBufferLogs(!state.ringBufferLogs)
+        }
+      )
+
+      switchPref(
+        title = DSLSettingsText.from(R.string.preferences__internal_incremental_backups),
+        summary = DSLSettingsText.from(R.string.preferences__internal_incremental_backups_description),
+        isChecked = state.incrementalBackups,
+        onClick = {
+          viewModel.setIncrementalBackups(!state.incrementalBackups)
+        }
+      )
+
       clickPref(
         title = DSLSettingsText.from(R.string.preferences__internal_clear_keep_longer_logs),
         onClick = {
@@ -624,7 +642,7 @@ class InternalSettingsFragment : DSLSettingsFragment(R.string.preferences__inter
 
   private fun clearKeepLongerLogs() {
     SimpleTask.run({
-      LogDatabase.getInstance(requireActivity().application).clearKeepLonger()
+      PersistentLogStore.getInstance(requireActivity().application).clearKeepLonger()
     }) {
       Toast.makeText(requireContext(), "Cleared keep longer logs", Toast.LENGTH_SHORT).show()
     }
@@ -6,6 +6,8 @@ import org.thoughtcrime.securesms.emoji.EmojiFiles
 data class InternalSettingsState(
   val seeMoreUserDetails: Boolean,
   val shakeToReport: Boolean,
+  val ringBufferLogs: Boolean,
+  val incrementalBackups: Boolean,
   val gv2forceInvites: Boolean,
   val gv2ignoreServerChanges: Boolean,
   val gv2ignoreP2PChanges: Boolean,
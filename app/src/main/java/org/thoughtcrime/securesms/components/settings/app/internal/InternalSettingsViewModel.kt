@@ -4,11 +4,13 @@ import androidx.lifecycle.LiveData
 import androidx.lifecycle.ViewModel
 import androidx.lifecycle.ViewModelProvider
 import org.signal.ringrtc.CallManager
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import org.thoughtcrime.securesms.jobs.StoryOnboardingDownloadJob
 import org.thoughtcrime.securesms.keyvalue.InternalValues
 import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.recipients.Recipient
 import org.thoughtcrime.securesms.stories.Stories
+import org.thoughtcrime.securesms.util.TextSecurePreferences
 import org.thoughtcrime.securesms.util.livedata.Store
 
 class InternalSettingsViewModel(private val repository: InternalSettingsRepository) : ViewModel() {
@@ -34,6 +36,16 @@ class InternalSettingsViewModel(private val repository: InternalSettingsReposito
     refresh()
   }
 
+  fun setRingBufferLogs(enabled: Boolean) {
+    TextSecurePreferences.setLogRingBufferEnabled(ApplicationDependencies.getApplication(), enabled)
+    refresh()
+  }
+
+  fun setIncrementalBackups(enabled: Boolean) {
+    preferenceDataStore.putBoolean(InternalValues.INCREMENTAL_BACKUPS, enabled)
+    refresh()
+  }
+
   fun setDisableStorageService(enabled: Boolean) {
     preferenceDataStore.putBoolean(InternalValues.DISABLE_STORAGE_SERVICE, enabled)
     refresh()
@@ -111,6 +123,8 @@ class InternalSettingsViewModel(private val repository: InternalSettingsReposito
   private fun getState() = InternalSettingsState(
     seeMoreUserDetails = SignalStore.internalValues().recipientDetails(),
     shakeToReport = SignalStore.internalValues().shakeToReport(),
+    ringBufferLogs = TextSecurePreferences.isLogRingBufferEnabled(ApplicationDependencies.getApplication()),
+    incrementalBackups = SignalStore.internalValues().incrementalBackups(),
     gv2forceInvites = SignalStore.internalValues().gv2ForceInvites(),
     gv2ignoreServerChanges = SignalStore.internalValues().gv2IgnoreServerChanges(),
     gv2ignoreP2PChanges = SignalStore.internalValues().gv2IgnoreP2PChanges(),
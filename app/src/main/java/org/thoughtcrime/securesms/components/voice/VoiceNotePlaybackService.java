@@ -32,8 +32,6 @@ import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
-import org.thoughtcrime.securesms.database.model.MessageId;
-import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.jobs.MultiDeviceViewedUpdateJob;
 import org.thoughtcrime.securesms.jobs.SendViewedReceiptJob;
 import org.thoughtcrime.securesms.recipients.RecipientId;
@@ -260,10 +258,7 @@ public class VoiceNotePlaybackService extends MediaBrowserServiceCompat {
         MessageDatabase.MarkedMessageInfo markedMessageInfo = messageDatabase.setIncomingMessageViewed(messageId);
 
         if (markedMessageInfo != null) {
-          ApplicationDependencies.getJobManager().add(new SendViewedReceiptJob(markedMessageInfo.getThreadId(),
-                                                                               recipientId,
-                                                                               markedMessageInfo.getSyncMessageId().getTimetamp(),
-                                                                               new MessageId(messageId, true)));
+          SendViewedReceiptJob.enqueue(markedMessageInfo.getThreadId(), recipientId, Collections.singletonList(markedMessageInfo));
           MultiDeviceViewedUpdateJob.enqueue(Collections.singletonList(markedMessageInfo.getSyncMessageId()));
         }
       });
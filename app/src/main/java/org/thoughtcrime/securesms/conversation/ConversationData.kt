@@ -1,5 +1,7 @@
 package org.thoughtcrime.securesms.conversation
 
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey
+
 /**
  * Represents metadata about a conversation.
  */
@@ -7,7 +9,9 @@ data class ConversationData(
   val threadId: Long,
   val lastSeen: Long,
   val lastSeenPosition: Int,
+  val lastSeenKey: ConversationKey?,
   val lastScrolledPosition: Int,
+  val lastScrolledKey: ConversationKey?,
   val jumpToPosition: Int,
   val threadSize: Int,
   val messageRequestData: MessageRequestData,
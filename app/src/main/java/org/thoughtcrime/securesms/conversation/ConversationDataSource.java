@@ -1,9 +1,11 @@
 package org.thoughtcrime.securesms.conversation;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.Stream;
 
@@ -14,6 +16,7 @@ import org.thoughtcrime.securesms.conversation.ConversationData.MessageRequestDa
 import org.thoughtcrime.securesms.conversation.ConversationMessage.ConversationMessageFactory;
 import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.InMemoryMessageRecord;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
@@ -39,6 +42,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 /**
@@ -48,6 +52,12 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
 
   private static final String TAG = Log.tag(ConversationDataSource.class);
 
+  /**
+   * The most rows we're willing to read past to reach the start of a page. Past this, we first find the key of the row
+   * just before the page, counting from the nearest known key, which only has to read the thread/date indexes.
+   */
+  private static final int MAX_SKIPPED_ROWS = 100;
+
   private final Context            context;
   private final long               threadId;
   private final MessageRequestData messageRequestData;
@@ -56,12 +66,39 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
   /** Used once for the initial fetch, then cleared. */
   private int baseSize;
 
-  ConversationDataSource(@NonNull Context context, long threadId, @NonNull MessageRequestData messageRequestData, boolean showUniversalExpireTimerUpdate, int baseSize) {
+  /** Used once for the initial fetch, alongside {@link #baseSize}, then cleared. */
+  private int             baseKeyPosition;
+  private ConversationKey baseKey;
+
+  /**
+   * Keys of rows we've already loaded or been told about, by position, so that nearby pages can be found by seeking to a
+   * key. The newest row is always at position 0. Positions are as of the last call to {@link #size()}. Messages inserted
+   * since then are found by counting the rows newer than {@link #newestKey}.
+   */
+  private final TreeMap<Integer, ConversationKey> knownKeys = new TreeMap<>();
+
+  private ConversationKey newestKey;
+  private int             generation;
+
+  /**
+   * @param baseKey The key of the message at {@code baseKeyPosition} when {@code baseSize} was counted, if known. The
+   *                initial fetch starts by seeking to it, rather than by counting its way down from the top.
+   */
+  ConversationDataSource(@NonNull Context context,
+                         long threadId,
+                         @NonNull MessageRequestData messageRequestData,
+                         boolean showUniversalExpireTimerUpdate,
+                         int baseSize,
+                         int baseKeyPosition,
+                         @Nullable ConversationKey baseKey)
+  {
     this.context                        = context;
     this.threadId                       = threadId;
     this.messageRequestData             = messageRequestData;
     this.showUniversalExpireTimerUpdate = showUniversalExpireTimerUpdate;
     this.baseSize                       = baseSize;
+    this.baseKeyPosition                = baseKeyPosition;
+    this.baseKey                        = baseKey;
   }
 
   @Override
@@ -71,11 +108,50 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
                      (messageRequestData.includeWarningUpdateMessage() ? 1 : 0) +
                      (showUniversalExpireTimerUpdate ? 1 : 0);
 
+    ConversationKey newest = SignalDatabase.mmsSms().getNewestConversationKey(threadId);
+
+    synchronized (this) {
+      knownKeys.clear();
+      newestKey = newest;
+      generation++;
+
+      if (newest != null) {
+        knownKeys.put(0, newest);
+
+        if (baseKey != null && baseKeyPosition > 0) {
+          knownKeys.put(baseKeyPosition, baseKey);
+        }
+      }
+
+      baseKey = null;
+    }
+
     Log.d(TAG, "[size(), thread " + threadId + "] " + (System.currentTimeMillis() - startTime) + " ms");
 
     return size;
   }
 
+  /**
+   * Tells the data source where a message is, so that the pages around it can be found by seeking to it. Meant for
+   * jumps, where the position was just worked out from the message.
+   *
+   * @param position The position of the message as of now, rather than as of the last call to {@link #size()}.
+   */
+  @WorkerThread
+  void rememberPosition(int position, @NonNull ConversationKey key) {
+    int             loadGeneration;
+    ConversationKey newest;
+
+    synchronized (this) {
+      loadGeneration = generation;
+      newest         = newestKey;
+    }
+
+    int shift = newest != null ? SignalDatabase.mmsSms().getConversationCountNewerThan(threadId, newest) : 0;
+
+    rememberKey(loadGeneration, position - shift, key);
+  }
+
   private int getSizeInternal() {
     synchronized (this) {
       if (baseSize != -1) {
@@ -91,25 +167,20 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
   @Override
   public @NonNull List<ConversationMessage> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
     Stopwatch           stopwatch        = new Stopwatch("load(" + start + ", " + length + "), thread " + threadId);
-    MmsSmsDatabase      db               = SignalDatabase.mmsSms();
-    List<MessageRecord> records          = new ArrayList<>(length);
+    List<MessageRecord> records          = loadRecords(start, length, cancellationSignal);
     MentionHelper       mentionHelper    = new MentionHelper();
     AttachmentHelper    attachmentHelper = new AttachmentHelper();
     ReactionHelper      reactionHelper   = new ReactionHelper();
     Set<ServiceId>      referencedIds    = new HashSet<>();
 
-    try (MmsSmsDatabase.Reader reader = MmsSmsDatabase.readerFor(db.getConversation(threadId, start, length))) {
-      MessageRecord record;
-      while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
-        records.add(record);
-        mentionHelper.add(record);
-        reactionHelper.add(record);
-        attachmentHelper.add(record);
+    for (MessageRecord record : records) {
+      mentionHelper.add(record);
+      reactionHelper.add(record);
+      attachmentHelper.add(record);
 
-        UpdateDescription description = record.getUpdateDisplayBody(context, null);
-        if (description != null) {
-          referencedIds.addAll(description.getMentioned());
-        }
+      UpdateDescription description = record.getUpdateDisplayBody(context, null);
+      if (description != null) {
+        referencedIds.addAll(description.getMentioned());
       }
     }
 
@@ -153,6 +224,103 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
     return messages;
   }
 
+  /**
+   * Reads the rows for the page, starting from whichever is closest: the top of the conversation, or a row we already
+   * know the key of. Offset queries get slower the further they have to count, so deep into a long conversation the
+   * page is found by seeking to a key instead, and the rows between a known key and the page are never read.
+   */
+  private @NonNull List<MessageRecord> loadRecords(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+    MmsSmsDatabase  db = SignalDatabase.mmsSms();
+    int             loadGeneration;
+    ConversationKey newest;
+
+    synchronized (this) {
+      loadGeneration = generation;
+      newest         = newestKey;
+    }
+
+    int                                 shift    = newest != null ? db.getConversationCountNewerThan(threadId, newest) : 0;
+    int                                 keyStart = start - shift;
+    Map.Entry<Integer, ConversationKey> above;
+    Map.Entry<Integer, ConversationKey> below;
+
+    synchronized (this) {
+      above = knownKeys.floorEntry(keyStart - 1);
+      below = knownKeys.ceilingEntry(keyStart);
+    }
+
+    int aboveSkipped = above != null ? keyStart - 1 - above.getKey() : Integer.MAX_VALUE;
+    int belowSkipped = below != null ? Math.max(below.getKey() - keyStart - length, 0) : Integer.MAX_VALUE;
+    int bestSkipped  = Math.min(start, Math.min(aboveSkipped, belowSkipped));
+
+    List<MessageRecord> records;
+
+    if (bestSkipped > MAX_SKIPPED_ROWS) {
+      ConversationKey key;
+
+      if (above != null && aboveSkipped <= belowSkipped) {
+        key = db.getConversationKeyOlderThan(threadId, above.getValue(), aboveSkipped - 1);
+      } else if (below != null) {
+        key = db.getConversationKeyNewerThan(threadId, below.getValue(), below.getKey() - keyStart);
+      } else {
+        key = null;
+      }
+
+      if (key != null) {
+        records = readRecords(db.getConversationOlderThan(threadId, key, 0, length), cancellationSignal);
+        rememberKey(loadGeneration, keyStart - 1, key);
+      } else {
+        Log.w(TAG, "Couldn't find the row before the page, falling back to an offset query.");
+        records = readRecords(db.getConversation(threadId, start, length), cancellationSignal);
+      }
+    } else if (bestSkipped == start) {
+      records = readRecords(db.getConversation(threadId, start, length), cancellationSignal);
+    } else if (bestSkipped == aboveSkipped) {
+      records = readRecords(db.getConversationOlderThan(threadId, above.getValue(), aboveSkipped, length), cancellationSignal);
+    } else {
+      int newerCount = below.getKey() - keyStart;
+
+      records = readRecords(db.getConversationNewerThan(threadId, below.getValue(), newerCount), cancellationSignal);
+
+      if (records.size() < newerCount) {
+        Log.w(TAG, "Read fewer rows than expected before " + below.getValue() + ", falling back to an offset query.");
+        records = readRecords(db.getConversation(threadId, start, length), cancellationSignal);
+      } else if (newerCount >= length) {
+        Collections.reverse(records);
+        records = new ArrayList<>(records.subList(0, length));
+      } else {
+        Collections.reverse(records);
+        records.addAll(readRecords(db.getConversationFrom(threadId, below.getValue(), length - newerCount), cancellationSignal));
+      }
+    }
+
+    if (records.size() > 0) {
+      rememberKey(loadGeneration, keyStart, ConversationKey.forRecord(records.get(0)));
+      rememberKey(loadGeneration, keyStart + records.size() - 1, ConversationKey.forRecord(records.get(records.size() - 1)));
+    }
+
+    return records;
+  }
+
+  private @NonNull List<MessageRecord> readRecords(@NonNull Cursor cursor, @NonNull CancellationSignal cancellationSignal) {
+    List<MessageRecord> records = new ArrayList<>();
+
+    try (MmsSmsDatabase.Reader reader = MmsSmsDatabase.readerFor(cursor)) {
+      MessageRecord record;
+      while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
+        records.add(record);
+      }
+    }
+
+    return records;
+  }
+
+  private synchronized void rememberKey(int loadGeneration, int position, @Nullable ConversationKey key) {
+    if (key != null && newestKey != null && loadGeneration == generation && position >= 0) {
+      knownKeys.put(position, key);
+    }
+  }
+
   @Override
   public @Nullable ConversationMessage load(@NonNull MessageId messageId) {
     Stopwatch       stopwatch = new Stopwatch("load(" + messageId + "), thread " + threadId);
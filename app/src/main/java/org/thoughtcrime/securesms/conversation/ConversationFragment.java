@@ -47,6 +47,7 @@ import android.widget.ViewSwitcher;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.view.ActionMode;
@@ -109,6 +110,7 @@ import org.thoughtcrime.securesms.conversation.quotes.MessageQuotesBottomSheet;
 import org.thoughtcrime.securesms.conversation.ui.error.EnableCallNotificationSettingsDialog;
 import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
 import org.thoughtcrime.securesms.database.model.InMemoryMessageRecord;
@@ -1309,10 +1311,26 @@ public class ConversationFragment extends LoggingFragment implements Multiselect
   @SuppressWarnings("CodeBlock2Expr")
   public void jumpToMessage(@NonNull RecipientId author, long timestamp, @Nullable Runnable onMessageNotFound) {
     SimpleTask.run(getLifecycle(), () -> {
-      return SignalDatabase.mmsSms().getMessagePositionInConversation(threadId, timestamp, author);
+      return getMessagePosition(SignalDatabase.mmsSms().getConversationKey(threadId, timestamp, author));
     }, p -> moveToPosition(p + (isTypingIndicatorShowing() ? 1 : 0), onMessageNotFound));
   }
 
+  /**
+   * Also lets the data source know where the message is, so that loading the pages around it doesn't have to count its
+   * way down from the top of the conversation.
+   */
+  @WorkerThread
+  private int getMessagePosition(@Nullable ConversationKey key) {
+    if (key == null) {
+      return -1;
+    }
+
+    int position = SignalDatabase.mmsSms().getConversationCountNewerThan(threadId, key);
+    conversationViewModel.rememberMessagePosition(position, key);
+
+    return position;
+  }
+
   private void moveToPosition(int position, @Nullable Runnable onMessageNotFound) {
     Log.d(TAG, "moveToPosition(" + position + ")");
     conversationViewModel.getPagingController().onDataNeededAroundIndex(position);
@@ -1453,9 +1471,9 @@ public class ConversationFragment extends LoggingFragment implements Multiselect
   @Override
   public void jumpToMessage(@NonNull MessageRecord messageRecord) {
     SimpleTask.run(getLifecycle(), () -> {
-      return SignalDatabase.mmsSms().getMessagePositionInConversation(threadId,
-                                                                      messageRecord.getDateReceived(),
-                                                                      messageRecord.isOutgoing() ? Recipient.self().getId() : messageRecord.getRecipient().getId());
+      return getMessagePosition(SignalDatabase.mmsSms().getConversationKey(threadId,
+                                                                           messageRecord.getDateReceived(),
+                                                                           messageRecord.isOutgoing() ? Recipient.self().getId() : messageRecord.getRecipient().getId()));
     }, p -> moveToPosition(p + (isTypingIndicatorShowing() ? 1 : 0), () -> {
       Toast.makeText(getContext(), R.string.ConversationFragment_failed_to_open_message, Toast.LENGTH_SHORT).show();
     }));
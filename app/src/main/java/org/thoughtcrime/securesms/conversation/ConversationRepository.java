@@ -12,6 +12,7 @@ import org.thoughtcrime.securesms.contacts.sync.ContactDiscovery;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.MessageDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
@@ -62,8 +63,10 @@ class ConversationRepository {
     int                                 threadSize                     = SignalDatabase.mmsSms().getConversationCount(threadId);
     long                                lastSeen                       = metadata.getLastSeen();
     int                                 lastSeenPosition               = 0;
+    ConversationKey                     lastSeenKey                    = null;
     long                                lastScrolled                   = metadata.getLastScrolled();
     int                                 lastScrolledPosition           = 0;
+    ConversationKey                     lastScrolledKey                = null;
     boolean                             isMessageRequestAccepted       = RecipientUtil.isMessageRequestAccepted(context, threadId);
     ConversationData.MessageRequestData messageRequestData             = new ConversationData.MessageRequestData(isMessageRequestAccepted);
     boolean                             showUniversalExpireTimerUpdate = false;
@@ -74,10 +77,16 @@ class ConversationRepository {
 
     if (lastSeenPosition <= 0) {
       lastSeen = 0;
+    } else {
+      lastSeenKey = SignalDatabase.mmsSms().getConversationKeyBefore(threadId, lastSeen);
     }
 
     if (lastSeen == 0 && lastScrolled > 0) {
       lastScrolledPosition = SignalDatabase.mmsSms().getMessagePositionOnOrAfterTimestamp(threadId, lastScrolled);
+
+      if (lastScrolledPosition > 0) {
+        lastScrolledKey = SignalDatabase.mmsSms().getConversationKeyBefore(threadId, lastScrolled);
+      }
     }
 
     if (!isMessageRequestAccepted) {
@@ -110,7 +119,7 @@ class ConversationRepository {
       showUniversalExpireTimerUpdate = true;
     }
 
-    return new ConversationData(threadId, lastSeen, lastSeenPosition, lastScrolledPosition, jumpToPosition, threadSize, messageRequestData, showUniversalExpireTimerUpdate);
+    return new ConversationData(threadId, lastSeen, lastSeenPosition, lastSeenKey, lastScrolledPosition, lastScrolledKey, jumpToPosition, threadSize, messageRequestData, showUniversalExpireTimerUpdate);
   }
 
   void markGiftBadgeRevealed(long messageId) {
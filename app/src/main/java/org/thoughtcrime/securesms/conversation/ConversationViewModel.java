@@ -5,6 +5,7 @@ import android.app.Application;
 import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.LiveDataReactiveStreams;
 import androidx.lifecycle.MutableLiveData;
@@ -22,12 +23,14 @@ import org.signal.paging.ObservablePagedData;
 import org.signal.paging.PagedData;
 import org.signal.paging.PagingConfig;
 import org.signal.paging.PagingController;
+import org.signal.paging.PagingStats;
 import org.signal.paging.ProxyPagingController;
 import org.thoughtcrime.securesms.components.settings.app.notifications.profiles.NotificationProfilesRepository;
 import org.thoughtcrime.securesms.conversation.colors.ChatColors;
 import org.thoughtcrime.securesms.conversation.colors.GroupAuthorNameColorHelper;
 import org.thoughtcrime.securesms.conversation.colors.NameColor;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.StoryViewState;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
@@ -38,6 +41,7 @@ import org.thoughtcrime.securesms.notifications.profiles.NotificationProfiles;
 import org.thoughtcrime.securesms.ratelimit.RecaptchaRequiredEvent;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.SignalLocalMetrics;
 import org.thoughtcrime.securesms.util.SingleLiveEvent;
 import org.thoughtcrime.securesms.util.Util;
@@ -79,7 +83,7 @@ public class ConversationViewModel extends ViewModel {
   private final Observable<Boolean>                   canShowAsBubble;
   private final ProxyPagingController<MessageId>      pagingController;
   private final DatabaseObserver.Observer             conversationObserver;
-  private final DatabaseObserver.MessageObserver      messageUpdateObserver;
+  private final DatabaseObserver.BatchObserver        messageUpdateObserver;
   private final DatabaseObserver.MessageObserver      messageInsertObserver;
   private final BehaviorSubject<RecipientId>          recipientId;
   private final Observable<Optional<ChatWallpaper>>   wallpaper;
@@ -97,10 +101,13 @@ public class ConversationViewModel extends ViewModel {
   private final CompositeDisposable                   disposables;
   private final BehaviorSubject<Unit>                 conversationStateTick;
   private final PublishProcessor<Long>                markReadRequestPublisher;
+  private final PagingStats                           pagingStats;
 
   private ConversationIntents.Args args;
   private int                      jumpToPosition;
 
+  private volatile ConversationDataSource dataSource;
+
   private ConversationViewModel() {
     this.context                        = ApplicationDependencies.getApplication();
     this.mediaRepository                = new MediaRepository();
@@ -111,7 +118,7 @@ public class ConversationViewModel extends ViewModel {
     this.events                         = new SingleLiveEvent<>();
     this.pagingController               = new ProxyPagingController<>();
     this.conversationObserver           = pagingController::onDataInvalidated;
-    this.messageUpdateObserver          = pagingController::onDataItemChanged;
+    this.messageUpdateObserver          = (threadIds, messageIds) -> pagingController.onDataItemsChanged(messageIds);
     this.messageInsertObserver          = messageId -> pagingController.onDataItemInserted(messageId, 0);
     this.toolbarBottom                  = new MutableLiveData<>();
     this.inlinePlayerHeight             = new MutableLiveData<>();
@@ -126,6 +133,7 @@ public class ConversationViewModel extends ViewModel {
     this.disposables                    = new CompositeDisposable();
     this.conversationStateTick          = BehaviorSubject.createDefault(Unit.INSTANCE);
     this.markReadRequestPublisher       = PublishProcessor.create();
+    this.pagingStats                    = new PagingStats();
 
     BehaviorSubject<Recipient> recipientCache = BehaviorSubject.create();
 
@@ -156,12 +164,13 @@ public class ConversationViewModel extends ViewModel {
         })
         .subscribe(conversationMetadata);
 
-    ApplicationDependencies.getDatabaseObserver().registerMessageUpdateObserver(messageUpdateObserver);
+    ApplicationDependencies.getDatabaseObserver().registerBatchObserver(messageUpdateObserver);
 
     messageData = conversationMetadata
         .observeOn(Schedulers.io())
         .switchMap(data -> {
-          int startPosition;
+          int             startPosition;
+          ConversationKey startKey = null;
 
           ConversationData.MessageRequestData messageRequestData = data.getMessageRequestData();
 
@@ -169,8 +178,10 @@ public class ConversationViewModel extends ViewModel {
             startPosition = data.getJumpToPosition();
           } else if (messageRequestData.isMessageRequestAccepted() && data.shouldScrollToLastSeen()) {
             startPosition = data.getLastSeenPosition();
+            startKey      = data.getLastSeenKey();
           } else if (messageRequestData.isMessageRequestAccepted()) {
             startPosition = data.getLastScrolledPosition();
+            startKey      = data.getLastScrolledKey();
           } else {
             startPosition = data.getThreadSize();
           }
@@ -180,11 +191,15 @@ public class ConversationViewModel extends ViewModel {
           ApplicationDependencies.getDatabaseObserver().registerConversationObserver(data.getThreadId(), conversationObserver);
           ApplicationDependencies.getDatabaseObserver().registerMessageInsertObserver(data.getThreadId(), messageInsertObserver);
 
-          ConversationDataSource dataSource = new ConversationDataSource(context, data.getThreadId(), messageRequestData, data.showUniversalExpireTimerMessage(), data.getThreadSize());
-          PagingConfig config = new PagingConfig.Builder().setPageSize(25)
-                                                          .setBufferPages(2)
-                                                          .setStartIndex(Math.max(startPosition, 0))
-                                                          .build();
+          ConversationDataSource dataSource = new ConversationDataSource(context, data.getThreadId(), messageRequestData, data.showUniversalExpireTimerMessage(), data.getThreadSize(), startPosition, startKey);
+          this.dataSource = dataSource;
+          int          residentPages = FeatureFlags.conversationResidentPages();
+          PagingConfig config        = new PagingConfig.Builder().setPageSize(25)
+                                                                 .setBufferPages(2)
+                                                                 .setStartIndex(Math.max(startPosition, 0))
+                                                                 .setMaxResidentPages(residentPages > 0 ? Math.max(residentPages, 5) : 0)
+                                                                 .setStats(pagingStats)
+                                                                 .build();
 
           Log.d(TAG, "Starting at position: " + startPosition + " || jumpToPosition: " + data.getJumpToPosition() + ", lastSeenPosition: " + data.getLastSeenPosition() + ", lastScrolledPosition: " + data.getLastScrolledPosition());
           ObservablePagedData<MessageId, ConversationMessage> pagedData = PagedData.createForObservable(dataSource, config);
@@ -392,6 +407,18 @@ public class ConversationViewModel extends ViewModel {
     return pagingController;
   }
 
+  /**
+   * Lets the current data source know where a message is before jumping to it, so that it can seek straight to it.
+   */
+  @WorkerThread
+  void rememberMessagePosition(int position, @NonNull ConversationKey key) {
+    ConversationDataSource current = dataSource;
+
+    if (current != null) {
+      current.rememberPosition(position, key);
+    }
+  }
+
   @NonNull Observable<Map<RecipientId, NameColor>> getNameColorsMap() {
     return recipientId
         .observeOn(Schedulers.io())
@@ -430,6 +457,7 @@ public class ConversationViewModel extends ViewModel {
   @Override
   protected void onCleared() {
     super.onCleared();
+    Log.d(TAG, "Paging stats: " + pagingStats);
     threadAnimationStateStore.getStateLiveData().removeObserver(threadAnimationStateStoreDriver);
     ApplicationDependencies.getDatabaseObserver().unregisterObserver(conversationObserver);
     ApplicationDependencies.getDatabaseObserver().unregisterObserver(messageUpdateObserver);
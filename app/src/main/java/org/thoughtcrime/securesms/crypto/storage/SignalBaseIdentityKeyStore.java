@@ -230,6 +230,14 @@ public class SignalBaseIdentityKeyStore {
     cache.invalidate(addressName);
   }
 
+  /**
+   * Drops every cached record, so that they're all re-read from the database. Needed if a transaction the cache was
+   * written to during is rolled back.
+   */
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
   private boolean isTrustedForSending(@NonNull IdentityKey identityKey, @Nullable IdentityStoreRecord identityRecord) {
     if (identityRecord == null) {
       Log.w(TAG, "Nothing here, returning true...");
@@ -339,6 +347,10 @@ public class SignalBaseIdentityKeyStore {
       }
     }
 
+    public synchronized void invalidateAll() {
+      cache.clear();
+    }
+
     /**
      * There are situations when this class is accessed in a transaction, meaning that if we *just* synchronize the method, we can end up with:
      *
@@ -93,6 +93,10 @@ public class SignalIdentityKeyStore implements IdentityKeyStore {
     baseStore.invalidate(addressName);
   }
 
+  public void invalidateAll() {
+    baseStore.invalidateAll();
+  }
+
   public enum SaveResult {
     NEW,
     UPDATE,
@@ -62,13 +62,13 @@ import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -588,11 +588,29 @@ public class AttachmentDatabase extends Database {
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
       throws MmsException
   {
+    insertAttachmentsForPlaceholder(mmsId, attachmentId, setAttachmentData(inputStream, attachmentId));
+  }
+
+  /**
+   * Stores data that was written to a {@link StagedAttachmentData}. It must have been published, which it only is once
+   * the whole download has been verified.
+   */
+  public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull StagedAttachmentData stagedData)
+      throws MmsException
+  {
+    try {
+      insertAttachmentsForPlaceholder(mmsId, attachmentId, setAttachmentData(newFile(), stagedData, attachmentId));
+    } catch (IOException e) {
+      stagedData.discard();
+      throw new MmsException(e);
+    }
+  }
+
+  private void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull DataInfo dataInfo) {
     DatabaseAttachment placeholder  = getAttachment(attachmentId);
     SQLiteDatabase     database     = databaseHelper.getSignalWritableDatabase();
     ContentValues      values       = new ContentValues();
     DataInfo           oldInfo      = getAttachmentDataFileInfo(attachmentId, DATA);
-    DataInfo           dataInfo     = setAttachmentData(inputStream, attachmentId);
     File               transferFile = getTransferFile(databaseHelper.getSignalReadableDatabase(), attachmentId);
 
     if (oldInfo != null) {
@@ -1109,37 +1127,74 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
-      File                       tempFile          = newFile();
-      MessageDigest              messageDigest     = MessageDigest.getInstance("SHA-256");
-      DigestInputStream          digestInputStream = new DigestInputStream(in, messageDigest);
-      Pair<byte[], OutputStream> out               = ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, false);
-      long                       length            = StreamUtil.copy(digestInputStream, out.second);
-      String                     hash              = Base64.encodeBytes(digestInputStream.getMessageDigest().digest());
-
-      if (!tempFile.renameTo(destination)) {
-        Log.w(TAG, "Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
-        tempFile.delete();
-        throw new IllegalStateException("Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
-      }
+      StagedAttachmentData stagedData = stageAttachmentData();
 
-      SQLiteDatabase     database       = databaseHelper.getSignalWritableDatabase();
-      Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(database, hash, attachmentId);
-      if (sharedDataInfo.isPresent()) {
-        Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
-        if (!destination.equals(sharedDataInfo.get().file) && destination.delete()) {
-          Log.i(TAG, "[setAttachmentData] Deleted original file. " + destination);
-        }
-        return sharedDataInfo.get();
-      } else {
-        Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
+      try {
+        StreamUtil.copy(in, stagedData.getStagingStream());
+        stagedData.publish();
+      } catch (IOException e) {
+        StreamUtil.close(in);
+        stagedData.discard();
+        throw e;
       }
 
-      return new DataInfo(destination, length, out.first, hash);
-    } catch (IOException | NoSuchAlgorithmException e) {
+      return setAttachmentData(destination, stagedData, attachmentId);
+    } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
+  private @NonNull DataInfo setAttachmentData(@NonNull File destination,
+                                              @NonNull StagedAttachmentData stagedData,
+                                              @Nullable AttachmentId attachmentId)
+      throws MmsException
+  {
+    if (!stagedData.published) {
+      stagedData.discard();
+      throw new MmsException("Attachment data was never published!");
+    }
+
+    File   tempFile = stagedData.tempFile;
+    String hash     = Base64.encodeBytes(stagedData.digest.digest());
+
+    if (!tempFile.renameTo(destination)) {
+      Log.w(TAG, "Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
+      tempFile.delete();
+      throw new IllegalStateException("Couldn't rename " + tempFile.getPath() + " to " + destination.getPath());
+    }
+
+    SQLiteDatabase     database       = databaseHelper.getSignalWritableDatabase();
+    Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(database, hash, attachmentId);
+    if (sharedDataInfo.isPresent()) {
+      Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
+      if (!destination.equals(sharedDataInfo.get().file) && destination.delete()) {
+        Log.i(TAG, "[setAttachmentData] Deleted original file. " + destination);
+      }
+      return sharedDataInfo.get();
+    } else {
+      Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
+    }
+
+    return new DataInfo(destination, stagedData.length, stagedData.random, hash);
+  }
+
+  /**
+   * Starts writing attachment data to an encrypted temporary file. See {@link StagedAttachmentData}.
+   */
+  public @NonNull StagedAttachmentData stageAttachmentData() throws IOException {
+    File tempFile = newFile();
+
+    try {
+      return new StagedAttachmentData(tempFile, MessageDigest.getInstance("SHA-256"), ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, false));
+    } catch (NoSuchAlgorithmException e) {
+      tempFile.delete();
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      tempFile.delete();
+      throw e;
+    }
+  }
+
   private static @NonNull Optional<DataInfo> findDuplicateDataFileInfo(@NonNull SQLiteDatabase database,
                                                                        @NonNull String hash,
                                                                        @Nullable AttachmentId excludedAttachmentId)
@@ -1429,6 +1484,62 @@ public class AttachmentDatabase extends Database {
     return EncryptedMediaDataSource.createFor(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
   }
 
+  /**
+   * Attachment data that's written to a temporary file, and is only stored once it has been published.
+   *
+   * Downloads are decrypted and verified in a single pass, so they can't be checked until everything has been written.
+   * If the check fails, the data is discarded without ever having been visible.
+   */
+  public static final class StagedAttachmentData implements AttachmentCipherInputStream.StagedOutput {
+    private final File          tempFile;
+    private final MessageDigest digest;
+    private final byte[]        random;
+    private final OutputStream  outputStream;
+
+    private long    length;
+    private boolean published;
+
+    private StagedAttachmentData(@NonNull File tempFile, @NonNull MessageDigest digest, @NonNull Pair<byte[], OutputStream> out) {
+      this.tempFile     = tempFile;
+      this.digest       = digest;
+      this.random       = out.first;
+      this.outputStream = out.second;
+    }
+
+    @Override
+    public @NonNull OutputStream getStagingStream() {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] buffer, int offset, int count) throws IOException {
+          outputStream.write(buffer, offset, count);
+          digest.update(buffer, offset, count);
+          length += count;
+        }
+      };
+    }
+
+    @Override
+    public void publish() throws IOException {
+      outputStream.close();
+      published = true;
+    }
+
+    @Override
+    public void discard() {
+      StreamUtil.close(outputStream);
+      published = false;
+
+      if (tempFile.exists() && !tempFile.delete()) {
+        Log.w(TAG, "Couldn't delete " + tempFile.getPath());
+      }
+    }
+  }
+
   @VisibleForTesting
   static class DataInfo {
     private final File   file;
@@ -0,0 +1,94 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import net.zetetic.database.sqlcipher.SQLiteDatabase;
+
+import org.signal.core.util.SqlUtil;
+
+/**
+ * Records which message rows have been changed or deleted since the last incremental local backup, so that the next one
+ * only has to write those along with rows added above its high-water marks.
+ *
+ * New sms and mms rows aren't recorded, since their ids are never reused and so always land above the mark. Attachment
+ * and reaction ids can be reused, so their inserts are recorded too. Nothing is recorded at all unless tracking has been
+ * turned on by an incremental backup chain.
+ */
+public final class BackupChangeDatabase extends Database {
+
+  public static final String TABLE_NAME = "backup_change";
+
+  /** Has a row while tracking is on. */
+  public static final String TRACKING_TABLE_NAME = "backup_change_tracking";
+
+  public static final String ID     = "_id";
+  public static final String TABLE  = "table_name";
+  public static final String ROW_ID = "row_id";
+
+  public static final String[] CREATE_TABLE = {
+      "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " + TABLE + " TEXT NOT NULL, " + ROW_ID + " INTEGER NOT NULL)",
+      "CREATE TABLE " + TRACKING_TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY)"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+      recordChange("sms_backup_change_au", "AFTER UPDATE", SmsDatabase.TABLE_NAME, "new." + SmsDatabase.ID),
+      recordChange("sms_backup_change_ad", "AFTER DELETE", SmsDatabase.TABLE_NAME, "old." + SmsDatabase.ID),
+
+      recordChange("mms_backup_change_au", "AFTER UPDATE", MmsDatabase.TABLE_NAME, "new." + MmsDatabase.ID),
+      recordChange("mms_backup_change_ad", "AFTER DELETE", MmsDatabase.TABLE_NAME, "old." + MmsDatabase.ID),
+
+      recordChange("part_backup_change_ai", "AFTER INSERT", AttachmentDatabase.TABLE_NAME, "new." + AttachmentDatabase.ROW_ID),
+      recordChange("part_backup_change_au", "AFTER UPDATE", AttachmentDatabase.TABLE_NAME, "new." + AttachmentDatabase.ROW_ID),
+      recordChange("part_backup_change_ad", "AFTER DELETE", AttachmentDatabase.TABLE_NAME, "old." + AttachmentDatabase.ROW_ID),
+
+      recordChange("reaction_backup_change_ai", "AFTER INSERT", ReactionDatabase.TABLE_NAME, "new." + ReactionDatabase.ID),
+      recordChange("reaction_backup_change_au", "AFTER UPDATE", ReactionDatabase.TABLE_NAME, "new." + ReactionDatabase.ID),
+      recordChange("reaction_backup_change_ad", "AFTER DELETE", ReactionDatabase.TABLE_NAME, "old." + ReactionDatabase.ID),
+
+      // A reaction that replaces another deletes it without firing the delete trigger, so it's recorded beforehand
+      "CREATE TRIGGER reaction_backup_change_bi BEFORE INSERT ON " + ReactionDatabase.TABLE_NAME + " WHEN EXISTS (SELECT 1 FROM " + TRACKING_TABLE_NAME + ") BEGIN " +
+        "INSERT INTO " + TABLE_NAME + " (" + TABLE + ", " + ROW_ID + ") " +
+        "SELECT '" + ReactionDatabase.TABLE_NAME + "', " + ReactionDatabase.ID + " FROM " + ReactionDatabase.TABLE_NAME + " " +
+        "WHERE " + ReactionDatabase.MESSAGE_ID + " = new." + ReactionDatabase.MESSAGE_ID + " AND " + ReactionDatabase.IS_MMS + " = new." + ReactionDatabase.IS_MMS + " AND " + ReactionDatabase.AUTHOR_ID + " = new." + ReactionDatabase.AUTHOR_ID + "; " +
+      "END"
+  };
+
+  public BackupChangeDatabase(Context context, SignalDatabase databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Turns recording on or off. Turning it off also forgets everything recorded so far.
+   */
+  public void setTracking(boolean tracking) {
+    SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+
+    if (tracking) {
+      db.execSQL("INSERT OR IGNORE INTO " + TRACKING_TABLE_NAME + " (" + ID + ") VALUES (1)");
+    } else {
+      db.beginTransaction();
+      try {
+        db.delete(TRACKING_TABLE_NAME, null, null);
+        db.delete(TABLE_NAME, null, null);
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  /**
+   * Forgets the changes up to and including the given id, once a backup that contains them is in place.
+   */
+  public void deleteChangesUpTo(long id) {
+    databaseHelper.getSignalWritableDatabase().delete(TABLE_NAME, ID + " <= ?", SqlUtil.buildArgs(id));
+  }
+
+  private static @NonNull String recordChange(@NonNull String name, @NonNull String event, @NonNull String table, @NonNull String rowId) {
+    return "CREATE TRIGGER " + name + " " + event + " ON " + table + " WHEN EXISTS (SELECT 1 FROM " + TRACKING_TABLE_NAME + ") BEGIN " +
+             "INSERT INTO " + TABLE_NAME + " (" + TABLE + ", " + ROW_ID + ") VALUES ('" + table + "', " + rowId + "); " +
+           "END";
+  }
+}
@@ -0,0 +1,153 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.model.MessageId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers the notifications made by {@link DatabaseObserver}.
+ *
+ * With a window of zero, every notification is delivered as soon as it's posted. Otherwise, notifications are held for
+ * the length of the window, starting with the first one posted, and then delivered together. A notification posted
+ * with the same key as one that's already waiting replaces it, so each key is delivered at most once per window. The
+ * thread and message ids named by the merged notifications are collected as well, and handed to the
+ * {@link BatchListener} once per window.
+ */
+final class CoalescingNotificationBus {
+
+  private static final String TAG = Log.tag(CoalescingNotificationBus.class);
+
+  private final Executor      deliveryExecutor;
+  private final Executor      timerExecutor;
+  private final long          windowMs;
+  private final BatchListener batchListener;
+
+  private Map<String, Runnable> pending;
+  private Set<Long>             dirtyThreadIds;
+  private Set<MessageId>        dirtyMessageIds;
+  private boolean               flushScheduled;
+
+  private long postedCount;
+  private long deliveredCount;
+
+  CoalescingNotificationBus(@NonNull Executor deliveryExecutor,
+                            @NonNull Executor timerExecutor,
+                            long windowMs,
+                            @NonNull BatchListener batchListener)
+  {
+    this.deliveryExecutor = deliveryExecutor;
+    this.timerExecutor    = timerExecutor;
+    this.windowMs         = windowMs;
+    this.batchListener    = batchListener;
+    this.pending          = new LinkedHashMap<>();
+    this.dirtyThreadIds   = new LinkedHashSet<>();
+    this.dirtyMessageIds  = new LinkedHashSet<>();
+  }
+
+  void post(@NonNull String key, @Nullable Long threadId, @Nullable MessageId messageId, @NonNull Runnable notification) {
+    if (windowMs <= 0) {
+      synchronized (this) {
+        postedCount++;
+        deliveredCount++;
+      }
+
+      deliveryExecutor.execute(() -> {
+        notification.run();
+
+        if (threadId != null || messageId != null) {
+          batchListener.onChanged(threadId != null ? Collections.singleton(threadId) : Collections.emptySet(),
+                                  messageId != null ? Collections.singleton(messageId) : Collections.emptySet());
+        }
+      });
+      return;
+    }
+
+    synchronized (this) {
+      postedCount++;
+
+      pending.put(key, notification);
+
+      if (threadId != null) {
+        dirtyThreadIds.add(threadId);
+      }
+
+      if (messageId != null) {
+        dirtyMessageIds.add(messageId);
+      }
+
+      if (!flushScheduled) {
+        flushScheduled = true;
+        timerExecutor.execute(this::flushAfterWindow);
+      }
+    }
+  }
+
+  /**
+   * @return The number of notifications that have been posted.
+   */
+  synchronized long getPostedCount() {
+    return postedCount;
+  }
+
+  /**
+   * @return The number of notifications that have been handed off for delivery, after merging.
+   */
+  synchronized long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  private void flushAfterWindow() {
+    List<Runnable> notifications;
+    Set<Long>      threadIds;
+    Set<MessageId> messageIds;
+
+    synchronized (this) {
+      long deadline  = System.currentTimeMillis() + windowMs;
+      long remaining = windowMs;
+
+      while (remaining > 0) {
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Interrupted while waiting for the window to pass.", e);
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+
+      notifications   = new ArrayList<>(pending.values());
+      threadIds       = dirtyThreadIds;
+      messageIds      = dirtyMessageIds;
+      pending         = new LinkedHashMap<>();
+      dirtyThreadIds  = new LinkedHashSet<>();
+      dirtyMessageIds = new LinkedHashSet<>();
+      flushScheduled  = false;
+      deliveredCount += notifications.size();
+    }
+
+    deliveryExecutor.execute(() -> {
+      for (Runnable notification : notifications) {
+        notification.run();
+      }
+
+      if (threadIds.size() > 0 || messageIds.size() > 0) {
+        batchListener.onChanged(Collections.unmodifiableSet(threadIds), Collections.unmodifiableSet(messageIds));
+      }
+    });
+  }
+
+  interface BatchListener {
+    void onChanged(@NonNull Set<Long> threadIds, @NonNull Set<MessageId> messageIds);
+  }
+}
@@ -3,6 +3,7 @@ package org.thoughtcrime.securesms.database;
 import android.app.Application;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
@@ -14,6 +15,7 @@ import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -24,6 +26,9 @@ import java.util.concurrent.Executor;
  * Allows listening to database changes to varying degrees of specificity.
  *
  * A replacement for the observer system in {@link Database}. We should move to this over time.
+ *
+ * Notifications can optionally be coalesced over a short window, so that a burst of changes to the same thing (like a
+ * storm of receipts in a busy group) only triggers a single callback. See {@link CoalescingNotificationBus}.
  */
 public class DatabaseObserver {
 
@@ -42,8 +47,9 @@ public class DatabaseObserver {
   private static final String KEY_RECIPIENT             = "Recipient";
   private static final String KEY_STORY_OBSERVER        = "Story";
 
-  private final Application application;
-  private final Executor    executor;
+  private final Application               application;
+  private final Executor                  executor;
+  private final CoalescingNotificationBus notificationBus;
 
   private final Set<Observer>                   conversationListObservers;
   private final Map<Long, Set<Observer>>        conversationObservers;
@@ -58,10 +64,26 @@ public class DatabaseObserver {
   private final Map<Long, Set<MessageObserver>> messageInsertObservers;
   private final Set<Observer>                   notificationProfileObservers;
   private final Map<RecipientId, Set<Observer>> storyObservers;
+  private final Set<BatchObserver>              batchObservers;
+
+  /** Written on the executor, so that notifications can skip collecting ids when nobody is listening for them. */
+  private volatile boolean hasBatchObservers;
 
   public DatabaseObserver(Application application) {
+    this(application, 0);
+  }
+
+  /**
+   * @param coalesceWindowMs How long to hold notifications for so that repeated ones can be merged. Zero to deliver
+   *                         them right away.
+   */
+  public DatabaseObserver(Application application, long coalesceWindowMs) {
     this.application                  = application;
     this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.notificationBus              = new CoalescingNotificationBus(executor,
+                                                                      SignalExecutors.newCachedSingleThreadExecutor("signal-DatabaseObserver"),
+                                                                      coalesceWindowMs,
+                                                                      this::notifyBatchObservers);
     this.conversationListObservers    = new HashSet<>();
     this.conversationObservers        = new HashMap<>();
     this.verboseConversationObservers = new HashMap<>();
@@ -75,6 +97,7 @@ public class DatabaseObserver {
     this.messageInsertObservers       = new HashMap<>();
     this.notificationProfileObservers = new HashSet<>();
     this.storyObservers               = new HashMap<>();
+    this.batchObservers               = new HashSet<>();
   }
 
   public void registerConversationListObserver(@NonNull Observer listener) {
@@ -158,6 +181,16 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Adds an observer that is told which threads and messages changed, once for every batch of notifications.
+   */
+  public void registerBatchObserver(@NonNull BatchObserver listener) {
+    executor.execute(() -> {
+      batchObservers.add(listener);
+      hasBatchObservers = true;
+    });
+  }
+
   public void unregisterObserver(@NonNull Observer listener) {
     executor.execute(() -> {
       conversationListObservers.remove(listener);
@@ -180,6 +213,13 @@ public class DatabaseObserver {
     });
   }
 
+  public void unregisterObserver(@NonNull BatchObserver listener) {
+    executor.execute(() -> {
+      batchObservers.remove(listener);
+      hasBatchObservers = !batchObservers.isEmpty();
+    });
+  }
+
   public void notifyConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
       notifyConversationListeners(threadId);
@@ -187,7 +227,7 @@ public class DatabaseObserver {
   }
 
   public void notifyConversationListeners(long threadId) {
-    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, () -> {
+    runPostSuccessfulTransaction(KEY_CONVERSATION + threadId, threadId, null, () -> {
       notifyMapped(conversationObservers, threadId);
       notifyMapped(verboseConversationObservers, threadId);
     });
@@ -195,7 +235,7 @@ public class DatabaseObserver {
 
   public void notifyVerboseConversationListeners(Set<Long> threadIds) {
     for (long threadId : threadIds) {
-      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, () -> {
+      runPostSuccessfulTransaction(KEY_VERBOSE_CONVERSATION + threadId, threadId, null, () -> {
         notifyMapped(verboseConversationObservers, threadId);
       });
     }
@@ -248,13 +288,13 @@ public class DatabaseObserver {
   }
 
   public void notifyMessageUpdateObservers(@NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
+    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), null, messageId, () -> {
       messageUpdateObservers.stream().forEach(l -> l.onMessageChanged(messageId));
     });
   }
 
   public void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, () -> {
+    runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, threadId, messageId, () -> {
       Set<MessageObserver> listeners = messageInsertObservers.get(threadId);
 
       if (listeners != null) {
@@ -281,12 +321,36 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * @return A summary of how many notifications were made, and how many were left after merging.
+   */
+  public @NonNull String getDebugInfo() {
+    long posted    = notificationBus.getPostedCount();
+    long delivered = notificationBus.getDeliveredCount();
+
+    return String.format(Locale.US, "Posted: %d, Delivered: %d, Merged: %d", posted, delivered, posted - delivered);
+  }
+
   private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable runnable) {
+    runPostSuccessfulTransaction(dedupeKey, null, null, runnable);
+  }
+
+  private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @Nullable Long threadId, @Nullable MessageId messageId, @NonNull Runnable runnable) {
     SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
-      executor.execute(runnable);
+      if (hasBatchObservers) {
+        notificationBus.post(dedupeKey, threadId, messageId, runnable);
+      } else {
+        notificationBus.post(dedupeKey, null, null, runnable);
+      }
     });
   }
 
+  private void notifyBatchObservers(@NonNull Set<Long> threadIds, @NonNull Set<MessageId> messageIds) {
+    for (BatchObserver listener : batchObservers) {
+      listener.onChanged(threadIds, messageIds);
+    }
+  }
+
   private <K, V> void registerMapped(@NonNull Map<K, Set<V>> map, @NonNull K key, @NonNull V listener) {
     Set<V> listeners = map.get(key);
 
@@ -346,4 +410,12 @@ public class DatabaseObserver {
   public interface MessageObserver {
     void onMessageChanged(@NonNull MessageId messageId);
   }
+
+  public interface BatchObserver {
+    /**
+     * Called with every thread and message that was the subject of a notification in the latest batch. Executed on a
+     * serial executor, so don't do any long-running tasks!
+     */
+    void onChanged(@NonNull Set<Long> threadIds, @NonNull Set<MessageId> messageIds);
+  }
 }
@@ -4,6 +4,7 @@ import android.annotation.SuppressLint;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
@@ -52,6 +53,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -70,9 +72,9 @@ public class GroupDatabase extends Database {
   private static final String ID                    = "_id";
           static final String GROUP_ID              = "group_id";
   public  static final String RECIPIENT_ID          = "recipient_id";
-  private static final String TITLE                 = "title";
+          static final String TITLE                 = "title";
           static final String MEMBERS               = "members";
-  private static final String AVATAR_ID             = "avatar_id";
+          static final String AVATAR_ID             = "avatar_id";
   private static final String AVATAR_KEY            = "avatar_key";
   private static final String AVATAR_CONTENT_TYPE   = "avatar_content_type";
   private static final String AVATAR_RELAY          = "avatar_relay";
@@ -124,7 +126,8 @@ public class GroupDatabase extends Database {
       "CREATE UNIQUE INDEX IF NOT EXISTS group_id_index ON " + TABLE_NAME + " (" + GROUP_ID + ");",
       "CREATE UNIQUE INDEX IF NOT EXISTS group_recipient_id_index ON " + TABLE_NAME + " (" + RECIPIENT_ID + ");",
       "CREATE UNIQUE INDEX IF NOT EXISTS expected_v2_id_index ON " + TABLE_NAME + " (" + EXPECTED_V2_ID + ");",
-      "CREATE UNIQUE INDEX IF NOT EXISTS group_distribution_id_index ON " + TABLE_NAME + "(" + DISTRIBUTION_ID + ");"
+      "CREATE UNIQUE INDEX IF NOT EXISTS group_distribution_id_index ON " + TABLE_NAME + "(" + DISTRIBUTION_ID + ");",
+      MembershipTable.CREATE_INDEX
   };
 
   private static final String[] GROUP_PROJECTION = {
@@ -132,6 +135,29 @@ public class GroupDatabase extends Database {
       TIMESTAMP, ACTIVE, MMS, V2_MASTER_KEY, V2_REVISION, V2_DECRYPTED_GROUP
   };
 
+  /**
+   * One row per member of each group, mirroring {@link #MEMBERS}, so that the groups a recipient is in can be found
+   * without scanning every group. Written in the same transaction as {@link #MEMBERS}.
+   */
+  public static final class MembershipTable {
+    static final String TABLE_NAME   = "group_membership";
+    static final String ID           = "_id";
+    static final String GROUP_ID     = "group_id";
+    static final String RECIPIENT_ID = "recipient_id";
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID           + " INTEGER PRIMARY KEY, " +
+                                                                                     GROUP_ID     + " TEXT NOT NULL, " +
+                                                                                     RECIPIENT_ID + " INTEGER NOT NULL, " +
+                                                                                     "UNIQUE(" + GROUP_ID + ", " + RECIPIENT_ID + ") ON CONFLICT IGNORE);";
+
+    static final String CREATE_INDEX = "CREATE INDEX IF NOT EXISTS group_membership_recipient_id_index ON " + TABLE_NAME + " (" + RECIPIENT_ID + ");";
+
+    /** Selects the {@link GroupDatabase#GROUP_ID}s of the groups that any of the recipients bound to the placeholders are in. */
+    private static String selectGroupIds(int recipientCount) {
+      return "SELECT " + GROUP_ID + " FROM " + TABLE_NAME + " WHERE " + RECIPIENT_ID + " IN (" + Util.join(Collections.nCopies(recipientCount, "?"), ", ") + ")";
+    }
+  }
+
   static final List<String> TYPED_GROUP_PROJECTION = Stream.of(GROUP_PROJECTION).map(columnName -> TABLE_NAME + "." + columnName).toList();
 
   public GroupDatabase(Context context, SignalDatabase databaseHelper) {
@@ -161,10 +187,7 @@ public class GroupDatabase extends Database {
 
           Collection<RecipientId> remapped = RemappedRecords.getInstance().remap(groupRecord.get().getMembers());
 
-          ContentValues values = new ContentValues();
-          values.put(MEMBERS, RecipientId.toSerializedList(remapped));
-
-          if (db.update(TABLE_NAME, values, GROUP_ID + " = ?", SqlUtil.buildArgs(groupId)) > 0) {
+          if (updateMembers(db, groupId, new ContentValues(), remapped) > 0) {
             return getGroup(groupId);
           } else {
             throw new IllegalStateException("Failed to update group with remapped recipients!");
@@ -295,42 +318,59 @@ public class GroupDatabase extends Database {
   }
 
   public Reader queryGroupsByMembership(@NonNull Set<RecipientId> recipientIds, boolean includeInactive, boolean excludeV1, boolean excludeMms) {
-    if (recipientIds.isEmpty()) {
-      return new Reader(null);
-    }
+    Set<String> groupIds = getGroupIdsContainingMembers(recipientIds);
 
-    if (recipientIds.size() > 30) {
-      Log.w(TAG, "[queryGroupsByMembership] Large set of recipientIds (" + recipientIds.size() + ")! Using the first 30.");
-      recipientIds = recipientIds.stream().limit(30).collect(Collectors.toSet());
+    if (groupIds.isEmpty()) {
+      return new Reader(null);
     }
 
-    List<String> recipientLikeClauses = recipientIds.stream()
-                                                    .map(RecipientId::toLong)
-                                                    .map(id -> "(" + MEMBERS + " LIKE " + id + " || ',%' OR " + MEMBERS + " LIKE '%,' || " + id + " || ',%' OR " + MEMBERS + " LIKE '%,' || " + id + ")")
-                                                    .collect(Collectors.toList());
-
-    String   query;
-    String[] queryArgs;
-
-    String membershipQuery = "(" + Util.join(recipientLikeClauses, " OR ") + ")";
+    String filter;
 
     if (includeInactive) {
-      query     = membershipQuery + " AND (" + ACTIVE + " = ? OR " + RECIPIENT_ID + " IN (SELECT " + ThreadDatabase.RECIPIENT_ID + " FROM " + ThreadDatabase.TABLE_NAME + "))";
-      queryArgs = SqlUtil.buildArgs(1);
+      filter = " AND (" + ACTIVE + " = 1 OR " + RECIPIENT_ID + " IN (SELECT " + ThreadDatabase.RECIPIENT_ID + " FROM " + ThreadDatabase.TABLE_NAME + "))";
     } else {
-      query     = membershipQuery + " AND " + ACTIVE + " = ?";
-      queryArgs = SqlUtil.buildArgs(1);
+      filter = " AND " + ACTIVE + " = 1";
     }
 
     if (excludeV1) {
-      query += " AND " + EXPECTED_V2_ID + " IS NULL";
+      filter += " AND " + EXPECTED_V2_ID + " IS NULL";
     }
 
     if (excludeMms) {
-      query += " AND " + MMS + " = 0";
+      filter += " AND " + MMS + " = 0";
     }
 
-    return new Reader(getReadableDatabase().query(TABLE_NAME, null, query, queryArgs, null, null, null));
+    List<Cursor> cursors = new ArrayList<>();
+
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(GROUP_ID, groupIds)) {
+      cursors.add(getReadableDatabase().query(TABLE_NAME, null, query.getWhere() + filter, query.getWhereArgs(), null, null, null));
+    }
+
+    return new Reader(cursors.size() > 1 ? new MergeCursor(cursors.toArray(new Cursor[0])) : cursors.get(0));
+  }
+
+  /**
+   * The ids of every group that any of the recipients is in, read in chunks so that no query has more arguments than
+   * SQLite allows.
+   */
+  private @NonNull Set<String> getGroupIdsContainingMembers(@NonNull Set<RecipientId> recipientIds) {
+    Set<String> groupIds = new LinkedHashSet<>();
+
+    if (recipientIds.isEmpty()) {
+      return groupIds;
+    }
+
+    List<String> serializedIds = recipientIds.stream().map(RecipientId::serialize).collect(Collectors.toList());
+
+    for (SqlUtil.Query query : SqlUtil.buildCollectionQuery(MembershipTable.RECIPIENT_ID, serializedIds)) {
+      try (Cursor cursor = getReadableDatabase().query(true, MembershipTable.TABLE_NAME, new String[] { MembershipTable.GROUP_ID }, query.getWhere(), query.getWhereArgs(), null, null, null, null)) {
+        while (cursor.moveToNext()) {
+          groupIds.add(CursorUtil.requireString(cursor, MembershipTable.GROUP_ID));
+        }
+      }
+    }
+
+    return groupIds;
   }
 
   public Reader queryGroupsByRecency(@NonNull GroupQuery groupQuery) {
@@ -449,8 +489,8 @@ public class GroupDatabase extends Database {
   public @NonNull List<GroupRecord> getGroupsContainingMember(@NonNull RecipientId recipientId, boolean pushOnly, boolean includeInactive) {
     SQLiteDatabase database   = databaseHelper.getSignalReadableDatabase();
     String         table      = TABLE_NAME + " INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + TABLE_NAME + "." + RECIPIENT_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID;
-    String         query      = MEMBERS + " LIKE ?";
-    String[]       args       = SqlUtil.buildArgs("%" + recipientId.serialize() + "%");
+    String         query      = TABLE_NAME + "." + GROUP_ID + " IN (" + MembershipTable.selectGroupIds(1) + ")";
+    String[]       args       = SqlUtil.buildArgs(recipientId);
     String         orderBy    = ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.DATE + " DESC";
 
     if (pushOnly) {
@@ -467,11 +507,7 @@ public class GroupDatabase extends Database {
 
     try (Cursor cursor = database.query(table, null, query, args, null, null, orderBy)) {
       while (cursor != null && cursor.moveToNext()) {
-        String serializedMembers = cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS));
-
-        if (RecipientId.serializedListContains(serializedMembers, recipientId)) {
-          groups.add(new Reader(cursor).getCurrent());
-        }
+        groups.add(new Reader(cursor).getCurrent());
       }
     }
 
@@ -684,7 +720,17 @@ public class GroupDatabase extends Database {
       }
     }
 
-    databaseHelper.getSignalWritableDatabase().insert(TABLE_NAME, null, contentValues);
+    SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      if (db.insert(TABLE_NAME, null, contentValues) != -1) {
+        replaceMembership(db, groupId, groupMembers);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     if (groupState != null && groupState.hasDisappearingMessagesTimer()) {
       recipientDatabase.setExpireMessages(groupRecipientId, groupState.getDisappearingMessagesTimer().getDuration());
@@ -765,6 +811,10 @@ public class GroupDatabase extends Database {
         throw new AssertionError();
       }
 
+      ContentValues membershipValues = new ContentValues(1);
+      membershipValues.put(MembershipTable.GROUP_ID, groupIdV2.toString());
+      db.update(MembershipTable.TABLE_NAME, membershipValues, MembershipTable.GROUP_ID + " = ?", SqlUtil.buildArgs(groupIdV1));
+
       SignalDatabase.recipients().updateGroupId(groupIdV1, groupIdV2);
 
       update(groupMasterKey, decryptedGroup);
@@ -816,7 +866,6 @@ public class GroupDatabase extends Database {
     contentValues.put(TITLE, title);
     contentValues.put(V2_REVISION, decryptedGroup.getRevision());
     contentValues.put(V2_DECRYPTED_GROUP, decryptedGroup.toByteArray());
-    contentValues.put(MEMBERS, RecipientId.toSerializedList(groupMembers));
     contentValues.put(ACTIVE, gv2GroupActive(decryptedGroup) ? 1 : 0);
 
     DistributionId distributionId = Objects.requireNonNull(existingGroup.get().getDistributionId());
@@ -831,9 +880,7 @@ public class GroupDatabase extends Database {
       }
     }
 
-    databaseHelper.getSignalWritableDatabase().update(TABLE_NAME, contentValues,
-                                                GROUP_ID + " = ?",
-                                                new String[]{ groupId.toString() });
+    updateMembers(databaseHelper.getSignalWritableDatabase(), groupId, contentValues, groupMembers);
 
     if (decryptedGroup.hasDisappearingMessagesTimer()) {
       recipientDatabase.setExpireMessages(groupRecipientId, decryptedGroup.getDisappearingMessagesTimer().getDuration());
@@ -888,11 +935,9 @@ public class GroupDatabase extends Database {
     Collections.sort(members);
 
     ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, RecipientId.toSerializedList(members));
     contents.put(ACTIVE, 1);
 
-    databaseHelper.getSignalWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {groupId.toString()});
+    updateMembers(databaseHelper.getSignalWritableDatabase(), groupId, contents, members);
 
     RecipientId groupRecipient = SignalDatabase.recipients().getOrInsertFromGroupId(groupId);
     Recipient.live(groupRecipient).refresh();
@@ -902,11 +947,7 @@ public class GroupDatabase extends Database {
     List<RecipientId> currentMembers = getCurrentMembers(groupId);
     currentMembers.remove(source);
 
-    ContentValues contents = new ContentValues();
-    contents.put(MEMBERS, RecipientId.toSerializedList(currentMembers));
-
-    databaseHelper.getSignalWritableDatabase().update(TABLE_NAME, contents, GROUP_ID + " = ?",
-                                                new String[] {groupId.toString()});
+    updateMembers(databaseHelper.getSignalWritableDatabase(), groupId, new ContentValues(), currentMembers);
 
     RecipientId groupRecipient = SignalDatabase.recipients().getOrInsertFromGroupId(groupId);
     Recipient.live(groupRecipient).refresh();
@@ -956,16 +997,80 @@ public class GroupDatabase extends Database {
   public boolean isCurrentMember(@NonNull GroupId.Push groupId, @NonNull RecipientId recipientId) {
     SQLiteDatabase database = databaseHelper.getSignalReadableDatabase();
 
-    try (Cursor cursor = database.query(TABLE_NAME, new String[] {MEMBERS},
-                                        GROUP_ID + " = ?", new String[] {groupId.toString()},
-                                        null, null, null))
+    try (Cursor cursor = database.query(MembershipTable.TABLE_NAME, new String[] { MembershipTable.ID },
+                                        MembershipTable.GROUP_ID + " = ? AND " + MembershipTable.RECIPIENT_ID + " = ?", SqlUtil.buildArgs(groupId, recipientId),
+                                        null, null, null, "1"))
     {
-      if (cursor.moveToNext()) {
-        String serializedMembers = cursor.getString(cursor.getColumnIndexOrThrow(MEMBERS));
-        return RecipientId.serializedListContains(serializedMembers, recipientId);
-      } else {
-        return false;
+      return cursor.moveToFirst();
+    }
+  }
+
+  /**
+   * Replaces a merged recipient with the one it was merged into, in the membership of every group it was in.
+   */
+  void remapMember(@NonNull RecipientId fromId, @NonNull RecipientId toId) {
+    SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      for (GroupRecord group : getGroupsContainingMember(fromId, false, true)) {
+        Set<RecipientId> newMembers = new LinkedHashSet<>(group.getMembers());
+        newMembers.remove(fromId);
+        newMembers.add(toId);
+
+        updateMembers(db, group.getId(), new ContentValues(), newMembers);
+
+        if (group.isV2Group()) {
+          removeUnmigratedV1Members(group.getId().requireV2(), Collections.singletonList(fromId));
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Updates the group with the provided values and members, keeping {@link MembershipTable} in sync.
+   *
+   * @return The number of groups updated.
+   */
+  private int updateMembers(@NonNull SQLiteDatabase db, @NonNull GroupId groupId, @NonNull ContentValues values, @NonNull Collection<RecipientId> members) {
+    values.put(MEMBERS, RecipientId.toSerializedList(members));
+
+    db.beginTransaction();
+    try {
+      int updated = db.update(TABLE_NAME, values, GROUP_ID + " = ?", SqlUtil.buildArgs(groupId));
+
+      if (updated > 0) {
+        replaceMembership(db, groupId, members);
       }
+
+      db.setTransactionSuccessful();
+      return updated;
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static void replaceMembership(@NonNull SQLiteDatabase db, @NonNull GroupId groupId, @NonNull Collection<RecipientId> members) {
+    db.delete(MembershipTable.TABLE_NAME, MembershipTable.GROUP_ID + " = ?", SqlUtil.buildArgs(groupId));
+
+    if (members.isEmpty()) {
+      return;
+    }
+
+    List<ContentValues> rows = new ArrayList<>(members.size());
+    for (RecipientId member : members) {
+      ContentValues row = new ContentValues(2);
+      row.put(MembershipTable.GROUP_ID, groupId.toString());
+      row.put(MembershipTable.RECIPIENT_ID, member.toLong());
+      rows.add(row);
+    }
+
+    for (SqlUtil.Query query : SqlUtil.buildBulkInsert(MembershipTable.TABLE_NAME, new String[] { MembershipTable.GROUP_ID, MembershipTable.RECIPIENT_ID }, rows)) {
+      db.execSQL(query.getWhere(), query.getWhereArgs());
     }
   }
 
@@ -172,6 +172,22 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     }
   }
 
+  /**
+   * Runs the provided writes inside of a single transaction, so that they're committed together.
+   */
+  public synchronized void runInTransaction(@NonNull Runnable writes) {
+    SQLiteDatabase db = getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      writes.run();
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
     List<JobSpec> jobs = new LinkedList<>();
 
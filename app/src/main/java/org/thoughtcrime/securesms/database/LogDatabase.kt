@@ -15,8 +15,8 @@ import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.crypto.DatabaseSecret
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
 import org.thoughtcrime.securesms.database.model.LogEntry
+import org.thoughtcrime.securesms.logging.PersistentLogStore
 import org.thoughtcrime.securesms.util.ByteUnit
-import java.io.Closeable
 import java.util.concurrent.TimeUnit
 import kotlin.math.abs
 
@@ -42,7 +42,8 @@ class LogDatabase private constructor(
     SqlCipherDeletingErrorHandler(DATABASE_NAME),
     SqlCipherDatabaseHook()
   ),
-  SignalDatabaseOpenHelper {
+  SignalDatabaseOpenHelper,
+  PersistentLogStore {
 
   companion object {
     private val TAG = Log.tag(LogDatabase::class.java)
@@ -141,11 +142,11 @@ class LogDatabase private constructor(
     }
   }
 
-  fun getAllBeforeTime(time: Long): Reader {
+  override fun getAllBeforeTime(time: Long): PersistentLogStore.Reader {
     return CursorReader(readableDatabase.query(TABLE_NAME, arrayOf(BODY), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null))
   }
 
-  fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
+  override fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
     val lines = mutableListOf<String>()
 
     readableDatabase.query(TABLE_NAME, arrayOf(BODY), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null, "$start,$length").use { cursor ->
@@ -157,7 +158,7 @@ class LogDatabase private constructor(
     return lines
   }
 
-  fun trimToSize() {
+  override fun trimToSize() {
     val currentTime = System.currentTimeMillis()
     val stopwatch = Stopwatch("trim")
 
@@ -209,7 +210,7 @@ class LogDatabase private constructor(
     stopwatch.stop(TAG)
   }
 
-  fun getLogCountBeforeTime(time: Long): Int {
+  override fun getLogCountBeforeTime(time: Long): Int {
     readableDatabase.query(TABLE_NAME, arrayOf("COUNT(*)"), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null).use { cursor ->
       return if (cursor.moveToFirst()) {
         cursor.getInt(0)
@@ -219,7 +220,7 @@ class LogDatabase private constructor(
     }
   }
 
-  fun clearKeepLonger() {
+  override fun clearKeepLonger() {
     writableDatabase.delete(TABLE_NAME)
       .where("$KEEP_LONGER = ?", 1)
       .run()
@@ -244,9 +245,7 @@ class LogDatabase private constructor(
     }
   }
 
-  interface Reader : Iterator<String>, Closeable
-
-  class CursorReader(private val cursor: Cursor) : Reader {
+  class CursorReader(private val cursor: Cursor) : PersistentLogStore.Reader {
     override fun hasNext(): Boolean {
       return !cursor.isLast && cursor.count > 0
     }
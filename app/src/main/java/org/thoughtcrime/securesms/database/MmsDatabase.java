@@ -1883,7 +1883,7 @@ public class MmsDatabase extends MessageDatabase {
     boolean isNotStoryGroupReply = retrieved.getParentStoryId() == null || !retrieved.getParentStoryId().isGroupReply();
     if (!Types.isExpirationTimerUpdate(mailbox) && !retrieved.getStoryType().isStory() && isNotStoryGroupReply) {
       SignalDatabase.threads().incrementUnread(threadId, 1);
-      SignalDatabase.threads().update(threadId, true);
+      SignalDatabase.threads().updateForInsertedMessage(threadId, new MessageId(messageId, true), true);
     }
 
     notifyConversationListeners(threadId);
@@ -2247,9 +2247,11 @@ public class MmsDatabase extends MessageDatabase {
       contentValues.put(MESSAGE_RANGES, messageRanges.toByteArray());
     }
 
+    long messageId = -1;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       mentionDatabase.insert(threadId, messageId, mentions);
 
@@ -2279,6 +2281,8 @@ public class MmsDatabase extends MessageDatabase {
         if (rows <= 0) {
           Log.w(TAG, "Failed to update message with link preview data.");
         }
+
+        SignalDatabase.messageSearch().updateLinkPreviewTitles(messageId, linkPreviews);
       }
 
       db.setTransactionSuccessful();
@@ -2294,7 +2298,12 @@ public class MmsDatabase extends MessageDatabase {
 
       if (updateThread) {
         SignalDatabase.threads().setLastScrolled(contentValuesThreadId, 0);
-        SignalDatabase.threads().update(threadId, true);
+
+        if (messageId > 0) {
+          SignalDatabase.threads().updateForInsertedMessage(threadId, new MessageId(messageId, true), true);
+        } else {
+          SignalDatabase.threads().update(threadId, true);
+        }
       }
     }
   }
@@ -2317,7 +2326,7 @@ public class MmsDatabase extends MessageDatabase {
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
 
     SignalDatabase.threads().setLastScrolled(threadId, 0);
-    boolean threadDeleted = SignalDatabase.threads().update(threadId, false);
+    boolean threadDeleted = SignalDatabase.threads().update(threadId, false, true);
     notifyConversationListeners(threadId);
     notifyStickerListeners();
     notifyStickerPackListeners();
@@ -120,11 +120,27 @@ public class MmsSmsDatabase extends Database {
                                               MmsDatabase.STORY_TYPE,
                                               MmsDatabase.PARENT_STORY_ID};
 
+  private static final String SMS_SNIPPET_FILTER = SmsDatabase.TYPE + " NOT IN (" + SmsDatabase.Types.PROFILE_CHANGE_TYPE + ", " + SmsDatabase.Types.GV1_MIGRATION_TYPE + ", " + SmsDatabase.Types.CHANGE_NUMBER_TYPE + ", " + SmsDatabase.Types.BOOST_REQUEST_TYPE + ") AND " + SmsDatabase.TYPE + " & " + GROUP_V2_LEAVE_BITS + " != " + GROUP_V2_LEAVE_BITS;
+  private static final String MMS_SNIPPET_FILTER = MmsDatabase.MESSAGE_BOX + " & " + GROUP_V2_LEAVE_BITS + " != " + GROUP_V2_LEAVE_BITS + " AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0";
+
+  private static final String CONVERSATION_ORDER         = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+  private static final String CONVERSATION_ORDER_REVERSED = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC, " + TRANSPORT + " ASC, " + MmsSmsColumns.ID + " ASC";
+
+  /**
+   * Only selects the columns that make up a {@link ConversationKey}, all of which are in the thread/date indexes, so the
+   * rows that are skipped over never have to be read.
+   */
+  private static final String CONVERSATION_KEY_QUERY = "SELECT " + MmsSmsColumns.ID + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + SmsDatabase.TABLE_NAME + " " +
+                                                       "WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND %1$s " +
+                                                       "UNION ALL " +
+                                                       "SELECT " + MmsSmsColumns.ID + ", '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + MmsDatabase.TABLE_NAME + " " +
+                                                       "WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0 AND %1$s";
+
   private static final String SNIPPET_QUERY = "SELECT " + MmsSmsColumns.ID + ", 0 AS " + TRANSPORT + ", " + SmsDatabase.TYPE + " AS " + MmsSmsColumns.NORMALIZED_TYPE + ", " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + SmsDatabase.TABLE_NAME + " " +
-                                              "WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.TYPE + " NOT IN (" + SmsDatabase.Types.PROFILE_CHANGE_TYPE + ", " + SmsDatabase.Types.GV1_MIGRATION_TYPE + ", " + SmsDatabase.Types.CHANGE_NUMBER_TYPE + ", " + SmsDatabase.Types.BOOST_REQUEST_TYPE + ") AND " + SmsDatabase.TYPE + " & " + GROUP_V2_LEAVE_BITS + " != " + GROUP_V2_LEAVE_BITS + " " +
+                                              "WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SMS_SNIPPET_FILTER + " " +
                                               "UNION ALL " +
                                               "SELECT " + MmsSmsColumns.ID + ", 1 AS " + TRANSPORT + ", " + MmsDatabase.MESSAGE_BOX + " AS " + MmsSmsColumns.NORMALIZED_TYPE + ", " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + MmsDatabase.TABLE_NAME + " " +
-                                              "WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.MESSAGE_BOX + " & " + GROUP_V2_LEAVE_BITS + " != " + GROUP_V2_LEAVE_BITS + " AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0 " +
+                                              "WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MMS_SNIPPET_FILTER + " " +
                                               "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
                                               "LIMIT 1";
 
@@ -209,10 +225,9 @@ public class MmsSmsDatabase extends Database {
 
   public Cursor getConversation(long threadId, long offset, long limit) {
     SQLiteDatabase db        = databaseHelper.getSignalReadableDatabase();
-    String         order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
     String         selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0";
     String         limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
-    String         query     = buildQuery(PROJECTION, selection, order, limitStr, false);
+    String         query     = buildQuery(PROJECTION, selection, CONVERSATION_ORDER, limitStr, false);
 
     return db.rawQuery(query, null);
   }
@@ -221,6 +236,129 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0, 0);
   }
 
+  /**
+   * Same as {@link #getConversation(long, long, long)}, except that it starts right after the message identified by
+   * {@code key}. The database seeks to the key using the thread/date indexes, so the cost doesn't grow with how far
+   * into the conversation the key is. {@code offset} is counted from the key.
+   */
+  public Cursor getConversationOlderThan(long threadId, @NonNull ConversationKey key, long offset, long limit) {
+    SQLiteDatabase db        = databaseHelper.getSignalReadableDatabase();
+    String         selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0 AND " + buildOlderThanSelection(key);
+    String         query     = buildQuery(PROJECTION, selection, CONVERSATION_ORDER, offset + ", " + limit, false);
+
+    return db.rawQuery(query, null);
+  }
+
+  /**
+   * The {@code limit} messages that come right before the message identified by {@code key} in
+   * {@link #getConversation(long, long, long)}, nearest first. In other words, this reads the conversation backwards,
+   * starting from the key.
+   */
+  public Cursor getConversationNewerThan(long threadId, @NonNull ConversationKey key, long limit) {
+    SQLiteDatabase db        = databaseHelper.getSignalReadableDatabase();
+    String         selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0 AND " + buildNewerThanSelection(key);
+    String         query     = buildQuery(PROJECTION, selection, CONVERSATION_ORDER_REVERSED, String.valueOf(limit), false);
+
+    return db.rawQuery(query, null);
+  }
+
+  /**
+   * @return The number of messages that come before the one identified by {@code key} in
+   *         {@link #getConversation(long, long, long)}. Only reads the thread/date indexes.
+   */
+  public int getConversationCountNewerThan(long threadId, @NonNull ConversationKey key) {
+    String query = "SELECT COUNT(*) FROM (" + String.format(CONVERSATION_KEY_QUERY, buildNewerThanSelection(key)) + ")";
+
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().rawQuery(query, SqlUtil.buildArgs(threadId, threadId))) {
+      if (cursor.moveToFirst()) {
+        return cursor.getInt(0);
+      }
+    }
+
+    return 0;
+  }
+
+  /**
+   * Same as {@link #getConversationOlderThan(long, ConversationKey, long, long)}, except that the message identified by
+   * {@code key} is the first one returned.
+   */
+  public Cursor getConversationFrom(long threadId, @NonNull ConversationKey key, long limit) {
+    SQLiteDatabase db        = databaseHelper.getSignalReadableDatabase();
+    String         selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.STORY_TYPE + " = 0 AND " + MmsDatabase.PARENT_STORY_ID + " <= 0 AND " + buildKeySelection(key, "<", true);
+    String         query     = buildQuery(PROJECTION, selection, CONVERSATION_ORDER, String.valueOf(limit), false);
+
+    return db.rawQuery(query, null);
+  }
+
+  /**
+   * @return The key of the first message in {@link #getConversation(long, long, long)}, or null if there are no messages.
+   */
+  public @Nullable ConversationKey getNewestConversationKey(long threadId) {
+    return readConversationKey(threadId, "1", CONVERSATION_ORDER, 0);
+  }
+
+  /**
+   * @return The key of the newest message received before {@code dateReceived}, which is the message at
+   *         {@link #getMessagePositionOnOrAfterTimestamp(long, long)}, or null if there is none. The database seeks
+   *         straight to it using the thread/date indexes.
+   */
+  public @Nullable ConversationKey getConversationKeyBefore(long threadId, long dateReceived) {
+    return readConversationKey(threadId, MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " < " + dateReceived, CONVERSATION_ORDER, 0);
+  }
+
+  /**
+   * @return The key of the message {@code offset + 1} messages after the one identified by {@code key} in
+   *         {@link #getConversation(long, long, long)}, or null if there is none. This seeks to the key and counts from
+   *         there, only reading the thread/date indexes.
+   */
+  public @Nullable ConversationKey getConversationKeyOlderThan(long threadId, @NonNull ConversationKey key, int offset) {
+    return readConversationKey(threadId, buildOlderThanSelection(key), CONVERSATION_ORDER, offset);
+  }
+
+  /**
+   * @return The key of the message {@code offset + 1} messages before the one identified by {@code key} in
+   *         {@link #getConversation(long, long, long)}, or null if there is none. This seeks to the key and counts from
+   *         there, only reading the thread/date indexes.
+   */
+  public @Nullable ConversationKey getConversationKeyNewerThan(long threadId, @NonNull ConversationKey key, int offset) {
+    return readConversationKey(threadId, buildNewerThanSelection(key), CONVERSATION_ORDER_REVERSED, offset);
+  }
+
+  private @Nullable ConversationKey readConversationKey(long threadId, @NonNull String selection, @NonNull String order, int offset) {
+    String query = String.format(CONVERSATION_KEY_QUERY, selection) + " ORDER BY " + order + " LIMIT 1 OFFSET " + offset;
+
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().rawQuery(query, SqlUtil.buildArgs(threadId, threadId))) {
+      if (cursor.moveToFirst()) {
+        return new ConversationKey(CursorUtil.requireLong(cursor, MmsSmsColumns.NORMALIZED_DATE_RECEIVED),
+                                   new MessageId(CursorUtil.requireLong(cursor, MmsSmsColumns.ID), MMS_TRANSPORT.equals(CursorUtil.requireString(cursor, TRANSPORT))));
+      }
+    }
+
+    return null;
+  }
+
+  private static @NonNull String buildOlderThanSelection(@NonNull ConversationKey key) {
+    return buildKeySelection(key, "<", false);
+  }
+
+  private static @NonNull String buildNewerThanSelection(@NonNull ConversationKey key) {
+    return buildKeySelection(key, ">", false);
+  }
+
+  /**
+   * Compares rows against the key in the same order as {@link #CONVERSATION_ORDER}. The date is also checked on its own
+   * so that the comparison can be answered with a range over the thread/date indexes. If {@code inclusive}, the message
+   * identified by the key matches as well.
+   */
+  private static @NonNull String buildKeySelection(@NonNull ConversationKey key, @NonNull String operator, boolean inclusive) {
+    String transport = key.getMessageId().isMms() ? MMS_TRANSPORT : SMS_TRANSPORT;
+
+    return MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " + operator + "= " + key.getDateReceived() + " AND (" +
+           MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " + operator + " " + key.getDateReceived() + " OR " +
+           TRANSPORT + " " + operator + " '" + transport + "' OR " +
+           "(" + TRANSPORT + " = '" + transport + "' AND " + MmsSmsColumns.ID + " " + operator + (inclusive ? "= " : " ") + key.getMessageId().getId() + "))";
+  }
+
   public @NonNull MessageRecord getConversationSnippet(long threadId) throws NoSuchMessageException {
     try (Cursor cursor = getConversationSnippetCursor(threadId)) {
       if (cursor.moveToFirst()) {
@@ -238,6 +376,29 @@ public class MmsSmsDatabase extends Database {
     }
   }
 
+  /**
+   * @return The message, if it's one that could be shown as the snippet of its thread, otherwise null. Unlike
+   *         {@link #getConversationSnippet(long)}, this is a single lookup by id, regardless of the size of the thread.
+   */
+  public @Nullable MessageRecord getSnippetCandidate(@NonNull MessageId messageId) {
+    SQLiteDatabase db     = databaseHelper.getSignalReadableDatabase();
+    String         table  = messageId.isMms() ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+    String         filter = messageId.isMms() ? MMS_SNIPPET_FILTER : SMS_SNIPPET_FILTER;
+
+    try (Cursor cursor = db.query(table, new String[] { "1" }, MmsSmsColumns.ID + " = ? AND " + filter, SqlUtil.buildArgs(messageId.getId()), null, null, null, "1")) {
+      if (!cursor.moveToFirst()) {
+        return null;
+      }
+    }
+
+    try {
+      return messageId.isMms() ? SignalDatabase.mms().getMessageRecord(messageId.getId())
+                               : SignalDatabase.sms().getMessageRecord(messageId.getId());
+    } catch (NoSuchMessageException e) {
+      return null;
+    }
+  }
+
   @VisibleForTesting
   @NonNull Cursor getConversationSnippetCursor(long threadId) {
     SQLiteDatabase db = databaseHelper.getSignalReadableDatabase();
@@ -534,7 +695,7 @@ public class MmsSmsDatabase extends Database {
       messageUpdates = incrementReceiptCountInternal(syncMessageId, timestamp, receiptType);
 
       for (MessageUpdate messageUpdate : messageUpdates) {
-        threadDatabase.update(messageUpdate.getThreadId(), false);
+        threadDatabase.updateForChangedMessage(messageUpdate.getThreadId(), messageUpdate.getMessageId());
       }
 
       db.setTransactionSuccessful();
@@ -757,28 +918,39 @@ public class MmsSmsDatabase extends Database {
     return -1;
   }
 
+  /**
+   * Counts the newer messages rather than walking past them, so only the messages that share the timestamp are read.
+   */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull RecipientId recipientId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsDatabase.STORY_TYPE + " = 0" + " AND " + MmsDatabase.PARENT_STORY_ID + " <= 0";
+    ConversationKey key = getConversationKey(threadId, receivedTimestamp, recipientId);
+    return key != null ? getConversationCountNewerThan(threadId, key) : -1;
+  }
+
+  /**
+   * @return The key of the message from {@code recipientId} that was received at {@code receivedTimestamp}, or null if
+   *         there isn't one, or it was remotely deleted.
+   */
+  public @Nullable ConversationKey getConversationKey(long threadId, long receivedTimestamp, @NonNull RecipientId recipientId) {
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " +
+                       MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " = " + receivedTimestamp + " AND " +
+                       MmsDatabase.STORY_TYPE + " = 0" + " AND " + MmsDatabase.PARENT_STORY_ID + " <= 0";
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.RECIPIENT_ID, MmsSmsColumns.REMOTE_DELETED}, selection, order, null, false)) {
+    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.RECIPIENT_ID, MmsSmsColumns.REMOTE_DELETED, MmsSmsColumns.ID, TRANSPORT }, selection, CONVERSATION_ORDER, null, false)) {
       boolean isOwnNumber = Recipient.resolved(recipientId).isSelf();
 
       while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches   = cursor.getLong(0) == receivedTimestamp;
         boolean recipientIdMatches = recipientId.equals(RecipientId.from(cursor.getLong(1)));
 
-
-        if (timestampMatches && (recipientIdMatches || isOwnNumber)) {
+        if (recipientIdMatches || isOwnNumber) {
           if (CursorUtil.requireBoolean(cursor, MmsSmsColumns.REMOTE_DELETED)) {
-            return -1;
+            return null;
           } else {
-            return cursor.getPosition();
+            return new ConversationKey(receivedTimestamp, new MessageId(CursorUtil.requireLong(cursor, MmsSmsColumns.ID), MMS_TRANSPORT.equals(CursorUtil.requireString(cursor, TRANSPORT))));
           }
         }
       }
     }
-    return -1;
+    return null;
   }
 
   boolean hasReceivedAnyCallsSince(long threadId, long timestamp) {
@@ -1154,6 +1326,37 @@ public class MmsSmsDatabase extends Database {
     }
   }
 
+  /**
+   * Identifies a message by its place in {@link #getConversation(long, long, long)}, which orders messages by the date
+   * they were received, and then by their transport and id to break ties.
+   */
+  public static final class ConversationKey {
+    private final long      dateReceived;
+    private final MessageId messageId;
+
+    public ConversationKey(long dateReceived, @NonNull MessageId messageId) {
+      this.dateReceived = dateReceived;
+      this.messageId    = messageId;
+    }
+
+    public static @NonNull ConversationKey forRecord(@NonNull MessageRecord record) {
+      return new ConversationKey(record.getDateReceived(), new MessageId(record.getId(), record.isMms()));
+    }
+
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    public @NonNull MessageId getMessageId() {
+      return messageId;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "ConversationKey{dateReceived=" + dateReceived + ", messageId=" + messageId + "}";
+    }
+  }
+
   static final class TimestampReadResult {
     final List<Pair<Long, Long>> expiring;
     final List<Long> threads;
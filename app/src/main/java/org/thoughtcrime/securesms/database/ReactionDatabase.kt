@@ -18,10 +18,10 @@ class ReactionDatabase(context: Context, databaseHelper: SignalDatabase) : Datab
   companion object {
     const val TABLE_NAME = "reaction"
 
-    private const val ID = "_id"
+    const val ID = "_id"
     const val MESSAGE_ID = "message_id"
     const val IS_MMS = "is_mms"
-    private const val AUTHOR_ID = "author_id"
+    const val AUTHOR_ID = "author_id"
     private const val EMOJI = "emoji"
     private const val DATE_SENT = "date_sent"
     private const val DATE_RECEIVED = "date_received"
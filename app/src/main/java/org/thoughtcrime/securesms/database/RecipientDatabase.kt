@@ -3,6 +3,8 @@ package org.thoughtcrime.securesms.database
 import android.content.ContentValues
 import android.content.Context
 import android.database.Cursor
+import android.database.MatrixCursor
+import android.database.MergeCursor
 import android.net.Uri
 import android.text.TextUtils
 import androidx.annotation.VisibleForTesting
@@ -356,6 +358,18 @@ open class RecipientDatabase(context: Context, databaseHelper: SignalDatabase) :
     @JvmField
     val TYPED_RECIPIENT_PROJECTION_NO_ID: Array<String> = TYPED_RECIPIENT_PROJECTION.copyOfRange(1, TYPED_RECIPIENT_PROJECTION.size)
 
+    const val SNAPSHOT_GROUP_TITLE = "snapshot_group_title"
+    const val SNAPSHOT_GROUP_AVATAR_ID = "snapshot_group_avatar_id"
+    const val SNAPSHOT_DISTRIBUTION_LIST_NAME = "snapshot_distribution_list_name"
+
+    private val SNAPSHOT_PROJECTION: Array<String> = RECIPIENT_PROJECTION + arrayOf(SNAPSHOT_GROUP_TITLE, SNAPSHOT_GROUP_AVATAR_ID, SNAPSHOT_DISTRIBUTION_LIST_NAME)
+
+    private val TYPED_SNAPSHOT_PROJECTION: Array<String> = TYPED_RECIPIENT_PROJECTION + arrayOf(
+      "${GroupDatabase.TABLE_NAME}.${GroupDatabase.TITLE} AS $SNAPSHOT_GROUP_TITLE",
+      "${GroupDatabase.TABLE_NAME}.${GroupDatabase.AVATAR_ID} AS $SNAPSHOT_GROUP_AVATAR_ID",
+      "CASE WHEN ${DistributionListDatabase.LIST_TABLE_NAME}.${DistributionListDatabase.IS_UNKNOWN} THEN NULL ELSE ${DistributionListDatabase.LIST_TABLE_NAME}.${DistributionListDatabase.NAME} END AS $SNAPSHOT_DISTRIBUTION_LIST_NAME"
+    )
+
     private val MENTION_SEARCH_PROJECTION = arrayOf(
       ID,
       """
@@ -867,6 +881,51 @@ open class RecipientDatabase(context: Context, databaseHelper: SignalDatabase) :
     }
   }
 
+  /**
+   * Reads the records for many recipients at once, in chunked IN queries rather than one query per recipient. Unlike
+   * [getRecord], missing recipients are left out of the result instead of being looked up in the remapped records.
+   */
+  fun getRecords(ids: Collection<RecipientId>): Map<RecipientId, RecipientRecord> {
+    if (ids.isEmpty()) {
+      return emptyMap()
+    }
+
+    val records: MutableMap<RecipientId, RecipientRecord> = HashMap(ids.size)
+    val queries: List<SqlUtil.Query> = SqlUtil.buildCollectionQuery(ID, ids.map { it.serialize() })
+
+    for (query in queries) {
+      readableDatabase.query(TABLE_NAME, RECIPIENT_PROJECTION, query.where, query.whereArgs, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val record = getRecord(context, cursor)
+          records[record.id] = record
+        }
+      }
+    }
+
+    return records
+  }
+
+  /**
+   * Reads the raw rows for many recipients, plus the title and avatar id of any groups and the name of any distribution
+   * lists among them, so that they can be written to disk and later read back with [getRecord]. The caller is
+   * responsible for closing the cursor.
+   */
+  fun getSnapshotRows(ids: Collection<RecipientId>): Cursor {
+    if (ids.isEmpty()) {
+      return MatrixCursor(SNAPSHOT_PROJECTION)
+    }
+
+    val table = """
+      $TABLE_NAME
+      LEFT OUTER JOIN ${GroupDatabase.TABLE_NAME} ON $TABLE_NAME.$GROUP_ID = ${GroupDatabase.TABLE_NAME}.${GroupDatabase.GROUP_ID}
+      LEFT OUTER JOIN ${DistributionListDatabase.LIST_TABLE_NAME} ON $TABLE_NAME.$DISTRIBUTION_LIST_ID = ${DistributionListDatabase.LIST_TABLE_NAME}.${DistributionListDatabase.LIST_ID}
+    """
+    val queries: List<SqlUtil.Query> = SqlUtil.buildCollectionQuery("$TABLE_NAME.$ID", ids.map { it.serialize() })
+    val cursors: Array<Cursor> = queries.map { query -> readableDatabase.query(table, TYPED_SNAPSHOT_PROJECTION, query.where, query.whereArgs, null, null, null) }.toTypedArray()
+
+    return MergeCursor(cursors)
+  }
+
   fun getRecordForSync(id: RecipientId): RecipientRecord? {
     val query = "$TABLE_NAME.$ID = ?"
     val args = arrayOf(id.serialize())
@@ -3482,22 +3541,7 @@ open class RecipientDatabase(context: Context, databaseHelper: SignalDatabase) :
     db.update(GroupReceiptDatabase.TABLE_NAME, groupReceiptValues, GroupReceiptDatabase.RECIPIENT_ID + " = ?", SqlUtil.buildArgs(secondaryId))
 
     // Groups
-    val groupDatabase = groups
-    for (group in groupDatabase.getGroupsContainingMember(secondaryId, false, true)) {
-      val newMembers = LinkedHashSet(group.members).apply {
-        remove(secondaryId)
-        add(primaryId)
-      }
-
-      val groupValues = ContentValues().apply {
-        put(GroupDatabase.MEMBERS, RecipientId.toSerializedList(newMembers))
-      }
-      db.update(GroupDatabase.TABLE_NAME, groupValues, GroupDatabase.RECIPIENT_ID + " = ?", SqlUtil.buildArgs(group.recipientId))
-
-      if (group.isV2Group) {
-        groupDatabase.removeUnmigratedV1Members(group.id.requireV2(), listOf(secondaryId))
-      }
-    }
+    groups.remapMember(secondaryId, primaryId)
 
     // Threads
     val threadMerge = threads.merge(primaryId, secondaryId)
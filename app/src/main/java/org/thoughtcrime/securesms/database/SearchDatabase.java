@@ -1,131 +1,208 @@
 package org.thoughtcrime.securesms.database;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.CancellationSignal;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.sqlite.db.SimpleSQLiteQuery;
 
 import com.annimon.stream.Stream;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.signal.core.util.CursorUtil;
+import org.signal.core.util.SqlUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.model.MessageId;
+import org.thoughtcrime.securesms.linkpreview.LinkPreview;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
 /**
  * Contains all databases necessary for full-text search (FTS).
+ *
+ * Messages from both the sms and mms tables live in one index. To keep their ids apart, an sms message is stored at
+ * rowid {@code id * 2}, and an mms message at {@code id * 2 + 1}. The index is kept up to date by triggers, apart from
+ * link preview titles, which are only stored as JSON and are written by {@link #updateLinkPreviewTitles}.
+ *
+ * Every write to the index also bumps a counter in {@link #VERSION_TABLE_NAME}, so callers holding on to results can
+ * tell whether the index has changed since. It's kept in its own table because triggers can't be placed on the index.
  */
 public class SearchDatabase extends Database {
 
+  private static final String TAG = Log.tag(SearchDatabase.class);
+
+  public static final String MESSAGE_FTS_TABLE_NAME = "message_fts";
+
+  /** Only used to recognize the tables of older databases and backups. */
   public static final String SMS_FTS_TABLE_NAME = "sms_fts";
   public static final String MMS_FTS_TABLE_NAME = "mms_fts";
 
+  public static final String VERSION_TABLE_NAME = "search_index_version";
+
   public static final String ID                     = "rowid";
   public static final String BODY                   = MmsSmsColumns.BODY;
+  public static final String CAPTION                = "caption";
+  public static final String LINK_TITLE             = "link_title";
+  public static final String QUOTE_BODY             = "quote_body";
   public static final String THREAD_ID              = MmsSmsColumns.THREAD_ID;
   public static final String SNIPPET                = "snippet";
   public static final String CONVERSATION_RECIPIENT = "conversation_recipient";
   public static final String MESSAGE_RECIPIENT      = "message_recipient";
   public static final String IS_MMS                 = "is_mms";
   public static final String MESSAGE_ID             = "message_id";
+  public static final String SEARCH_RANK            = "search_rank";
+  public static final String VERSION                = "version";
 
   public static final String SNIPPET_WRAP = "...";
 
+  /** The most results {@link #queryRankedMessageIds} will return. */
+  public static final int MAX_RANKED_RESULTS = 500;
+
+  /** Weights for body, caption, link title, and quote, in that order. */
+  private static final String RANK_FUNCTION = "bm25(" + MESSAGE_FTS_TABLE_NAME + ", 10.0, 5.0, 2.0, 1.0)";
+
+  private static final String SMS_ROW_ID = SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " * 2";
+  private static final String MMS_ROW_ID = MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " * 2 + 1";
+
+  private static final String BUMP_VERSION = "UPDATE " + VERSION_TABLE_NAME + " SET " + VERSION + " = " + VERSION + " + 1";
+
+  private static final String CAPTIONS_FOR_MESSAGE = "(SELECT group_concat(" + AttachmentDatabase.CAPTION + ", ' ') FROM " + AttachmentDatabase.TABLE_NAME + " WHERE " + AttachmentDatabase.MMS_ID + " = %s AND " + AttachmentDatabase.CAPTION + " IS NOT NULL)";
+
   public static final String[] CREATE_TABLE = {
-      "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
-
-      "CREATE TRIGGER sms_ai AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ", new." + SmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER sms_ad AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + SMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + SmsDatabase.ID + ", old." + SmsDatabase.BODY + ", old." + SmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER sms_au AFTER UPDATE ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + SMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + SmsDatabase.ID + ", old." + SmsDatabase.BODY + ", old." + SmsDatabase.THREAD_ID + ");\n" +
-          "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES(new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ", new." + SmsDatabase.THREAD_ID + ");\n" +
+      "CREATE VIRTUAL TABLE " + MESSAGE_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + CAPTION + ", " + LINK_TITLE + ", " + QUOTE_BODY + ", " + THREAD_ID + " UNINDEXED, tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3');",
+
+      "CREATE TRIGGER sms_search_ai AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
+          "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + SmsDatabase.ID + " * 2, new." + SmsDatabase.BODY + ", new." + SmsDatabase.THREAD_ID + ");\n" +
+          "END;",
+      "CREATE TRIGGER sms_search_ad AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
+          "  DELETE FROM " + MESSAGE_FTS_TABLE_NAME + " WHERE " + ID + " = old." + SmsDatabase.ID + " * 2;\n" +
+          "END;",
+      "CREATE TRIGGER sms_search_au AFTER UPDATE OF " + SmsDatabase.BODY + ", " + SmsDatabase.THREAD_ID + " ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
+          "  UPDATE " + MESSAGE_FTS_TABLE_NAME + " SET " + BODY + " = new." + SmsDatabase.BODY + ", " + THREAD_ID + " = new." + SmsDatabase.THREAD_ID + " WHERE " + ID + " = new." + SmsDatabase.ID + " * 2;\n" +
+          "END;",
+
+      "CREATE TRIGGER mms_search_ai AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
+          "  INSERT INTO " + MESSAGE_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + QUOTE_BODY + ", " + THREAD_ID + ") VALUES (new." + MmsDatabase.ID + " * 2 + 1, new." + MmsDatabase.BODY + ", new." + MmsDatabase.QUOTE_BODY + ", new." + MmsDatabase.THREAD_ID + ");\n" +
+          "END;",
+      "CREATE TRIGGER mms_search_ad AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
+          "  DELETE FROM " + MESSAGE_FTS_TABLE_NAME + " WHERE " + ID + " = old." + MmsDatabase.ID + " * 2 + 1;\n" +
+          "END;",
+      "CREATE TRIGGER mms_search_au AFTER UPDATE OF " + MmsDatabase.BODY + ", " + MmsDatabase.QUOTE_BODY + ", " + MmsDatabase.LINK_PREVIEWS + ", " + MmsDatabase.THREAD_ID + " ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
+          "  UPDATE " + MESSAGE_FTS_TABLE_NAME + " SET " + BODY + " = new." + MmsDatabase.BODY + ", " +
+                                                       QUOTE_BODY + " = new." + MmsDatabase.QUOTE_BODY + ", " +
+                                                       LINK_TITLE + " = CASE WHEN new." + MmsDatabase.LINK_PREVIEWS + " IS NULL THEN NULL ELSE " + LINK_TITLE + " END, " +
+                                                       THREAD_ID + " = new." + MmsDatabase.THREAD_ID + " " +
+          "WHERE " + ID + " = new." + MmsDatabase.ID + " * 2 + 1;\n" +
+          "END;",
+
+      "CREATE TRIGGER part_search_ai AFTER INSERT ON " + AttachmentDatabase.TABLE_NAME + " WHEN new." + AttachmentDatabase.CAPTION + " IS NOT NULL BEGIN\n" +
+          "  UPDATE " + MESSAGE_FTS_TABLE_NAME + " SET " + CAPTION + " = " + String.format(CAPTIONS_FOR_MESSAGE, "new." + AttachmentDatabase.MMS_ID) + " WHERE " + ID + " = new." + AttachmentDatabase.MMS_ID + " * 2 + 1;\n" +
+          "END;",
+      "CREATE TRIGGER part_search_ad AFTER DELETE ON " + AttachmentDatabase.TABLE_NAME + " WHEN old." + AttachmentDatabase.CAPTION + " IS NOT NULL BEGIN\n" +
+          "  UPDATE " + MESSAGE_FTS_TABLE_NAME + " SET " + CAPTION + " = " + String.format(CAPTIONS_FOR_MESSAGE, "old." + AttachmentDatabase.MMS_ID) + " WHERE " + ID + " = old." + AttachmentDatabase.MMS_ID + " * 2 + 1;\n" +
+          "END;",
+      "CREATE TRIGGER part_search_au AFTER UPDATE OF " + AttachmentDatabase.CAPTION + ", " + AttachmentDatabase.MMS_ID + " ON " + AttachmentDatabase.TABLE_NAME + " BEGIN\n" +
+          "  UPDATE " + MESSAGE_FTS_TABLE_NAME + " SET " + CAPTION + " = " + String.format(CAPTIONS_FOR_MESSAGE, "old." + AttachmentDatabase.MMS_ID) + " WHERE " + ID + " = old." + AttachmentDatabase.MMS_ID + " * 2 + 1;\n" +
+          "  UPDATE " + MESSAGE_FTS_TABLE_NAME + " SET " + CAPTION + " = " + String.format(CAPTIONS_FOR_MESSAGE, "new." + AttachmentDatabase.MMS_ID) + " WHERE " + ID + " = new." + AttachmentDatabase.MMS_ID + " * 2 + 1;\n" +
           "END;",
 
+      "CREATE TABLE " + VERSION_TABLE_NAME + " (" + VERSION + " INTEGER NOT NULL);",
+      "INSERT INTO " + VERSION_TABLE_NAME + " (" + VERSION + ") VALUES (0);",
 
-      "CREATE VIRTUAL TABLE " + MMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + MmsDatabase.TABLE_NAME + ", content_rowid=" + MmsDatabase.ID + ");",
+      "CREATE TRIGGER sms_search_version_ai AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;",
+      "CREATE TRIGGER sms_search_version_ad AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;",
+      "CREATE TRIGGER sms_search_version_au AFTER UPDATE OF " + SmsDatabase.BODY + ", " + SmsDatabase.THREAD_ID + " ON " + SmsDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;",
 
-      "CREATE TRIGGER mms_ai AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + MmsDatabase.ID + ", new." + MmsDatabase.BODY + ", new." + MmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER mms_ad AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + MMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + MmsDatabase.ID + ", old." + MmsDatabase.BODY + ", old." + MmsDatabase.THREAD_ID + ");\n" +
-          "END;\n",
-      "CREATE TRIGGER mms_au AFTER UPDATE ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + MMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES('delete', old." + MmsDatabase.ID + ", old." + MmsDatabase.BODY + ", old." + MmsDatabase.THREAD_ID + ");\n" +
-          "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ", " + THREAD_ID + ") VALUES (new." + MmsDatabase.ID + ", new." + MmsDatabase.BODY + ", new." + MmsDatabase.THREAD_ID + ");\n" +
-          "END;"
+      "CREATE TRIGGER mms_search_version_ai AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;",
+      "CREATE TRIGGER mms_search_version_ad AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;",
+      "CREATE TRIGGER mms_search_version_au AFTER UPDATE OF " + MmsDatabase.BODY + ", " + MmsDatabase.QUOTE_BODY + ", " + MmsDatabase.LINK_PREVIEWS + ", " + MmsDatabase.THREAD_ID + " ON " + MmsDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;",
+
+      "CREATE TRIGGER part_search_version_ai AFTER INSERT ON " + AttachmentDatabase.TABLE_NAME + " WHEN new." + AttachmentDatabase.CAPTION + " IS NOT NULL BEGIN " + BUMP_VERSION + "; END;",
+      "CREATE TRIGGER part_search_version_ad AFTER DELETE ON " + AttachmentDatabase.TABLE_NAME + " WHEN old." + AttachmentDatabase.CAPTION + " IS NOT NULL BEGIN " + BUMP_VERSION + "; END;",
+      "CREATE TRIGGER part_search_version_au AFTER UPDATE OF " + AttachmentDatabase.CAPTION + ", " + AttachmentDatabase.MMS_ID + " ON " + AttachmentDatabase.TABLE_NAME + " BEGIN " + BUMP_VERSION + "; END;"
   };
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-        MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-        SMS_FTS_TABLE_NAME + "." + BODY + ", " +
-        SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-        "0 AS " + IS_MMS + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-        "AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.GROUP_V2_BIT + " = 0 " +
-        "AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK + " != " + MmsSmsColumns.Types.PROFILE_CHANGE_TYPE + " " +
-        "AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK + " != " + MmsSmsColumns.Types.GROUP_CALL_TYPE + " " +
-      "UNION ALL " +
+  private static final String MESSAGE_JOINS =
+      "FROM " + MESSAGE_FTS_TABLE_NAME + " " +
+      "LEFT OUTER JOIN " + SmsDatabase.TABLE_NAME + " ON (" + MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1) = 0 AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " = (" + MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1) " +
+      "LEFT OUTER JOIN " + MmsDatabase.TABLE_NAME + " ON (" + MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1) = 1 AND " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " = (" + MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1) " +
+      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MESSAGE_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " ";
+
+  private static final String MESSAGE_COLUMNS =
+      ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
+      "COALESCE(" + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.RECIPIENT_ID + ", " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.RECIPIENT_ID + ") AS " + MESSAGE_RECIPIENT + ", " +
+      "snippet(" + MESSAGE_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
+      "COALESCE(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + ") AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+      MESSAGE_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
+      MESSAGE_FTS_TABLE_NAME + "." + BODY + ", " +
+      "(" + MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1) AS " + MESSAGE_ID + ", " +
+      "(" + MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1) AS " + IS_MMS + " ";
+
+  private static final String RANKED_MESSAGE_IDS_QUERY =
       "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-        MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-        MMS_FTS_TABLE_NAME + "." + BODY + ", " +
-        MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-        "1 AS " + IS_MMS + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.MESSAGE_BOX + " & " + MmsSmsColumns.Types.GROUP_V2_BIT + " = 0 " +
+        "(" + MESSAGE_FTS_TABLE_NAME + "." + ID + " >> 1) AS " + MESSAGE_ID + ", " +
+        "(" + MESSAGE_FTS_TABLE_NAME + "." + ID + " & 1) AS " + IS_MMS + ", " +
+        RANK_FUNCTION + " AS " + SEARCH_RANK + ", " +
+        "COALESCE(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + ") AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " +
+      MESSAGE_JOINS +
+      "WHERE " + MESSAGE_FTS_TABLE_NAME + " MATCH ? AND (" +
+        "(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " NOT NULL " +
+          "AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.GROUP_V2_BIT + " = 0 " +
+          "AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK + " != " + MmsSmsColumns.Types.PROFILE_CHANGE_TYPE + " " +
+          "AND " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.BASE_TYPE_MASK + " != " + MmsSmsColumns.Types.GROUP_CALL_TYPE + ") " +
+        "OR " +
+        "(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " NOT NULL " +
+          "AND " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.MESSAGE_BOX + " & " + MmsSmsColumns.Types.GROUP_V2_BIT + " = 0)" +
+      ") " +
+      "%s " +
+      "ORDER BY " + SEARCH_RANK + " ASC, " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
+      "LIMIT " + MAX_RANKED_RESULTS;
+
+  private static final String MESSAGES_BY_ID_QUERY =
+      "SELECT " + MESSAGE_COLUMNS +
+      MESSAGE_JOINS +
+      "WHERE " + MESSAGE_FTS_TABLE_NAME + " MATCH ? AND " + MESSAGE_FTS_TABLE_NAME + "." + ID + " IN (%s)";
+
+  private static final String MESSAGES_FOR_THREAD_QUERY =
+      "SELECT " + MESSAGE_COLUMNS +
+      MESSAGE_JOINS +
+      "WHERE " + MESSAGE_FTS_TABLE_NAME + " MATCH ? AND " + MESSAGE_FTS_TABLE_NAME + "." + THREAD_ID + " = ? " +
       "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
       "LIMIT 500";
 
-  private static final String MESSAGES_FOR_THREAD_QUERY =
-      "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-          MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-          "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-          SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          SMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-          SMS_FTS_TABLE_NAME + "." + BODY + ", " +
-          SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-          "0 AS " + IS_MMS + " " +
-        "FROM " + SmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "UNION ALL " +
-        "SELECT " +
-          ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.RECIPIENT_ID + " AS " + CONVERSATION_RECIPIENT + ", " +
-          MmsSmsColumns.RECIPIENT_ID + " AS " + MESSAGE_RECIPIENT + ", " +
-          "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '" + SNIPPET_WRAP + "', 7) AS " + SNIPPET + ", " +
-          MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-          MMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
-          MMS_FTS_TABLE_NAME + "." + BODY + ", " +
-          MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
-          "1 AS " + IS_MMS + " " +
-        "FROM " + MmsDatabase.TABLE_NAME + " " +
-        "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-        "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-        "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = ? " +
-        "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-        "LIMIT 500";
+  private static final String INDEX_SMS_RANGE =
+      "INSERT OR REPLACE INTO " + MESSAGE_FTS_TABLE_NAME + " (" + ID + ", " + BODY + ", " + THREAD_ID + ") " +
+      "SELECT " + SMS_ROW_ID + ", " + SmsDatabase.BODY + ", " + SmsDatabase.THREAD_ID + " " +
+      "FROM " + SmsDatabase.TABLE_NAME + " " +
+      "WHERE " + SmsDatabase.ID + " > ? AND " + SmsDatabase.ID + " <= ?";
+
+  private static final String INDEX_MMS_RANGE =
+      "INSERT OR REPLACE INTO " + MESSAGE_FTS_TABLE_NAME + " (" + ID + ", " + BODY + ", " + CAPTION + ", " + QUOTE_BODY + ", " + THREAD_ID + ") " +
+      "SELECT " + MMS_ROW_ID + ", " + MmsDatabase.BODY + ", " + String.format(CAPTIONS_FOR_MESSAGE, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID) + ", " + MmsDatabase.QUOTE_BODY + ", " + MmsDatabase.THREAD_ID + " " +
+      "FROM " + MmsDatabase.TABLE_NAME + " " +
+      "WHERE " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " > ? AND " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " <= ?";
 
   public SearchDatabase(@NonNull Context context, @NonNull SignalDatabase databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  /**
+   * Finds the messages that match the query, best match first by bm25, without building any snippets. Meant to be
+   * followed by {@link #queryMessagesById} for just the results that are about to be shown.
+   *
+   * @param within If provided, only these messages are considered. Much cheaper when the query is known to narrow down
+   *               a previous one.
+   * @return A cursor with {@link #MESSAGE_ID} and {@link #IS_MMS}, or null if the query is empty.
+   */
+  public @Nullable Cursor queryRankedMessageIds(@NonNull String query, @Nullable Collection<MessageId> within, @NonNull CancellationSignal cancellationSignal) {
     SQLiteDatabase db                  = databaseHelper.getSignalReadableDatabase();
     String         fullTextSearchQuery = createFullTextSearchQuery(query);
 
@@ -133,7 +210,42 @@ public class SearchDatabase extends Database {
       return null;
     }
 
-    return db.rawQuery(MESSAGES_QUERY, new String[] { fullTextSearchQuery, fullTextSearchQuery });
+    String constraint = "";
+
+    if (within != null) {
+      constraint = "AND " + MESSAGE_FTS_TABLE_NAME + "." + ID + " IN (" + joinIds(within) + ")";
+    }
+
+    String sql = String.format(Locale.US, RANKED_MESSAGE_IDS_QUERY, constraint);
+
+    return db.query(new SimpleSQLiteQuery(sql, new Object[] { fullTextSearchQuery }), cancellationSignal);
+  }
+
+  /**
+   * Reads the full search results, snippets included, for messages found with {@link #queryRankedMessageIds}. The rows
+   * are in no particular order.
+   */
+  public @Nullable Cursor queryMessagesById(@NonNull String query, @NonNull Collection<MessageId> messageIds) {
+    SQLiteDatabase db                  = databaseHelper.getSignalReadableDatabase();
+    String         fullTextSearchQuery = createFullTextSearchQuery(query);
+
+    if (TextUtils.isEmpty(fullTextSearchQuery)) {
+      return null;
+    }
+
+    String sql = String.format(Locale.US, MESSAGES_BY_ID_QUERY, joinIds(messageIds));
+
+    return db.rawQuery(sql, new String[] { fullTextSearchQuery });
+  }
+
+  /**
+   * @return A value that changes whenever anything in the index is written, so callers can tell whether results they've
+   *         kept around are still current.
+   */
+  public long getIndexVersion() {
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().rawQuery("SELECT " + VERSION + " FROM " + VERSION_TABLE_NAME, null)) {
+      return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+    }
   }
 
   public Cursor queryMessages(@NonNull String query, long threadId) {
@@ -144,10 +256,130 @@ public class SearchDatabase extends Database {
       return null;
     }
 
-    return db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { fullTextSearchQuery,
-                                                                 String.valueOf(threadId),
-                                                                 fullTextSearchQuery,
-                                                                 String.valueOf(threadId) });
+    return db.rawQuery(MESSAGES_FOR_THREAD_QUERY, new String[] { fullTextSearchQuery, String.valueOf(threadId) });
+  }
+
+  /**
+   * Link preview titles are only stored inside the previews JSON, so they can't be indexed by a trigger. This should be
+   * called whenever a message's previews are written.
+   */
+  public void updateLinkPreviewTitles(long mmsId, @NonNull List<LinkPreview> previews) {
+    List<String> titles = new ArrayList<>(previews.size());
+
+    for (LinkPreview preview : previews) {
+      if (!TextUtils.isEmpty(preview.getTitle())) {
+        titles.add(preview.getTitle());
+      }
+    }
+
+    ContentValues values = new ContentValues(1);
+    values.put(LINK_TITLE, titles.isEmpty() ? null : TextUtils.join(" ", titles));
+
+    SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      db.update(MESSAGE_FTS_TABLE_NAME, values, ID + " = ?", SqlUtil.buildArgs(mmsId * 2 + 1));
+      db.execSQL(BUMP_VERSION);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Adds up to batchSize sms messages with an id greater than afterId to the index, replacing any that are already there.
+   *
+   * @return The id of the last message indexed, or -1 if there were none left.
+   */
+  public long indexSmsBatch(long afterId, int batchSize) {
+    return indexBatch(SmsDatabase.TABLE_NAME, INDEX_SMS_RANGE, afterId, batchSize, false);
+  }
+
+  /**
+   * Adds up to batchSize mms messages with an id greater than afterId to the index, captions and link titles included,
+   * replacing any that are already there.
+   *
+   * @return The id of the last message indexed, or -1 if there were none left.
+   */
+  public long indexMmsBatch(long afterId, int batchSize) {
+    return indexBatch(MmsDatabase.TABLE_NAME, INDEX_MMS_RANGE, afterId, batchSize, true);
+  }
+
+  private long indexBatch(@NonNull String table, @NonNull String insertQuery, long afterId, int batchSize, boolean mms) {
+    SQLiteDatabase db     = databaseHelper.getSignalWritableDatabase();
+    long           lastId = -1;
+
+    db.beginTransaction();
+    try {
+      String query = "SELECT MAX(" + MmsSmsColumns.ID + ") FROM (SELECT " + MmsSmsColumns.ID + " FROM " + table + " WHERE " + MmsSmsColumns.ID + " > ? ORDER BY " + MmsSmsColumns.ID + " LIMIT " + batchSize + ")";
+
+      try (Cursor cursor = db.rawQuery(query, SqlUtil.buildArgs(afterId))) {
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+          lastId = cursor.getLong(0);
+        }
+      }
+
+      if (lastId != -1) {
+        db.execSQL(insertQuery, SqlUtil.buildArgs(afterId, lastId));
+
+        if (mms) {
+          indexLinkPreviewTitles(afterId, lastId);
+        }
+
+        db.execSQL(BUMP_VERSION);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return lastId;
+  }
+
+  private void indexLinkPreviewTitles(long afterId, long lastId) {
+    SQLiteDatabase db         = databaseHelper.getSignalWritableDatabase();
+    String[]       projection = new String[] { MmsDatabase.ID, MmsDatabase.LINK_PREVIEWS };
+    String         selection  = MmsDatabase.ID + " > ? AND " + MmsDatabase.ID + " <= ? AND " + MmsDatabase.LINK_PREVIEWS + " NOT NULL";
+
+    try (Cursor cursor = db.query(MmsDatabase.TABLE_NAME, projection, selection, SqlUtil.buildArgs(afterId, lastId), null, null, null)) {
+      while (cursor.moveToNext()) {
+        long   id    = CursorUtil.requireLong(cursor, MmsDatabase.ID);
+        String title = getLinkPreviewTitles(CursorUtil.requireString(cursor, MmsDatabase.LINK_PREVIEWS));
+
+        if (title != null) {
+          ContentValues values = new ContentValues(1);
+          values.put(LINK_TITLE, title);
+
+          db.update(MESSAGE_FTS_TABLE_NAME, values, ID + " = ?", SqlUtil.buildArgs(id * 2 + 1));
+        }
+      }
+    }
+  }
+
+  private static @Nullable String getLinkPreviewTitles(@Nullable String serializedPreviews) {
+    if (TextUtils.isEmpty(serializedPreviews)) {
+      return null;
+    }
+
+    try {
+      JSONArray    json   = new JSONArray(serializedPreviews);
+      List<String> titles = new ArrayList<>(json.length());
+
+      for (int i = 0; i < json.length(); i++) {
+        String title = json.getJSONObject(i).optString("title");
+
+        if (!TextUtils.isEmpty(title)) {
+          titles.add(title);
+        }
+      }
+
+      return titles.isEmpty() ? null : TextUtils.join(" ", titles);
+    } catch (JSONException e) {
+      Log.w(TAG, "Failed to parse link previews.", e);
+      return null;
+    }
   }
 
   private static String createFullTextSearchQuery(@NonNull String query) {
@@ -159,6 +391,16 @@ public class SearchDatabase extends Database {
                  .toString();
   }
 
+  private static @NonNull String joinIds(@NonNull Collection<MessageId> messageIds) {
+    List<Long> ids = new ArrayList<>(messageIds.size());
+
+    for (MessageId messageId : messageIds) {
+      ids.add(messageId.isMms() ? messageId.getId() * 2 + 1 : messageId.getId() * 2);
+    }
+
+    return TextUtils.join(",", ids);
+  }
+
   private static String fullTextSearchEscape(String s) {
     return "\"" + s.replace("\"", "\"\"") + "\"";
   }
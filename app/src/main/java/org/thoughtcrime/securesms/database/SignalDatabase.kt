@@ -74,6 +74,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
   val cdsDatabase: CdsDatabase = CdsDatabase(context, this)
   val remoteMegaphoneDatabase: RemoteMegaphoneDatabase = RemoteMegaphoneDatabase(context, this)
   val pendingPniSignatureMessageDatabase: PendingPniSignatureMessageDatabase = PendingPniSignatureMessageDatabase(context, this)
+  val backupChangeDatabase: BackupChangeDatabase = BackupChangeDatabase(context, this)
 
   override fun onOpen(db: net.zetetic.database.sqlcipher.SQLiteDatabase) {
     db.setForeignKeyConstraintsEnabled(true)
@@ -88,6 +89,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.execSQL(DraftDatabase.CREATE_TABLE)
     db.execSQL(PushDatabase.CREATE_TABLE)
     db.execSQL(GroupDatabase.CREATE_TABLE)
+    db.execSQL(GroupDatabase.MembershipTable.CREATE_TABLE)
     db.execSQL(RecipientDatabase.CREATE_TABLE)
     db.execSQL(GroupReceiptDatabase.CREATE_TABLE)
     db.execSQL(OneTimePreKeyDatabase.CREATE_TABLE)
@@ -115,6 +117,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     executeStatements(db, MessageSendLogDatabase.CREATE_TABLE)
     executeStatements(db, NotificationProfileDatabase.CREATE_TABLE)
     executeStatements(db, DistributionListDatabase.CREATE_TABLE)
+    executeStatements(db, BackupChangeDatabase.CREATE_TABLE)
 
     executeStatements(db, RecipientDatabase.CREATE_INDEXS)
     executeStatements(db, SmsDatabase.CREATE_INDEXS)
@@ -138,6 +141,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
 
     executeStatements(db, MessageSendLogDatabase.CREATE_TRIGGERS)
     executeStatements(db, ReactionDatabase.CREATE_TRIGGERS)
+    executeStatements(db, BackupChangeDatabase.CREATE_TRIGGERS)
 
     DistributionListDatabase.insertInitialDistributionListAtCreationTime(db)
 
@@ -517,5 +521,10 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     @get:JvmName("pendingPniSignatureMessages")
     val pendingPniSignatureMessages: PendingPniSignatureMessageDatabase
       get() = instance!!.pendingPniSignatureMessageDatabase
+
+    @get:JvmStatic
+    @get:JvmName("backupChanges")
+    val backupChanges: BackupChangeDatabase
+      get() = instance!!.backupChangeDatabase
   }
 }
@@ -1228,7 +1228,7 @@ public class SmsDatabase extends MessageDatabase {
       }
 
       if (!silent) {
-        SignalDatabase.threads().update(threadId, true);
+        SignalDatabase.threads().updateForInsertedMessage(threadId, new MessageId(messageId, false), true);
       }
 
       if (message.getSubscriptionId() != -1) {
@@ -25,6 +25,7 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.arch.core.util.Function;
 
 import com.annimon.stream.Collectors;
@@ -39,6 +40,7 @@ import org.signal.libsignal.zkgroup.InvalidInputException;
 import org.signal.libsignal.zkgroup.groups.GroupMasterKey;
 import org.thoughtcrime.securesms.database.MessageDatabase.MarkedMessageInfo;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.RecipientRecord;
@@ -74,6 +76,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -116,6 +119,9 @@ public class ThreadDatabase extends Database {
   public  static final String HAS_SENT               = "has_sent";
   private static final String LAST_SCROLLED          = "last_scrolled";
           static final String PINNED                 = "pinned";
+  private static final String SNIPPET_MESSAGE_ID     = "snippet_message_id";
+  private static final String SNIPPET_MESSAGE_MMS    = "snippet_message_mms";
+  private static final String SNIPPET_DATE_RECEIVED  = "snippet_date_received";
 
   public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID                     + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                                                                                   DATE                   + " INTEGER DEFAULT 0, " +
@@ -139,7 +145,10 @@ public class ThreadDatabase extends Database {
                                                                                   READ_RECEIPT_COUNT     + " INTEGER DEFAULT 0, " +
                                                                                   UNREAD_COUNT           + " INTEGER DEFAULT 0, " +
                                                                                   LAST_SCROLLED          + " INTEGER DEFAULT 0, " +
-                                                                                  PINNED                 + " INTEGER DEFAULT 0);";
+                                                                                  PINNED                 + " INTEGER DEFAULT 0, " +
+                                                                                  SNIPPET_MESSAGE_ID     + " INTEGER DEFAULT 0, " +
+                                                                                  SNIPPET_MESSAGE_MMS    + " INTEGER DEFAULT 0, " +
+                                                                                  SNIPPET_DATE_RECEIVED  + " INTEGER DEFAULT 0);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_id_index ON " + TABLE_NAME + " (" + RECIPIENT_ID + ");",
@@ -163,6 +172,8 @@ public class ThreadDatabase extends Database {
 
   private static final String[] RECIPIENT_ID_PROJECTION = new String[] { RECIPIENT_ID };
 
+  private static final ThreadLocal<Map<Long, DeferredUpdate>> DEFERRED_UPDATES = new ThreadLocal<>();
+
   public ThreadDatabase(Context context, SignalDatabase databaseHelper) {
     super(context, databaseHelper);
   }
@@ -194,7 +205,7 @@ public class ThreadDatabase extends Database {
   private void updateThread(long threadId, boolean meaningfulMessages, String body, @Nullable Uri attachment,
                             @Nullable String contentType, @Nullable Extra extra,
                             long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
+                            long expiresIn, int readReceiptCount, @Nullable MessageId snippetMessageId, long snippetDateReceived)
   {
     String extraSerialized = null;
 
@@ -218,18 +229,44 @@ public class ThreadDatabase extends Database {
     contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
     contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
     contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_MESSAGE_ID, snippetMessageId != null ? snippetMessageId.getId() : 0);
+    contentValues.put(SNIPPET_MESSAGE_MMS, snippetMessageId != null && snippetMessageId.isMms() ? 1 : 0);
+    contentValues.put(SNIPPET_DATE_RECEIVED, snippetDateReceived);
 
     SQLiteDatabase db = databaseHelper.getSignalWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, SqlUtil.buildArgs(threadId));
 
     if (unarchive) {
-      ContentValues archiveValues = new ContentValues();
-      archiveValues.put(ARCHIVED, 0);
+      unarchive(threadId);
+    }
+  }
 
-      SqlUtil.Query query = SqlUtil.buildTrueUpdateQuery(ID_WHERE, SqlUtil.buildArgs(threadId), archiveValues);
-      if (db.update(TABLE_NAME, archiveValues, query.getWhere(), query.getWhereArgs()) > 0) {
-        StorageSyncHelper.scheduleSyncForDataChange();
-      }
+  private void updateThread(long threadId, boolean meaningfulMessages, @NonNull MessageRecord record, boolean unarchive) {
+    updateThread(threadId,
+                 meaningfulMessages,
+                 ThreadBodyUtil.getFormattedBodyFor(context, record),
+                 getAttachmentUriFor(record),
+                 getContentTypeFor(record),
+                 getExtrasFor(record),
+                 record.getTimestamp(),
+                 record.getDeliveryStatus(),
+                 record.getDeliveryReceiptCount(),
+                 record.getType(),
+                 unarchive,
+                 record.getExpiresIn(),
+                 record.getReadReceiptCount(),
+                 new MessageId(record.getId(), record.isMms()),
+                 record.getDateReceived());
+  }
+
+  private void unarchive(long threadId) {
+    SQLiteDatabase db            = databaseHelper.getSignalWritableDatabase();
+    ContentValues  archiveValues = new ContentValues();
+    archiveValues.put(ARCHIVED, 0);
+
+    SqlUtil.Query query = SqlUtil.buildTrueUpdateQuery(ID_WHERE, SqlUtil.buildArgs(threadId), archiveValues);
+    if (db.update(TABLE_NAME, archiveValues, query.getWhere(), query.getWhereArgs()) > 0) {
+      StorageSyncHelper.scheduleSyncForDataChange();
     }
   }
 
@@ -251,6 +288,7 @@ public class ThreadDatabase extends Database {
     contentValues.put(SNIPPET, snippet);
     contentValues.put(SNIPPET_TYPE, type);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
+    contentValues.put(SNIPPET_MESSAGE_ID, 0);
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
@@ -1328,14 +1366,212 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * @return True if the thread was deleted. Always false while updates are being deferred by
+   *         {@link #runWithDeferredUpdates(Runnable)}, since the thread isn't recomputed until later. Callers that need
+   *         the result should use {@link #update(long, boolean, boolean)}, which is never deferred.
+   */
   public boolean update(long threadId, boolean unarchive) {
+    if (deferUpdate(threadId, unarchive, true)) {
+      return false;
+    }
+
     return update(threadId, unarchive, true, true);
   }
 
   boolean updateSilently(long threadId, boolean unarchive) {
+    if (deferUpdate(threadId, unarchive, false)) {
+      return false;
+    }
+
     return update(threadId, unarchive, true, false);
   }
 
+  /**
+   * Runs the operation with every {@link #update(long, boolean)} made by it on this thread deferred until it finishes,
+   * at which point each touched thread is recomputed once. The recompute only notifies listeners if at least one of the
+   * deferred updates would have. Meant to be run inside of a transaction, so that the recompute is committed along with
+   * the changes that caused it. If the operation throws, nothing is recomputed.
+   *
+   * @return The ids of the threads that were recomputed.
+   */
+  public @NonNull Set<Long> runWithDeferredUpdates(@NonNull Runnable operation) {
+    if (DEFERRED_UPDATES.get() != null) {
+      operation.run();
+      return Collections.emptySet();
+    }
+
+    Map<Long, DeferredUpdate> deferred = new LinkedHashMap<>();
+
+    DEFERRED_UPDATES.set(deferred);
+    try {
+      operation.run();
+    } finally {
+      DEFERRED_UPDATES.remove();
+    }
+
+    for (Map.Entry<Long, DeferredUpdate> entry : deferred.entrySet()) {
+      update(entry.getKey(), entry.getValue().unarchive, true, entry.getValue().notifyListeners);
+    }
+
+    return deferred.keySet();
+  }
+
+  /**
+   * Updates the thread after a message was inserted into it. When the thread already has a snippet and the message is
+   * newer, the message simply becomes the new snippet, without looking at the rest of the thread. A message that's
+   * older than the snippet changes nothing. Anything else falls back to a full {@link #update(long, boolean)}.
+   */
+  public void updateForInsertedMessage(long threadId, @NonNull MessageId messageId, boolean unarchive) {
+    if (deferUpdate(threadId, unarchive, true)) {
+      return;
+    }
+
+    SnippetState state = getSnippetState(threadId);
+
+    if (state == null || state.messageId == null || !state.meaningfulMessages) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    MessageRecord record = SignalDatabase.mmsSms().getSnippetCandidate(messageId);
+
+    if (record == null) {
+      update(threadId, unarchive);
+      return;
+    }
+
+    if (record.getDateReceived() >= state.dateReceived) {
+      updateThread(threadId, true, record, unarchive);
+    } else if (unarchive) {
+      unarchive(threadId);
+    }
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Updates the thread after one of its messages was changed in place, like when a receipt is received for it. Only
+   * the snippet can depend on a single message, so nothing needs to be done unless the message is the snippet, in which
+   * case the snippet is refreshed from it. Falls back to a full {@link #update(long, boolean)} if the thread's snippet
+   * isn't known.
+   */
+  public void updateForChangedMessage(long threadId, @NonNull MessageId messageId) {
+    if (deferUpdate(threadId, false, true)) {
+      return;
+    }
+
+    SnippetState state = getSnippetState(threadId);
+
+    if (state == null || state.messageId == null) {
+      update(threadId, false);
+      return;
+    }
+
+    if (!state.messageId.equals(messageId)) {
+      return;
+    }
+
+    MessageRecord record = SignalDatabase.mmsSms().getSnippetCandidate(messageId);
+
+    if (record == null) {
+      update(threadId, false);
+      return;
+    }
+
+    updateThread(threadId, state.meaningfulMessages, record, false);
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Compares the summary stored for the thread against what a full recompute would produce, without changing anything.
+   * Meant for tests, to check that the incremental updates stay in line with {@link #update(long, boolean)}.
+   *
+   * @return A description of each column that differs. Empty if the thread is consistent.
+   */
+  @VisibleForTesting
+  @NonNull List<String> findSummaryInconsistencies(long threadId) {
+    List<String>   inconsistencies    = new LinkedList<>();
+    MmsSmsDatabase mmsSmsDatabase     = SignalDatabase.mmsSms();
+    boolean        meaningfulMessages = mmsSmsDatabase.hasMeaningfulMessage(threadId);
+    MessageRecord  record;
+
+    try {
+      record = mmsSmsDatabase.getConversationSnippet(threadId);
+    } catch (NoSuchMessageException e) {
+      record = null;
+    }
+
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(TABLE_NAME, null, ID_WHERE, SqlUtil.buildArgs(threadId), null, null, null)) {
+      if (!cursor.moveToFirst()) {
+        inconsistencies.add("Thread " + threadId + " does not exist.");
+        return inconsistencies;
+      }
+
+      compare(inconsistencies, MEANINGFUL_MESSAGES, meaningfulMessages, CursorUtil.requireBoolean(cursor, MEANINGFUL_MESSAGES));
+
+      if (record != null) {
+        long dateReceived = CursorUtil.requireLong(cursor, SNIPPET_DATE_RECEIVED);
+
+        // Messages received at the same time may be ordered either way, so only the date needs to agree.
+        if (dateReceived != record.getDateReceived()) {
+          compare(inconsistencies, SNIPPET_DATE_RECEIVED, record.getDateReceived(), dateReceived);
+          compare(inconsistencies, SNIPPET_MESSAGE_ID, record.getId(), CursorUtil.requireLong(cursor, SNIPPET_MESSAGE_ID));
+        } else if (CursorUtil.requireLong(cursor, SNIPPET_MESSAGE_ID) == record.getId() && CursorUtil.requireBoolean(cursor, SNIPPET_MESSAGE_MMS) == record.isMms()) {
+          compare(inconsistencies, SNIPPET, ThreadBodyUtil.getFormattedBodyFor(context, record), CursorUtil.requireString(cursor, SNIPPET));
+          compare(inconsistencies, SNIPPET_TYPE, record.getType(), CursorUtil.requireLong(cursor, SNIPPET_TYPE));
+          compare(inconsistencies, DATE, record.getTimestamp() - record.getTimestamp() % 1000, CursorUtil.requireLong(cursor, DATE));
+          compare(inconsistencies, STATUS, record.getDeliveryStatus(), CursorUtil.requireInt(cursor, STATUS));
+          compare(inconsistencies, DELIVERY_RECEIPT_COUNT, record.getDeliveryReceiptCount(), CursorUtil.requireInt(cursor, DELIVERY_RECEIPT_COUNT));
+          compare(inconsistencies, READ_RECEIPT_COUNT, record.getReadReceiptCount(), CursorUtil.requireInt(cursor, READ_RECEIPT_COUNT));
+          compare(inconsistencies, EXPIRES_IN, record.getExpiresIn(), CursorUtil.requireLong(cursor, EXPIRES_IN));
+        }
+      }
+    }
+
+    return inconsistencies;
+  }
+
+  private static void compare(@NonNull List<String> inconsistencies, @NonNull String column, @Nullable Object expected, @Nullable Object actual) {
+    if (!Objects.equals(expected, actual)) {
+      inconsistencies.add(column + ": expected " + expected + ", but was " + actual);
+    }
+  }
+
+  private @Nullable SnippetState getSnippetState(long threadId) {
+    String[] projection = SqlUtil.buildArgs(MEANINGFUL_MESSAGES, SNIPPET_MESSAGE_ID, SNIPPET_MESSAGE_MMS, SNIPPET_DATE_RECEIVED);
+
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(TABLE_NAME, projection, ID_WHERE, SqlUtil.buildArgs(threadId), null, null, null)) {
+      if (cursor.moveToFirst()) {
+        long messageId = CursorUtil.requireLong(cursor, SNIPPET_MESSAGE_ID);
+
+        return new SnippetState(CursorUtil.requireBoolean(cursor, MEANINGFUL_MESSAGES),
+                                messageId > 0 ? new MessageId(messageId, CursorUtil.requireBoolean(cursor, SNIPPET_MESSAGE_MMS)) : null,
+                                CursorUtil.requireLong(cursor, SNIPPET_DATE_RECEIVED));
+      } else {
+        return null;
+      }
+    }
+  }
+
+  private boolean deferUpdate(long threadId, boolean unarchive, boolean notifyListeners) {
+    Map<Long, DeferredUpdate> deferred = DEFERRED_UPDATES.get();
+
+    if (deferred == null) {
+      return false;
+    }
+
+    DeferredUpdate previous = deferred.get(threadId);
+
+    if (previous != null) {
+      deferred.put(threadId, new DeferredUpdate(unarchive || previous.unarchive, notifyListeners || previous.notifyListeners));
+    } else {
+      deferred.put(threadId, new DeferredUpdate(unarchive, notifyListeners));
+    }
+
+    return true;
+  }
+
   public boolean update(long threadId, boolean unarchive, boolean allowDeletion) {
     return update(threadId, unarchive, allowDeletion, true);
   }
@@ -1364,25 +1600,13 @@ public class ThreadDatabase extends Database {
       }
 
       if (isPinned) {
-        updateThread(threadId, meaningfulMessages, null, null, null, null, 0, 0, 0, 0, unarchive, 0, 0);
+        updateThread(threadId, meaningfulMessages, null, null, null, null, 0, 0, 0, 0, unarchive, 0, 0, null, 0);
       }
 
       return true;
     }
 
-    updateThread(threadId,
-                 meaningfulMessages,
-                 ThreadBodyUtil.getFormattedBodyFor(context, record),
-                 getAttachmentUriFor(record),
-                 getContentTypeFor(record),
-                 getExtrasFor(record),
-                 record.getTimestamp(),
-                 record.getDeliveryStatus(),
-                 record.getDeliveryReceiptCount(),
-                 record.getType(),
-                 unarchive,
-                 record.getExpiresIn(),
-                 record.getReadReceiptCount());
+    updateThread(threadId, meaningfulMessages, record, unarchive);
 
     if (notifyListeners) {
       notifyConversationListListeners();
@@ -1477,11 +1701,6 @@ public class ThreadDatabase extends Database {
       draftValues.put(DraftDatabase.THREAD_ID, primary.getThreadId());
       db.update(DraftDatabase.TABLE_NAME, draftValues, DraftDatabase.THREAD_ID + " = ?", SqlUtil.buildArgs(secondary.getThreadId()));
 
-      ContentValues searchValues = new ContentValues();
-      searchValues.put(SearchDatabase.THREAD_ID, primary.getThreadId());
-      db.update(SearchDatabase.SMS_FTS_TABLE_NAME, searchValues, SearchDatabase.THREAD_ID + " = ?", SqlUtil.buildArgs(secondary.getThreadId()));
-      db.update(SearchDatabase.MMS_FTS_TABLE_NAME, searchValues, SearchDatabase.THREAD_ID + " = ?", SqlUtil.buildArgs(secondary.getThreadId()));
-
       RemappedRecords.getInstance().addThread(secondary.getThreadId(), primary.getThreadId());
 
       return new MergeResult(primary.getThreadId(), secondary.getThreadId(), true);
@@ -1932,4 +2151,26 @@ public class ThreadDatabase extends Database {
       this.neededMerge      = neededMerge;
     }
   }
+
+  private static final class DeferredUpdate {
+    private final boolean unarchive;
+    private final boolean notifyListeners;
+
+    private DeferredUpdate(boolean unarchive, boolean notifyListeners) {
+      this.unarchive       = unarchive;
+      this.notifyListeners = notifyListeners;
+    }
+  }
+
+  private static final class SnippetState {
+    private final boolean   meaningfulMessages;
+    private final MessageId messageId;
+    private final long      dateReceived;
+
+    private SnippetState(boolean meaningfulMessages, @Nullable MessageId messageId, long dateReceived) {
+      this.meaningfulMessages = meaningfulMessages;
+      this.messageId          = messageId;
+      this.dateReceived       = dateReceived;
+    }
+  }
 }
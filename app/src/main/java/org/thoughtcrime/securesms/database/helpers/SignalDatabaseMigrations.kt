@@ -10,13 +10,18 @@ import org.thoughtcrime.securesms.database.helpers.migration.V152_StoryGroupType
 import org.thoughtcrime.securesms.database.helpers.migration.V153_MyStoryMigration
 import org.thoughtcrime.securesms.database.helpers.migration.V154_PniSignaturesMigration
 import org.thoughtcrime.securesms.database.helpers.migration.V155_SmsExporterMigration
+import org.thoughtcrime.securesms.database.helpers.migration.V156_ThreadSnippetMessageMigration
+import org.thoughtcrime.securesms.database.helpers.migration.V157_UnifiedMessageFtsMigration
+import org.thoughtcrime.securesms.database.helpers.migration.V158_GroupMembershipMigration
+import org.thoughtcrime.securesms.database.helpers.migration.V159_SearchIndexVersionMigration
+import org.thoughtcrime.securesms.database.helpers.migration.V160_BackupChangeTrackingMigration
 
 /**
  * Contains all of the database migrations for [SignalDatabase]. Broken into a separate file for cleanliness.
  */
 object SignalDatabaseMigrations {
 
-  const val DATABASE_VERSION = 155
+  const val DATABASE_VERSION = 160
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -47,6 +52,26 @@ object SignalDatabaseMigrations {
     if (oldVersion < 155) {
       V155_SmsExporterMigration.migrate(context, db, oldVersion, newVersion)
     }
+
+    if (oldVersion < 156) {
+      V156_ThreadSnippetMessageMigration.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 157) {
+      V157_UnifiedMessageFtsMigration.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 158) {
+      V158_GroupMembershipMigration.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 159) {
+      V159_SearchIndexVersionMigration.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 160) {
+      V160_BackupChangeTrackingMigration.migrate(context, db, oldVersion, newVersion)
+    }
   }
 
   @JvmStatic
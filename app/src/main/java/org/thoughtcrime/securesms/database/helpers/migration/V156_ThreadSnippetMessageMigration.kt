@@ -0,0 +1,15 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds columns to the thread table that identify the message currently used as the snippet.
+ */
+object V156_ThreadSnippetMessageMigration : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("ALTER TABLE thread ADD COLUMN snippet_message_id INTEGER DEFAULT 0")
+    db.execSQL("ALTER TABLE thread ADD COLUMN snippet_message_mms INTEGER DEFAULT 0")
+    db.execSQL("ALTER TABLE thread ADD COLUMN snippet_date_received INTEGER DEFAULT 0")
+  }
+}
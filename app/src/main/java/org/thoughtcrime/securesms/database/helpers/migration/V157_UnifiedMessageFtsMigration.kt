@@ -0,0 +1,91 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Replaces the separate sms and mms full-text search tables with a single index that also covers attachment captions,
+ * link preview titles, and quotes. The new index starts out empty and is filled in the background by
+ * [org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob].
+ */
+object V157_UnifiedMessageFtsMigration : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("DROP TRIGGER IF EXISTS sms_ai")
+    db.execSQL("DROP TRIGGER IF EXISTS sms_ad")
+    db.execSQL("DROP TRIGGER IF EXISTS sms_au")
+    db.execSQL("DROP TRIGGER IF EXISTS mms_ai")
+    db.execSQL("DROP TRIGGER IF EXISTS mms_ad")
+    db.execSQL("DROP TRIGGER IF EXISTS mms_au")
+    db.execSQL("DROP TABLE IF EXISTS sms_fts")
+    db.execSQL("DROP TABLE IF EXISTS mms_fts")
+
+    db.execSQL("CREATE VIRTUAL TABLE message_fts USING fts5(body, caption, link_title, quote_body, thread_id UNINDEXED, tokenize = 'unicode61 remove_diacritics 2', prefix = '2 3')")
+
+    db.execSQL(
+      """
+      CREATE TRIGGER sms_search_ai AFTER INSERT ON sms BEGIN
+        INSERT INTO message_fts(rowid, body, thread_id) VALUES (new._id * 2, new.body, new.thread_id);
+      END;
+      """
+    )
+    db.execSQL(
+      """
+      CREATE TRIGGER sms_search_ad AFTER DELETE ON sms BEGIN
+        DELETE FROM message_fts WHERE rowid = old._id * 2;
+      END;
+      """
+    )
+    db.execSQL(
+      """
+      CREATE TRIGGER sms_search_au AFTER UPDATE OF body, thread_id ON sms BEGIN
+        UPDATE message_fts SET body = new.body, thread_id = new.thread_id WHERE rowid = new._id * 2;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER mms_search_ai AFTER INSERT ON mms BEGIN
+        INSERT INTO message_fts(rowid, body, quote_body, thread_id) VALUES (new._id * 2 + 1, new.body, new.quote_body, new.thread_id);
+      END;
+      """
+    )
+    db.execSQL(
+      """
+      CREATE TRIGGER mms_search_ad AFTER DELETE ON mms BEGIN
+        DELETE FROM message_fts WHERE rowid = old._id * 2 + 1;
+      END;
+      """
+    )
+    db.execSQL(
+      """
+      CREATE TRIGGER mms_search_au AFTER UPDATE OF body, quote_body, previews, thread_id ON mms BEGIN
+        UPDATE message_fts SET body = new.body, quote_body = new.quote_body, link_title = CASE WHEN new.previews IS NULL THEN NULL ELSE link_title END, thread_id = new.thread_id WHERE rowid = new._id * 2 + 1;
+      END;
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER part_search_ai AFTER INSERT ON part WHEN new.caption IS NOT NULL BEGIN
+        UPDATE message_fts SET caption = (SELECT group_concat(caption, ' ') FROM part WHERE mid = new.mid AND caption IS NOT NULL) WHERE rowid = new.mid * 2 + 1;
+      END;
+      """
+    )
+    db.execSQL(
+      """
+      CREATE TRIGGER part_search_ad AFTER DELETE ON part WHEN old.caption IS NOT NULL BEGIN
+        UPDATE message_fts SET caption = (SELECT group_concat(caption, ' ') FROM part WHERE mid = old.mid AND caption IS NOT NULL) WHERE rowid = old.mid * 2 + 1;
+      END;
+      """
+    )
+    db.execSQL(
+      """
+      CREATE TRIGGER part_search_au AFTER UPDATE OF caption, mid ON part BEGIN
+        UPDATE message_fts SET caption = (SELECT group_concat(caption, ' ') FROM part WHERE mid = old.mid AND caption IS NOT NULL) WHERE rowid = old.mid * 2 + 1;
+        UPDATE message_fts SET caption = (SELECT group_concat(caption, ' ') FROM part WHERE mid = new.mid AND caption IS NOT NULL) WHERE rowid = new.mid * 2 + 1;
+      END;
+      """
+    )
+  }
+}
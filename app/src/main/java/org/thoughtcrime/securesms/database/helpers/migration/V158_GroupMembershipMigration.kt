@@ -0,0 +1,42 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a table with a row per group member, so that finding the groups a recipient is in no longer needs a LIKE scan over
+ * every group's comma-separated member list. Filled in from the existing member lists.
+ */
+object V158_GroupMembershipMigration : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE group_membership (
+        _id INTEGER PRIMARY KEY,
+        group_id TEXT NOT NULL,
+        recipient_id INTEGER NOT NULL,
+        UNIQUE(group_id, recipient_id) ON CONFLICT IGNORE
+      )
+      """
+    )
+    db.execSQL("CREATE INDEX IF NOT EXISTS group_membership_recipient_id_index ON group_membership (recipient_id)")
+
+    db.compileStatement("INSERT INTO group_membership (group_id, recipient_id) VALUES (?, ?)").use { insert ->
+      db.rawQuery("SELECT group_id, members FROM groups WHERE members IS NOT NULL", null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val groupId = cursor.getString(0)
+
+          cursor.getString(1)
+            .split(',')
+            .mapNotNull { it.trim().toLongOrNull() }
+            .forEach { recipientId ->
+              insert.bindString(1, groupId)
+              insert.bindLong(2, recipientId)
+              insert.executeInsert()
+              insert.clearBindings()
+            }
+        }
+      }
+    }
+  }
+}
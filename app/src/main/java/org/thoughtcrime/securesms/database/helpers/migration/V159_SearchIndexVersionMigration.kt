@@ -0,0 +1,27 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a counter that's bumped on every write to the message search index, so that search can tell when results it has
+ * kept around are out of date. The triggers mirror the ones that keep the index itself up to date.
+ */
+object V159_SearchIndexVersionMigration : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE TABLE search_index_version (version INTEGER NOT NULL)")
+    db.execSQL("INSERT INTO search_index_version (version) VALUES (0)")
+
+    db.execSQL("CREATE TRIGGER sms_search_version_ai AFTER INSERT ON sms BEGIN UPDATE search_index_version SET version = version + 1; END;")
+    db.execSQL("CREATE TRIGGER sms_search_version_ad AFTER DELETE ON sms BEGIN UPDATE search_index_version SET version = version + 1; END;")
+    db.execSQL("CREATE TRIGGER sms_search_version_au AFTER UPDATE OF body, thread_id ON sms BEGIN UPDATE search_index_version SET version = version + 1; END;")
+
+    db.execSQL("CREATE TRIGGER mms_search_version_ai AFTER INSERT ON mms BEGIN UPDATE search_index_version SET version = version + 1; END;")
+    db.execSQL("CREATE TRIGGER mms_search_version_ad AFTER DELETE ON mms BEGIN UPDATE search_index_version SET version = version + 1; END;")
+    db.execSQL("CREATE TRIGGER mms_search_version_au AFTER UPDATE OF body, quote_body, previews, thread_id ON mms BEGIN UPDATE search_index_version SET version = version + 1; END;")
+
+    db.execSQL("CREATE TRIGGER part_search_version_ai AFTER INSERT ON part WHEN new.caption IS NOT NULL BEGIN UPDATE search_index_version SET version = version + 1; END;")
+    db.execSQL("CREATE TRIGGER part_search_version_ad AFTER DELETE ON part WHEN old.caption IS NOT NULL BEGIN UPDATE search_index_version SET version = version + 1; END;")
+    db.execSQL("CREATE TRIGGER part_search_version_au AFTER UPDATE OF caption, mid ON part BEGIN UPDATE search_index_version SET version = version + 1; END;")
+  }
+}
@@ -0,0 +1,36 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Adds a log of changed and deleted message rows, so that an incremental backup only has to write those along with rows
+ * added above its high-water marks. Nothing is logged until an incremental backup turns tracking on.
+ */
+object V160_BackupChangeTrackingMigration : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("CREATE TABLE backup_change (_id INTEGER PRIMARY KEY, table_name TEXT NOT NULL, row_id INTEGER NOT NULL)")
+    db.execSQL("CREATE TABLE backup_change_tracking (_id INTEGER PRIMARY KEY)")
+
+    db.execSQL("CREATE TRIGGER sms_backup_change_au AFTER UPDATE ON sms WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('sms', new._id); END")
+    db.execSQL("CREATE TRIGGER sms_backup_change_ad AFTER DELETE ON sms WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('sms', old._id); END")
+
+    db.execSQL("CREATE TRIGGER mms_backup_change_au AFTER UPDATE ON mms WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('mms', new._id); END")
+    db.execSQL("CREATE TRIGGER mms_backup_change_ad AFTER DELETE ON mms WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('mms', old._id); END")
+
+    db.execSQL("CREATE TRIGGER part_backup_change_ai AFTER INSERT ON part WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('part', new._id); END")
+    db.execSQL("CREATE TRIGGER part_backup_change_au AFTER UPDATE ON part WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('part', new._id); END")
+    db.execSQL("CREATE TRIGGER part_backup_change_ad AFTER DELETE ON part WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('part', old._id); END")
+
+    db.execSQL("CREATE TRIGGER reaction_backup_change_ai AFTER INSERT ON reaction WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('reaction', new._id); END")
+    db.execSQL("CREATE TRIGGER reaction_backup_change_au AFTER UPDATE ON reaction WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('reaction', new._id); END")
+    db.execSQL("CREATE TRIGGER reaction_backup_change_ad AFTER DELETE ON reaction WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN INSERT INTO backup_change (table_name, row_id) VALUES ('reaction', old._id); END")
+    db.execSQL(
+      """
+      CREATE TRIGGER reaction_backup_change_bi BEFORE INSERT ON reaction WHEN EXISTS (SELECT 1 FROM backup_change_tracking) BEGIN
+        INSERT INTO backup_change (table_name, row_id) SELECT 'reaction', _id FROM reaction WHERE message_id = new.message_id AND is_mms = new.is_mms AND author_id = new.author_id;
+      END
+      """
+    )
+  }
+}
@@ -20,6 +20,7 @@ import org.thoughtcrime.securesms.groups.GroupsV2Authorization;
 import org.thoughtcrime.securesms.groups.GroupsV2AuthorizationMemoryValueCache;
 import org.thoughtcrime.securesms.groups.v2.processing.GroupsV2StateProcessor;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
+import org.thoughtcrime.securesms.jobs.ReceiptAggregator;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.megaphone.MegaphoneRepository;
 import org.thoughtcrime.securesms.messages.BackgroundMessageRetriever;
@@ -107,6 +108,7 @@ public class ApplicationDependencies {
   private static volatile TypingStatusRepository       typingStatusRepository;
   private static volatile TypingStatusSender           typingStatusSender;
   private static volatile DatabaseObserver             databaseObserver;
+  private static volatile ReceiptAggregator            receiptAggregator;
   private static volatile TrimThreadsByDateManager     trimThreadsByDateManager;
   private static volatile ViewOnceMessageManager       viewOnceMessageManager;
   private static volatile ExpiringStoriesManager       expiringStoriesManager;
@@ -473,6 +475,18 @@ public class ApplicationDependencies {
     return databaseObserver;
   }
 
+  public static @NonNull ReceiptAggregator getReceiptAggregator() {
+    if (receiptAggregator == null) {
+      synchronized (LOCK) {
+        if (receiptAggregator == null) {
+          receiptAggregator = provider.provideReceiptAggregator();
+        }
+      }
+    }
+
+    return receiptAggregator;
+  }
+
   public static @NonNull Payments getPayments() {
     if (payments == null) {
       synchronized (LOCK) {
@@ -690,6 +704,7 @@ public class ApplicationDependencies {
     @NonNull TypingStatusRepository provideTypingStatusRepository();
     @NonNull TypingStatusSender provideTypingStatusSender();
     @NonNull DatabaseObserver provideDatabaseObserver();
+    @NonNull ReceiptAggregator provideReceiptAggregator();
     @NonNull Payments providePayments(@NonNull SignalServiceAccountManager signalServiceAccountManager);
     @NonNull ShakeToReport provideShakeToReport();
     @NonNull AppForegroundObserver provideAppForegroundObserver();
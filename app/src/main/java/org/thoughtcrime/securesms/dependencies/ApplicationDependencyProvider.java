@@ -8,6 +8,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
 import org.signal.core.util.Hex;
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.DeadlockDetector;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.libsignal.zkgroup.profiles.ClientZkProfileOperations;
@@ -27,10 +28,11 @@ import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptCache;
+import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.JobMigrator;
+import org.thoughtcrime.securesms.jobmanager.impl.CompactDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.impl.FactoryJobPredicate;
-import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobs.FastJobStorage;
 import org.thoughtcrime.securesms.jobs.GroupCallUpdateSendJob;
 import org.thoughtcrime.securesms.jobs.JobManagerFactories;
@@ -42,6 +44,7 @@ import org.thoughtcrime.securesms.jobs.PushMediaSendJob;
 import org.thoughtcrime.securesms.jobs.PushProcessMessageJob;
 import org.thoughtcrime.securesms.jobs.PushTextSendJob;
 import org.thoughtcrime.securesms.jobs.ReactionSendJob;
+import org.thoughtcrime.securesms.jobs.ReceiptAggregator;
 import org.thoughtcrime.securesms.jobs.TypingSendJob;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.megaphone.MegaphoneRepository;
@@ -172,14 +175,15 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
   @Override
   public @NonNull JobManager provideJobManager() {
     JobManager.Configuration config = new JobManager.Configuration.Builder()
-                                                                  .setDataSerializer(new JsonDataSerializer())
+                                                                  .setDataSerializer(new CompactDataSerializer())
                                                                   .setJobFactories(JobManagerFactories.getJobFactories(context))
                                                                   .setConstraintFactories(JobManagerFactories.getConstraintFactories(context))
                                                                   .setConstraintObservers(JobManagerFactories.getConstraintObservers(context))
-                                                                  .setJobStorage(new FastJobStorage(JobDatabase.getInstance(context)))
+                                                                  .setJobStorage(new FastJobStorage(JobDatabase.getInstance(context), FeatureFlags.jobsWriteBehind()))
                                                                   .setJobMigrator(new JobMigrator(TextSecurePreferences.getJobManagerVersion(context), JobManager.CURRENT_VERSION, JobManagerFactories.getJobMigrations(context)))
                                                                   .addReservedJobRunner(new FactoryJobPredicate(PushDecryptMessageJob.KEY, PushProcessMessageJob.KEY, MarkerJob.KEY))
                                                                   .addReservedJobRunner(new FactoryJobPredicate(PushTextSendJob.KEY, PushMediaSendJob.KEY, PushGroupSendJob.KEY, ReactionSendJob.KEY, TypingSendJob.KEY, GroupCallUpdateSendJob.KEY))
+                                                                  .setConcurrentScheduling(FeatureFlags.jobsConcurrentScheduling())
                                                                   .build();
     return new JobManager(context, config);
   }
@@ -240,7 +244,22 @@ public class ApplicationDependencyProvider implements ApplicationDependencies.Pr
 
   @Override
   public @NonNull DatabaseObserver provideDatabaseObserver() {
-    return new DatabaseObserver(context);
+    return new DatabaseObserver(context, FeatureFlags.databaseObserverCoalesceWindowMs());
+  }
+
+  @Override
+  public @NonNull ReceiptAggregator provideReceiptAggregator() {
+    return new ReceiptAggregator(FeatureFlags.receiptAggregationWindowMs(), new ReceiptAggregator.JobSink() {
+      @Override
+      public void add(@NonNull Job job) {
+        ApplicationDependencies.getJobManager().add(job);
+      }
+
+      @Override
+      public void merge(@NonNull String jobId, @NonNull Job merged) {
+        ApplicationDependencies.getJobManager().updateJob(jobId, (jobSpec, serializer) -> jobSpec.withData(serializer.serialize(merged.serialize())));
+      }
+    }, (delayMs, runnable) -> ThreadUtil.runOnMainDelayed(() -> SignalExecutors.BOUNDED.execute(runnable), delayMs));
   }
 
   @SuppressWarnings("ConstantConditions")
@@ -6,6 +6,7 @@ import androidx.annotation.Nullable;
 import org.signal.core.util.logging.Log;
 import org.signal.storageservice.protos.groups.local.DecryptedGroup;
 import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupApplier;
 import org.whispersystems.signalservice.api.groupsv2.DecryptedGroupUtil;
 import org.whispersystems.signalservice.api.groupsv2.GroupChangeReconstruct;
 import org.whispersystems.signalservice.api.groupsv2.GroupChangeUtil;
@@ -130,10 +131,12 @@ final class GroupStateMapper {
   }
 
   private static StateChain<DecryptedGroup, DecryptedGroupChange> createNewMapper() {
+    DecryptedGroupApplier applier = new DecryptedGroupApplier();
+
     return new StateChain<>(
       (group, change) -> {
         try {
-          return DecryptedGroupUtil.applyWithoutRevisionCheck(group, change);
+          return applier.applyWithoutRevisionCheck(group, change);
         } catch (NotAbleToApplyGroupV2ChangeException e) {
           Log.w(TAG, "Unable to apply V" + change.getRevision(), e);
           return null;
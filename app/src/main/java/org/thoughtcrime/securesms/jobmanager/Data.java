@@ -9,6 +9,7 @@ import org.thoughtcrime.securesms.util.Base64;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,6 +59,58 @@ public class Data {
     this.booleanArrays = booleanArrays;
   }
 
+  /**
+   * The getters below expose read-only views of the underlying maps so that a {@link Serializer} can write them out.
+   * The arrays inside are shared with this instance, so they shouldn't be modified either.
+   */
+  public @NonNull Map<String, String> getStrings() {
+    return Collections.unmodifiableMap(strings);
+  }
+
+  public @NonNull Map<String, String[]> getStringArrays() {
+    return Collections.unmodifiableMap(stringArrays);
+  }
+
+  public @NonNull Map<String, Integer> getIntegers() {
+    return Collections.unmodifiableMap(integers);
+  }
+
+  public @NonNull Map<String, int[]> getIntegerArrays() {
+    return Collections.unmodifiableMap(integerArrays);
+  }
+
+  public @NonNull Map<String, Long> getLongs() {
+    return Collections.unmodifiableMap(longs);
+  }
+
+  public @NonNull Map<String, long[]> getLongArrays() {
+    return Collections.unmodifiableMap(longArrays);
+  }
+
+  public @NonNull Map<String, Float> getFloats() {
+    return Collections.unmodifiableMap(floats);
+  }
+
+  public @NonNull Map<String, float[]> getFloatArrays() {
+    return Collections.unmodifiableMap(floatArrays);
+  }
+
+  public @NonNull Map<String, Double> getDoubles() {
+    return Collections.unmodifiableMap(doubles);
+  }
+
+  public @NonNull Map<String, double[]> getDoubleArrays() {
+    return Collections.unmodifiableMap(doubleArrays);
+  }
+
+  public @NonNull Map<String, Boolean> getBooleans() {
+    return Collections.unmodifiableMap(booleans);
+  }
+
+  public @NonNull Map<String, boolean[]> getBooleanArrays() {
+    return Collections.unmodifiableMap(booleanArrays);
+  }
+
   public boolean hasString(@NonNull String key) {
     return strings.containsKey(key);
   }
@@ -261,6 +261,7 @@ public abstract class Job {
     private final List<String> constraintKeys;
     private final Data         inputData;
     private final boolean      memoryOnly;
+    private final long         initialDelay;
 
     private Parameters(@NonNull String id,
                        long createTime,
@@ -271,7 +272,8 @@ public abstract class Job {
                        @Nullable String queue,
                        @NonNull List<String> constraintKeys,
                        @Nullable Data inputData,
-                       boolean memoryOnly)
+                       boolean memoryOnly,
+                       long initialDelay)
     {
       this.id                     = id;
       this.createTime             = createTime;
@@ -283,6 +285,7 @@ public abstract class Job {
       this.constraintKeys         = constraintKeys;
       this.inputData              = inputData;
       this.memoryOnly             = memoryOnly;
+      this.initialDelay           = initialDelay;
     }
 
     @NonNull String getId() {
@@ -313,7 +316,7 @@ public abstract class Job {
       return queue;
     }
 
-    @NonNull List<String> getConstraintKeys() {
+    public @NonNull List<String> getConstraintKeys() {
       return constraintKeys;
     }
 
@@ -325,8 +328,12 @@ public abstract class Job {
       return memoryOnly;
     }
 
+    long getInitialDelay() {
+      return initialDelay;
+    }
+
     public Builder toBuilder() {
-      return new Builder(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly);
+      return new Builder(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly, initialDelay);
     }
 
 
@@ -341,13 +348,14 @@ public abstract class Job {
       private List<String> constraintKeys;
       private Data         inputData;
       private boolean      memoryOnly;
+      private long         initialDelay;
 
       public Builder() {
         this(UUID.randomUUID().toString());
       }
 
       Builder(@NonNull String id) {
-        this(id, System.currentTimeMillis(), IMMORTAL, 1, UNLIMITED, UNLIMITED, null, new LinkedList<>(), null, false);
+        this(id, System.currentTimeMillis(), IMMORTAL, 1, UNLIMITED, UNLIMITED, null, new LinkedList<>(), null, false, 0);
       }
 
       private Builder(@NonNull String id,
@@ -359,7 +367,8 @@ public abstract class Job {
                       @Nullable String queue,
                       @NonNull List<String> constraintKeys,
                       @Nullable Data inputData,
-                      boolean memoryOnly)
+                      boolean memoryOnly,
+                      long initialDelay)
       {
         this.id                     = id;
         this.createTime             = createTime;
@@ -371,6 +380,7 @@ public abstract class Job {
         this.constraintKeys         = constraintKeys;
         this.inputData              = inputData;
         this.memoryOnly             = memoryOnly;
+        this.initialDelay           = initialDelay;
       }
 
       /** Should only be invoked by {@link JobController} */
@@ -464,6 +474,15 @@ public abstract class Job {
         return this;
       }
 
+      /**
+       * Specify how long, in milliseconds, to wait after the job is submitted before its first run. Only applies to
+       * newly submitted jobs; it isn't persisted. Defaults to 0.
+       */
+      public @NonNull Builder setInitialDelay(long initialDelay) {
+        this.initialDelay = initialDelay;
+        return this;
+      }
+
       /**
        * Sets the input data that will be made availabe to the job when it is run.
        * Should only be set by {@link JobController}.
@@ -474,7 +493,7 @@ public abstract class Job {
       }
 
       public @NonNull Parameters build() {
-        return new Parameters(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly);
+        return new Parameters(id, createTime, lifespan, maxAttempts, maxInstancesForFactory, maxInstancesForQueue, queue, constraintKeys, inputData, memoryOnly, initialDelay);
       }
     }
   }
@@ -20,22 +20,37 @@ import org.thoughtcrime.securesms.util.Debouncer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Predicate;
 
 /**
  * Manages the queue of jobs. This is the only class that should write to {@link JobStorage} to
  * ensure consistency.
+ *
+ * Operations that span multiple queues (dependencies, cancellation, bulk updates, submitting a job
+ * with a max instance count) are performed under an exclusive lock. In concurrent scheduling mode,
+ * everything else (submitting other chains, claiming jobs, success and retry) only takes a shared
+ * lock plus, when changing the running state of a job, a lock striped by queue key. Idle
+ * {@link JobRunner}s wait on their own signal, and are only woken when there is a pending job that
+ * matches their {@link JobPredicate}. When concurrent scheduling is disabled, every operation is
+ * exclusive and every idle runner is woken on every change.
  */
 class JobController {
 
   private static final String TAG = Log.tag(JobController.class);
 
+  private static final int QUEUE_LOCK_STRIPES = 32;
+  private static final int CLAIM_BATCH_SIZE   = 8;
+
   private final Application            application;
   private final JobStorage             jobStorage;
   private final JobInstantiator        jobInstantiator;
@@ -45,7 +60,11 @@ class JobController {
   private final Scheduler              scheduler;
   private final Debouncer              debouncer;
   private final Callback               callback;
+  private final boolean                concurrentScheduling;
   private final Map<String, Job>       runningJobs;
+  private final ReentrantReadWriteLock controllerLock;
+  private final Object[]               queueLocks;
+  private final Set<RunnerSignal>      idleRunners;
 
   JobController(@NonNull Application application,
                 @NonNull JobStorage jobStorage,
@@ -55,7 +74,8 @@ class JobController {
                 @NonNull JobTracker jobTracker,
                 @NonNull Scheduler scheduler,
                 @NonNull Debouncer debouncer,
-                @NonNull Callback callback)
+                @NonNull Callback callback,
+                boolean concurrentScheduling)
   {
     this.application            = application;
     this.jobStorage             = jobStorage;
@@ -66,21 +86,36 @@ class JobController {
     this.scheduler              = scheduler;
     this.debouncer              = debouncer;
     this.callback               = callback;
-    this.runningJobs            = new HashMap<>();
+    this.concurrentScheduling   = concurrentScheduling;
+    this.runningJobs            = new ConcurrentHashMap<>();
+    this.controllerLock         = new ReentrantReadWriteLock();
+    this.queueLocks             = new Object[concurrentScheduling ? QUEUE_LOCK_STRIPES : 1];
+    this.idleRunners            = new LinkedHashSet<>();
+
+    for (int i = 0; i < queueLocks.length; i++) {
+      queueLocks[i] = new Object();
+    }
   }
 
   @WorkerThread
-  synchronized void init() {
-    jobStorage.updateAllJobsToBePending();
-    notifyAll();
+  void init() {
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      jobStorage.updateAllJobsToBePending();
+    } finally {
+      lock.unlock();
+    }
+
+    notifyRunners();
   }
 
-  synchronized void wakeUp() {
-    notifyAll();
+  void wakeUp() {
+    notifyRunners();
   }
 
   @WorkerThread
-  synchronized void submitNewJobChain(@NonNull List<List<Job>> chain) {
+  void submitNewJobChain(@NonNull List<List<Job>> chain) {
     chain = Stream.of(chain).filterNot(List::isEmpty).toList();
 
     if (chain.isEmpty()) {
@@ -88,21 +123,42 @@ class JobController {
       return;
     }
 
-    if (chainExceedsMaximumInstances(chain)) {
-      Job solo = chain.get(0).get(0);
-      jobTracker.onStateChange(solo, JobTracker.JobState.IGNORED);
-      Log.w(TAG, JobLogger.format(solo, "Already at the max instance count. Factory limit: " + solo.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + solo.getParameters().getMaxInstancesForQueue() + ". Skipping."));
-      return;
+    Lock lock = chainHasMaximumInstances(chain) ? exclusiveLock() : sharedLock();
+    lock.lock();
+    try {
+      if (chainExceedsMaximumInstances(chain)) {
+        Job solo = chain.get(0).get(0);
+        jobTracker.onStateChange(solo, JobTracker.JobState.IGNORED);
+        Log.w(TAG, JobLogger.format(solo, "Already at the max instance count. Factory limit: " + solo.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + solo.getParameters().getMaxInstancesForQueue() + ". Skipping."));
+        return;
+      }
+
+      // In concurrent scheduling mode, a runner may claim a job as soon as it's inserted, so onAdded() has to happen first.
+      triggerOnSubmit(chain);
+      insertJobChain(chain);
+    } finally {
+      lock.unlock();
     }
 
-    insertJobChain(chain);
-    triggerOnSubmit(chain);
-    notifyAll();
+    notifyRunners();
     scheduleJobs(chain.get(0));
   }
 
   @WorkerThread
-  synchronized void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
+  void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      submitJobWithExistingDependenciesInternal(job, dependsOn, dependsOnQueue);
+    } finally {
+      lock.unlock();
+    }
+
+    notifyRunners();
+  }
+
+  @WorkerThread
+  private void submitJobWithExistingDependenciesInternal(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
     List<List<Job>> chain = Collections.singletonList(Collections.singletonList(job));
 
     if (chainExceedsMaximumInstances(chain)) {
@@ -127,7 +183,7 @@ class JobController {
 
     if (jobTracker.haveAnyFailed(allDependsOn)) {
       Log.w(TAG, "This job depends on a job that failed! Failing this job immediately.");
-      List<Job> dependents = onFailure(job);
+      List<Job> dependents = failJobAndDependents(job);
       job.setContext(application);
       job.onFailure();
       Stream.of(dependents).forEach(Job::onFailure);
@@ -139,11 +195,21 @@ class JobController {
 
     scheduleJobs(Collections.singletonList(job));
     triggerOnSubmit(chain);
-    notifyAll();
   }
 
   @WorkerThread
-  synchronized void cancelJob(@NonNull String id) {
+  void cancelJob(@NonNull String id) {
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      cancelJobInternal(id);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @WorkerThread
+  private void cancelJobInternal(@NonNull String id) {
     Job runningJob = runningJobs.get(id);
 
     if (runningJob != null) {
@@ -158,7 +224,7 @@ class JobController {
         Log.w(TAG, JobLogger.format(job, "Job failed."));
 
         job.cancel();
-        List<Job> dependents = onFailure(job);
+        List<Job> dependents = failJobAndDependents(job);
         job.onFailure();
         Stream.of(dependents).forEach(Job::onFailure);
       } else {
@@ -168,38 +234,96 @@ class JobController {
   }
 
   @WorkerThread
-  synchronized void cancelAllInQueue(@NonNull String queue) {
-    Stream.of(jobStorage.getJobsInQueue(queue))
-          .map(JobSpec::getId)
-          .forEach(this::cancelJob);
+  void cancelAllInQueue(@NonNull String queue) {
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      Stream.of(jobStorage.getJobsInQueue(queue))
+            .map(JobSpec::getId)
+            .forEach(this::cancelJobInternal);
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void update(@NonNull JobUpdater updater) {
-    List<JobSpec> allJobs     = jobStorage.getAllJobSpecs();
-    List<JobSpec> updatedJobs = new LinkedList<>();
-
-    for (JobSpec job : allJobs) {
-      JobSpec updated = updater.update(job, dataSerializer);
-      if (updated != job) {
-        updatedJobs.add(updated);
+  void update(@NonNull JobUpdater updater) {
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      List<JobSpec> allJobs     = jobStorage.getAllJobSpecs();
+      List<JobSpec> updatedJobs = new LinkedList<>();
+
+      for (JobSpec job : allJobs) {
+        JobSpec updated = updater.update(job, dataSerializer);
+        if (updated != job) {
+          updatedJobs.add(updated);
+        }
       }
+
+      jobStorage.updateJobs(updatedJobs);
+    } finally {
+      lock.unlock();
     }
 
-    jobStorage.updateJobs(updatedJobs);
+    notifyRunners();
+  }
+
+  /**
+   * Same as {@link #update(JobUpdater)}, but only for the job with the given id, which is looked up directly rather than
+   * by going through every job. Does nothing if the job can't be found or is already running.
+   */
+  @WorkerThread
+  void updateJob(@NonNull String id, @NonNull JobUpdater updater) {
+    boolean rescheduled = false;
+
+    Lock lock = sharedLock();
+    lock.lock();
+    try {
+      JobSpec current = jobStorage.getJobSpec(id);
+
+      if (current == null) {
+        return;
+      }
+
+      synchronized (getQueueLock(current.getQueueKey(), current.getId())) {
+        current = jobStorage.getJobSpec(id);
 
-    notifyAll();
+        if (current == null || current.isRunning()) {
+          return;
+        }
+
+        JobSpec updated = updater.update(current, dataSerializer);
+
+        if (updated != current) {
+          jobStorage.updateJobs(Collections.singletonList(updated));
+          rescheduled = updated.getNextRunAttemptTime() != current.getNextRunAttemptTime();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (rescheduled) {
+      notifyRunners();
+    }
   }
 
   @WorkerThread
-  synchronized List<JobSpec> findJobs(@NonNull Predicate<JobSpec> predicate) {
-    return Stream.of(jobStorage.getAllJobSpecs())
-                 .filter(predicate::test)
-                 .toList();
+  List<JobSpec> findJobs(@NonNull Predicate<JobSpec> predicate) {
+    Lock lock = sharedLock();
+    lock.lock();
+    try {
+      return Stream.of(jobStorage.getAllJobSpecs())
+                   .filter(predicate::test)
+                   .toList();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void onRetry(@NonNull Job job, long backoffInterval) {
+  void onRetry(@NonNull Job job, long backoffInterval) {
     if (backoffInterval <= 0) {
       throw new IllegalArgumentException("Invalid backoff interval! " + backoffInterval);
     }
@@ -208,7 +332,16 @@ class JobController {
     long   nextRunAttemptTime = System.currentTimeMillis() + backoffInterval;
     String serializedData     = dataSerializer.serialize(job.serialize());
 
-    jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime, serializedData);
+    Lock lock = sharedLock();
+    lock.lock();
+    try {
+      synchronized (getQueueLock(job.getParameters().getQueue(), job.getId())) {
+        jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime, serializedData);
+      }
+    } finally {
+      lock.unlock();
+    }
+
     jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
     List<Constraint> constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
@@ -222,35 +355,59 @@ class JobController {
     Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
     scheduler.schedule(delay, constraints);
 
-    notifyAll();
+    notifyRunners();
   }
 
-  synchronized void onJobFinished(@NonNull Job job) {
+  void onJobFinished(@NonNull Job job) {
     runningJobs.remove(job.getId());
   }
 
   @WorkerThread
-  synchronized void onSuccess(@NonNull Job job, @Nullable Data outputData) {
-    if (outputData != null) {
-      List<JobSpec> updates = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
-                                    .map(DependencySpec::getJobId)
-                                    .map(jobStorage::getJobSpec)
-                                    .map(jobSpec -> mapToJobWithInputData(jobSpec, outputData))
-                                    .toList();
+  void onSuccess(@NonNull Job job, @Nullable Data outputData) {
+    Lock lock = sharedLock();
+    lock.lock();
+    try {
+      if (outputData != null) {
+        List<JobSpec> updates = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
+                                      .map(DependencySpec::getJobId)
+                                      .map(jobStorage::getJobSpec)
+                                      .map(jobSpec -> mapToJobWithInputData(jobSpec, outputData))
+                                      .toList();
+
+        jobStorage.updateJobs(updates);
+      }
 
-      jobStorage.updateJobs(updates);
+      jobStorage.deleteJob(job.getId());
+    } finally {
+      lock.unlock();
     }
 
-    jobStorage.deleteJob(job.getId());
     jobTracker.onStateChange(job, JobTracker.JobState.SUCCESS);
-    notifyAll();
+    notifyRunners();
   }
 
   /**
    * @return The list of all dependent jobs that should also be failed.
    */
   @WorkerThread
-  synchronized @NonNull List<Job> onFailure(@NonNull Job job) {
+  @NonNull List<Job> onFailure(@NonNull Job job) {
+    List<Job> dependents;
+
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      dependents = failJobAndDependents(job);
+    } finally {
+      lock.unlock();
+    }
+
+    notifyRunners();
+
+    return dependents;
+  }
+
+  @WorkerThread
+  private @NonNull List<Job> failJobAndDependents(@NonNull Job job) {
     List<Job> dependents = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
                                  .map(DependencySpec::getJobId)
                                  .map(jobStorage::getJobSpec)
@@ -280,20 +437,39 @@ class JobController {
    * When the job returned from this method has been run, you must call {@link #onJobFinished(Job)}.
    */
   @WorkerThread
-  synchronized @NonNull Job pullNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
+  @NonNull Job pullNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
+    RunnerSignal signal = new RunnerSignal(predicate);
+
     try {
       Job job;
 
-      while ((job = getNextEligibleJobForExecution(predicate)) == null) {
+      while (true) {
+        synchronized (idleRunners) {
+          signal.reset();
+          idleRunners.add(signal);
+        }
+
+        job = claimNextEligibleJobForExecution(predicate);
+
+        if (job != null) {
+          synchronized (idleRunners) {
+            idleRunners.remove(signal);
+          }
+
+          if (signal.isSignaled()) {
+            // We may have been woken for a different job than the one we claimed, so pass the wakeup along
+            notifyRunners();
+          }
+          break;
+        }
+
         if (runningJobs.isEmpty()) {
           debouncer.publish(callback::onEmpty);
         }
 
-        wait();
+        signal.await();
       }
 
-      jobStorage.updateJobRunningState(job.getId(), true);
-      runningJobs.put(job.getId(), job);
       jobTracker.onStateChange(job, JobTracker.JobState.RUNNING);
 
       return job;
@@ -307,10 +483,20 @@ class JobController {
    * Retrieves a string representing the state of the job queue. Intended for debugging.
    */
   @WorkerThread
-  synchronized @NonNull String getDebugInfo() {
-    List<JobSpec>        jobs         = jobStorage.getAllJobSpecs();
-    List<ConstraintSpec> constraints  = jobStorage.getAllConstraintSpecs();
-    List<DependencySpec> dependencies = jobStorage.getAllDependencySpecs();
+  @NonNull String getDebugInfo() {
+    List<JobSpec>        jobs;
+    List<ConstraintSpec> constraints;
+    List<DependencySpec> dependencies;
+
+    Lock lock = exclusiveLock();
+    lock.lock();
+    try {
+      jobs         = jobStorage.getAllJobSpecs();
+      constraints  = jobStorage.getAllConstraintSpecs();
+      dependencies = jobStorage.getAllDependencySpecs();
+    } finally {
+      lock.unlock();
+    }
 
     StringBuilder info = new StringBuilder();
 
@@ -335,13 +521,106 @@ class JobController {
       info.append("None\n");
     }
 
+    info.append("\n-- Storage\n");
+    info.append(jobStorage.getDebugInfo()).append('\n');
+
     return info.toString();
   }
 
-  synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+  @WorkerThread
+  void flush() {
+    jobStorage.flush();
+  }
+
+  boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
     return jobStorage.areQueuesEmpty(queueKeys);
   }
 
+  private @NonNull Lock exclusiveLock() {
+    return controllerLock.writeLock();
+  }
+
+  /**
+   * In concurrent scheduling mode, operations that only touch a single queue may run alongside each other. Otherwise, this
+   * is the same as {@link #exclusiveLock()}.
+   */
+  private @NonNull Lock sharedLock() {
+    return concurrentScheduling ? controllerLock.readLock() : controllerLock.writeLock();
+  }
+
+  /**
+   * Guards transitions of a job's running state. Jobs without a queue are sharded by their own id.
+   */
+  private @NonNull Object getQueueLock(@Nullable String queueKey, @NonNull String jobId) {
+    String key = queueKey != null ? queueKey : jobId;
+    return queueLocks[(key.hashCode() & Integer.MAX_VALUE) % queueLocks.length];
+  }
+
+  /**
+   * Wakes up idle {@link JobRunner}s. In concurrent scheduling mode, at most one runner is woken per pending job, and only
+   * if its predicate would allow it to run that job. Otherwise, every idle runner is woken.
+   */
+  private void notifyRunners() {
+    List<RunnerSignal> toSignal = new LinkedList<>();
+
+    if (concurrentScheduling) {
+      List<RunnerSignal> candidates;
+
+      synchronized (idleRunners) {
+        if (idleRunners.isEmpty()) {
+          return;
+        }
+        candidates = new ArrayList<>(idleRunners);
+      }
+
+      long        now      = System.currentTimeMillis();
+      Set<String> assigned = new HashSet<>();
+
+      for (RunnerSignal candidate : candidates) {
+        List<JobSpec> pending = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(now, j -> !assigned.contains(j.getId()) && candidate.predicate.shouldRun(j), 1);
+
+        if (!pending.isEmpty()) {
+          assigned.add(pending.get(0).getId());
+          toSignal.add(candidate);
+        }
+      }
+
+      synchronized (idleRunners) {
+        Iterator<RunnerSignal> iterator = toSignal.iterator();
+
+        while (iterator.hasNext()) {
+          if (!idleRunners.remove(iterator.next())) {
+            iterator.remove();
+          }
+        }
+      }
+    } else {
+      synchronized (idleRunners) {
+        toSignal.addAll(idleRunners);
+        idleRunners.clear();
+      }
+    }
+
+    for (RunnerSignal signal : toSignal) {
+      signal.signal();
+    }
+  }
+
+  /**
+   * Whether {@link #chainExceedsMaximumInstances(List)} could reject this chain. Such chains have to be checked and inserted
+   * under the exclusive lock, or two of them could both pass the check before either is inserted.
+   */
+  private static boolean chainHasMaximumInstances(@NonNull List<List<Job>> chain) {
+    if (chain.size() == 1 && chain.get(0).size() == 1) {
+      Job.Parameters parameters = chain.get(0).get(0).getParameters();
+
+      return parameters.getMaxInstancesForFactory() != Job.Parameters.UNLIMITED ||
+             (parameters.getQueue() != null && parameters.getMaxInstancesForQueue() != Job.Parameters.UNLIMITED);
+    }
+
+    return false;
+  }
+
   @WorkerThread
   private boolean chainExceedsMaximumInstances(@NonNull List<List<Job>> chain) {
     if (chain.size() == 1 && chain.get(0).size() == 1) {
@@ -394,6 +673,10 @@ class JobController {
   private @NonNull FullSpec buildFullSpec(@NonNull Job job, @NonNull Collection<String> dependsOn) {
     job.setRunAttempt(0);
 
+    if (job.getParameters().getInitialDelay() > 0) {
+      job.setNextRunAttemptTime(System.currentTimeMillis() + job.getParameters().getInitialDelay());
+    }
+
     JobSpec jobSpec = new JobSpec(job.getId(),
                                   job.getFactoryKey(),
                                   job.getParameters().getQueue(),
@@ -432,29 +715,58 @@ class JobController {
         constraints.add(constraintInstantiator.instantiate(key));
       }
 
-      scheduler.schedule(0, constraints);
+      scheduler.schedule(job.getParameters().getInitialDelay(), constraints);
     }
   }
 
+  /**
+   * Finds the next job that is eligible for execution and marks it as running.
+   */
   @WorkerThread
-  private @Nullable Job getNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
-    List<JobSpec> jobSpecs = Stream.of(jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis()))
-                                   .filter(predicate::shouldRun)
-                                   .toList();
+  private @Nullable Job claimNextEligibleJobForExecution(@NonNull JobPredicate predicate) {
+    Lock lock = sharedLock();
+    lock.lock();
+    try {
+      long now   = System.currentTimeMillis();
+      int  limit = CLAIM_BATCH_SIZE;
 
-    for (JobSpec jobSpec : jobSpecs) {
-      List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-      List<Constraint>     constraints     = Stream.of(constraintSpecs)
-                                                   .map(ConstraintSpec::getFactoryKey)
-                                                   .map(constraintInstantiator::instantiate)
-                                                   .toList();
+      while (true) {
+        List<JobSpec> jobSpecs = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(now, predicate::shouldRun, limit);
+
+        for (JobSpec jobSpec : jobSpecs) {
+          synchronized (getQueueLock(jobSpec.getQueueKey(), jobSpec.getId())) {
+            JobSpec current = jobStorage.getJobSpec(jobSpec.getId());
+
+            if (current == null || current.isRunning()) {
+              continue;
+            }
+
+            List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(current.getId());
+            List<Constraint>     constraints     = Stream.of(constraintSpecs)
+                                                         .map(ConstraintSpec::getFactoryKey)
+                                                         .map(constraintInstantiator::instantiate)
+                                                         .toList();
+
+            if (Stream.of(constraints).allMatch(Constraint::isMet)) {
+              Job job = createJob(current, constraintSpecs);
+
+              jobStorage.updateJobRunningState(job.getId(), true);
+              runningJobs.put(job.getId(), job);
+
+              return job;
+            }
+          }
+        }
+
+        if (jobSpecs.size() < limit) {
+          return null;
+        }
 
-      if (Stream.of(constraints).allMatch(Constraint::isMet)) {
-        return createJob(jobSpec, constraintSpecs);
+        limit = limit < Integer.MAX_VALUE / 2 ? limit * 2 : Integer.MAX_VALUE;
       }
+    } finally {
+      lock.unlock();
     }
-
-    return null;
   }
 
   private @NonNull Job createJob(@NonNull JobSpec jobSpec, @NonNull List<ConstraintSpec> constraintSpecs) {
@@ -514,4 +826,37 @@ class JobController {
   interface Callback {
     void onEmpty();
   }
+
+  /**
+   * Allows an individual idle {@link JobRunner} to be woken up.
+   */
+  private static final class RunnerSignal {
+
+    private final JobPredicate predicate;
+
+    private boolean signaled;
+
+    private RunnerSignal(@NonNull JobPredicate predicate) {
+      this.predicate = predicate;
+    }
+
+    synchronized void reset() {
+      signaled = false;
+    }
+
+    synchronized boolean isSignaled() {
+      return signaled;
+    }
+
+    synchronized void signal() {
+      signaled = true;
+      notify();
+    }
+
+    synchronized void await() throws InterruptedException {
+      while (!signaled) {
+        wait();
+      }
+    }
+  }
 }
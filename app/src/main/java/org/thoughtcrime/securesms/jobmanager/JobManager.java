@@ -12,8 +12,8 @@ import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.impl.CompactDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.impl.DefaultExecutorFactory;
-import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.util.Debouncer;
@@ -44,7 +44,7 @@ public class JobManager implements ConstraintObserver.Notifier {
 
   private static final String TAG = Log.tag(JobManager.class);
 
-  public static final int CURRENT_VERSION = 9;
+  public static final int CURRENT_VERSION = 10;
 
   private final Application   application;
   private final Configuration configuration;
@@ -55,6 +55,8 @@ public class JobManager implements ConstraintObserver.Notifier {
   @GuardedBy("emptyQueueListeners")
   private final Set<EmptyQueueListener> emptyQueueListeners = new CopyOnWriteArraySet<>();
 
+  private final ThreadLocal<List<Runnable>> deferredSubmissions = new ThreadLocal<>();
+
   private volatile boolean initialized;
 
   public JobManager(@NonNull Application application, @NonNull Configuration configuration) {
@@ -71,7 +73,8 @@ public class JobManager implements ConstraintObserver.Notifier {
                                            Build.VERSION.SDK_INT < 26 ? new AlarmManagerScheduler(application)
                                                                       : new CompositeScheduler(new InAppScheduler(this), new JobSchedulerScheduler(application)),
                                            new Debouncer(500),
-                                           this::onEmptyQueue);
+                                           this::onEmptyQueue,
+                                           configuration.isConcurrentScheduling());
 
     executor.execute(() -> {
       synchronized (this) {
@@ -159,11 +162,13 @@ public class JobManager implements ConstraintObserver.Notifier {
    * Enqueues a single job that depends on a collection of job ID's.
    */
   public void add(@NonNull Job job, @NonNull Collection<String> dependsOn) {
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    submit(() -> {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
-    runOnExecutor(() -> {
-      jobController.submitJobWithExistingDependencies(job, dependsOn, null);
-      jobController.wakeUp();
+      runOnExecutor(() -> {
+        jobController.submitJobWithExistingDependencies(job, dependsOn, null);
+        jobController.wakeUp();
+      });
     });
   }
 
@@ -172,11 +177,13 @@ public class JobManager implements ConstraintObserver.Notifier {
    * items in the specified queue.
    */
   public void add(@NonNull Job job, @Nullable String dependsOnQueue) {
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    submit(() -> {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
-    runOnExecutor(() -> {
-      jobController.submitJobWithExistingDependencies(job, Collections.emptyList(), dependsOnQueue);
-      jobController.wakeUp();
+      runOnExecutor(() -> {
+        jobController.submitJobWithExistingDependencies(job, Collections.emptyList(), dependsOnQueue);
+        jobController.wakeUp();
+      });
     });
   }
 
@@ -185,11 +192,13 @@ public class JobManager implements ConstraintObserver.Notifier {
    * items in the specified queue.
    */
   public void add(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    submit(() -> {
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
 
-    runOnExecutor(() -> {
-      jobController.submitJobWithExistingDependencies(job, dependsOn, dependsOnQueue);
-      jobController.wakeUp();
+      runOnExecutor(() -> {
+        jobController.submitJobWithExistingDependencies(job, dependsOn, dependsOnQueue);
+        jobController.wakeUp();
+      });
     });
   }
 
@@ -209,6 +218,40 @@ public class JobManager implements ConstraintObserver.Notifier {
     return new Chain(this, jobs);
   }
 
+  /**
+   * Holds back every job enqueued on the calling thread until {@link #endDeferredSubmission(boolean)} is called. Useful
+   * when jobs are enqueued from inside of a database transaction and must not run before that transaction commits.
+   */
+  public void beginDeferredSubmission() {
+    if (deferredSubmissions.get() != null) {
+      throw new IllegalStateException("Already deferring submission on this thread!");
+    }
+
+    deferredSubmissions.set(new ArrayList<>());
+  }
+
+  /**
+   * Stops holding back jobs enqueued on the calling thread.
+   *
+   * @param submit If true, the held back jobs are enqueued in the order they were added. Otherwise they're dropped.
+   */
+  public void endDeferredSubmission(boolean submit) {
+    List<Runnable> deferred = deferredSubmissions.get();
+    deferredSubmissions.remove();
+
+    if (deferred == null) {
+      throw new IllegalStateException("Not deferring submission on this thread!");
+    }
+
+    if (submit) {
+      for (Runnable submission : deferred) {
+        submission.run();
+      }
+    } else if (deferred.size() > 0) {
+      Log.w(TAG, "Dropping " + deferred.size() + " deferred submission(s).");
+    }
+  }
+
   /**
    * Attempts to cancel a job. This is best-effort and may not actually prevent a job from
    * completing if it was already running. If this job is running, this can only stop jobs that
@@ -237,6 +280,14 @@ public class JobManager implements ConstraintObserver.Notifier {
     runOnExecutor(() -> jobController.update(updater));
   }
 
+  /**
+   * Perform an arbitrary update on a single enqueued job. Same caveats as {@link #update(JobUpdater)}, but doesn't have to
+   * look at every other job to do it.
+   */
+  public void updateJob(@NonNull String id, @NonNull JobUpdater updater) {
+    runOnExecutor(() -> jobController.updateJob(id, updater));
+  }
+
   /**
    * Search through the list of pending jobs and find all that match a given predicate. Note that there will always be races here, and the result you get back
    * may not be valid anymore by the time you get it. Use with caution.
@@ -344,7 +395,10 @@ public class JobManager implements ConstraintObserver.Notifier {
   public void flush() {
     CountDownLatch latch = new CountDownLatch(1);
 
-    runOnExecutor(latch::countDown);
+    runOnExecutor(() -> {
+      jobController.flush();
+      latch.countDown();
+    });
 
     try {
       latch.await();
@@ -387,16 +441,46 @@ public class JobManager implements ConstraintObserver.Notifier {
   }
 
   private void enqueueChain(@NonNull Chain chain) {
+    submit(() -> {
+      for (List<Job> jobList : chain.getJobListChain()) {
+        for (Job job : jobList) {
+          jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+        }
+      }
+
+      runOnExecutor(() -> {
+        jobController.submitNewJobChain(chain.getJobListChain());
+        jobController.wakeUp();
+      });
+    });
+  }
+
+  /**
+   * Submits the chain on the calling thread, skipping both the executor and any deferred submission, so that its jobs
+   * are in storage by the time this returns.
+   */
+  @WorkerThread
+  private void enqueueChainBlocking(@NonNull Chain chain) {
+    waitUntilInitialized();
+
     for (List<Job> jobList : chain.getJobListChain()) {
       for (Job job : jobList) {
         jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
       }
     }
 
-    runOnExecutor(() -> {
-      jobController.submitNewJobChain(chain.getJobListChain());
-      jobController.wakeUp();
-    });
+    jobController.submitNewJobChain(chain.getJobListChain());
+    jobController.wakeUp();
+  }
+
+  private void submit(@NonNull Runnable submission) {
+    List<Runnable> deferred = deferredSubmissions.get();
+
+    if (deferred != null) {
+      deferred.add(submission);
+    } else {
+      submission.run();
+    }
   }
 
   private void onEmptyQueue() {
@@ -483,6 +567,15 @@ public class JobManager implements ConstraintObserver.Notifier {
       jobManager.enqueueChain(this);
     }
 
+    /**
+     * Like {@link #enqueue()}, but doesn't return until the jobs have been written to storage. Use this when something
+     * that can't be undone, like acknowledging a message to the server, depends on the jobs surviving a process death.
+     */
+    @WorkerThread
+    public void enqueueBlocking() {
+      jobManager.enqueueChainBlocking(this);
+    }
+
     public void enqueue(@NonNull JobTracker.JobListener listener) {
       List<Job> lastChain          = jobs.get(jobs.size() - 1);
       Job       lastJobInLastChain = lastChain.get(lastChain.size() - 1);
@@ -509,6 +602,7 @@ public class JobManager implements ConstraintObserver.Notifier {
     private final JobMigrator              jobMigrator;
     private final JobTracker               jobTracker;
     private final List<JobPredicate>       reservedJobRunners;
+    private final boolean                  concurrentScheduling;
 
     private Configuration(int jobThreadCount,
                           @NonNull ExecutorFactory executorFactory,
@@ -519,7 +613,8 @@ public class JobManager implements ConstraintObserver.Notifier {
                           @NonNull JobStorage jobStorage,
                           @NonNull JobMigrator jobMigrator,
                           @NonNull JobTracker jobTracker,
-                          @NonNull List<JobPredicate> reservedJobRunners)
+                          @NonNull List<JobPredicate> reservedJobRunners,
+                          boolean concurrentScheduling)
     {
       this.executorFactory        = executorFactory;
       this.jobThreadCount         = jobThreadCount;
@@ -531,6 +626,7 @@ public class JobManager implements ConstraintObserver.Notifier {
       this.jobMigrator            = jobMigrator;
       this.jobTracker             = jobTracker;
       this.reservedJobRunners     = new ArrayList<>(reservedJobRunners);
+      this.concurrentScheduling   = concurrentScheduling;
     }
 
     int getJobThreadCount() {
@@ -574,18 +670,23 @@ public class JobManager implements ConstraintObserver.Notifier {
       return reservedJobRunners;
     }
 
+    boolean isConcurrentScheduling() {
+      return concurrentScheduling;
+    }
+
     public static class Builder {
 
-      private ExecutorFactory                 executorFactory     = new DefaultExecutorFactory();
-      private int                             jobThreadCount      = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
-      private Map<String, Job.Factory>        jobFactories        = new HashMap<>();
-      private Map<String, Constraint.Factory> constraintFactories = new HashMap<>();
-      private List<ConstraintObserver>        constraintObservers = new ArrayList<>();
-      private Data.Serializer                 dataSerializer      = new JsonDataSerializer();
-      private JobStorage                      jobStorage          = null;
-      private JobMigrator                     jobMigrator         = null;
-      private JobTracker                      jobTracker          = new JobTracker();
-      private List<JobPredicate>              reservedJobRunners  = new ArrayList<>();
+      private ExecutorFactory                 executorFactory      = new DefaultExecutorFactory();
+      private int                             jobThreadCount       = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+      private Map<String, Job.Factory>        jobFactories         = new HashMap<>();
+      private Map<String, Constraint.Factory> constraintFactories  = new HashMap<>();
+      private List<ConstraintObserver>        constraintObservers  = new ArrayList<>();
+      private Data.Serializer                 dataSerializer       = new CompactDataSerializer();
+      private JobStorage                      jobStorage           = null;
+      private JobMigrator                     jobMigrator          = null;
+      private JobTracker                      jobTracker           = new JobTracker();
+      private List<JobPredicate>              reservedJobRunners   = new ArrayList<>();
+      private boolean                         concurrentScheduling = false;
 
       public @NonNull Builder setJobThreadCount(int jobThreadCount) {
         this.jobThreadCount = jobThreadCount;
@@ -632,6 +733,15 @@ public class JobManager implements ConstraintObserver.Notifier {
         return this;
       }
 
+      /**
+       * When enabled, jobs in different queues can be submitted, claimed and completed without contending on a single lock,
+       * and idle job runners are only woken when there is a job they're able to run.
+       */
+      public @NonNull Builder setConcurrentScheduling(boolean concurrentScheduling) {
+        this.concurrentScheduling = concurrentScheduling;
+        return this;
+      }
+
       public @NonNull Configuration build() {
         return new Configuration(jobThreadCount,
                                  executorFactory,
@@ -642,7 +752,8 @@ public class JobManager implements ConstraintObserver.Notifier {
                                  jobStorage,
                                  jobMigrator,
                                  jobTracker,
-                                 reservedJobRunners);
+                                 reservedJobRunners,
+                                 concurrentScheduling);
       }
     }
   }
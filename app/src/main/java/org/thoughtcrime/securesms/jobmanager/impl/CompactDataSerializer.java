@@ -0,0 +1,406 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes {@link Data} into a compact, length-prefixed format without going through Jackson.
+ *
+ * The output starts with a version header, followed by one section per non-empty value type. A section is a type
+ * character and an entry count, followed by the entries. Strings (including keys) are written as their length, a colon,
+ * and then the raw characters, so they never need to be escaped. Numbers are written in decimal and terminated with a
+ * comma. Nulls are written as an underscore.
+ *
+ * Data that was serialized by {@link JsonDataSerializer} can still be deserialized.
+ */
+public class CompactDataSerializer implements Data.Serializer {
+
+  private static final String TAG = Log.tag(CompactDataSerializer.class);
+
+  private static final String HEADER = "~1";
+
+  private static final char STRINGS        = 's';
+  private static final char STRING_ARRAYS  = 'S';
+  private static final char INTEGERS       = 'i';
+  private static final char INTEGER_ARRAYS = 'I';
+  private static final char LONGS          = 'l';
+  private static final char LONG_ARRAYS    = 'L';
+  private static final char FLOATS         = 'f';
+  private static final char FLOAT_ARRAYS   = 'F';
+  private static final char DOUBLES        = 'd';
+  private static final char DOUBLE_ARRAYS  = 'D';
+  private static final char BOOLEANS       = 'b';
+  private static final char BOOLEAN_ARRAYS = 'B';
+
+  private static final char NULL      = '_';
+  private static final char SEPARATOR = ',';
+  private static final char DELIMITER = ':';
+
+  private final JsonDataSerializer legacySerializer = new JsonDataSerializer();
+
+  @Override
+  public @NonNull String serialize(@NonNull Data data) {
+    StringBuilder out = new StringBuilder(HEADER);
+
+    if (!data.getStrings().isEmpty()) {
+      writeSection(out, STRINGS, data.getStrings().size());
+      for (Map.Entry<String, String> entry : data.getStrings().entrySet()) {
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+    }
+
+    if (!data.getStringArrays().isEmpty()) {
+      writeSection(out, STRING_ARRAYS, data.getStringArrays().size());
+      for (Map.Entry<String, String[]> entry : data.getStringArrays().entrySet()) {
+        writeString(out, entry.getKey());
+        if (writeArrayLength(out, entry.getValue() != null ? entry.getValue().length : -1)) {
+          for (String value : entry.getValue()) {
+            writeString(out, value);
+          }
+        }
+      }
+    }
+
+    if (!data.getIntegers().isEmpty()) {
+      writeSection(out, INTEGERS, data.getIntegers().size());
+      for (Map.Entry<String, Integer> entry : data.getIntegers().entrySet()) {
+        writeString(out, entry.getKey());
+        out.append(entry.getValue().intValue()).append(SEPARATOR);
+      }
+    }
+
+    if (!data.getIntegerArrays().isEmpty()) {
+      writeSection(out, INTEGER_ARRAYS, data.getIntegerArrays().size());
+      for (Map.Entry<String, int[]> entry : data.getIntegerArrays().entrySet()) {
+        writeString(out, entry.getKey());
+        if (writeArrayLength(out, entry.getValue() != null ? entry.getValue().length : -1)) {
+          for (int value : entry.getValue()) {
+            out.append(value).append(SEPARATOR);
+          }
+        }
+      }
+    }
+
+    if (!data.getLongs().isEmpty()) {
+      writeSection(out, LONGS, data.getLongs().size());
+      for (Map.Entry<String, Long> entry : data.getLongs().entrySet()) {
+        writeString(out, entry.getKey());
+        out.append(entry.getValue().longValue()).append(SEPARATOR);
+      }
+    }
+
+    if (!data.getLongArrays().isEmpty()) {
+      writeSection(out, LONG_ARRAYS, data.getLongArrays().size());
+      for (Map.Entry<String, long[]> entry : data.getLongArrays().entrySet()) {
+        writeString(out, entry.getKey());
+        if (writeArrayLength(out, entry.getValue() != null ? entry.getValue().length : -1)) {
+          for (long value : entry.getValue()) {
+            out.append(value).append(SEPARATOR);
+          }
+        }
+      }
+    }
+
+    if (!data.getFloats().isEmpty()) {
+      writeSection(out, FLOATS, data.getFloats().size());
+      for (Map.Entry<String, Float> entry : data.getFloats().entrySet()) {
+        writeString(out, entry.getKey());
+        out.append(entry.getValue().floatValue()).append(SEPARATOR);
+      }
+    }
+
+    if (!data.getFloatArrays().isEmpty()) {
+      writeSection(out, FLOAT_ARRAYS, data.getFloatArrays().size());
+      for (Map.Entry<String, float[]> entry : data.getFloatArrays().entrySet()) {
+        writeString(out, entry.getKey());
+        if (writeArrayLength(out, entry.getValue() != null ? entry.getValue().length : -1)) {
+          for (float value : entry.getValue()) {
+            out.append(value).append(SEPARATOR);
+          }
+        }
+      }
+    }
+
+    if (!data.getDoubles().isEmpty()) {
+      writeSection(out, DOUBLES, data.getDoubles().size());
+      for (Map.Entry<String, Double> entry : data.getDoubles().entrySet()) {
+        writeString(out, entry.getKey());
+        out.append(entry.getValue().doubleValue()).append(SEPARATOR);
+      }
+    }
+
+    if (!data.getDoubleArrays().isEmpty()) {
+      writeSection(out, DOUBLE_ARRAYS, data.getDoubleArrays().size());
+      for (Map.Entry<String, double[]> entry : data.getDoubleArrays().entrySet()) {
+        writeString(out, entry.getKey());
+        if (writeArrayLength(out, entry.getValue() != null ? entry.getValue().length : -1)) {
+          for (double value : entry.getValue()) {
+            out.append(value).append(SEPARATOR);
+          }
+        }
+      }
+    }
+
+    if (!data.getBooleans().isEmpty()) {
+      writeSection(out, BOOLEANS, data.getBooleans().size());
+      for (Map.Entry<String, Boolean> entry : data.getBooleans().entrySet()) {
+        writeString(out, entry.getKey());
+        out.append(entry.getValue() ? '1' : '0');
+      }
+    }
+
+    if (!data.getBooleanArrays().isEmpty()) {
+      writeSection(out, BOOLEAN_ARRAYS, data.getBooleanArrays().size());
+      for (Map.Entry<String, boolean[]> entry : data.getBooleanArrays().entrySet()) {
+        writeString(out, entry.getKey());
+        if (writeArrayLength(out, entry.getValue() != null ? entry.getValue().length : -1)) {
+          for (boolean value : entry.getValue()) {
+            out.append(value ? '1' : '0');
+          }
+        }
+      }
+    }
+
+    return out.toString();
+  }
+
+  @Override
+  public @NonNull Data deserialize(@NonNull String serialized) {
+    if (!serialized.startsWith(HEADER)) {
+      return legacySerializer.deserialize(serialized);
+    }
+
+    try {
+      return new Reader(serialized).read();
+    } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+      Log.e(TAG, "Failed to deserialize data.", e);
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void writeSection(@NonNull StringBuilder out, char type, int count) {
+    out.append(type).append(count).append(SEPARATOR);
+  }
+
+  private static void writeString(@NonNull StringBuilder out, @Nullable String value) {
+    if (value == null) {
+      out.append(NULL);
+    } else {
+      out.append(value.length()).append(DELIMITER).append(value);
+    }
+  }
+
+  /**
+   * @param length The length of the array, or -1 if it is null.
+   * @return True if the array is non-null and its elements should follow, otherwise false.
+   */
+  private static boolean writeArrayLength(@NonNull StringBuilder out, int length) {
+    if (length < 0) {
+      out.append(NULL);
+      return false;
+    } else {
+      out.append(length).append(SEPARATOR);
+      return true;
+    }
+  }
+
+  private static final class Reader {
+
+    private final String serialized;
+
+    private int position;
+
+    private Reader(@NonNull String serialized) {
+      this.serialized = serialized;
+      this.position   = HEADER.length();
+    }
+
+    @NonNull Data read() {
+      Map<String, String>    strings       = new HashMap<>();
+      Map<String, String[]>  stringArrays  = new HashMap<>();
+      Map<String, Integer>   integers      = new HashMap<>();
+      Map<String, int[]>     integerArrays = new HashMap<>();
+      Map<String, Long>      longs         = new HashMap<>();
+      Map<String, long[]>    longArrays    = new HashMap<>();
+      Map<String, Float>     floats        = new HashMap<>();
+      Map<String, float[]>   floatArrays   = new HashMap<>();
+      Map<String, Double>    doubles       = new HashMap<>();
+      Map<String, double[]>  doubleArrays  = new HashMap<>();
+      Map<String, Boolean>   booleans      = new HashMap<>();
+      Map<String, boolean[]> booleanArrays = new HashMap<>();
+
+      while (position < serialized.length()) {
+        char type  = serialized.charAt(position++);
+        int  count = Integer.parseInt(readToken(SEPARATOR));
+
+        for (int i = 0; i < count; i++) {
+          String key = readString();
+
+          switch (type) {
+            case STRINGS:
+              strings.put(key, readString());
+              break;
+            case STRING_ARRAYS:
+              stringArrays.put(key, readStringArray());
+              break;
+            case INTEGERS:
+              integers.put(key, Integer.parseInt(readToken(SEPARATOR)));
+              break;
+            case INTEGER_ARRAYS:
+              integerArrays.put(key, readIntArray());
+              break;
+            case LONGS:
+              longs.put(key, Long.parseLong(readToken(SEPARATOR)));
+              break;
+            case LONG_ARRAYS:
+              longArrays.put(key, readLongArray());
+              break;
+            case FLOATS:
+              floats.put(key, Float.parseFloat(readToken(SEPARATOR)));
+              break;
+            case FLOAT_ARRAYS:
+              floatArrays.put(key, readFloatArray());
+              break;
+            case DOUBLES:
+              doubles.put(key, Double.parseDouble(readToken(SEPARATOR)));
+              break;
+            case DOUBLE_ARRAYS:
+              doubleArrays.put(key, readDoubleArray());
+              break;
+            case BOOLEANS:
+              booleans.put(key, readBoolean());
+              break;
+            case BOOLEAN_ARRAYS:
+              booleanArrays.put(key, readBooleanArray());
+              break;
+            default:
+              throw new IllegalArgumentException("Unknown type '" + type + "' at position " + (position - 1));
+          }
+        }
+      }
+
+      return new Data(strings, stringArrays, integers, integerArrays, longs, longArrays, floats, floatArrays, doubles, doubleArrays, booleans, booleanArrays);
+    }
+
+    private @Nullable String readString() {
+      if (readNull()) {
+        return null;
+      }
+
+      int    length = Integer.parseInt(readToken(DELIMITER));
+      String value  = serialized.substring(position, position + length);
+
+      position += length;
+      return value;
+    }
+
+    private @Nullable String[] readStringArray() {
+      if (readNull()) {
+        return null;
+      }
+
+      String[] values = new String[Integer.parseInt(readToken(SEPARATOR))];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readString();
+      }
+      return values;
+    }
+
+    private @Nullable int[] readIntArray() {
+      if (readNull()) {
+        return null;
+      }
+
+      int[] values = new int[Integer.parseInt(readToken(SEPARATOR))];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Integer.parseInt(readToken(SEPARATOR));
+      }
+      return values;
+    }
+
+    private @Nullable long[] readLongArray() {
+      if (readNull()) {
+        return null;
+      }
+
+      long[] values = new long[Integer.parseInt(readToken(SEPARATOR))];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Long.parseLong(readToken(SEPARATOR));
+      }
+      return values;
+    }
+
+    private @Nullable float[] readFloatArray() {
+      if (readNull()) {
+        return null;
+      }
+
+      float[] values = new float[Integer.parseInt(readToken(SEPARATOR))];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Float.parseFloat(readToken(SEPARATOR));
+      }
+      return values;
+    }
+
+    private @Nullable double[] readDoubleArray() {
+      if (readNull()) {
+        return null;
+      }
+
+      double[] values = new double[Integer.parseInt(readToken(SEPARATOR))];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = Double.parseDouble(readToken(SEPARATOR));
+      }
+      return values;
+    }
+
+    private @Nullable boolean[] readBooleanArray() {
+      if (readNull()) {
+        return null;
+      }
+
+      boolean[] values = new boolean[Integer.parseInt(readToken(SEPARATOR))];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = readBoolean();
+      }
+      return values;
+    }
+
+    private boolean readBoolean() {
+      char value = serialized.charAt(position++);
+
+      switch (value) {
+        case '1': return true;
+        case '0': return false;
+        default:  throw new IllegalArgumentException("Invalid boolean '" + value + "' at position " + (position - 1));
+      }
+    }
+
+    private boolean readNull() {
+      if (serialized.charAt(position) == NULL) {
+        position++;
+        return true;
+      }
+      return false;
+    }
+
+    private @NonNull String readToken(char terminator) {
+      int end = serialized.indexOf(terminator, position);
+      if (end < 0) {
+        throw new IllegalArgumentException("Missing '" + terminator + "' after position " + position);
+      }
+
+      String token = serialized.substring(position, end);
+
+      position = end + 1;
+      return token;
+    }
+  }
+}
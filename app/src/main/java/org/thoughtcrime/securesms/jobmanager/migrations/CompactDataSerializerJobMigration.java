@@ -0,0 +1,24 @@
+package org.thoughtcrime.securesms.jobmanager.migrations;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.JobMigration;
+import org.thoughtcrime.securesms.jobmanager.JobMigrator;
+import org.thoughtcrime.securesms.jobmanager.impl.CompactDataSerializer;
+
+/**
+ * We switched from storing job data as JSON to the format written by {@link CompactDataSerializer}. The data itself is
+ * unchanged, but the {@link JobMigrator} re-serializes every job after running a migration, so having a migration at all
+ * is enough to rewrite the existing jobs in the new format. Input data is left alone, and is read via the JSON fallback.
+ */
+public class CompactDataSerializerJobMigration extends JobMigration {
+
+  public CompactDataSerializerJobMigration() {
+    super(10);
+  }
+
+  @Override
+  protected @NonNull JobData migrate(@NonNull JobData jobData) {
+    return jobData;
+  }
+}
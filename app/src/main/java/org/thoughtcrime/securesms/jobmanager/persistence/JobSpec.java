@@ -54,6 +54,10 @@ public final class JobSpec {
     return new JobSpec(id, factoryKey, queueKey, createTime, updated, runAttempt, maxAttempts, lifespan, serializedData, serializedInputData, isRunning, memoryOnly);
   }
 
+  public @NonNull JobSpec withData(@NonNull String updated) {
+    return new JobSpec(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, lifespan, updated, serializedInputData, isRunning, memoryOnly);
+  }
+
   public @NonNull String getId() {
     return id;
   }
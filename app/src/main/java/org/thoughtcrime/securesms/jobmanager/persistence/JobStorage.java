@@ -6,6 +6,7 @@ import androidx.annotation.WorkerThread;
 
 import java.util.List;
 import java.util.Set;
+import java.util.function.Predicate;
 
 public interface JobStorage {
 
@@ -24,6 +25,13 @@ public interface JobStorage {
   @WorkerThread
   @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime);
 
+  /**
+   * Same as {@link #getPendingJobsWithNoDependenciesInCreatedOrder(long)}, but only returns up to {@code limit} jobs that
+   * match the provided filter.
+   */
+  @WorkerThread
+  @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime, @NonNull Predicate<JobSpec> filter, int limit);
+
   @WorkerThread
   @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue);
 
@@ -65,4 +73,15 @@ public interface JobStorage {
 
   @WorkerThread
   @NonNull List<DependencySpec> getAllDependencySpecs();
+
+  /**
+   * Blocks until every write made so far has been persisted.
+   */
+  @WorkerThread
+  void flush();
+
+  /**
+   * A human-readable description of how writes are being persisted, for debug logs.
+   */
+  @NonNull String getDebugInfo();
 }
@@ -39,7 +39,6 @@ import org.whispersystems.signalservice.api.push.exceptions.RangeException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -181,11 +180,13 @@ public final class AttachmentDownloadJob extends BaseJob {
     File               attachmentFile = database.getOrCreateTransferFile(attachmentId);
 
     try {
-      SignalServiceMessageReceiver   messageReceiver = ApplicationDependencies.getSignalServiceMessageReceiver();
-      SignalServiceAttachmentPointer pointer         = createAttachmentPointer(attachment);
-      InputStream                    stream          = messageReceiver.retrieveAttachment(pointer, attachmentFile, MAX_ATTACHMENT_SIZE, (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)));
+      SignalServiceMessageReceiver            messageReceiver = ApplicationDependencies.getSignalServiceMessageReceiver();
+      SignalServiceAttachmentPointer          pointer         = createAttachmentPointer(attachment);
+      AttachmentDatabase.StagedAttachmentData stagedData      = database.stageAttachmentData();
 
-      database.insertAttachmentsForPlaceholder(messageId, attachmentId, stream);
+      messageReceiver.retrieveAttachment(pointer, attachmentFile, MAX_ATTACHMENT_SIZE, (total, progress) -> EventBus.getDefault().postSticky(new PartProgressEvent(attachment, PartProgressEvent.Type.NETWORK, total, progress)), stagedData);
+
+      database.insertAttachmentsForPlaceholder(messageId, attachmentId, stagedData);
     } catch (RangeException e) {
       Log.w(TAG, "Range exception, file size " + attachmentFile.length(), e);
       if (attachmentFile.delete()) {
@@ -2,10 +2,11 @@ package org.thoughtcrime.securesms.jobs;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
-import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
+import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.jobmanager.Job;
@@ -18,31 +19,91 @@ import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * An in-memory, indexed view of the jobs in {@link JobDatabase}.
+ *
+ * Jobs are indexed by id, by queue (in FIFO order) and by factory, and the set of jobs that are
+ * eligible to run (the head of their queue, not running and without dependencies) is kept up to date
+ * incrementally as jobs are mutated. Eligible jobs whose next run attempt time has not yet passed are
+ * held in a separate set ordered by that time, and are promoted to the created-order ready set as
+ * time passes. This keeps {@link #getPendingJobsWithNoDependenciesInCreatedOrder(long, Predicate, int)},
+ * which is called every time the job runners wake up, independent of the total number of jobs.
+ */
 public class FastJobStorage implements JobStorage {
 
   private static final String TAG = Log.tag(FastJobStorage.class);
 
-  private final JobDatabase jobDatabase;
+  private static final long FLUSH_WINDOW_MS = 100;
+  private static final int  MAX_BATCH_SIZE  = 64;
+
+  private final JobDatabase        jobDatabase;
+  private final JobDatabaseJournal journal;
 
-  private final List<JobSpec>                     jobs;
+  private final Map<String, JobSpec>              jobsById;
+  private final Map<String, Long>                 insertOrderById;
+  private final Map<String, TreeSet<JobSpec>>     jobsByQueue;
+  private final Map<String, Integer>              jobCountsByFactory;
+  private final TreeSet<JobSpec>                  readyJobs;
+  private final TreeSet<JobSpec>                  delayedJobs;
   private final Map<String, List<ConstraintSpec>> constraintsByJobId;
   private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, List<DependencySpec>> dependentsByJobId;
+
+  private final Comparator<JobSpec> createdOrder;
+
+  private long nextInsertOrder;
+  private long readyUntil;
 
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
+    this(jobDatabase, false);
+  }
+
+  /**
+   * @param writeBehind If true, updates to the state of existing jobs are written to the database in batches shortly after
+   *                    they are made, rather than one at a time. See {@link JobDatabaseJournal}.
+   */
+  public FastJobStorage(@NonNull JobDatabase jobDatabase, boolean writeBehind) {
+    this(jobDatabase, new JobDatabaseJournal(jobDatabase,
+                                             writeBehind,
+                                             writeBehind ? SignalExecutors.newCachedSingleThreadExecutor("signal-JobJournal") : null,
+                                             FLUSH_WINDOW_MS,
+                                             MAX_BATCH_SIZE));
+  }
+
+  @VisibleForTesting
+  FastJobStorage(@NonNull JobDatabase jobDatabase, @NonNull JobDatabaseJournal journal) {
     this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
+    this.journal             = journal;
+    this.jobsById            = new LinkedHashMap<>();
+    this.insertOrderById     = new HashMap<>();
+    this.jobsByQueue         = new HashMap<>();
+    this.jobCountsByFactory  = new HashMap<>();
     this.constraintsByJobId  = new HashMap<>();
     this.dependenciesByJobId = new HashMap<>();
+    this.dependentsByJobId   = new HashMap<>();
+
+    this.createdOrder = (j1, j2) -> {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+      return result != 0 ? result : Long.compare(getInsertOrder(j1), getInsertOrder(j2));
+    };
+
+    this.readyJobs   = new TreeSet<>(createdOrder);
+    this.delayedJobs = new TreeSet<>((j1, j2) -> {
+      int result = Long.compare(j1.getNextRunAttemptTime(), j2.getNextRunAttemptTime());
+      return result != 0 ? result : createdOrder.compare(j1, j2);
+    });
   }
 
   @Override
@@ -51,8 +112,6 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
-
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
       jobConstraints.add(constraintSpec);
@@ -60,9 +119,15 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (DependencySpec dependencySpec : dependencySpecs) {
-      List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
-      jobDependencies.add(dependencySpec);
-      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependency(dependencySpec);
+    }
+
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
+    }
+
+    for (JobSpec jobSpec : jobSpecs) {
+      updateEligibility(jobSpec);
     }
   }
 
@@ -70,142 +135,129 @@ public class FastJobStorage implements JobStorage {
   public synchronized void insertJobs(@NonNull List<FullSpec> fullSpecs) {
     List<FullSpec> durable = Stream.of(fullSpecs).filterNot(FullSpec::isMemoryOnly).toList();
     if (durable.size() > 0) {
-      jobDatabase.insertJobs(durable);
+      journal.insertJobs(durable);
     }
 
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
-      constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+      String jobId = fullSpec.getJobSpec().getId();
+
+      constraintsByJobId.put(jobId, fullSpec.getConstraintSpecs());
+      removeDependencies(jobId);
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        addDependency(dependencySpec);
+      }
+
+      removeJob(jobId);
+      addJob(fullSpec.getJobSpec());
+      updateEligibility(fullSpec.getJobSpec());
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobsById.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobsById.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    Optional<JobSpec> migrationJob = getMigrationJob();
-
-    if (migrationJob.isPresent() && !migrationJob.get().isRunning() && migrationJob.get().getNextRunAttemptTime() <= currentTime) {
-      return Collections.singletonList(migrationJob.get());
-    } else if (migrationJob.isPresent()) {
-      return Collections.emptyList();
-    } else {
-      return Stream.of(jobs)
-                   .groupBy(jobSpec -> {
-                     String queueKey = jobSpec.getQueueKey();
-                     if (queueKey != null) {
-                       return queueKey;
-                     } else {
-                       return jobSpec.getId();
-                     }
-                   })
-                   .map(byQueueKey ->
-                     Stream.of(byQueueKey.getValue()).sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                           .findFirst()
-                           .orElse(null)
-                   )
-                   .withoutNulls()
-                   .filter(j -> {
-                     List<DependencySpec> dependencies = dependenciesByJobId.get(j.getId());
-                     return dependencies == null || dependencies.isEmpty();
-                   })
-                   .filterNot(JobSpec::isRunning)
-                   .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                   .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                   .toList();
-    }
+    return getPendingJobsWithNoDependenciesInCreatedOrder(currentTime, j -> true, Integer.MAX_VALUE);
   }
 
   @Override
-  public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
-    return Stream.of(jobs)
-                 .filter(j -> queue.equals(j.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList();
-  }
+  public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime, @NonNull Predicate<JobSpec> filter, int limit) {
+    TreeSet<JobSpec> migrationQueue = jobsByQueue.get(Job.Parameters.MIGRATION_QUEUE_KEY);
 
-  private Optional<JobSpec> getMigrationJob() {
-    return Optional.ofNullable(Stream.of(jobs)
-                                       .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
-                                       .filter(this::firstInQueue)
-                                       .findFirst()
-                                       .orElse(null));
-  }
+    if (migrationQueue != null && !migrationQueue.isEmpty()) {
+      JobSpec migrationJob = migrationQueue.first();
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
+      if (!migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime && filter.test(migrationJob) && limit > 0) {
+        return Collections.singletonList(migrationJob);
+      } else {
+        return Collections.emptyList();
+      }
     }
 
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+    promoteDelayedJobs(currentTime);
+
+    List<JobSpec> ready = new ArrayList<>();
+
+    for (JobSpec job : readyJobs) {
+      if (ready.size() >= limit) {
+        break;
+      }
+
+      if (job.getNextRunAttemptTime() <= currentTime && filter.test(job)) {
+        ready.add(job);
+      }
+    }
+
+    return ready;
+  }
+
+  @Override
+  public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
+    TreeSet<JobSpec> jobs = jobsByQueue.get(queue);
+    return jobs != null ? new ArrayList<>(jobs) : new ArrayList<>();
   }
 
   @Override
   public synchronized int getJobCountForFactory(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
-                       .filter(j -> j.getFactoryKey().equals(factoryKey))
-                       .count();
+    return Util.getOrDefault(jobCountsByFactory, factoryKey, 0);
   }
 
   @Override
   public synchronized int getJobCountForFactoryAndQueue(@NonNull String factoryKey, @NonNull String queueKey) {
-    return (int) Stream.of(jobs)
-                       .filter(j -> factoryKey.equals(j.getFactoryKey()) &&
-                                    queueKey.equals(j.getQueueKey()))
-                       .count();
+    TreeSet<JobSpec> jobs = jobsByQueue.get(queueKey);
+
+    if (jobs == null) {
+      return 0;
+    }
+
+    int count = 0;
+    for (JobSpec job : jobs) {
+      if (factoryKey.equals(job.getFactoryKey())) {
+        count++;
+      }
+    }
+    return count;
   }
 
   @Override
-  public boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
-    return Stream.of(jobs)
-                 .noneMatch(j -> j.getQueueKey() != null && queueKeys.contains(j.getQueueKey()));
+  public synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    for (String queueKey : queueKeys) {
+      if (jobsByQueue.containsKey(queueKey)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
     JobSpec job = getJobById(id);
     if (job == null || !job.isMemoryOnly()) {
-      jobDatabase.updateJobRunningState(id, isRunning);
-    }
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      existing.getSerializedData(),
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+      journal.updateJobRunningState(id, isRunning);
+    }
+
+    if (job != null) {
+      replaceJob(new JobSpec(job.getId(),
+                             job.getFactoryKey(),
+                             job.getQueueKey(),
+                             job.getCreateTime(),
+                             job.getNextRunAttemptTime(),
+                             job.getRunAttempt(),
+                             job.getMaxAttempts(),
+                             job.getLifespan(),
+                             job.getSerializedData(),
+                             job.getSerializedInputData(),
+                             isRunning,
+                             job.isMemoryOnly()));
     }
   }
 
@@ -213,57 +265,51 @@ public class FastJobStorage implements JobStorage {
   public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
     JobSpec job = getJobById(id);
     if (job == null || !job.isMemoryOnly()) {
-      jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
-    }
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      serializedData,
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
-      }
+      journal.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
+    }
+
+    if (job != null) {
+      replaceJob(new JobSpec(job.getId(),
+                             job.getFactoryKey(),
+                             job.getQueueKey(),
+                             job.getCreateTime(),
+                             nextRunAttemptTime,
+                             runAttempt,
+                             job.getMaxAttempts(),
+                             job.getLifespan(),
+                             serializedData,
+                             job.getSerializedInputData(),
+                             isRunning,
+                             job.isMemoryOnly()));
     }
   }
 
   @Override
   public synchronized void updateAllJobsToBePending() {
-    jobDatabase.updateAllJobsToBePending();
+    journal.updateAllJobsToBePending();
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
+    for (JobSpec existing : new ArrayList<>(jobsById.values())) {
+      if (!existing.isRunning()) {
+        continue;
+      }
 
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getLifespan(),
-                                     existing.getSerializedData(),
-                                     existing.getSerializedInputData(),
-                                     false,
-                                     existing.isMemoryOnly());
-      iter.set(updated);
+      replaceJob(new JobSpec(existing.getId(),
+                             existing.getFactoryKey(),
+                             existing.getQueueKey(),
+                             existing.getCreateTime(),
+                             existing.getNextRunAttemptTime(),
+                             existing.getRunAttempt(),
+                             existing.getMaxAttempts(),
+                             existing.getLifespan(),
+                             existing.getSerializedData(),
+                             existing.getSerializedInputData(),
+                             false,
+                             existing.isMemoryOnly()));
     }
   }
 
   @Override
-  public void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
     List<JobSpec> durable = new ArrayList<>(jobSpecs.size());
     for (JobSpec update : jobSpecs) {
       JobSpec found = getJobById(update.getId());
@@ -273,18 +319,12 @@ public class FastJobStorage implements JobStorage {
     }
 
     if (durable.size() > 0) {
-      jobDatabase.updateJobs(durable);
+      journal.updateJobs(durable);
     }
 
-    Map<String, JobSpec>  updates = Stream.of(jobSpecs).collect(Collectors.toMap(JobSpec::getId));
-    ListIterator<JobSpec> iter    = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec update   = updates.get(existing.getId());
-
-      if (update != null) {
-        iter.set(update);
+    for (JobSpec update : jobSpecs) {
+      if (jobsById.containsKey(update.getId())) {
+        replaceJob(update);
       }
     }
   }
@@ -305,32 +345,46 @@ public class FastJobStorage implements JobStorage {
     }
 
     if (durableIds.size() > 0) {
-      jobDatabase.deleteJobs(durableIds);
+      journal.deleteJobs(durableIds);
     }
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
-
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
-      }
-    }
+    Set<String> unblockedJobIds = new HashSet<>();
 
     for (String jobId : jobIds) {
-      constraintsByJobId.remove(jobId);
-      dependenciesByJobId.remove(jobId);
+      removeJob(jobId);
 
-      for (Map.Entry<String, List<DependencySpec>> entry : dependenciesByJobId.entrySet()) {
-        Iterator<DependencySpec> depedencyIter = entry.getValue().iterator();
-
-        while (depedencyIter.hasNext()) {
-          if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
-            depedencyIter.remove();
+      constraintsByJobId.remove(jobId);
+      removeDependencies(jobId);
+
+      List<DependencySpec> dependents = dependentsByJobId.remove(jobId);
+      if (dependents != null) {
+        for (DependencySpec dependent : dependents) {
+          List<DependencySpec> dependencies = dependenciesByJobId.get(dependent.getJobId());
+          if (dependencies != null) {
+            dependencies.remove(dependent);
           }
+          unblockedJobIds.add(dependent.getJobId());
         }
       }
+
     }
+
+    for (String jobId : unblockedJobIds) {
+      JobSpec job = jobsById.get(jobId);
+      if (job != null) {
+        updateEligibility(job);
+      }
+    }
+  }
+
+  @Override
+  public void flush() {
+    journal.flush();
+  }
+
+  @Override
+  public @NonNull String getDebugInfo() {
+    return journal.getDebugInfo();
   }
 
   @Override
@@ -354,7 +408,10 @@ public class FastJobStorage implements JobStorage {
     Set<String> activeJobIds;
 
     do {
-      activeJobIds = Stream.of(layer).map(DependencySpec::getJobId).collect(Collectors.toSet());
+      activeJobIds = new HashSet<>();
+      for (DependencySpec dependencySpec : layer) {
+        activeJobIds.add(dependencySpec.getJobId());
+      }
       layer.clear();
 
       for (String activeJobId : activeJobIds) {
@@ -368,15 +425,12 @@ public class FastJobStorage implements JobStorage {
   }
 
   private @NonNull List<DependencySpec> getSingleLayerOfDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
-    return Stream.of(dependenciesByJobId.entrySet())
-                 .map(Map.Entry::getValue)
-                 .flatMap(Stream::of)
-                 .filter(j -> j.getDependsOnJobId().equals(jobSpecId))
-                 .toList();
+    List<DependencySpec> dependents = dependentsByJobId.get(jobSpecId);
+    return dependents != null ? new ArrayList<>(dependents) : new ArrayList<>();
   }
 
   @Override
-  public @NonNull List<DependencySpec> getAllDependencySpecs() {
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
     return Stream.of(dependenciesByJobId)
                  .map(Map.Entry::getValue)
                  .flatMap(Stream::of)
@@ -384,12 +438,214 @@ public class FastJobStorage implements JobStorage {
   }
 
   private JobSpec getJobById(@NonNull String id) {
-    for (JobSpec job : jobs) {
-      if (job.getId().equals(id)) {
-        return job;
+    JobSpec job = jobsById.get(id);
+    if (job == null) {
+      Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
+    }
+    return job;
+  }
+
+  private long getInsertOrder(@NonNull JobSpec job) {
+    Long order = insertOrderById.get(job.getId());
+    return order != null ? order : Long.MAX_VALUE;
+  }
+
+  /**
+   * Adds a job to the id, queue and factory indices. Does not update the eligible set, see {@link #updateEligibility(JobSpec)}.
+   */
+  private void addJob(@NonNull JobSpec job) {
+    jobsById.put(job.getId(), job);
+
+    if (!insertOrderById.containsKey(job.getId())) {
+      insertOrderById.put(job.getId(), nextInsertOrder++);
+    }
+
+    if (job.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueue.get(job.getQueueKey());
+      if (queue == null) {
+        queue = new TreeSet<>(createdOrder);
+        jobsByQueue.put(job.getQueueKey(), queue);
+      }
+
+      JobSpec previousHead = queue.isEmpty() ? null : queue.first();
+
+      queue.add(job);
+
+      if (previousHead != null && previousHead != queue.first()) {
+        removeEligible(previousHead);
+      }
+    }
+
+    jobCountsByFactory.put(job.getFactoryKey(), Util.getOrDefault(jobCountsByFactory, job.getFactoryKey(), 0) + 1);
+  }
+
+  /**
+   * Removes a job from all of the job indices, returning the removed job, if present. If the job was the head of its queue,
+   * the new head is re-evaluated for eligibility.
+   */
+  private @Nullable JobSpec removeJob(@NonNull String jobId) {
+    JobSpec job = jobsById.remove(jobId);
+
+    if (job == null) {
+      return null;
+    }
+
+    removeEligible(job);
+
+    if (job.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueue.get(job.getQueueKey());
+      if (queue != null) {
+        queue.remove(job);
+        if (queue.isEmpty()) {
+          jobsByQueue.remove(job.getQueueKey());
+        } else {
+          updateEligibility(queue.first());
+        }
+      }
+    }
+
+    int factoryCount = Util.getOrDefault(jobCountsByFactory, job.getFactoryKey(), 0) - 1;
+    if (factoryCount > 0) {
+      jobCountsByFactory.put(job.getFactoryKey(), factoryCount);
+    } else {
+      jobCountsByFactory.remove(job.getFactoryKey());
+    }
+
+    insertOrderById.remove(jobId);
+
+    return job;
+  }
+
+  /**
+   * Swaps the stored version of a job for an updated one, keeping the original insert position and re-indexing it.
+   */
+  private void replaceJob(@NonNull JobSpec updated) {
+    JobSpec existing = jobsById.get(updated.getId());
+
+    if (existing == null) {
+      return;
+    }
+
+    Long insertOrder = insertOrderById.get(updated.getId());
+
+    removeEligible(existing);
+
+    if (existing.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueue.get(existing.getQueueKey());
+      if (queue != null) {
+        queue.remove(existing);
+        if (queue.isEmpty()) {
+          jobsByQueue.remove(existing.getQueueKey());
+        } else if (!Util.equals(existing.getQueueKey(), updated.getQueueKey())) {
+          updateEligibility(queue.first());
+        }
+      }
+    }
+
+    int factoryCount = Util.getOrDefault(jobCountsByFactory, existing.getFactoryKey(), 0) - 1;
+    if (factoryCount > 0) {
+      jobCountsByFactory.put(existing.getFactoryKey(), factoryCount);
+    } else {
+      jobCountsByFactory.remove(existing.getFactoryKey());
+    }
+
+    insertOrderById.put(updated.getId(), insertOrder);
+    addJob(updated);
+
+    if (updated.getQueueKey() != null) {
+      updateEligibility(jobsByQueue.get(updated.getQueueKey()).first());
+    } else {
+      updateEligibility(updated);
+    }
+  }
+
+  /**
+   * Adds or removes the job from the eligible set based on whether or not it's at the head of its queue, not running and
+   * has no outstanding dependencies.
+   */
+  private void updateEligibility(@NonNull JobSpec job) {
+    removeEligible(job);
+
+    if (isHeadOfQueue(job) && !job.isRunning() && !hasDependencies(job.getId())) {
+      if (job.getNextRunAttemptTime() <= readyUntil) {
+        readyJobs.add(job);
+      } else {
+        delayedJobs.add(job);
+      }
+    }
+  }
+
+  private void removeEligible(@NonNull JobSpec job) {
+    if (!readyJobs.remove(job)) {
+      delayedJobs.remove(job);
+    }
+  }
+
+  /**
+   * Moves eligible jobs whose next run attempt time has passed into the set of ready jobs.
+   */
+  private void promoteDelayedJobs(long currentTime) {
+    readyUntil = Math.max(readyUntil, currentTime);
+
+    while (!delayedJobs.isEmpty() && delayedJobs.first().getNextRunAttemptTime() <= readyUntil) {
+      readyJobs.add(delayedJobs.pollFirst());
+    }
+  }
+
+  private boolean isHeadOfQueue(@NonNull JobSpec job) {
+    if (job.getQueueKey() == null) {
+      return true;
+    }
+
+    TreeSet<JobSpec> queue = jobsByQueue.get(job.getQueueKey());
+    return queue != null && !queue.isEmpty() && queue.first().equals(job);
+  }
+
+  private boolean hasDependencies(@NonNull String jobId) {
+    List<DependencySpec> dependencies = dependenciesByJobId.get(jobId);
+    return dependencies != null && !dependencies.isEmpty();
+  }
+
+  private void addDependency(@NonNull DependencySpec dependencySpec) {
+    List<DependencySpec> jobDependencies = dependenciesByJobId.get(dependencySpec.getJobId());
+    if (jobDependencies == null) {
+      jobDependencies = new LinkedList<>();
+      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+    }
+    jobDependencies.add(dependencySpec);
+
+    List<DependencySpec> dependents = dependentsByJobId.get(dependencySpec.getDependsOnJobId());
+    if (dependents == null) {
+      dependents = new LinkedList<>();
+      dependentsByJobId.put(dependencySpec.getDependsOnJobId(), dependents);
+    }
+    dependents.add(dependencySpec);
+  }
+
+  /**
+   * Removes the dependencies the provided job has on other jobs, along with their reverse edges.
+   */
+  private void removeDependencies(@NonNull String jobId) {
+    List<DependencySpec> dependencies = dependenciesByJobId.remove(jobId);
+
+    if (dependencies == null) {
+      return;
+    }
+
+    for (DependencySpec dependencySpec : dependencies) {
+      List<DependencySpec> dependents = dependentsByJobId.get(dependencySpec.getDependsOnJobId());
+      if (dependents != null) {
+        Iterator<DependencySpec> iter = dependents.iterator();
+        while (iter.hasNext()) {
+          if (iter.next().getJobId().equals(jobId)) {
+            iter.remove();
+          }
+        }
+
+        if (dependents.isEmpty()) {
+          dependentsByJobId.remove(dependencySpec.getDependsOnJobId());
+        }
       }
     }
-    Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
-    return null;
   }
 }
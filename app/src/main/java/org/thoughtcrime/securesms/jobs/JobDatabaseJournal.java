@@ -0,0 +1,263 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Sits in front of {@link JobDatabase} and persists the writes made by {@link FastJobStorage}.
+ *
+ * In write-through mode, every write is applied to the database immediately. In write-behind mode, writes are queued
+ * and applied in order by a background thread, all in a single transaction, once either the flush window has passed or
+ * the batch is full. Writes that are made redundant by a later write to the same job (e.g. a running state update
+ * followed by the deletion of that job) are dropped before they reach the database.
+ *
+ * Because a batch is committed as one transaction, a crash can only lose a suffix of the writes, leaving the database
+ * as it was at some earlier point in time. Jobs that were running or finished in that suffix are simply run again.
+ * Inserts are never deferred: they (and everything queued before them) are committed before
+ * {@link #insertJobs(List)} returns, so a job is never lost once it has been submitted.
+ */
+final class JobDatabaseJournal {
+
+  private static final String TAG = Log.tag(JobDatabaseJournal.class);
+
+  private final JobDatabase jobDatabase;
+  private final boolean     writeBehind;
+  private final Executor    executor;
+  private final long        flushWindowMs;
+  private final int         maxBatchSize;
+  private final Object      flushLock;
+
+  private List<Write> pending;
+  private boolean     flushScheduled;
+
+  private long flushCount;
+  private long totalBatchSize;
+  private long maxObservedBatchSize;
+  private long totalFlushTimeMs;
+  private long maxFlushTimeMs;
+
+  /**
+   * @param executor Runs the delayed flushes. Only used in write-behind mode, and must be provided for it.
+   */
+  JobDatabaseJournal(@NonNull JobDatabase jobDatabase,
+                     boolean writeBehind,
+                     @Nullable Executor executor,
+                     long flushWindowMs,
+                     int maxBatchSize)
+  {
+    if (writeBehind && executor == null) {
+      throw new IllegalArgumentException("Write-behind mode requires an executor!");
+    }
+
+    this.jobDatabase   = jobDatabase;
+    this.writeBehind   = writeBehind;
+    this.executor      = executor;
+    this.flushWindowMs = flushWindowMs;
+    this.maxBatchSize  = maxBatchSize;
+    this.flushLock     = new Object();
+    this.pending       = new ArrayList<>();
+  }
+
+  void insertJobs(@NonNull List<FullSpec> fullSpecs) {
+    enqueue(new Write(Write.Type.OTHER, null, db -> db.insertJobs(fullSpecs)));
+    flush();
+  }
+
+  void updateJobRunningState(@NonNull String id, boolean isRunning) {
+    enqueue(new Write(Write.Type.RUNNING_STATE, id, db -> db.updateJobRunningState(id, isRunning)));
+  }
+
+  void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+    enqueue(new Write(Write.Type.RETRY, id, db -> db.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData)));
+  }
+
+  void updateAllJobsToBePending() {
+    enqueue(new Write(Write.Type.OTHER, null, JobDatabase::updateAllJobsToBePending));
+    flush();
+  }
+
+  void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+    enqueue(new Write(Write.Type.OTHER, null, db -> db.updateJobs(jobSpecs)));
+  }
+
+  void deleteJobs(@NonNull List<String> jobIds) {
+    if (writeBehind) {
+      dropPendingWritesForJobs(new HashSet<>(jobIds));
+    }
+
+    enqueue(new Write(Write.Type.OTHER, null, db -> db.deleteJobs(jobIds)));
+  }
+
+  /**
+   * Blocks until every write made before this call has been committed to the database.
+   */
+  @WorkerThread
+  void flush() {
+    if (!writeBehind) {
+      return;
+    }
+
+    synchronized (flushLock) {
+      List<Write> batch;
+
+      synchronized (this) {
+        if (pending.isEmpty()) {
+          return;
+        }
+
+        batch   = pending;
+        pending = new ArrayList<>();
+      }
+
+      long startTime = System.currentTimeMillis();
+
+      jobDatabase.runInTransaction(() -> {
+        for (Write write : batch) {
+          write.apply(jobDatabase);
+        }
+      });
+
+      long duration = System.currentTimeMillis() - startTime;
+
+      flushCount++;
+      totalBatchSize       += batch.size();
+      totalFlushTimeMs     += duration;
+      maxObservedBatchSize  = Math.max(maxObservedBatchSize, batch.size());
+      maxFlushTimeMs        = Math.max(maxFlushTimeMs, duration);
+    }
+  }
+
+  @NonNull String getDebugInfo() {
+    if (!writeBehind) {
+      return "Write-through";
+    }
+
+    synchronized (flushLock) {
+      if (flushCount == 0) {
+        return "Write-behind, no flushes";
+      }
+
+      return String.format(Locale.US,
+                           "Write-behind, flushes: %d, batch size (avg/max): %.1f/%d, flush time ms (avg/max): %.1f/%d",
+                           flushCount,
+                           totalBatchSize / (float) flushCount,
+                           maxObservedBatchSize,
+                           totalFlushTimeMs / (float) flushCount,
+                           maxFlushTimeMs);
+    }
+  }
+
+  private void enqueue(@NonNull Write write) {
+    if (!writeBehind) {
+      write.apply(jobDatabase);
+      return;
+    }
+
+    synchronized (this) {
+      if (write.jobId != null) {
+        Iterator<Write> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+          Write existing = iterator.next();
+          if (write.jobId.equals(existing.jobId) && write.supersedes(existing)) {
+            iterator.remove();
+          }
+        }
+      }
+
+      pending.add(write);
+
+      if (!flushScheduled) {
+        flushScheduled = true;
+        executor.execute(this::flushAfterWindow);
+      } else if (pending.size() >= maxBatchSize) {
+        notifyAll();
+      }
+    }
+  }
+
+  private synchronized void dropPendingWritesForJobs(@NonNull Set<String> jobIds) {
+    Iterator<Write> iterator = pending.iterator();
+    while (iterator.hasNext()) {
+      Write existing = iterator.next();
+      if (existing.jobId != null && jobIds.contains(existing.jobId)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void flushAfterWindow() {
+    synchronized (this) {
+      long deadline  = System.currentTimeMillis() + flushWindowMs;
+      long remaining = flushWindowMs;
+
+      while (pending.size() < maxBatchSize && remaining > 0) {
+        try {
+          wait(remaining);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Interrupted while waiting for the flush window to pass.", e);
+          break;
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+
+      flushScheduled = false;
+    }
+
+    flush();
+  }
+
+  private static final class Write {
+
+    private enum Type {
+      /** Only sets the running state. */
+      RUNNING_STATE,
+      /** Sets the running state, run attempt, next run attempt time and serialized data. */
+      RETRY,
+      /** Anything else, which is never dropped. */
+      OTHER
+    }
+
+    private final Type          type;
+    private final String        jobId;
+    private final DatabaseWrite databaseWrite;
+
+    private Write(@NonNull Type type, @Nullable String jobId, @NonNull DatabaseWrite databaseWrite) {
+      this.type          = type;
+      this.jobId         = jobId;
+      this.databaseWrite = databaseWrite;
+    }
+
+    /**
+     * Whether this write overwrites every column that the other write to the same job sets, making the other redundant.
+     */
+    private boolean supersedes(@NonNull Write other) {
+      switch (type) {
+        case RETRY:         return other.type == Type.RUNNING_STATE || other.type == Type.RETRY;
+        case RUNNING_STATE: return other.type == Type.RUNNING_STATE;
+        default:            return false;
+      }
+    }
+
+    private void apply(@NonNull JobDatabase jobDatabase) {
+      databaseWrite.apply(jobDatabase);
+    }
+  }
+
+  private interface DatabaseWrite {
+    void apply(@NonNull JobDatabase jobDatabase);
+  }
+}
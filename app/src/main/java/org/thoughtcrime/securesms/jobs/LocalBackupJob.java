@@ -16,6 +16,7 @@ import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.BackupVerifier;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
+import org.thoughtcrime.securesms.backup.IncrementalBackup;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
@@ -24,6 +25,7 @@ import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.impl.ChargingConstraint;
+import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.permissions.Permissions;
 import org.thoughtcrime.securesms.service.GenericForegroundService;
@@ -118,7 +120,14 @@ public final class LocalBackupJob extends BaseJob {
         throw new IOException("Backup password is null");
       }
 
-      File tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, backupDirectory);
+      File              tempFile          = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, backupDirectory);
+      IncrementalBackup incrementalBackup = null;
+
+      if (SignalStore.internalValues().incrementalBackups()) {
+        incrementalBackup = IncrementalBackup.start(context, backupDirectory, fileName, backupPassword);
+      } else {
+        IncrementalBackup.clear(context);
+      }
 
       try {
         Stopwatch   stopwatch     = new Stopwatch("backup-export");
@@ -127,10 +136,11 @@ public final class LocalBackupJob extends BaseJob {
                                                               SignalDatabase.getBackupDatabase(),
                                                               tempFile,
                                                               backupPassword,
+                                                              incrementalBackup,
                                                               this::isCanceled);
         stopwatch.split("backup-create");
 
-        boolean valid = BackupVerifier.verifyFile(new FileInputStream(tempFile), backupPassword, finishedEvent.getCount());
+        boolean valid = BackupVerifier.verifyFile(new FileInputStream(tempFile), backupPassword, finishedEvent.getCount(), incrementalBackup);
         stopwatch.split("backup-verify");
         stopwatch.stop(TAG);
 
@@ -141,6 +151,10 @@ public final class LocalBackupJob extends BaseJob {
             Log.w(TAG, "Failed to rename temp file");
             throw new IOException("Renaming temporary backup file failed!");
           }
+
+          if (incrementalBackup != null) {
+            incrementalBackup.finish(context, backupFile.length());
+          }
         } else {
           BackupFileIOError.VERIFICATION_FAILED.postNotification(context);
         }
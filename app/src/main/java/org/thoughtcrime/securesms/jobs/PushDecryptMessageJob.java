@@ -4,6 +4,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
@@ -97,7 +98,18 @@ public final class PushDecryptMessageJob extends BaseJob {
       throw new RetryLaterException();
     }
 
-    List<Job>        jobs = new LinkedList<>();
+    for (Job job : decrypt(context, envelope, smsMessageId)) {
+      ApplicationDependencies.getJobManager().add(job);
+    }
+  }
+
+  /**
+   * Decrypts the envelope, returning the jobs that need to be run as a result, including the {@link PushProcessMessageJob}
+   * for the content, if there is any.
+   */
+  @WorkerThread
+  public static @NonNull List<Job> decrypt(@NonNull Context context, @NonNull SignalServiceEnvelope envelope, long smsMessageId) {
+    List<Job>        jobs   = new LinkedList<>();
     DecryptionResult result = MessageDecryptionUtil.decrypt(context, envelope);
 
     if (result.getContent() != null) {
@@ -116,9 +128,7 @@ public final class PushDecryptMessageJob extends BaseJob {
 
     jobs.addAll(result.getJobs());
 
-    for (Job job: jobs) {
-      ApplicationDependencies.getJobManager().add(job);
-    }
+    return jobs;
   }
 
   @Override
@@ -130,13 +140,13 @@ public final class PushDecryptMessageJob extends BaseJob {
   public void onFailure() {
   }
 
-  private void handleSenderKeyDistributionMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SenderKeyDistributionMessage message) {
+  private static void handleSenderKeyDistributionMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SenderKeyDistributionMessage message) {
     Log.i(TAG, "Processing SenderKeyDistributionMessage from " + address.getServiceId() + "." + deviceId);
     SignalServiceMessageSender sender = ApplicationDependencies.getSignalServiceMessageSender();
     sender.processSenderKeyDistributionMessage(new SignalProtocolAddress(address.getIdentifier(), deviceId), message);
   }
 
-  private void handlePniSignatureMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SignalServicePniSignatureMessage pniSignatureMessage) {
+  private static void handlePniSignatureMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SignalServicePniSignatureMessage pniSignatureMessage) {
     Log.i(TAG, "Processing PniSignatureMessage from " + address.getServiceId() + "." + deviceId);
 
     PNI pni = pniSignatureMessage.getPni();
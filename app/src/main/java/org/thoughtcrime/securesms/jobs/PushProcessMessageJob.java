@@ -185,6 +185,22 @@ public final class PushProcessMessageJob extends BaseJob {
 
   @Override
   public void onRun() throws Exception {
+    process(context);
+  }
+
+  /**
+   * @return True if nothing (like a group update that has to be fetched first) would hold this job back, meaning it can
+   *         be processed on the spot with {@link #process(Context)} if its queue is also empty.
+   */
+  public boolean canProcessImmediately() {
+    return getParameters().getConstraintKeys().isEmpty();
+  }
+
+  /**
+   * Processes the message on the calling thread, rather than waiting for the job to be run.
+   */
+  @WorkerThread
+  public void process(@NonNull Context context) throws IOException, GroupChangeBusyException {
     MessageContentProcessor processor = MessageContentProcessor.forNormalContent(context);
     processor.process(messageState, content, exceptionMetadata, timestamp, smsMessageId);
   }
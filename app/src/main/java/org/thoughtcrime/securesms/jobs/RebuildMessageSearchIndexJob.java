@@ -0,0 +1,129 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import net.zetetic.database.SQLException;
+
+import org.signal.core.util.Stopwatch;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.transport.RetryLaterException;
+
+/**
+ * Fills the message search index from the sms and mms tables. Work is done in small batches, each in its own
+ * transaction, so that incoming messages aren't held up behind one long write. Batches replace whatever is already in
+ * the index, so it's safe to run this again if it's interrupted part way through.
+ *
+ * The index starts out empty after the migration that creates it, so a database error is retried rather than failing
+ * the job. The last id indexed from each table is kept with the job, so a retry picks up where the previous attempt
+ * left off.
+ */
+public final class RebuildMessageSearchIndexJob extends BaseJob {
+
+  public static final String KEY = "RebuildMessageSearchIndexJob";
+
+  private static final String TAG = Log.tag(RebuildMessageSearchIndexJob.class);
+
+  private static final String KEY_SMS_LAST_ID = "sms_last_id";
+  private static final String KEY_MMS_LAST_ID = "mms_last_id";
+
+  private static final int BATCH_SIZE = 500;
+
+  private long smsLastId;
+  private long mmsLastId;
+
+  public static void enqueue() {
+    ApplicationDependencies.getJobManager().add(new RebuildMessageSearchIndexJob());
+  }
+
+  /**
+   * @return True if the index is still being filled, in which case it may be missing messages that are already in the
+   *         database.
+   */
+  @WorkerThread
+  public static boolean isPending() {
+    return !ApplicationDependencies.getJobManager().isQueueEmpty(KEY);
+  }
+
+  private RebuildMessageSearchIndexJob() {
+    this(new Job.Parameters.Builder()
+                           .setQueue(KEY)
+                           .setMaxInstancesForFactory(2)
+                           .setLifespan(Parameters.IMMORTAL)
+                           .setMaxAttempts(Parameters.UNLIMITED)
+                           .build(),
+         0,
+         0);
+  }
+
+  private RebuildMessageSearchIndexJob(@NonNull Job.Parameters parameters, long smsLastId, long mmsLastId) {
+    super(parameters);
+    this.smsLastId = smsLastId;
+    this.mmsLastId = mmsLastId;
+  }
+
+  @Override
+  public @NonNull Data serialize() {
+    return new Data.Builder().putLong(KEY_SMS_LAST_ID, smsLastId)
+                             .putLong(KEY_MMS_LAST_ID, mmsLastId)
+                             .build();
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  protected void onRun() throws RetryLaterException {
+    SearchDatabase search    = SignalDatabase.messageSearch();
+    Stopwatch      stopwatch = new Stopwatch("rebuild");
+    int            batches   = 0;
+
+    if (smsLastId > 0 || mmsLastId > 0) {
+      Log.i(TAG, "Resuming after sms " + smsLastId + ", mms " + mmsLastId);
+    }
+
+    try {
+      for (long lastId; (lastId = search.indexSmsBatch(smsLastId, BATCH_SIZE)) != -1; ) {
+        smsLastId = lastId;
+        batches++;
+      }
+      stopwatch.split("sms");
+
+      for (long lastId; (lastId = search.indexMmsBatch(mmsLastId, BATCH_SIZE)) != -1; ) {
+        mmsLastId = lastId;
+        batches++;
+      }
+      stopwatch.split("mms");
+    } catch (SQLException e) {
+      Log.w(TAG, "Failed after " + batches + " batches. Will resume after sms " + smsLastId + ", mms " + mmsLastId, e);
+      throw new RetryLaterException(e);
+    }
+
+    stopwatch.stop(TAG);
+    Log.i(TAG, "Indexed " + batches + " batches.");
+  }
+
+  @Override
+  protected boolean onShouldRetry(@NonNull Exception e) {
+    return e instanceof RetryLaterException;
+  }
+
+  @Override
+  public void onFailure() {
+    Log.w(TAG, "Failed to rebuild the message search index.");
+  }
+
+  public static final class Factory implements Job.Factory<RebuildMessageSearchIndexJob> {
+    @Override
+    public @NonNull RebuildMessageSearchIndexJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new RebuildMessageSearchIndexJob(parameters, data.getLongOrDefault(KEY_SMS_LAST_ID, 0), data.getLongOrDefault(KEY_MMS_LAST_ID, 0));
+    }
+  }
+}
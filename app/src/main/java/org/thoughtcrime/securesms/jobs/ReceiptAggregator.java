@@ -0,0 +1,311 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.ListUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.model.MessageId;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.thoughtcrime.securesms.jobs.SendReadReceiptJob.MAX_TIMESTAMPS;
+
+/**
+ * Gathers up outgoing delivery, read and viewed receipts so that ones headed to the same place share a job, and so a
+ * single message, rather than each getting their own.
+ *
+ * Receipts are added as parallel lists of sent timestamps and the ids of the messages they're for.
+ *
+ * With a window of zero, receipts are enqueued as soon as they're added. Otherwise, the first receipt of a given type,
+ * recipient and thread is enqueued right away, and receipts added over the following window are merged into that job.
+ * Merges are written to the job's persisted data once, when the window closes, rather than as each receipt comes in.
+ * The job is held for a further window after that so the write lands before it can run. Once a job is full, at
+ * {@link SendReadReceiptJob#MAX_TIMESTAMPS}, or its window has closed, the next receipt starts a new one. A timestamp
+ * added more than once is only sent once.
+ *
+ * A job that starts running picks up its receipts with {@link #claim(String)}, since the last merge may not have been
+ * written by the time it was read back.
+ */
+public class ReceiptAggregator {
+
+  private static final String TAG = Log.tag(ReceiptAggregator.class);
+
+  private final long           windowMs;
+  private final JobSink        jobSink;
+  private final FlushScheduler flushScheduler;
+
+  private final Map<Key, PendingJob>    openJobs;
+  private final Map<String, PendingJob> pendingJobs;
+
+  private long receiptCount;
+  private long unmergedJobCount;
+  private long enqueuedJobCount;
+
+  public ReceiptAggregator(long windowMs, @NonNull JobSink jobSink, @NonNull FlushScheduler flushScheduler) {
+    this.windowMs       = windowMs;
+    this.jobSink        = jobSink;
+    this.flushScheduler = flushScheduler;
+    this.openJobs       = new HashMap<>();
+    this.pendingJobs    = new HashMap<>();
+  }
+
+  void addDeliveryReceipts(@NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+    add(new Key(Type.DELIVERY, recipientId, -1), messageSentTimestamps, messageIds);
+  }
+
+  void addReadReceipts(long threadId, @NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+    add(new Key(Type.READ, recipientId, threadId), messageSentTimestamps, messageIds);
+  }
+
+  void addViewedReceipts(long threadId, @NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+    add(new Key(Type.VIEWED, recipientId, threadId), messageSentTimestamps, messageIds);
+  }
+
+  /**
+   * Called by a receipt job when it starts running. No more receipts will be merged into it after this.
+   *
+   * @return The receipts the job should send, or null if this aggregator didn't create it, in which case the job's own
+   *         persisted receipts are complete.
+   */
+  synchronized @Nullable Receipts claim(@NonNull String jobId) {
+    PendingJob pending = pendingJobs.remove(jobId);
+
+    if (pending == null) {
+      return null;
+    }
+
+    if (openJobs.get(pending.key) == pending) {
+      openJobs.remove(pending.key);
+    }
+
+    return pending.toReceipts();
+  }
+
+  /**
+   * @return The number of receipts that have been added.
+   */
+  public synchronized long getReceiptCount() {
+    return receiptCount;
+  }
+
+  /**
+   * @return The number of jobs, and so sends, the receipts would have taken if they were each enqueued as they came in.
+   */
+  public synchronized long getUnmergedJobCount() {
+    return unmergedJobCount;
+  }
+
+  /**
+   * @return The number of jobs that have actually been enqueued, after merging.
+   */
+  public synchronized long getEnqueuedJobCount() {
+    return enqueuedJobCount;
+  }
+
+  public @NonNull String getDebugInfo() {
+    long unmerged = getUnmergedJobCount();
+    long enqueued = getEnqueuedJobCount();
+
+    return String.format(Locale.US, "Receipts: %d, Jobs: %d, Saved: %d", getReceiptCount(), enqueued, unmerged - enqueued);
+  }
+
+  private void add(@NonNull Key key, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+    if (messageSentTimestamps.isEmpty()) {
+      return;
+    }
+
+    if (windowMs <= 0) {
+      List<List<Long>>      timestampChunks = ListUtil.chunk(messageSentTimestamps, MAX_TIMESTAMPS);
+      List<List<MessageId>> messageIdChunks = ListUtil.chunk(messageIds, MAX_TIMESTAMPS);
+
+      if (timestampChunks.size() > 1) {
+        Log.w(TAG, "Large receipt count! Had to break into multiple chunks. Total count: " + messageSentTimestamps.size());
+      }
+
+      synchronized (this) {
+        receiptCount     += messageSentTimestamps.size();
+        unmergedJobCount += timestampChunks.size();
+        enqueuedJobCount += timestampChunks.size();
+      }
+
+      for (int i = 0; i < timestampChunks.size(); i++) {
+        jobSink.add(createJob(key, timestampChunks.get(i), messageIdChunks.get(i), 0));
+      }
+      return;
+    }
+
+    // Jobs are handed to the sink while holding the lock, so that merges reach it in the order they were made.
+    synchronized (this) {
+      receiptCount     += messageSentTimestamps.size();
+      unmergedJobCount += ListUtil.chunk(messageSentTimestamps, MAX_TIMESTAMPS).size();
+
+      PendingJob open    = openJobs.get(key);
+      boolean    changed = false;
+
+      for (int i = 0; i < messageSentTimestamps.size(); i++) {
+        long timestamp = messageSentTimestamps.get(i);
+
+        if (open != null && open.receipts.containsKey(timestamp)) {
+          continue;
+        }
+
+        if (open == null || open.receipts.size() >= MAX_TIMESTAMPS) {
+          if (changed) {
+            submit(open);
+          }
+
+          open = new PendingJob(key);
+        }
+
+        open.receipts.put(timestamp, messageIds.get(i));
+        changed = true;
+      }
+
+      if (changed) {
+        submit(open);
+      }
+    }
+  }
+
+  /**
+   * Enqueues a new job for the receipts, or marks the one that's already enqueued as needing its merged receipts written
+   * when its window closes.
+   */
+  private void submit(@NonNull PendingJob pending) {
+    if (pending.jobId != null) {
+      pending.dirty = true;
+      return;
+    }
+
+    Job job = pending.toJob(windowMs * 2);
+
+    pending.jobId = job.getId();
+    openJobs.put(pending.key, pending);
+    pendingJobs.put(pending.jobId, pending);
+    enqueuedJobCount++;
+
+    jobSink.add(job);
+    flushScheduler.schedule(windowMs, () -> close(pending));
+  }
+
+  /**
+   * Stops merging receipts into the job, and writes the ones that were merged into it, unless it's already been claimed.
+   */
+  private synchronized void close(@NonNull PendingJob pending) {
+    if (openJobs.get(pending.key) == pending) {
+      openJobs.remove(pending.key);
+    }
+
+    if (pending.dirty && pendingJobs.get(pending.jobId) == pending) {
+      pending.dirty = false;
+      jobSink.merge(pending.jobId, pending.toJob(0));
+    }
+  }
+
+  private static @NonNull Job createJob(@NonNull Key key, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds, long initialDelay) {
+    switch (key.type) {
+      case DELIVERY:
+        return new SendDeliveryReceiptJob(key.recipientId, messageSentTimestamps, messageIds, initialDelay);
+      case READ:
+        return new SendReadReceiptJob(key.threadId, key.recipientId, messageSentTimestamps, messageIds, initialDelay);
+      case VIEWED:
+        return new SendViewedReceiptJob(key.threadId, key.recipientId, messageSentTimestamps, messageIds, initialDelay);
+      default:
+        throw new AssertionError("Unknown type: " + key.type);
+    }
+  }
+
+  public interface FlushScheduler {
+    /**
+     * Runs the given task, on any thread, once the delay has passed.
+     */
+    void schedule(long delayMs, @NonNull Runnable runnable);
+  }
+
+  public interface JobSink {
+    void add(@NonNull Job job);
+
+    /**
+     * Replaces the persisted data of the job with the given id, if it hasn't started running yet, with that of the
+     * merged job.
+     */
+    void merge(@NonNull String jobId, @NonNull Job merged);
+  }
+
+  static final class Receipts {
+    private final List<Long>      messageSentTimestamps;
+    private final List<MessageId> messageIds;
+
+    private Receipts(@NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+      this.messageSentTimestamps = messageSentTimestamps;
+      this.messageIds            = messageIds;
+    }
+
+    @NonNull List<Long> getMessageSentTimestamps() {
+      return messageSentTimestamps;
+    }
+
+    @NonNull List<MessageId> getMessageIds() {
+      return messageIds;
+    }
+  }
+
+  private enum Type {
+    DELIVERY, READ, VIEWED
+  }
+
+  private static final class PendingJob {
+    private final Key                  key;
+    private final Map<Long, MessageId> receipts;
+
+    private String  jobId;
+    private boolean dirty;
+
+    private PendingJob(@NonNull Key key) {
+      this.key      = key;
+      this.receipts = new LinkedHashMap<>();
+    }
+
+    private @NonNull Receipts toReceipts() {
+      return new Receipts(new ArrayList<>(receipts.keySet()), new ArrayList<>(receipts.values()));
+    }
+
+    private @NonNull Job toJob(long initialDelay) {
+      return createJob(key, new ArrayList<>(receipts.keySet()), new ArrayList<>(receipts.values()), initialDelay);
+    }
+  }
+
+  private static final class Key {
+    private final Type        type;
+    private final RecipientId recipientId;
+    private final long        threadId;
+
+    private Key(@NonNull Type type, @NonNull RecipientId recipientId, long threadId) {
+      this.type        = type;
+      this.recipientId = recipientId;
+      this.threadId    = threadId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Key key = (Key) o;
+      return threadId == key.threadId && type == key.type && recipientId.equals(key.recipientId);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(type, recipientId, threadId);
+    }
+  }
+}
@@ -2,7 +2,6 @@ package org.thoughtcrime.securesms.jobs;
 
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil;
@@ -17,6 +16,7 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.recipients.RecipientUtil;
 import org.thoughtcrime.securesms.transport.UndeliverableMessageException;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.signalservice.api.SignalServiceMessageSender;
 import org.whispersystems.signalservice.api.crypto.ContentHint;
 import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
@@ -27,65 +27,90 @@ import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException
 import org.whispersystems.signalservice.api.push.exceptions.ServerRejectedException;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.thoughtcrime.securesms.jobs.SendReadReceiptJob.MAX_TIMESTAMPS;
 
 public class SendDeliveryReceiptJob extends BaseJob {
 
   public static final String KEY = "SendDeliveryReceiptJob";
 
-  private static final String KEY_RECIPIENT              = "recipient";
-  private static final String KEY_MESSAGE_SENT_TIMESTAMP = "message_id";
-  private static final String KEY_TIMESTAMP              = "timestamp";
-  private static final String KEY_MESSAGE_ID             = "message_db_id";
+  private static final String KEY_RECIPIENT               = "recipient";
+  private static final String KEY_MESSAGE_SENT_TIMESTAMP  = "message_id";
+  private static final String KEY_MESSAGE_SENT_TIMESTAMPS = "message_ids";
+  private static final String KEY_TIMESTAMP               = "timestamp";
+  private static final String KEY_MESSAGE_ID              = "message_db_id";
+  private static final String KEY_MESSAGE_IDS             = "message_db_ids";
 
   private static final String TAG = Log.tag(SendReadReceiptJob.class);
 
   private final RecipientId recipientId;
-  private final long        messageSentTimestamp;
   private final long        timestamp;
 
-  @Nullable
-  private final MessageId messageId;
+  private List<Long>      messageSentTimestamps;
+  private List<MessageId> messageIds;
 
   public SendDeliveryReceiptJob(@NonNull RecipientId recipientId, long messageSentTimestamp, @NonNull MessageId messageId) {
+    this(recipientId, Collections.singletonList(messageSentTimestamp), Collections.singletonList(messageId));
+  }
+
+  SendDeliveryReceiptJob(@NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+    this(recipientId, messageSentTimestamps, messageIds, 0);
+  }
+
+  /**
+   * @param initialDelay How long the {@link ReceiptAggregator} holds the job for, so that more receipts can be merged
+   *                     into it. A held job is queued apart from the recipient's messages so that it doesn't hold them up.
+   */
+  SendDeliveryReceiptJob(@NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds, long initialDelay) {
     this(new Job.Parameters.Builder()
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
-                           .setQueue(recipientId.toQueueKey())
+                           .setQueue(initialDelay > 0 ? SendReadReceiptJob.heldQueueKey(recipientId) : recipientId.toQueueKey())
+                           .setInitialDelay(initialDelay)
                            .build(),
          recipientId,
-         messageSentTimestamp,
-         messageId,
+         SendReadReceiptJob.ensureSize(messageSentTimestamps, MAX_TIMESTAMPS),
+         SendReadReceiptJob.ensureSize(messageIds, MAX_TIMESTAMPS),
          System.currentTimeMillis());
   }
 
   private SendDeliveryReceiptJob(@NonNull Job.Parameters parameters,
                                  @NonNull RecipientId recipientId,
-                                 long messageSentTimestamp,
-                                 @Nullable MessageId messageId,
+                                 @NonNull List<Long> messageSentTimestamps,
+                                 @NonNull List<MessageId> messageIds,
                                  long timestamp)
   {
     super(parameters);
 
-    this.recipientId          = recipientId;
-    this.messageSentTimestamp = messageSentTimestamp;
-    this.messageId            = messageId;
-    this.timestamp            = timestamp;
+    this.recipientId           = recipientId;
+    this.messageSentTimestamps = messageSentTimestamps;
+    this.messageIds            = messageIds;
+    this.timestamp             = timestamp;
+  }
+
+  /**
+   * Hands a delivery receipt to the {@link ReceiptAggregator}, which may hold on to it briefly so that it can be sent
+   * together with others going to the same recipient.
+   */
+  public static void enqueue(@NonNull RecipientId recipientId, long messageSentTimestamp, @NonNull MessageId messageId) {
+    ApplicationDependencies.getReceiptAggregator().addDeliveryReceipts(recipientId, Collections.singletonList(messageSentTimestamp), Collections.singletonList(messageId));
   }
 
   @Override
   public @NonNull Data serialize() {
-    Data.Builder builder = new Data.Builder().putString(KEY_RECIPIENT, recipientId.serialize())
-                                             .putLong(KEY_MESSAGE_SENT_TIMESTAMP, messageSentTimestamp)
-                                             .putLong(KEY_TIMESTAMP, timestamp);
-
-    if (messageId != null) {
-      builder.putString(KEY_MESSAGE_ID, messageId.serialize());
-    }
+    List<String> serializedMessageIds = messageIds.stream().map(MessageId::serialize).collect(Collectors.toList());
 
-    return builder.build();
+    return new Data.Builder().putString(KEY_RECIPIENT, recipientId.serialize())
+                             .putLongListAsArray(KEY_MESSAGE_SENT_TIMESTAMPS, messageSentTimestamps)
+                             .putStringListAsArray(KEY_MESSAGE_IDS, serializedMessageIds)
+                             .putLong(KEY_TIMESTAMP, timestamp)
+                             .build();
   }
 
   @Override
@@ -95,6 +120,12 @@ public class SendDeliveryReceiptJob extends BaseJob {
 
   @Override
   public void onRun() throws IOException, UntrustedIdentityException, UndeliverableMessageException {
+    ReceiptAggregator.Receipts receipts = ApplicationDependencies.getReceiptAggregator().claim(getId());
+    if (receipts != null) {
+      messageSentTimestamps = receipts.getMessageSentTimestamps();
+      messageIds            = receipts.getMessageIds();
+    }
+
     if (!Recipient.self().isRegistered()) {
       throw new NotPushRegisteredException();
     }
@@ -114,7 +145,7 @@ public class SendDeliveryReceiptJob extends BaseJob {
 
     SignalServiceAddress        remoteAddress  = RecipientUtil.toSignalServiceAddress(context, recipient);
     SignalServiceReceiptMessage receiptMessage = new SignalServiceReceiptMessage(SignalServiceReceiptMessage.Type.DELIVERY,
-                                                                                 Collections.singletonList(messageSentTimestamp),
+                                                                                 messageSentTimestamps,
                                                                                  timestamp);
 
     SendMessageResult result = messageSender.sendReceipt(remoteAddress,
@@ -122,8 +153,8 @@ public class SendDeliveryReceiptJob extends BaseJob {
                                                          receiptMessage,
                                                          recipient.needsPniSignature());
 
-    if (messageId != null) {
-      SignalDatabase.messageLog().insertIfPossible(recipientId, timestamp, result, ContentHint.IMPLICIT, messageId, false);
+    if (Util.hasItems(messageIds)) {
+      SignalDatabase.messageLog().insertIfPossible(recipientId, timestamp, result, ContentHint.IMPLICIT, messageIds, false);
     }
   }
 
@@ -136,22 +167,29 @@ public class SendDeliveryReceiptJob extends BaseJob {
 
   @Override
   public void onFailure() {
+    ApplicationDependencies.getReceiptAggregator().claim(getId());
     Log.w(TAG, "Failed to send delivery receipt to: " + recipientId);
   }
 
   public static final class Factory implements Job.Factory<SendDeliveryReceiptJob> {
     @Override
     public @NonNull SendDeliveryReceiptJob create(@NonNull Parameters parameters, @NonNull Data data) {
-      MessageId messageId = null;
-
-      if (data.hasString(KEY_MESSAGE_ID)) {
-        messageId = MessageId.deserialize(data.getString(KEY_MESSAGE_ID));
+      List<Long>      sentTimestamps;
+      List<MessageId> messageIds;
+
+      if (data.hasLongArray(KEY_MESSAGE_SENT_TIMESTAMPS)) {
+        sentTimestamps = data.getLongArrayAsList(KEY_MESSAGE_SENT_TIMESTAMPS);
+        messageIds     = data.getStringArrayAsList(KEY_MESSAGE_IDS).stream().map(MessageId::deserialize).collect(Collectors.toList());
+      } else {
+        sentTimestamps = Collections.singletonList(data.getLong(KEY_MESSAGE_SENT_TIMESTAMP));
+        messageIds     = data.hasString(KEY_MESSAGE_ID) ? Collections.singletonList(MessageId.deserialize(data.getString(KEY_MESSAGE_ID)))
+                                                        : new ArrayList<>();
       }
 
       return new SendDeliveryReceiptJob(parameters,
                                         RecipientId.from(data.getString(KEY_RECIPIENT)),
-                                        data.getLong(KEY_MESSAGE_SENT_TIMESTAMP),
-                                        messageId,
+                                        sentTimestamps,
+                                        messageIds,
                                         data.getLong(KEY_TIMESTAMP));
     }
   }
@@ -6,7 +6,6 @@ import android.app.Application;
 import androidx.annotation.NonNull;
 import androidx.annotation.VisibleForTesting;
 
-import org.signal.core.util.ListUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil;
 import org.thoughtcrime.securesms.database.MessageDatabase.MarkedMessageInfo;
@@ -15,7 +14,6 @@ import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
-import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.impl.NetworkConstraint;
 import org.thoughtcrime.securesms.net.NotPushRegisteredException;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -55,19 +53,29 @@ public class SendReadReceiptJob extends BaseJob {
   private static final String KEY_MESSAGE_IDS             = "message_db_ids";
   private static final String KEY_TIMESTAMP               = "timestamp";
 
-  private final long            threadId;
-  private final RecipientId     recipientId;
-  private final List<Long>      messageSentTimestamps;
-  private final long            timestamp;
-  private final List<MessageId> messageIds;
+  private final long        threadId;
+  private final RecipientId recipientId;
+  private final long        timestamp;
+
+  private List<Long>      messageSentTimestamps;
+  private List<MessageId> messageIds;
 
   @VisibleForTesting
   public SendReadReceiptJob(long threadId, @NonNull RecipientId recipientId, List<Long> messageSentTimestamps, List<MessageId> messageIds) {
+    this(threadId, recipientId, messageSentTimestamps, messageIds, 0);
+  }
+
+  /**
+   * @param initialDelay How long the {@link ReceiptAggregator} holds the job for, so that more receipts can be merged
+   *                     into it. A held job is queued apart from the recipient's messages so that it doesn't hold them up.
+   */
+  SendReadReceiptJob(long threadId, @NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds, long initialDelay) {
     this(new Job.Parameters.Builder()
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
-                           .setQueue(recipientId.toQueueKey())
+                           .setQueue(initialDelay > 0 ? heldQueueKey(recipientId) : recipientId.toQueueKey())
+                           .setInitialDelay(initialDelay)
                            .build(),
          threadId,
          recipientId,
@@ -93,27 +101,18 @@ public class SendReadReceiptJob extends BaseJob {
   }
 
   /**
-   * Enqueues all the necessary jobs for read receipts, ensuring that they're all within the
-   * maximum size.
+   * Hands the read receipts to the {@link ReceiptAggregator}, which enqueues all the necessary jobs, ensuring that
+   * they're all within the maximum size.
    */
   public static void enqueue(long threadId, @NonNull RecipientId recipientId, List<MarkedMessageInfo> markedMessageInfos) {
     if (recipientId.equals(Recipient.self().getId())) {
       return;
     }
 
-    JobManager                    jobManager      = ApplicationDependencies.getJobManager();
-    List<List<MarkedMessageInfo>> messageIdChunks = ListUtil.chunk(markedMessageInfos, MAX_TIMESTAMPS);
-
-    if (messageIdChunks.size() > 1) {
-      Log.w(TAG, "Large receipt count! Had to break into multiple chunks. Total count: " + markedMessageInfos.size());
-    }
-
-    for (List<MarkedMessageInfo> chunk : messageIdChunks) {
-      List<Long>      sentTimestamps = chunk.stream().map(info -> info.getSyncMessageId().getTimetamp()).collect(Collectors.toList());
-      List<MessageId> messageIds     = chunk.stream().map(MarkedMessageInfo::getMessageId).collect(Collectors.toList());
+    List<Long>      sentTimestamps = markedMessageInfos.stream().map(info -> info.getSyncMessageId().getTimetamp()).collect(Collectors.toList());
+    List<MessageId> messageIds     = markedMessageInfos.stream().map(MarkedMessageInfo::getMessageId).collect(Collectors.toList());
 
-      jobManager.add(new SendReadReceiptJob(threadId, recipientId, sentTimestamps, messageIds));
-    }
+    ApplicationDependencies.getReceiptAggregator().addReadReceipts(threadId, recipientId, sentTimestamps, messageIds);
   }
 
   @Override
@@ -140,6 +139,12 @@ public class SendReadReceiptJob extends BaseJob {
 
   @Override
   public void onRun() throws IOException, UntrustedIdentityException, UndeliverableMessageException {
+    ReceiptAggregator.Receipts receipts = ApplicationDependencies.getReceiptAggregator().claim(getId());
+    if (receipts != null) {
+      messageSentTimestamps = receipts.getMessageSentTimestamps();
+      messageIds            = receipts.getMessageIds();
+    }
+
     if (!Recipient.self().isRegistered()) {
       throw new NotPushRegisteredException();
     }
@@ -200,9 +205,17 @@ public class SendReadReceiptJob extends BaseJob {
 
   @Override
   public void onFailure() {
+    ApplicationDependencies.getReceiptAggregator().claim(getId());
     Log.w(TAG, "Failed to send read receipts to: " + recipientId);
   }
 
+  /**
+   * The queue for receipts that are being held by the {@link ReceiptAggregator}.
+   */
+  static @NonNull String heldQueueKey(@NonNull RecipientId recipientId) {
+    return recipientId.toQueueKey() + "::RECEIPTS";
+  }
+
   static <E> List<E> ensureSize(@NonNull List<E> list, int maxSize) {
     if (list.size() > maxSize) {
       throw new IllegalArgumentException("Too large! Size: " + list.size() + ", maxSize: " + maxSize);
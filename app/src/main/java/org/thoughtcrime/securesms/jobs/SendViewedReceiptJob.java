@@ -5,7 +5,6 @@ import android.app.Application;
 
 import androidx.annotation.NonNull;
 
-import org.signal.core.util.ListUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.UnidentifiedAccessUtil;
 import org.thoughtcrime.securesms.database.MessageDatabase.MarkedMessageInfo;
@@ -14,7 +13,6 @@ import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
-import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobmanager.impl.NetworkConstraint;
 import org.thoughtcrime.securesms.net.NotPushRegisteredException;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -52,21 +50,27 @@ public class SendViewedReceiptJob extends BaseJob {
   private static final String KEY_MESSAGE_IDS             = "message_db_ids";
   private static final String KEY_TIMESTAMP               = "timestamp";
 
-  private final long            threadId;
-  private final RecipientId     recipientId;
-  private final List<Long>      messageSentTimestamps;
-  private final List<MessageId> messageIds;
-  private final long            timestamp;
+  private final long        threadId;
+  private final RecipientId recipientId;
+  private final long        timestamp;
 
-  public SendViewedReceiptJob(long threadId, @NonNull RecipientId recipientId, long syncTimestamp, @NonNull MessageId messageId) {
-    this(threadId, recipientId, Collections.singletonList(syncTimestamp), Collections.singletonList(messageId));
+  private List<Long>      messageSentTimestamps;
+  private List<MessageId> messageIds;
+
+  SendViewedReceiptJob(long threadId, @NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+    this(threadId, recipientId, messageSentTimestamps, messageIds, 0);
   }
 
-  private SendViewedReceiptJob(long threadId, @NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds) {
+  /**
+   * @param initialDelay How long the {@link ReceiptAggregator} holds the job for, so that more receipts can be merged
+   *                     into it.
+   */
+  SendViewedReceiptJob(long threadId, @NonNull RecipientId recipientId, @NonNull List<Long> messageSentTimestamps, @NonNull List<MessageId> messageIds, long initialDelay) {
     this(new Parameters.Builder()
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setInitialDelay(initialDelay)
                            .build(),
          threadId,
          recipientId,
@@ -92,23 +96,14 @@ public class SendViewedReceiptJob extends BaseJob {
   }
 
   /**
-   * Enqueues all the necessary jobs for viewed receipts, ensuring that they're all within the
-   * maximum size.
+   * Hands the viewed receipts to the {@link ReceiptAggregator}, which enqueues all the necessary jobs, ensuring that
+   * they're all within the maximum size.
    */
   public static void enqueue(long threadId, @NonNull RecipientId recipientId, List<MarkedMessageInfo> markedMessageInfos) {
-    JobManager                    jobManager      = ApplicationDependencies.getJobManager();
-    List<List<MarkedMessageInfo>> messageIdChunks = ListUtil.chunk(markedMessageInfos, MAX_TIMESTAMPS);
-
-    if (messageIdChunks.size() > 1) {
-      Log.w(TAG, "Large receipt count! Had to break into multiple chunks. Total count: " + markedMessageInfos.size());
-    }
+    List<Long>      sentTimestamps = markedMessageInfos.stream().map(info -> info.getSyncMessageId().getTimetamp()).collect(Collectors.toList());
+    List<MessageId> messageIds     = markedMessageInfos.stream().map(MarkedMessageInfo::getMessageId).collect(Collectors.toList());
 
-    for (List<MarkedMessageInfo> chunk : messageIdChunks) {
-      List<Long>      sentTimestamps = chunk.stream().map(info -> info.getSyncMessageId().getTimetamp()).collect(Collectors.toList());
-      List<MessageId> messageIds     = chunk.stream().map(MarkedMessageInfo::getMessageId).collect(Collectors.toList());
-
-      jobManager.add(new SendViewedReceiptJob(threadId, recipientId, sentTimestamps, messageIds));
-    }
+    ApplicationDependencies.getReceiptAggregator().addViewedReceipts(threadId, recipientId, sentTimestamps, messageIds);
   }
 
   @Override
@@ -130,6 +125,12 @@ public class SendViewedReceiptJob extends BaseJob {
 
   @Override
   public void onRun() throws IOException, UntrustedIdentityException {
+    ReceiptAggregator.Receipts receipts = ApplicationDependencies.getReceiptAggregator().claim(getId());
+    if (receipts != null) {
+      messageSentTimestamps = receipts.getMessageSentTimestamps();
+      messageIds            = receipts.getMessageIds();
+    }
+
     if (!Recipient.self().isRegistered()) {
       throw new NotPushRegisteredException();
     }
@@ -196,6 +197,7 @@ public class SendViewedReceiptJob extends BaseJob {
 
   @Override
   public void onFailure() {
+    ApplicationDependencies.getReceiptAggregator().claim(getId());
     Log.w(TAG, "Failed to send read receipts to: " + recipientId);
   }
 
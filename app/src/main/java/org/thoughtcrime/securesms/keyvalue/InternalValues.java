@@ -26,6 +26,7 @@ public final class InternalValues extends SignalStoreValues {
   public static final String CALLING_DISABLE_TELECOM              = "internal.calling_disable_telecom";
   public static final String SHAKE_TO_REPORT                      = "internal.shake_to_report";
   public static final String DISABLE_STORAGE_SERVICE              = "internal.disable_storage_service";
+  public static final String INCREMENTAL_BACKUPS                  = "internal.incremental_backups";
 
   InternalValues(KeyValueStore store) {
     super(store);
@@ -117,6 +118,13 @@ public final class InternalValues extends SignalStoreValues {
     return FeatureFlags.internalUser() && getBoolean(DISABLE_STORAGE_SERVICE, false);
   }
 
+  /**
+   * Local backups leave out attachments that are already in an earlier backup, referencing it instead.
+   */
+  public synchronized boolean incrementalBackups() {
+    return FeatureFlags.internalUser() && getBoolean(INCREMENTAL_BACKUPS, false);
+  }
+
   /**
    * The selected group calling server to use.
    * <p>
@@ -21,9 +21,13 @@ import java.util.concurrent.ExecutorService;
  *
  * Implemented as a write-through cache that is safe to read and write to on the main thread.
  *
+ * Reads never block: the cache is an immutable snapshot that's replaced, rather than modified, on
+ * every write. Writers copy the current snapshot, apply their changes, and publish the copy.
+ *
  * Writes are enqueued on a separate executor, but writes are finished up in
  * {@link SignalUncaughtExceptionHandler}, meaning all write should finish barring a native crash
- * or the system killing us unexpectedly (i.e. a force-stop).
+ * or the system killing us unexpectedly (i.e. a force-stop). Writes that pile up while the
+ * executor is busy are merged and persisted together in a single transaction.
  */
 public final class KeyValueStore implements KeyValueReader {
 
@@ -32,7 +36,12 @@ public final class KeyValueStore implements KeyValueReader {
   private final ExecutorService           executor;
   private final KeyValuePersistentStorage storage;
 
-  private KeyValueDataSet dataSet;
+  private volatile KeyValueDataSet dataSet;
+
+  private final Object          pendingLock    = new Object();
+  private       KeyValueDataSet pendingWrites  = new KeyValueDataSet();
+  private       Set<String>     pendingRemoves = new HashSet<>();
+  private       boolean         flushScheduled;
 
   public KeyValueStore(@NonNull KeyValuePersistentStorage storage) {
     this.executor = SignalExecutors.newCachedSingleThreadExecutor("signal-KeyValueStore");
@@ -41,51 +50,44 @@ public final class KeyValueStore implements KeyValueReader {
 
   @AnyThread
   @Override
-  public synchronized byte[] getBlob(@NonNull String key, byte[] defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBlob(key, defaultValue);
+  public byte[] getBlob(@NonNull String key, byte[] defaultValue) {
+    return getDataSet().getBlob(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean getBoolean(@NonNull String key, boolean defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getBoolean(key, defaultValue);
+  public boolean getBoolean(@NonNull String key, boolean defaultValue) {
+    return getDataSet().getBoolean(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized float getFloat(@NonNull String key, float defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getFloat(key, defaultValue);
+  public float getFloat(@NonNull String key, float defaultValue) {
+    return getDataSet().getFloat(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized int getInteger(@NonNull String key, int defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getInteger(key, defaultValue);
+  public int getInteger(@NonNull String key, int defaultValue) {
+    return getDataSet().getInteger(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized long getLong(@NonNull String key, long defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getLong(key, defaultValue);
+  public long getLong(@NonNull String key, long defaultValue) {
+    return getDataSet().getLong(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized String getString(@NonNull String key, String defaultValue) {
-    initializeIfNecessary();
-    return dataSet.getString(key, defaultValue);
+  public String getString(@NonNull String key, String defaultValue) {
+    return getDataSet().getString(key, defaultValue);
   }
 
   @AnyThread
   @Override
-  public synchronized boolean containsKey(@NonNull String key) {
-    initializeIfNecessary();
-    return dataSet.containsKey(key);
+  public boolean containsKey(@NonNull String key) {
+    return getDataSet().containsKey(key);
   }
 
   /**
@@ -103,20 +105,15 @@ public final class KeyValueStore implements KeyValueReader {
    *         efficient to use the various get* methods instead.
    */
   @AnyThread
-  synchronized @NonNull KeyValueReader beginRead() {
-    initializeIfNecessary();
-
-    KeyValueDataSet copy = new KeyValueDataSet();
-    copy.putAll(dataSet);
-
-    return copy;
+  @NonNull KeyValueReader beginRead() {
+    return getDataSet();
   }
 
   /**
    * Ensures that any pending writes (such as those made via {@link Writer#apply()}) are finished.
    */
   @AnyThread
-  synchronized void blockUntilAllWritesFinished() {
+  void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
     executor.execute(latch::countDown);
@@ -137,17 +134,71 @@ public final class KeyValueStore implements KeyValueReader {
   }
 
   private synchronized void write(@NonNull KeyValueDataSet newDataSet, @NonNull Collection<String> removes) {
-    initializeIfNecessary();
+    KeyValueDataSet updated = new KeyValueDataSet();
+
+    updated.putAll(initializeIfNecessary());
+    updated.putAll(newDataSet);
+    updated.removeAll(removes);
+
+    dataSet = updated;
+
+    synchronized (pendingLock) {
+      pendingWrites.removeAll(removes);
+      pendingWrites.putAll(newDataSet);
+      pendingRemoves.removeAll(newDataSet.getValues().keySet());
+      pendingRemoves.addAll(removes);
+
+      if (!flushScheduled) {
+        flushScheduled = true;
+        executor.execute(this::flushPendingWrites);
+      }
+    }
+  }
 
-    dataSet.putAll(newDataSet);
-    dataSet.removeAll(removes);
+  /**
+   * Persists every write that's been made since the last flush. Anything written after the
+   * pending writes are taken schedules another flush.
+   */
+  private void flushPendingWrites() {
+    KeyValueDataSet writes;
+    Set<String>     removes;
+
+    synchronized (pendingLock) {
+      writes         = pendingWrites;
+      removes        = pendingRemoves;
+      pendingWrites  = new KeyValueDataSet();
+      pendingRemoves = new HashSet<>();
+      flushScheduled = false;
+    }
 
-    executor.execute(() -> storage.writeDataSet(newDataSet, removes));
+    storage.writeDataSet(writes, removes);
   }
 
-  private void initializeIfNecessary() {
-    if (dataSet != null) return;
-    this.dataSet = storage.getDataSet();
+  private @NonNull KeyValueDataSet getDataSet() {
+    KeyValueDataSet current = dataSet;
+
+    if (current != null) {
+      return current;
+    }
+
+    synchronized (this) {
+      return initializeIfNecessary();
+    }
+  }
+
+  /**
+   * The storage may hold on to the data set it hands out, so the cache starts from a copy of it.
+   * Must be called while holding the lock.
+   */
+  private @NonNull KeyValueDataSet initializeIfNecessary() {
+    if (dataSet == null) {
+      KeyValueDataSet copy = new KeyValueDataSet();
+      copy.putAll(storage.getDataSet());
+
+      dataSet = copy;
+    }
+
+    return dataSet;
   }
 
   class Writer {
@@ -0,0 +1,37 @@
+package org.thoughtcrime.securesms.logging
+
+import android.app.Application
+import org.thoughtcrime.securesms.database.LogDatabase
+import java.io.Closeable
+
+/**
+ * Where persisted log lines are read back from when building a debug log. Lines are returned fully formatted, oldest first.
+ */
+interface PersistentLogStore {
+
+  fun getAllBeforeTime(time: Long): Reader
+
+  fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String>
+
+  fun getLogCountBeforeTime(time: Long): Int
+
+  fun trimToSize()
+
+  fun clearKeepLonger()
+
+  interface Reader : Iterator<String>, Closeable
+
+  companion object {
+    /**
+     * @return The store that the current process is logging to, which is decided once per launch.
+     */
+    @JvmStatic
+    fun getInstance(application: Application): PersistentLogStore {
+      return if (RingBufferLogger.isEnabled(application)) {
+        RingBufferLogger.getInstance(application)
+      } else {
+        LogDatabase.getInstance(application)
+      }
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package org.thoughtcrime.securesms.logging
+
+import android.annotation.SuppressLint
+import android.app.Application
+import android.content.Context
+import android.os.Looper
+import org.signal.core.util.logging.Log
+import org.signal.core.util.logging.Scrubber
+import org.thoughtcrime.securesms.BuildConfig
+import org.thoughtcrime.securesms.util.TextSecurePreferences
+import java.io.File
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.nio.ByteBuffer
+import java.text.SimpleDateFormat
+import java.util.Date
+import java.util.Locale
+import java.util.concurrent.TimeUnit
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * An alternative to [PersistentLogger] + [org.thoughtcrime.securesms.database.LogDatabase] that keeps logs in a pair of fixed-size,
+ * encrypted [RingLogFile]s instead of a database.
+ *
+ * Logging a line encodes it as a [RingLogRecord] straight into a preallocated buffer, without creating any objects or formatting any text.
+ * A background thread moves those records into the ring files. Lines are only decoded, formatted, and scrubbed when a debug log is
+ * built from them.
+ *
+ * Lines marked keep-longer go to their own, smaller ring, so that they aren't pushed out by everything else.
+ *
+ * Enabled with an internal setting, and only takes effect on the next launch.
+ */
+class RingBufferLogger private constructor(application: Application) : Log.Logger(), PersistentLogStore {
+
+  companion object {
+    private val LOG_V = 'V'.code.toByte()
+    private val LOG_D = 'D'.code.toByte()
+    private val LOG_I = 'I'.code.toByte()
+    private val LOG_W = 'W'.code.toByte()
+    private val LOG_E = 'E'.code.toByte()
+
+    private const val MAIN_THREAD_ID = -1L
+
+    private const val PENDING_BUFFER_SIZE = 256 * 1024
+    private const val MAIN_CHUNKS = 256
+    private const val KEEP_LONGER_CHUNKS = 32
+
+    private val DEFAULT_LIFESPAN = TimeUnit.DAYS.toMillis(3)
+    private val LONGER_LIFESPAN = TimeUnit.DAYS.toMillis(21)
+
+    @Volatile
+    private var enabled: Boolean? = null
+
+    @SuppressLint("StaticFieldLeak") // We hold an Application context, not a view context
+    @Volatile
+    private var instance: RingBufferLogger? = null
+
+    /**
+     * Whether this logger is in use. Read once, so that a launch never switches between stores part way through.
+     */
+    @JvmStatic
+    fun isEnabled(context: Context): Boolean {
+      if (enabled == null) {
+        synchronized(RingBufferLogger::class.java) {
+          if (enabled == null) {
+            enabled = TextSecurePreferences.isLogRingBufferEnabled(context)
+          }
+        }
+      }
+      return enabled!!
+    }
+
+    @JvmStatic
+    fun getInstance(application: Application): RingBufferLogger {
+      if (instance == null) {
+        synchronized(RingBufferLogger::class.java) {
+          if (instance == null) {
+            instance = RingBufferLogger(application)
+          }
+        }
+      }
+      return instance!!
+    }
+
+    private fun deriveKey(secret: ByteArray, name: String): ByteArray {
+      val mac = Mac.getInstance("HmacSHA256")
+      mac.init(SecretKeySpec(secret, "HmacSHA256"))
+      return mac.doFinal(name.toByteArray())
+    }
+  }
+
+  private val mainRing: RingLogFile
+  private val keepLongerRing: RingLogFile
+
+  private val lock = Object()
+  private var pending = ByteBuffer.allocate(PENDING_BUFFER_SIZE)
+  private var draining = ByteBuffer.allocate(PENDING_BUFFER_SIZE)
+  private var droppedCount = 0
+  private var enqueuedCount = 0L
+  private var writtenCount = 0L
+
+  @Volatile
+  private var snapshot: Snapshot? = null
+
+  init {
+    val directory = application.getDir("logs", Context.MODE_PRIVATE)
+    val secret = LogSecretProvider.getOrCreateAttachmentSecret(application)
+
+    mainRing = RingLogFile(File(directory, "main.ring"), deriveKey(secret, "main.ring"), MAIN_CHUNKS, BuildConfig.VERSION_NAME)
+    keepLongerRing = RingLogFile(File(directory, "keep-longer.ring"), deriveKey(secret, "keep-longer.ring"), KEEP_LONGER_CHUNKS, BuildConfig.VERSION_NAME)
+
+    WriteThread().apply {
+      priority = Thread.MIN_PRIORITY
+    }.start()
+  }
+
+  override fun v(tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+    write(LOG_V, tag, message, t, keepLonger)
+  }
+
+  override fun d(tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+    write(LOG_D, tag, message, t, keepLonger)
+  }
+
+  override fun i(tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+    write(LOG_I, tag, message, t, keepLonger)
+  }
+
+  override fun w(tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+    write(LOG_W, tag, message, t, keepLonger)
+  }
+
+  override fun e(tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+    write(LOG_E, tag, message, t, keepLonger)
+  }
+
+  override fun flush() {
+    synchronized(lock) {
+      val target = enqueuedCount
+      while (writtenCount < target) {
+        lock.wait()
+      }
+    }
+  }
+
+  private fun write(level: Byte, tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
+    val trace: String? = if (t != null) getStackTrace(t) else null
+    val threadId = if (Looper.myLooper() == Looper.getMainLooper()) MAIN_THREAD_ID else Thread.currentThread().id
+    val flags = if (keepLonger) RingLogRecord.FLAG_KEEP_LONGER else 0
+    val now = System.currentTimeMillis()
+
+    synchronized(lock) {
+      enqueuedCount++
+
+      if (!RingLogRecord.encode(pending, now, level, flags, threadId, tag ?: "null", message ?: "", trace)) {
+        droppedCount++
+      }
+
+      lock.notifyAll()
+    }
+  }
+
+  override fun getAllBeforeTime(time: Long): PersistentLogStore.Reader {
+    val snapshot = getSnapshot(time)
+    val decoder = LineDecoder(snapshot)
+
+    return object : PersistentLogStore.Reader {
+      private var position = 0
+
+      override fun hasNext(): Boolean = position < snapshot.lines.size
+
+      override fun next(): String = decoder.decode(snapshot.lines[position++])
+
+      override fun close() = Unit
+    }
+  }
+
+  override fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
+    val snapshot = getSnapshot(time)
+    val decoder = LineDecoder(snapshot)
+    val end = minOf(start + length, snapshot.lines.size)
+
+    return (start until end).map { decoder.decode(snapshot.lines[it]) }
+  }
+
+  override fun getLogCountBeforeTime(time: Long): Int {
+    return getSnapshot(time).lines.size
+  }
+
+  /**
+   * The rings never grow, so there's nothing to trim.
+   */
+  override fun trimToSize() = Unit
+
+  override fun clearKeepLonger() {
+    keepLongerRing.clear()
+    snapshot = null
+  }
+
+  /**
+   * Finds every line logged before the provided time, in order, so that they can be read back by position. The result is kept around,
+   * since the same time is used for every page of a debug log.
+   */
+  private fun getSnapshot(untilTime: Long): Snapshot {
+    snapshot?.let {
+      if (it.untilTime == untilTime) {
+        return it
+      }
+    }
+
+    val now = System.currentTimeMillis()
+    val chunks = mutableListOf<SnapshotChunk>()
+    val main = index(mainRing, now - DEFAULT_LIFESPAN, untilTime, chunks)
+    val keepLonger = index(keepLongerRing, now - LONGER_LIFESPAN, untilTime, chunks)
+
+    return Snapshot(untilTime, chunks, merge(main, keepLonger)).also { snapshot = it }
+  }
+
+  /**
+   * Walks every line in the ring that falls within the time range, producing an [Entry] for each.
+   */
+  private fun index(ring: RingLogFile, fromTime: Long, untilTime: Long, chunks: MutableList<SnapshotChunk>): List<Entry> {
+    val entries = mutableListOf<Entry>()
+    val plaintext = ByteArray(RingLogFile.BODY_SIZE)
+    val buffer = ByteBuffer.wrap(plaintext)
+
+    for (chunk in ring.getChunks()) {
+      if (!ring.read(chunk, plaintext)) {
+        continue
+      }
+
+      val chunkIndex = chunks.size
+      chunks += SnapshotChunk(ring, chunk)
+
+      var offset = 0
+      while (RingLogRecord.isValid(buffer, offset, chunk.length)) {
+        val timestamp = RingLogRecord.timestamp(buffer, offset)
+
+        if (timestamp in fromTime until untilTime) {
+          for (line in 0 until RingLogRecord.lineCount(buffer, offset)) {
+            entries += Entry(timestamp, Snapshot.pack(chunkIndex, offset, line))
+          }
+        }
+
+        offset += RingLogRecord.length(buffer, offset)
+      }
+    }
+
+    return entries
+  }
+
+  private fun merge(first: List<Entry>, second: List<Entry>): LongArray {
+    val out = LongArray(first.size + second.size)
+    var i = 0
+    var j = 0
+
+    for (k in out.indices) {
+      out[k] = if (j >= second.size || (i < first.size && first[i].timestamp <= second[j].timestamp)) {
+        first[i++].position
+      } else {
+        second[j++].position
+      }
+    }
+
+    return out
+  }
+
+  private fun getStackTrace(t: Throwable): String {
+    val writer = StringWriter()
+    t.printStackTrace(PrintWriter(writer))
+    return writer.toString().trimEnd()
+  }
+
+  private class Entry(val timestamp: Long, val position: Long)
+
+  private class SnapshotChunk(val ring: RingLogFile, val chunk: RingLogFile.Chunk)
+
+  private class Snapshot(val untilTime: Long, val chunks: List<SnapshotChunk>, val lines: LongArray) {
+    companion object {
+      fun pack(chunkIndex: Int, offset: Int, line: Int): Long {
+        return (chunkIndex.toLong() shl 48) or (offset.toLong() shl 32) or line.toLong()
+      }
+    }
+  }
+
+  /**
+   * Turns positions from a [Snapshot] back into formatted lines, holding on to the last chunk and record it decoded, since lines are
+   * almost always read in order.
+   */
+  private class LineDecoder(private val snapshot: Snapshot) {
+    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
+    private val plaintext = ByteArray(RingLogFile.BODY_SIZE)
+    private val buffer = ByteBuffer.wrap(plaintext)
+
+    private var chunkIndex = -1
+    private var chunkAvailable = false
+    private var recordOffset = -1
+    private var recordLines: List<String> = emptyList()
+
+    fun decode(position: Long): String {
+      val index = (position ushr 48).toInt()
+      val offset = ((position ushr 32) and 0xFFFF).toInt()
+      val line = (position and 0xFFFFFFFF).toInt()
+      val snapshotChunk = snapshot.chunks[index]
+
+      if (index != chunkIndex) {
+        chunkIndex = index
+        chunkAvailable = snapshotChunk.ring.read(snapshotChunk.chunk, plaintext)
+        recordOffset = -1
+      }
+
+      if (!chunkAvailable) {
+        return "[${snapshotChunk.chunk.versionName}] This part of the log was overwritten while it was being read."
+      }
+
+      if (offset != recordOffset) {
+        recordOffset = offset
+        recordLines = RingLogRecord.message(buffer, offset).split('\n')
+      }
+
+      val threadId = RingLogRecord.threadId(buffer, offset)
+      val threadString = if (threadId == MAIN_THREAD_ID) "main " else String.format("%-5s", threadId)
+      val date = dateFormat.format(Date(RingLogRecord.timestamp(buffer, offset)))
+      val level = RingLogRecord.level(buffer, offset)
+      val tag = RingLogRecord.tag(buffer, offset)
+      val message = recordLines.getOrElse(line) { "" }
+
+      return "[${snapshotChunk.chunk.versionName}] [$threadString] $date $level $tag: ${Scrubber.scrub(message)}"
+    }
+  }
+
+  private inner class WriteThread : Thread("signal-logger") {
+    override fun run() {
+      while (true) {
+        val dropped: Int
+        val target: Long
+
+        synchronized(lock) {
+          while (pending.position() == 0 && droppedCount == 0) {
+            lock.wait()
+          }
+
+          val full = pending
+          pending = draining
+          draining = full
+
+          dropped = droppedCount
+          droppedCount = 0
+          target = enqueuedCount
+        }
+
+        drain(draining)
+
+        if (dropped > 0) {
+          writeDroppedNotice(dropped)
+        }
+
+        mainRing.sync()
+        keepLongerRing.sync()
+
+        synchronized(lock) {
+          writtenCount = target
+          lock.notifyAll()
+        }
+      }
+    }
+
+    private fun drain(buffer: ByteBuffer) {
+      val limit = buffer.position()
+      var offset = 0
+
+      while (offset < limit) {
+        val length = RingLogRecord.length(buffer, offset)
+        val ring = if (RingLogRecord.flags(buffer, offset) and RingLogRecord.FLAG_KEEP_LONGER != 0) keepLongerRing else mainRing
+
+        ring.append(buffer.array(), offset, length)
+        offset += length
+      }
+
+      buffer.clear()
+    }
+
+    private fun writeDroppedNotice(dropped: Int) {
+      val notice = ByteBuffer.allocate(512)
+      RingLogRecord.encode(notice, System.currentTimeMillis(), LOG_W, 0, id, "RingBufferLogger", "Dropped $dropped log lines because the buffer was full.", null)
+      mainRing.append(notice.array(), 0, notice.position())
+    }
+  }
+}
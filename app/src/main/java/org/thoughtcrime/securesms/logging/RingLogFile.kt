@@ -0,0 +1,222 @@
+package org.thoughtcrime.securesms.logging
+
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import javax.crypto.Cipher
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * A fixed-size, encrypted, memory-mapped file that [RingLogRecord]s are appended to.
+ *
+ * The file is split into equal chunks that are filled one after another, wrapping around to overwrite the oldest once they've all been
+ * used, so the file never grows. Records are collected in plaintext for the chunk being filled, and [sync] encrypts whatever was added
+ * since the last call straight into the mapping.
+ *
+ * Chunks are encrypted with AES-CTR, using the chunk's sequence number as the IV. Sequence numbers only go up, so a keystream is never
+ * reused for different data: re-encrypting the tail of a chunk produces exactly the ciphertext that was already there.
+ *
+ * Records are expected to come from a single writer thread, but every method is safe to call from any thread.
+ */
+internal class RingLogFile(
+  file: File,
+  key: ByteArray,
+  private val chunkCount: Int,
+  versionName: String
+) {
+
+  companion object {
+    const val CHUNK_SIZE = 64 * 1024
+
+    private const val MAGIC = 0x5349474C
+
+    private const val MAGIC_OFFSET = 0
+    private const val SEQUENCE_OFFSET = 4
+    private const val USED_OFFSET = 12
+    private const val VERSION_OFFSET = 16
+    private const val MAX_VERSION_BYTES = 47
+    private const val HEADER_SIZE = 64
+
+    const val BODY_SIZE = CHUNK_SIZE - HEADER_SIZE
+
+    private const val BLOCK_SIZE = 16
+
+    private fun map(file: File, length: Long): MappedByteBuffer {
+      RandomAccessFile(file, "rw").use { randomAccessFile ->
+        if (randomAccessFile.length() != length) {
+          randomAccessFile.setLength(0)
+          randomAccessFile.setLength(length)
+        }
+        return randomAccessFile.channel.map(FileChannel.MapMode.READ_WRITE, 0, length)
+      }
+    }
+  }
+
+  private val keySpec = SecretKeySpec(key, "AES")
+  private val versionBytes = versionName.toByteArray(StandardCharsets.UTF_8).let { it.copyOf(minOf(it.size, MAX_VERSION_BYTES)) }
+  private val mapped: MappedByteBuffer = map(file, chunkCount.toLong() * CHUNK_SIZE)
+
+  private val cipher = Cipher.getInstance("AES/CTR/NoPadding")
+  private val iv = ByteArray(BLOCK_SIZE)
+  private val plaintext = ByteArray(BODY_SIZE)
+  private val ciphertext = ByteArray(BODY_SIZE)
+
+  private var slot = -1
+  private var sequence = 0L
+  private var used = 0
+  private var synced = 0
+
+  init {
+    for (i in 0 until chunkCount) {
+      val base = i * CHUNK_SIZE
+      if (mapped.getInt(base + MAGIC_OFFSET) == MAGIC && mapped.getLong(base + SEQUENCE_OFFSET) > sequence) {
+        sequence = mapped.getLong(base + SEQUENCE_OFFSET)
+        slot = i
+      }
+    }
+
+    startNextChunk()
+  }
+
+  /**
+   * Adds a record to the chunk being filled, moving on to the next chunk if it doesn't fit. Nothing reaches the file until [sync].
+   */
+  @Synchronized
+  fun append(source: ByteArray, offset: Int, length: Int) {
+    if (length > BODY_SIZE) {
+      throw IllegalArgumentException("Record is too large: $length")
+    }
+
+    if (length > BODY_SIZE - used) {
+      sync()
+      startNextChunk()
+    }
+
+    System.arraycopy(source, offset, plaintext, used, length)
+    used += length
+  }
+
+  /**
+   * Encrypts everything appended since the last sync into the file.
+   */
+  @Synchronized
+  fun sync() {
+    if (used == synced) {
+      return
+    }
+
+    val start = synced - synced % BLOCK_SIZE
+    val base = slot * CHUNK_SIZE
+
+    initCipher(cipher, Cipher.ENCRYPT_MODE, iv, sequence, start)
+    val written = cipher.doFinal(plaintext, start, used - start, ciphertext, start)
+
+    mapped.position(base + HEADER_SIZE + start)
+    mapped.put(ciphertext, start, written)
+    mapped.putInt(base + USED_OFFSET, used)
+
+    synced = used
+  }
+
+  /**
+   * Drops every chunk. Sequence numbers keep counting up from where they were.
+   */
+  @Synchronized
+  fun clear() {
+    for (i in 0 until chunkCount) {
+      mapped.putInt(i * CHUNK_SIZE + USED_OFFSET, 0)
+      mapped.putInt(i * CHUNK_SIZE + MAGIC_OFFSET, 0)
+    }
+
+    slot = -1
+    startNextChunk()
+  }
+
+  /**
+   * @return The chunks that have something in them, oldest first.
+   */
+  @Synchronized
+  fun getChunks(): List<Chunk> {
+    val chunks = mutableListOf<Chunk>()
+
+    for (i in 0 until chunkCount) {
+      val base = i * CHUNK_SIZE
+      val used = mapped.getInt(base + USED_OFFSET)
+
+      if (mapped.getInt(base + MAGIC_OFFSET) == MAGIC && used > 0 && used <= BODY_SIZE) {
+        val version = ByteArray(minOf(mapped.get(base + VERSION_OFFSET).toInt() and 0xFF, MAX_VERSION_BYTES))
+        mapped.position(base + VERSION_OFFSET + 1)
+        mapped.get(version)
+
+        chunks += Chunk(i, mapped.getLong(base + SEQUENCE_OFFSET), used, String(version, StandardCharsets.UTF_8))
+      }
+    }
+
+    return chunks.sortedBy { it.sequence }
+  }
+
+  /**
+   * Decrypts a chunk into the provided array, which must be at least [BODY_SIZE] long.
+   *
+   * @return False if the chunk has been overwritten since it was returned by [getChunks].
+   */
+  fun read(chunk: Chunk, out: ByteArray): Boolean {
+    val encrypted = ByteArray(chunk.length)
+
+    synchronized(this) {
+      val base = chunk.slot * CHUNK_SIZE
+
+      if (mapped.getInt(base + MAGIC_OFFSET) != MAGIC || mapped.getLong(base + SEQUENCE_OFFSET) != chunk.sequence) {
+        return false
+      }
+
+      mapped.position(base + HEADER_SIZE)
+      mapped.get(encrypted)
+    }
+
+    val readCipher = Cipher.getInstance("AES/CTR/NoPadding")
+    initCipher(readCipher, Cipher.DECRYPT_MODE, ByteArray(BLOCK_SIZE), chunk.sequence, 0)
+    readCipher.doFinal(encrypted, 0, encrypted.size, out, 0)
+
+    return true
+  }
+
+  private fun startNextChunk() {
+    slot = (slot + 1) % chunkCount
+    sequence++
+    used = 0
+    synced = 0
+
+    val base = slot * CHUNK_SIZE
+
+    mapped.putInt(base + USED_OFFSET, 0)
+    mapped.putLong(base + SEQUENCE_OFFSET, sequence)
+    mapped.put(base + VERSION_OFFSET, versionBytes.size.toByte())
+    mapped.position(base + VERSION_OFFSET + 1)
+    mapped.put(versionBytes)
+    mapped.putInt(base + MAGIC_OFFSET, MAGIC)
+  }
+
+  /**
+   * The IV is the sequence number followed by the index of the first block, so that encryption can pick up part way through a chunk.
+   */
+  private fun initCipher(cipher: Cipher, mode: Int, iv: ByteArray, sequence: Long, offset: Int) {
+    val block = (offset / BLOCK_SIZE).toLong()
+
+    for (i in 0 until 8) {
+      iv[i] = (sequence shr (56 - i * 8)).toByte()
+      iv[8 + i] = (block shr (56 - i * 8)).toByte()
+    }
+
+    try {
+      cipher.init(mode, keySpec, IvParameterSpec(iv))
+    } catch (e: Exception) {
+      throw AssertionError(e)
+    }
+  }
+
+  class Chunk(val slot: Int, val sequence: Long, val length: Int, val versionName: String)
+}
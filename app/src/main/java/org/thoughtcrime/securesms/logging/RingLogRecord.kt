@@ -0,0 +1,214 @@
+package org.thoughtcrime.securesms.logging
+
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import kotlin.math.min
+
+/**
+ * The binary format of a single log line, as written by [RingBufferLogger].
+ *
+ * A record is laid out as:
+ * - u16 total length, including this field
+ * - i64 timestamp
+ * - u8 level
+ * - u8 flags
+ * - i64 thread id
+ * - u16 tag length, followed by the tag as UTF-8
+ * - u16 message length, followed by the message as UTF-8. A stack trace is appended to the message after a newline.
+ *
+ * Encoding works straight from the provided [CharSequence]s into the buffer, so logging a line doesn't allocate.
+ */
+internal object RingLogRecord {
+
+  const val FLAG_KEEP_LONGER = 1
+
+  const val MAX_TAG_BYTES = 256
+  const val MAX_MESSAGE_BYTES = 16 * 1024
+
+  private const val LENGTH_OFFSET = 0
+  private const val TIMESTAMP_OFFSET = 2
+  private const val LEVEL_OFFSET = 10
+  private const val FLAGS_OFFSET = 11
+  private const val THREAD_OFFSET = 12
+  private const val TAG_OFFSET = 20
+
+  const val MAX_RECORD_SIZE = TAG_OFFSET + 2 + MAX_TAG_BYTES + 2 + MAX_MESSAGE_BYTES
+
+  /**
+   * Writes a record at the buffer's position.
+   *
+   * @return False if there wasn't enough room, in which case the buffer is left as it was.
+   */
+  fun encode(
+    buffer: ByteBuffer,
+    timestamp: Long,
+    level: Byte,
+    flags: Int,
+    threadId: Long,
+    tag: CharSequence,
+    message: CharSequence,
+    trace: CharSequence?
+  ): Boolean {
+    val tagLength = min(utf8Length(tag), MAX_TAG_BYTES)
+    val messageLength = min(utf8Length(message) + if (trace != null) 1 + utf8Length(trace) else 0, MAX_MESSAGE_BYTES)
+
+    if (buffer.remaining() < TAG_OFFSET + 2 + tagLength + 2 + messageLength) {
+      return false
+    }
+
+    val start = buffer.position()
+
+    buffer.position(start + TIMESTAMP_OFFSET)
+    buffer.putLong(timestamp)
+    buffer.put(level)
+    buffer.put(flags.toByte())
+    buffer.putLong(threadId)
+
+    val tagStart = buffer.position()
+    buffer.position(tagStart + 2)
+    buffer.putShort(tagStart, putUtf8(buffer, tag, MAX_TAG_BYTES).toShort())
+
+    val messageStart = buffer.position()
+    buffer.position(messageStart + 2)
+
+    var written = putUtf8(buffer, message, MAX_MESSAGE_BYTES)
+    if (trace != null && written < MAX_MESSAGE_BYTES) {
+      buffer.put('\n'.code.toByte())
+      written += 1 + putUtf8(buffer, trace, MAX_MESSAGE_BYTES - written - 1)
+    }
+    buffer.putShort(messageStart, written.toShort())
+
+    buffer.putShort(start + LENGTH_OFFSET, (buffer.position() - start).toShort())
+
+    return true
+  }
+
+  fun length(buffer: ByteBuffer, offset: Int): Int = buffer.getShort(offset + LENGTH_OFFSET).toInt() and 0xFFFF
+
+  fun timestamp(buffer: ByteBuffer, offset: Int): Long = buffer.getLong(offset + TIMESTAMP_OFFSET)
+
+  fun level(buffer: ByteBuffer, offset: Int): Char = (buffer.get(offset + LEVEL_OFFSET).toInt() and 0xFF).toChar()
+
+  fun flags(buffer: ByteBuffer, offset: Int): Int = buffer.get(offset + FLAGS_OFFSET).toInt() and 0xFF
+
+  fun threadId(buffer: ByteBuffer, offset: Int): Long = buffer.getLong(offset + THREAD_OFFSET)
+
+  fun tag(buffer: ByteBuffer, offset: Int): String {
+    return String(buffer.array(), offset + TAG_OFFSET + 2, tagLength(buffer, offset), StandardCharsets.UTF_8)
+  }
+
+  fun message(buffer: ByteBuffer, offset: Int): String {
+    return String(buffer.array(), messageOffset(buffer, offset) + 2, messageLength(buffer, offset), StandardCharsets.UTF_8)
+  }
+
+  /**
+   * @return The number of lines in the message, which is how many lines the record becomes when it's formatted.
+   */
+  fun lineCount(buffer: ByteBuffer, offset: Int): Int {
+    val array = buffer.array()
+    val start = messageOffset(buffer, offset) + 2
+    val end = start + messageLength(buffer, offset)
+    var count = 1
+
+    for (i in start until end) {
+      if (array[i] == '\n'.code.toByte()) {
+        count++
+      }
+    }
+
+    return count
+  }
+
+  /**
+   * @return True if a whole, well-formed record starts at the offset and ends before the limit.
+   */
+  fun isValid(buffer: ByteBuffer, offset: Int, limit: Int): Boolean {
+    if (offset + TAG_OFFSET + 2 > limit) {
+      return false
+    }
+
+    val length = length(buffer, offset)
+    if (length < TAG_OFFSET + 4 || offset + length > limit) {
+      return false
+    }
+
+    val messageOffset = messageOffset(buffer, offset)
+    if (messageOffset + 2 > offset + length) {
+      return false
+    }
+
+    return messageOffset + 2 + messageLength(buffer, offset) == offset + length
+  }
+
+  private fun tagLength(buffer: ByteBuffer, offset: Int): Int = buffer.getShort(offset + TAG_OFFSET).toInt() and 0xFFFF
+
+  private fun messageOffset(buffer: ByteBuffer, offset: Int): Int = offset + TAG_OFFSET + 2 + tagLength(buffer, offset)
+
+  private fun messageLength(buffer: ByteBuffer, offset: Int): Int = buffer.getShort(messageOffset(buffer, offset)).toInt() and 0xFFFF
+
+  private fun utf8Length(value: CharSequence): Int {
+    var length = 0
+    var i = 0
+
+    while (i < value.length) {
+      val c = value[i]
+      length += when {
+        c.code < 0x80 -> 1
+        c.code < 0x800 -> 2
+        Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1]) -> { i++; 4 }
+        Character.isSurrogate(c) -> 1
+        else -> 3
+      }
+      i++
+    }
+
+    return length
+  }
+
+  /**
+   * Writes as much of the value as fits in [maxBytes] without splitting a character.
+   *
+   * @return The number of bytes written.
+   */
+  private fun putUtf8(buffer: ByteBuffer, value: CharSequence, maxBytes: Int): Int {
+    var written = 0
+    var i = 0
+
+    while (i < value.length) {
+      val c = value[i]
+
+      if (c.code < 0x80) {
+        if (written + 1 > maxBytes) break
+        buffer.put(c.code.toByte())
+        written += 1
+      } else if (c.code < 0x800) {
+        if (written + 2 > maxBytes) break
+        buffer.put((0xC0 or (c.code shr 6)).toByte())
+        buffer.put((0x80 or (c.code and 0x3F)).toByte())
+        written += 2
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1])) {
+        if (written + 4 > maxBytes) break
+        val codePoint = Character.toCodePoint(c, value[i + 1])
+        buffer.put((0xF0 or (codePoint shr 18)).toByte())
+        buffer.put((0x80 or ((codePoint shr 12) and 0x3F)).toByte())
+        buffer.put((0x80 or ((codePoint shr 6) and 0x3F)).toByte())
+        buffer.put((0x80 or (codePoint and 0x3F)).toByte())
+        written += 4
+        i++
+      } else if (Character.isSurrogate(c)) {
+        if (written + 1 > maxBytes) break
+        buffer.put('?'.code.toByte())
+        written += 1
+      } else {
+        if (written + 3 > maxBytes) break
+        buffer.put((0xE0 or (c.code shr 12)).toByte())
+        buffer.put((0x80 or ((c.code shr 6) and 0x3F)).toByte())
+        buffer.put((0x80 or (c.code and 0x3F)).toByte())
+        written += 3
+      }
+      i++
+    }
+
+    return written
+  }
+}
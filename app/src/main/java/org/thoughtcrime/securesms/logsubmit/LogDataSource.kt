@@ -3,12 +3,12 @@ package org.thoughtcrime.securesms.logsubmit
 import android.app.Application
 import org.signal.core.util.logging.Scrubber
 import org.signal.paging.PagedDataSource
-import org.thoughtcrime.securesms.database.LogDatabase
+import org.thoughtcrime.securesms.logging.PersistentLogStore
 
 /**
  * Retrieves logs to show in the [SubmitDebugLogActivity].
  *
- * @param prefixLines A static list of lines to show before all of the lines retrieved from [LogDatabase]
+ * @param prefixLines A static list of lines to show before all of the lines retrieved from [PersistentLogStore]
  * @param untilTime Only show logs before this time. This is our way of making sure the set of logs we show on this screen doesn't grow.
  */
 class LogDataSource(
@@ -18,7 +18,7 @@ class LogDataSource(
 ) :
   PagedDataSource<Long, LogLine> {
 
-  val logDatabase = LogDatabase.getInstance(application)
+  val logDatabase = PersistentLogStore.getInstance(application)
 
   override fun size(): Int {
     return prefixLines.size + logDatabase.getLogCountBeforeTime(untilTime)
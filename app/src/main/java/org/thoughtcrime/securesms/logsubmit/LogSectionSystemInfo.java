@@ -69,6 +69,9 @@ public class LogSectionSystemInfo implements LogSection {
     builder.append("Device ID     : ").append(SignalStore.account().getDeviceId()).append("\n");
     builder.append("Censored      : ").append(ApplicationDependencies.getSignalServiceNetworkAccess().isCensored()).append("\n");
     builder.append("Network Status: ").append(NetworkUtil.getNetworkStatus(context)).append("\n");
+    builder.append("DB Notifies   : ").append(ApplicationDependencies.getDatabaseObserver().getDebugInfo()).append("\n");
+    builder.append("Receipts      : ").append(ApplicationDependencies.getReceiptAggregator().getDebugInfo()).append("\n");
+    builder.append("Recipients    : ").append(ApplicationDependencies.getRecipientCache().getDebugInfo()).append("\n");
     builder.append("Play Services : ").append(getPlayServicesString(context)).append("\n");
     builder.append("FCM           : ").append(SignalStore.account().isFcmEnabled()).append("\n");
     builder.append("BkgRestricted : ").append(Build.VERSION.SDK_INT >= 28 ? DeviceProperties.isBackgroundRestricted(context) : "N/A").append("\n");
@@ -19,8 +19,8 @@ import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.signal.core.util.logging.Scrubber;
 import org.signal.core.util.tracing.Tracer;
-import org.thoughtcrime.securesms.database.LogDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.logging.PersistentLogStore;
 import org.thoughtcrime.securesms.net.StandardUserAgentInterceptor;
 import org.thoughtcrime.securesms.providers.BlobProvider;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
@@ -114,7 +114,7 @@ public class SubmitDebugLogRepository {
   public void buildAndSubmitLog(@NonNull Callback<Optional<String>> callback) {
     SignalExecutors.UNBOUNDED.execute(() -> {
       Log.blockUntilAllWritesFinished();
-      LogDatabase.getInstance(context).trimToSize();
+      PersistentLogStore.getInstance(context).trimToSize();
       callback.onResult(submitLogInternal(System.currentTimeMillis(), getPrefixLogLinesInternal(), Tracer.getInstance().serialize()));
     });
   }
@@ -122,7 +122,7 @@ public class SubmitDebugLogRepository {
   /**
    * Submits a log with the provided prefix lines.
    *
-   * @param untilTime Only submit logs from {@link LogDatabase} if they were created before this time. This is our way of making sure that the logs we submit
+   * @param untilTime Only submit logs from {@link PersistentLogStore} if they were created before this time. This is our way of making sure that the logs we submit
    *                  only include the logs that we've already shown the user. It's possible some old logs may have been trimmed off in the meantime, but no
    *                  new ones could pop up.
    */
@@ -138,7 +138,7 @@ public class SubmitDebugLogRepository {
         outputStream.putNextEntry(new ZipEntry("log.txt"));
         outputStream.write(prefixLines.toString().getBytes(StandardCharsets.UTF_8));
 
-        try (LogDatabase.Reader reader = LogDatabase.getInstance(context).getAllBeforeTime(untilTime)) {
+        try (PersistentLogStore.Reader reader = PersistentLogStore.getInstance(context).getAllBeforeTime(untilTime)) {
           while (reader.hasNext()) {
             outputStream.write(reader.next().getBytes());
             outputStream.write("\n".getBytes());
@@ -191,7 +191,7 @@ public class SubmitDebugLogRepository {
 
       stopwatch.split("front-matter");
 
-      try (LogDatabase.Reader reader = LogDatabase.getInstance(context).getAllBeforeTime(untilTime)) {
+      try (PersistentLogStore.Reader reader = PersistentLogStore.getInstance(context).getAllBeforeTime(untilTime)) {
         while (reader.hasNext()) {
           gzipOutput.write(reader.next().getBytes());
           gzipOutput.write("\n".getBytes());
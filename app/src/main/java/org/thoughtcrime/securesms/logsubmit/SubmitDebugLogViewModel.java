@@ -18,8 +18,8 @@ import org.signal.paging.PagedData;
 import org.signal.paging.PagingConfig;
 import org.signal.paging.PagingController;
 import org.signal.paging.ProxyPagingController;
-import org.thoughtcrime.securesms.database.LogDatabase;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.logging.PersistentLogStore;
 import org.thoughtcrime.securesms.util.SingleLiveEvent;
 
 import java.util.ArrayList;
@@ -54,7 +54,7 @@ public class SubmitDebugLogViewModel extends ViewModel {
       this.staticLines.addAll(staticLines);
 
       Log.blockUntilAllWritesFinished();
-      LogDatabase.getInstance(ApplicationDependencies.getApplication()).trimToSize();
+      PersistentLogStore.getInstance(ApplicationDependencies.getApplication()).trimToSize();
 
       LogDataSource dataSource = new LogDataSource(ApplicationDependencies.getApplication(), staticLines, firstViewTime);
       PagingConfig  config     = new PagingConfig.Builder().setPageSize(100)
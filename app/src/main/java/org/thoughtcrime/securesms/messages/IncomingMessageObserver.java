@@ -27,6 +27,7 @@ import org.thoughtcrime.securesms.messages.IncomingMessageProcessor.Processor;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.push.SignalServiceNetworkAccess;
 import org.thoughtcrime.securesms.util.AppForegroundObserver;
+import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.signalservice.api.SignalWebSocket;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
@@ -35,6 +36,7 @@ import org.whispersystems.signalservice.api.websocket.WebSocketUnavailableExcept
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -54,6 +56,7 @@ public class IncomingMessageObserver {
   public static final  int  FOREGROUND_ID           = 313399;
   private static final long REQUEST_TIMEOUT_MINUTES = 1;
   private static final long OLD_REQUEST_WINDOW_MS   = TimeUnit.MINUTES.toMillis(5);
+  private static final int  READ_AHEAD_COUNT        = 32;
 
   private static final AtomicInteger INSTANCE_COUNT = new AtomicInteger(0);
 
@@ -236,20 +239,45 @@ public class IncomingMessageObserver {
         SignalWebSocket signalWebSocket = ApplicationDependencies.getSignalWebSocket();
         signalWebSocket.connect();
 
+        boolean batched       = FeatureFlags.batchedMessageRetrieval();
+        long    connectTime   = System.currentTimeMillis();
+        int     envelopeCount = 0;
+
         try {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...");
-              Optional<SignalServiceEnvelope> result = signalWebSocket.readOrEmpty(TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES), envelope -> {
-                Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
-                try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-                  processor.processEnvelope(envelope);
-                }
-              });
+              boolean queueEmpty;
+
+              if (batched) {
+                AtomicInteger batchSize = new AtomicInteger();
+
+                queueEmpty = signalWebSocket.readBatchOrEmpty(TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES), READ_AHEAD_COUNT, envelopes -> {
+                  Log.i(TAG, "Retrieved " + envelopes.size() + " envelopes!");
+                  batchSize.set(envelopes.size());
+                  try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
+                    processor.processEnvelopes(envelopes);
+                  }
+                });
+
+                envelopeCount += batchSize.get();
+              } else {
+                Optional<SignalServiceEnvelope> result = signalWebSocket.readOrEmpty(TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES), envelope -> {
+                  Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
+                  try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
+                    processor.processEnvelope(envelope);
+                  }
+                });
+
+                queueEmpty = !result.isPresent();
+                envelopeCount += result.isPresent() ? 1 : 0;
+              }
               attempts = 0;
 
-              if (!result.isPresent() && !networkDrained) {
-                Log.i(TAG, "Network was newly-drained. Enqueuing a job to listen for decryption draining.");
+              if (queueEmpty && !networkDrained) {
+                long duration = Math.max(1, System.currentTimeMillis() - connectTime);
+                Log.i(TAG, String.format(Locale.US, "Network was newly-drained. Read %d envelopes in %d ms (%.1f envelopes/sec, batched: %s). Enqueuing a job to listen for decryption draining.",
+                                         envelopeCount, duration, envelopeCount * 1000f / duration, batched));
                 networkDrained = true;
                 ApplicationDependencies.getJobManager().add(new PushDecryptDrainedJob());
               }
@@ -20,10 +20,12 @@ import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobs.PushDecryptMessageJob;
 import org.thoughtcrime.securesms.jobs.PushProcessMessageJob;
 import org.thoughtcrime.securesms.messages.MessageDecryptionUtil.DecryptionResult;
+import org.thoughtcrime.securesms.notifications.v2.ConversationId;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.FeatureFlags;
 import org.thoughtcrime.securesms.util.GroupUtil;
+import org.signal.core.util.ListUtil;
 import org.signal.core.util.SetUtil;
 import org.signal.core.util.Stopwatch;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
@@ -33,6 +35,11 @@ import org.whispersystems.signalservice.api.messages.SignalServiceGroupV2;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -43,6 +50,8 @@ public class IncomingMessageProcessor {
 
   private static final String TAG = Log.tag(IncomingMessageProcessor.class);
 
+  private static final int MAX_MESSAGES_PER_TRANSACTION = 16;
+
   private final Application   context;
   private final ReentrantLock lock;
 
@@ -96,6 +105,176 @@ public class IncomingMessageProcessor {
       }
     }
 
+    /**
+     * Processes a batch of envelopes in order. Receipts are handled immediately. By default, the decryption jobs for all
+     * of the messages are enqueued together, so that they're written to the job database in a single transaction, and
+     * this doesn't return until they have been. The caller acknowledges the envelopes to the server after that.
+     *
+     * With {@link FeatureFlags#batchedMessageProcessing()}, the messages are instead decrypted and processed right here,
+     * in groups that each share a single database transaction. See {@link #processMessagesInline(List)}.
+     */
+    public void processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) {
+      List<SignalServiceEnvelope> messages = new ArrayList<>(envelopes.size());
+
+      for (SignalServiceEnvelope envelope : envelopes) {
+        if (envelope.hasSourceUuid()) {
+          Recipient.externalPush(envelope.getSourceAddress());
+        }
+
+        if (envelope.isReceipt()) {
+          processReceipt(envelope);
+        } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender() || envelope.isPlaintextContent()) {
+          messages.add(envelope);
+        } else {
+          Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+        }
+      }
+
+      if (messages.isEmpty()) {
+        return;
+      }
+
+      if (FeatureFlags.batchedMessageProcessing() && !needsToEnqueueDecryption()) {
+        List<List<SignalServiceEnvelope>> groups = ListUtil.chunk(messages, MAX_MESSAGES_PER_TRANSACTION);
+
+        for (int i = 0; i < groups.size(); i++) {
+          List<SignalServiceEnvelope> group     = groups.get(i);
+          int                         processed = processMessagesInline(group);
+
+          if (processed < group.size()) {
+            List<SignalServiceEnvelope> remaining = new ArrayList<>(group.subList(processed, group.size()));
+            for (List<SignalServiceEnvelope> laterGroup : groups.subList(i + 1, groups.size())) {
+              remaining.addAll(laterGroup);
+            }
+
+            Log.w(TAG, "Failed to process a batch inline. Falling back to enqueueing decryption for the remaining " + remaining.size() + " message(s).");
+            enqueueDecryption(remaining);
+            return;
+          }
+        }
+      } else {
+        enqueueDecryption(messages);
+      }
+    }
+
+    private void enqueueDecryption(@NonNull List<SignalServiceEnvelope> envelopes) {
+      List<Job> decryptionJobs = new ArrayList<>(envelopes.size());
+
+      for (SignalServiceEnvelope envelope : envelopes) {
+        decryptionJobs.add(new PushDecryptMessageJob(context, envelope));
+      }
+
+      jobManager.startChain(decryptionJobs).enqueueBlocking();
+    }
+
+    /**
+     * Decrypts and processes a group of messages in order, all inside of one database transaction. Each touched thread
+     * is only recomputed once at the end, and since observers are only notified after a transaction commits, repeated
+     * notifications for the same conversation are coalesced into one.
+     *
+     * A message that can't be processed on the spot (because its queue is busy, it needs the network first, or its
+     * processing failed) is handed off to a {@link PushProcessMessageJob}, exactly like it would be after a
+     * {@link PushDecryptMessageJob}, and every later message for that queue follows it so they stay in order. Jobs
+     * enqueued during the group, and side effects like call events and notifications, only happen once the transaction
+     * commits. See {@link MessageBatchTransaction}.
+     *
+     * If a message throws, the whole transaction is rolled back, including the session state, so nothing has been
+     * consumed and none of the side effects have happened. The messages before it are then run again on their own, and
+     * the caller enqueues decryption for the failing message and everything after it, so one bad message doesn't take
+     * the rest of the group down with it, and the order is kept.
+     *
+     * @return How many of the messages, from the start of the group, were processed and committed.
+     */
+    private int processMessagesInline(@NonNull List<SignalServiceEnvelope> envelopes) {
+      int count = envelopes.size();
+
+      while (count > 0) {
+        List<SignalServiceEnvelope> attempt   = envelopes.subList(0, count);
+        AtomicInteger               processed = new AtomicInteger(0);
+
+        if (processMessagesInTransaction(attempt, processed)) {
+          return count;
+        }
+
+        if (processed.get() == count) {
+          Log.w(TAG, "Failed to commit " + count + " message(s) that were processed inline.");
+          return 0;
+        }
+
+        Log.w(TAG, "Message " + (processed.get() + 1) + " of " + count + " failed to process inline. Retrying the ones before it.");
+        count = processed.get();
+      }
+
+      return 0;
+    }
+
+    /**
+     * @param processed Incremented for each message that's processed without throwing, so that the caller can tell
+     *                  which message caused a rollback.
+     * @return True if the transaction was committed, otherwise false.
+     */
+    private boolean processMessagesInTransaction(@NonNull List<SignalServiceEnvelope> envelopes, @NonNull AtomicInteger processed) {
+      Stopwatch   stopwatch  = new Stopwatch("batch");
+      Set<String> busyQueues = new HashSet<>();
+      Set<Long>   updatedThreads;
+
+      try (SignalSessionLock.Lock unused = ReentrantSessionLock.INSTANCE.acquire()) {
+        updatedThreads = MessageBatchTransaction.run(jobManager, () -> {
+          for (SignalServiceEnvelope envelope : envelopes) {
+            processMessageInTransaction(envelope, busyQueues);
+            processed.incrementAndGet();
+          }
+          stopwatch.split("process");
+        });
+      } finally {
+        stopwatch.split("commit");
+        stopwatch.stop(TAG);
+      }
+
+      if (updatedThreads == null) {
+        return false;
+      }
+
+      Log.i(TAG, "Processed " + envelopes.size() + " message(s) inline in a single transaction, touching " + updatedThreads.size() + " thread(s).");
+
+      // Notification updates made during the transaction may have read the database before it committed
+      for (long threadId : updatedThreads) {
+        ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(threadId));
+      }
+
+      return true;
+    }
+
+    private void processMessageInTransaction(@NonNull SignalServiceEnvelope envelope, @NonNull Set<String> busyQueues) {
+      Log.i(TAG, "Received message " + envelope.getTimestamp() + ".");
+
+      for (Job job : PushDecryptMessageJob.decrypt(context, envelope, -1)) {
+        String queue = job.getParameters().getQueue();
+
+        if (job instanceof PushProcessMessageJob && canProcessImmediately((PushProcessMessageJob) job, busyQueues)) {
+          try {
+            ((PushProcessMessageJob) job).process(context);
+            continue;
+          } catch (IOException | GroupChangeBusyException e) {
+            Log.w(TAG, "Exception during message processing. Handing it off to a job.", e);
+          }
+        }
+
+        if (queue != null) {
+          busyQueues.add(queue);
+        }
+
+        jobManager.add(job);
+      }
+    }
+
+    private boolean canProcessImmediately(@NonNull PushProcessMessageJob job, @NonNull Set<String> busyQueues) {
+      String queue = job.getParameters().getQueue();
+
+      return job.canProcessImmediately() &&
+             (queue == null || (!busyQueues.contains(queue) && jobManager.isQueueEmpty(queue)));
+    }
+
     private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope) {
       return processMessageDeferred(envelope);
     }
@@ -0,0 +1,118 @@
+package org.thoughtcrime.securesms.messages;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobmanager.JobManager;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a group of messages being processed inline inside of a single database transaction. While it runs, thread
+ * updates are deferred so that each touched thread is only recomputed once, and jobs and other side effects (see
+ * {@link #runAfterCommit(Runnable)}) are held back so that they never act on uncommitted rows.
+ *
+ * If the transaction doesn't commit, the jobs and side effects are dropped, so running the same messages again doesn't
+ * repeat anything, and the in-memory caches that sit in front of the database are cleared, since they may have picked
+ * up rows that were just rolled back.
+ */
+final class MessageBatchTransaction {
+
+  private static final String TAG = Log.tag(MessageBatchTransaction.class);
+
+  /** The side effects held back by the batch running on this thread, or null if there isn't one. */
+  private static final ThreadLocal<List<Runnable>> AFTER_COMMIT = new ThreadLocal<>();
+
+  private MessageBatchTransaction() {}
+
+  /**
+   * @return The ids of the threads that were recomputed, or null if the transaction didn't commit.
+   */
+  @WorkerThread
+  static @Nullable Set<Long> run(@NonNull JobManager jobManager, @NonNull Runnable operation) {
+    Set<Long>      updatedThreads = new HashSet<>();
+    List<Runnable> afterCommit    = new ArrayList<>();
+    AtomicBoolean  committed      = new AtomicBoolean(false);
+
+    jobManager.beginDeferredSubmission();
+    AFTER_COMMIT.set(afterCommit);
+
+    try {
+      SignalDatabase.runInTransaction(() -> {
+        updatedThreads.addAll(SignalDatabase.threads().runWithDeferredUpdates(operation));
+        SignalDatabase.runPostSuccessfulTransaction(() -> committed.set(true));
+      });
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Exception while processing a batch inline.", e);
+    } finally {
+      AFTER_COMMIT.remove();
+
+      if (committed.get()) {
+        runSideEffects(afterCommit);
+      } else if (afterCommit.size() > 0) {
+        Log.w(TAG, "Dropping " + afterCommit.size() + " deferred side effect(s).");
+      }
+
+      jobManager.endDeferredSubmission(committed.get());
+    }
+
+    if (!committed.get()) {
+      invalidateCaches();
+      return null;
+    }
+
+    return updatedThreads;
+  }
+
+  /**
+   * Runs a side effect of processing a message that can't be undone, like passing a call event to the call manager or
+   * updating a notification. If a batch is running on this thread, it's held back until the batch commits, and dropped
+   * if it doesn't. Otherwise, it runs right away.
+   */
+  static void runAfterCommit(@NonNull Runnable sideEffect) {
+    List<Runnable> afterCommit = AFTER_COMMIT.get();
+
+    if (afterCommit != null) {
+      afterCommit.add(sideEffect);
+    } else {
+      sideEffect.run();
+    }
+  }
+
+  /**
+   * The changes they were deferred for have already been committed, so one failing side effect must not keep the others
+   * from running.
+   */
+  private static void runSideEffects(@NonNull List<Runnable> sideEffects) {
+    for (Runnable sideEffect : sideEffects) {
+      try {
+        sideEffect.run();
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Exception while running a deferred side effect.", e);
+      }
+    }
+  }
+
+  /**
+   * The identity store and the recipient caches are written to as messages are processed, and can be read from other
+   * threads, so they may still hold records from the rolled back transaction. Sessions, pre-keys and sender keys are
+   * always read straight from the database, so the rollback already took care of them.
+   */
+  private static void invalidateCaches() {
+    Log.w(TAG, "Batch was rolled back. Clearing caches.");
+
+    // The ACI and PNI identity stores share a cache
+    ApplicationDependencies.getProtocolStore().aci().identities().invalidateAll();
+    RecipientId.clearCache();
+    ApplicationDependencies.getRecipientCache().clearMemory();
+  }
+}
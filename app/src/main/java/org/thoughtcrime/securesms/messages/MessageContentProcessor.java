@@ -590,13 +590,14 @@ public final class MessageContentProcessor {
       RemotePeer remotePeer        = new RemotePeer(senderRecipient.getId(), new CallId(message.getId()));
       byte[]     remoteIdentityKey = ApplicationDependencies.getProtocolStore().aci().identities().getIdentityRecord(senderRecipient.getId()).map(record -> record.getIdentityKey().serialize()).orElse(null);
 
-      ApplicationDependencies.getSignalCallManager()
-                             .receivedOffer(new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice()),
-                                            new WebRtcData.OfferMetadata(message.getOpaque(), message.getSdp(), message.getType()),
-                                            new WebRtcData.ReceivedOfferMetadata(remoteIdentityKey,
-                                                                                 content.getServerReceivedTimestamp(),
-                                                                                 content.getServerDeliveredTimestamp(),
-                                                                                 content.getCallMessage().get().isMultiRing()));
+      WebRtcData.CallMetadata          callMetadata          = new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice());
+      WebRtcData.OfferMetadata         offerMetadata         = new WebRtcData.OfferMetadata(message.getOpaque(), message.getSdp(), message.getType());
+      WebRtcData.ReceivedOfferMetadata receivedOfferMetadata = new WebRtcData.ReceivedOfferMetadata(remoteIdentityKey,
+                                                                                                    content.getServerReceivedTimestamp(),
+                                                                                                    content.getServerDeliveredTimestamp(),
+                                                                                                    content.getCallMessage().get().isMultiRing());
+
+      MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getSignalCallManager().receivedOffer(callMetadata, offerMetadata, receivedOfferMetadata));
     }
   }
 
@@ -608,10 +609,11 @@ public final class MessageContentProcessor {
     RemotePeer remotePeer        = new RemotePeer(senderRecipient.getId(), new CallId(message.getId()));
     byte[]     remoteIdentityKey = ApplicationDependencies.getProtocolStore().aci().identities().getIdentityRecord(senderRecipient.getId()).map(record -> record.getIdentityKey().serialize()).orElse(null);
 
-    ApplicationDependencies.getSignalCallManager()
-                           .receivedAnswer(new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice()),
-                                           new WebRtcData.AnswerMetadata(message.getOpaque(), message.getSdp()),
-                                           new WebRtcData.ReceivedAnswerMetadata(remoteIdentityKey, content.getCallMessage().get().isMultiRing()));
+    WebRtcData.CallMetadata           callMetadata           = new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice());
+    WebRtcData.AnswerMetadata         answerMetadata         = new WebRtcData.AnswerMetadata(message.getOpaque(), message.getSdp());
+    WebRtcData.ReceivedAnswerMetadata receivedAnswerMetadata = new WebRtcData.ReceivedAnswerMetadata(remoteIdentityKey, content.getCallMessage().get().isMultiRing());
+
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getSignalCallManager().receivedAnswer(callMetadata, answerMetadata, receivedAnswerMetadata));
   }
 
   private void handleCallIceUpdateMessage(@NonNull SignalServiceContent content,
@@ -628,11 +630,10 @@ public final class MessageContentProcessor {
       callId = iceMessage.getId();
     }
 
-    RemotePeer remotePeer = new RemotePeer(senderRecipient.getId(), new CallId(callId));
+    RemotePeer              remotePeer   = new RemotePeer(senderRecipient.getId(), new CallId(callId));
+    WebRtcData.CallMetadata callMetadata = new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice());
 
-    ApplicationDependencies.getSignalCallManager()
-                           .receivedIceCandidates(new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice()),
-                                                  iceCandidates);
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getSignalCallManager().receivedIceCandidates(callMetadata, iceCandidates));
   }
 
   private void handleCallHangupMessage(@NonNull SignalServiceContent content,
@@ -644,11 +645,11 @@ public final class MessageContentProcessor {
     if (smsMessageId.isPresent()) {
       SignalDatabase.sms().markAsMissedCall(smsMessageId.get(), false);
     } else {
-      RemotePeer remotePeer = new RemotePeer(senderRecipient.getId(), new CallId(message.getId()));
+      RemotePeer                remotePeer     = new RemotePeer(senderRecipient.getId(), new CallId(message.getId()));
+      WebRtcData.CallMetadata   callMetadata   = new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice());
+      WebRtcData.HangupMetadata hangupMetadata = new WebRtcData.HangupMetadata(message.getType(), message.isLegacy(), message.getDeviceId());
 
-      ApplicationDependencies.getSignalCallManager()
-                             .receivedCallHangup(new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice()),
-                                                 new WebRtcData.HangupMetadata(message.getType(), message.isLegacy(), message.getDeviceId()));
+      MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getSignalCallManager().receivedCallHangup(callMetadata, hangupMetadata));
     }
   }
 
@@ -658,10 +659,10 @@ public final class MessageContentProcessor {
   {
     log(String.valueOf(content.getTimestamp()), "handleCallBusyMessage");
 
-    RemotePeer remotePeer = new RemotePeer(senderRecipient.getId(), new CallId(message.getId()));
+    RemotePeer              remotePeer   = new RemotePeer(senderRecipient.getId(), new CallId(message.getId()));
+    WebRtcData.CallMetadata callMetadata = new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice());
 
-    ApplicationDependencies.getSignalCallManager()
-                           .receivedCallBusy(new WebRtcData.CallMetadata(remotePeer, content.getSenderDevice()));
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getSignalCallManager().receivedCallBusy(callMetadata));
   }
 
   private void handleCallOpaqueMessage(@NonNull SignalServiceContent content,
@@ -675,11 +676,12 @@ public final class MessageContentProcessor {
       messageAgeSeconds = (content.getServerDeliveredTimestamp() - content.getServerReceivedTimestamp()) / 1000;
     }
 
-    ApplicationDependencies.getSignalCallManager()
-                           .receivedOpaqueMessage(new WebRtcData.OpaqueMessageMetadata(senderRecipient.requireServiceId().uuid(),
-                                                                                       message.getOpaque(),
-                                                                                       content.getSenderDevice(),
-                                                                                       messageAgeSeconds));
+    WebRtcData.OpaqueMessageMetadata opaqueMessageMetadata = new WebRtcData.OpaqueMessageMetadata(senderRecipient.requireServiceId().uuid(),
+                                                                                                  message.getOpaque(),
+                                                                                                  content.getSenderDevice(),
+                                                                                                  messageAgeSeconds);
+
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getSignalCallManager().receivedOpaqueMessage(opaqueMessageMetadata));
   }
 
   private void handleGroupCallUpdateMessage(@NonNull SignalServiceContent content,
@@ -737,7 +739,7 @@ public final class MessageContentProcessor {
       ApplicationDependencies.getProtocolStore().aci().deleteAllSessions(content.getSender().getIdentifier());
 
       SecurityEvent.broadcastSecurityUpdateEvent(context);
-      ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+      updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
 
       return new MessageId(insertResult.get().getMessageId(), true);
     } else {
@@ -896,7 +898,7 @@ public final class MessageContentProcessor {
     if (targetMessage == null) {
       warn(String.valueOf(content.getTimestamp()), "[handleReaction] Could not find matching message! Putting it in the early message cache. timestamp: " + reaction.getTargetSentTimestamp() + "  author: " + targetAuthor.getId());
       if (!processingEarlyContent) {
-        ApplicationDependencies.getEarlyMessageCache().store(targetAuthor.getId(), reaction.getTargetSentTimestamp(), content);
+        MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getEarlyMessageCache().store(targetAuthor.getId(), reaction.getTargetSentTimestamp(), content));
         PushProcessEarlyMessagesJob.enqueue();
       }
       return null;
@@ -930,11 +932,11 @@ public final class MessageContentProcessor {
 
     if (reaction.isRemove()) {
       SignalDatabase.reactions().deleteReaction(targetMessageId, senderRecipient.getId());
-      ApplicationDependencies.getMessageNotifier().updateNotification(context);
+      updateNotification();
     } else {
       ReactionRecord reactionRecord = new ReactionRecord(reaction.getEmoji(), senderRecipient.getId(), message.getTimestamp(), System.currentTimeMillis());
       SignalDatabase.reactions().addReaction(targetMessageId, reactionRecord);
-      ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.fromMessageRecord(targetMessage), false);
+      updateNotification(ConversationId.fromMessageRecord(targetMessage), false);
     }
 
     return new MessageId(targetMessage.getId(), targetMessage.isMms());
@@ -950,12 +952,12 @@ public final class MessageContentProcessor {
     if (targetMessage != null && RemoteDeleteUtil.isValidReceive(targetMessage, senderRecipient, content.getServerReceivedTimestamp())) {
       MessageDatabase db = targetMessage.isMms() ? SignalDatabase.mms() : SignalDatabase.sms();
       db.markAsRemoteDelete(targetMessage.getId());
-      ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.fromMessageRecord(targetMessage), false);
+      updateNotification(ConversationId.fromMessageRecord(targetMessage), false);
       return new MessageId(targetMessage.getId(), targetMessage.isMms());
     } else if (targetMessage == null) {
       warn(String.valueOf(content.getTimestamp()), "[handleRemoteDelete] Could not find matching message! timestamp: " + delete.getTargetSentTimestamp() + "  author: " + senderRecipient.getId());
       if (!processingEarlyContent) {
-        ApplicationDependencies.getEarlyMessageCache().store(senderRecipient.getId(), delete.getTargetSentTimestamp(), content);
+        MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getEarlyMessageCache().store(senderRecipient.getId(), delete.getTargetSentTimestamp(), content));
         PushProcessEarlyMessagesJob.enqueue();
       }
       return null;
@@ -1213,7 +1215,7 @@ public final class MessageContentProcessor {
 
       if (threadId != -1) {
         SignalDatabase.threads().setRead(threadId, true);
-        ApplicationDependencies.getMessageNotifier().updateNotification(context);
+        updateNotification();
       }
 
       if (SignalStore.rateLimit().needsRecaptcha()) {
@@ -1221,7 +1223,7 @@ public final class MessageContentProcessor {
         RateLimitUtil.retryAllRateLimitedMessages(context);
       }
 
-      ApplicationDependencies.getMessageNotifier().setLastDesktopActivityTimestamp(message.getTimestamp());
+      MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getMessageNotifier().setLastDesktopActivityTimestamp(message.getTimestamp()));
     } catch (MmsException e) {
       throw new StorageFailedException(e, content.getSender().getIdentifier(), content.getSenderDevice());
     }
@@ -1300,7 +1302,7 @@ public final class MessageContentProcessor {
     for (SyncMessageId id : unhandled) {
       warn(String.valueOf(content.getTimestamp()), "[handleSynchronizeReadMessage] Could not find matching message! timestamp: " + id.getTimetamp() + "  author: " + id.getRecipientId());
       if (!processingEarlyContent) {
-        ApplicationDependencies.getEarlyMessageCache().store(id.getRecipientId(), id.getTimetamp(), content);
+        MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getEarlyMessageCache().store(id.getRecipientId(), id.getTimetamp(), content));
       }
     }
 
@@ -1308,10 +1310,12 @@ public final class MessageContentProcessor {
       PushProcessEarlyMessagesJob.enqueue();
     }
 
-    MessageNotifier messageNotifier = ApplicationDependencies.getMessageNotifier();
-    messageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
-    messageNotifier.cancelDelayedNotifications();
-    messageNotifier.updateNotification(context);
+    MessageBatchTransaction.runAfterCommit(() -> {
+      MessageNotifier messageNotifier = ApplicationDependencies.getMessageNotifier();
+      messageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
+      messageNotifier.cancelDelayedNotifications();
+      messageNotifier.updateNotification(context);
+    });
   }
 
   private void handleSynchronizeViewedMessage(@NonNull List<ViewedMessage> viewedMessages, long envelopeTimestamp) {
@@ -1329,10 +1333,12 @@ public final class MessageContentProcessor {
     SignalDatabase.mms().setIncomingMessagesViewed(toMarkViewed);
     SignalDatabase.mms().setOutgoingGiftsRevealed(toMarkViewed);
 
-    MessageNotifier messageNotifier = ApplicationDependencies.getMessageNotifier();
-    messageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
-    messageNotifier.cancelDelayedNotifications();
-    messageNotifier.updateNotification(context);
+    MessageBatchTransaction.runAfterCommit(() -> {
+      MessageNotifier messageNotifier = ApplicationDependencies.getMessageNotifier();
+      messageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
+      messageNotifier.cancelDelayedNotifications();
+      messageNotifier.updateNotification(context);
+    });
   }
 
   private void handleSynchronizeViewOnceOpenMessage(@NonNull SignalServiceContent content, @NonNull ViewOnceOpenMessage openMessage, long envelopeTimestamp) {
@@ -1348,15 +1354,17 @@ public final class MessageContentProcessor {
       warn(String.valueOf(envelopeTimestamp), "Got a view-once open message for a message we don't have!");
 
       if (!processingEarlyContent) {
-        ApplicationDependencies.getEarlyMessageCache().store(author, timestamp, content);
+        MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getEarlyMessageCache().store(author, timestamp, content));
         PushProcessEarlyMessagesJob.enqueue();
       }
     }
 
-    MessageNotifier messageNotifier = ApplicationDependencies.getMessageNotifier();
-    messageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
-    messageNotifier.cancelDelayedNotifications();
-    messageNotifier.updateNotification(context);
+    MessageBatchTransaction.runAfterCommit(() -> {
+      MessageNotifier messageNotifier = ApplicationDependencies.getMessageNotifier();
+      messageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
+      messageNotifier.cancelDelayedNotifications();
+      messageNotifier.updateNotification(context);
+    });
   }
 
   private void handleStoryMessage(@NonNull SignalServiceContent content, @NonNull SignalServiceStoryMessage message, @NonNull Recipient senderRecipient, @NonNull Recipient threadRecipient) throws StorageFailedException {
@@ -1580,9 +1588,9 @@ public final class MessageContentProcessor {
         database.setTransactionSuccessful();
 
         if (parentStoryId.isGroupReply()) {
-          ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.fromThreadAndReply(insertResult.get().getThreadId(), (ParentStoryId.GroupReply) parentStoryId));
+          updateNotification(ConversationId.fromThreadAndReply(insertResult.get().getThreadId(), (ParentStoryId.GroupReply) parentStoryId));
         } else {
-          ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+          updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
           TrimThreadJob.enqueueAsync(insertResult.get().getThreadId());
         }
 
@@ -1679,9 +1687,9 @@ public final class MessageContentProcessor {
         database.setTransactionSuccessful();
 
         if (parentStoryId.isGroupReply()) {
-          ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.fromThreadAndReply(insertResult.get().getThreadId(), (ParentStoryId.GroupReply) parentStoryId));
+          updateNotification(ConversationId.fromThreadAndReply(insertResult.get().getThreadId(), (ParentStoryId.GroupReply) parentStoryId));
         } else {
-          ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+          updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
           TrimThreadJob.enqueueAsync(insertResult.get().getThreadId());
         }
 
@@ -1757,7 +1765,7 @@ public final class MessageContentProcessor {
     }
 
     if (insertResult.isPresent()) {
-      ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+      updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       TrimThreadJob.enqueueAsync(insertResult.get().getThreadId());
 
       return new MessageId(insertResult.get().getMessageId(), true);
@@ -1841,7 +1849,7 @@ public final class MessageContentProcessor {
         ApplicationDependencies.getJobManager().add(new AttachmentDownloadJob(insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
       }
 
-      ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+      updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       TrimThreadJob.enqueueAsync(insertResult.get().getThreadId());
 
       if (message.isViewOnce()) {
@@ -2310,7 +2318,7 @@ public final class MessageContentProcessor {
     }
 
     if (insertResult.isPresent()) {
-      ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+      updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       return new MessageId(insertResult.get().getMessageId(), false);
     } else {
       return null;
@@ -2396,7 +2404,7 @@ public final class MessageContentProcessor {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsInvalidVersionKeyExchange(insertResult.get().getMessageId());
-        ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+        updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       }
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId.get());
@@ -2415,7 +2423,7 @@ public final class MessageContentProcessor {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsDecryptFailed(insertResult.get().getMessageId());
-        ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+        updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       }
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId.get());
@@ -2437,7 +2445,7 @@ public final class MessageContentProcessor {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsUnsupportedProtocolVersion(insertResult.get().getMessageId());
-        ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+        updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       }
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
@@ -2459,7 +2467,7 @@ public final class MessageContentProcessor {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsInvalidMessage(insertResult.get().getMessageId());
-        ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+        updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       }
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
@@ -2478,7 +2486,7 @@ public final class MessageContentProcessor {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsLegacyVersion(insertResult.get().getMessageId());
-        ApplicationDependencies.getMessageNotifier().updateNotification(context, ConversationId.forConversation(insertResult.get().getThreadId()));
+        updateNotification(ConversationId.forConversation(insertResult.get().getThreadId()));
       }
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId.get());
@@ -2511,7 +2519,7 @@ public final class MessageContentProcessor {
                                           @NonNull SignalServiceDataMessage message,
                                           @NonNull MessageId messageId)
   {
-    ApplicationDependencies.getJobManager().add(new SendDeliveryReceiptJob(RecipientId.from(content.getSender()), message.getTimestamp(), messageId));
+    SendDeliveryReceiptJob.enqueue(RecipientId.from(content.getSender()), message.getTimestamp(), messageId);
   }
 
   private void handleViewedReceipt(@NonNull SignalServiceContent content,
@@ -2545,7 +2553,7 @@ public final class MessageContentProcessor {
       for (SyncMessageId id : unhandled) {
         warn(String.valueOf(content.getTimestamp()), "[handleViewedReceipt] Could not find matching message! timestamp: " + id.getTimetamp() + ", author: " + id.getRecipientId() + " | Receipt so associating with message from self (" + selfId + ")");
         if (!processingEarlyContent) {
-          ApplicationDependencies.getEarlyMessageCache().store(selfId, id.getTimetamp(), content);
+          MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getEarlyMessageCache().store(selfId, id.getTimetamp(), content));
         }
       }
     }
@@ -2605,7 +2613,7 @@ public final class MessageContentProcessor {
       for (SyncMessageId id : unhandled) {
         warn(String.valueOf(content.getTimestamp()), "[handleReadReceipt] Could not find matching message! timestamp: " + id.getTimetamp() + ", author: " + id.getRecipientId() + " | Receipt, so associating with message from self (" + selfId + ")");
         if (!processingEarlyContent) {
-          ApplicationDependencies.getEarlyMessageCache().store(selfId, id.getTimetamp(), content);
+          MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getEarlyMessageCache().store(selfId, id.getTimetamp(), content));
         }
       }
     }
@@ -2648,10 +2656,10 @@ public final class MessageContentProcessor {
 
     if (typingMessage.isTypingStarted()) {
       Log.d(TAG, "Typing started on thread " + threadId);
-      ApplicationDependencies.getTypingStatusRepository().onTypingStarted(context,threadId, senderRecipient, content.getSenderDevice());
+      MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getTypingStatusRepository().onTypingStarted(context,threadId, senderRecipient, content.getSenderDevice()));
     } else {
       Log.d(TAG, "Typing stopped on thread " + threadId);
-      ApplicationDependencies.getTypingStatusRepository().onTypingStopped(context, threadId, senderRecipient, content.getSenderDevice(), false);
+      MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getTypingStatusRepository().onTypingStopped(context, threadId, senderRecipient, content.getSenderDevice(), false));
     }
   }
 
@@ -3010,10 +3018,25 @@ public final class MessageContentProcessor {
 
     if (threadId > 0 && TextSecurePreferences.isTypingIndicatorsEnabled(context)) {
       Log.d(TAG, "Typing stopped on thread " + threadId + " due to an incoming message.");
-      ApplicationDependencies.getTypingStatusRepository().onTypingStopped(context, threadId, senderRecipient, device, true);
+      MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getTypingStatusRepository().onTypingStopped(context, threadId, senderRecipient, device, true));
     }
   }
 
+  /**
+   * Notification updates are held back until the message is committed. See {@link MessageBatchTransaction#runAfterCommit(Runnable)}.
+   */
+  private void updateNotification() {
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getMessageNotifier().updateNotification(context));
+  }
+
+  private void updateNotification(@NonNull ConversationId conversationId) {
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getMessageNotifier().updateNotification(context, conversationId));
+  }
+
+  private void updateNotification(@NonNull ConversationId conversationId, boolean signal) {
+    MessageBatchTransaction.runAfterCommit(() -> ApplicationDependencies.getMessageNotifier().updateNotification(context, conversationId, signal));
+  }
+
   private boolean shouldIgnore(@NonNull SignalServiceContent content, @NonNull Recipient sender, @NonNull Recipient conversation)
       throws BadGroupIdException
   {
@@ -108,9 +108,10 @@ public class ApplicationMigrations {
     static final int REFRESH_PNI_REGISTRATION_ID   = 64;
     static final int KBS_MIGRATION_2               = 65;
     static final int PNI_2                         = 66;
+    static final int MESSAGE_SEARCH_INDEX          = 67;
   }
 
-  public static final int CURRENT_VERSION = 66;
+  public static final int CURRENT_VERSION = 67;
 
   /**
    * This *must* be called after the {@link JobManager} has been instantiated, but *before* the call
@@ -476,6 +477,10 @@ public class ApplicationMigrations {
       jobs.put(Version.PNI_2, new PniMigrationJob());
     }
 
+    if (lastSeenVersion < Version.MESSAGE_SEARCH_INDEX) {
+      jobs.put(Version.MESSAGE_SEARCH_INDEX, new MessageSearchIndexMigrationJob());
+    }
+
     return jobs;
   }
 
@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.migrations;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob;
+
+/**
+ * The message search index was replaced with one that starts out empty. Rather than blocking on filling it, this
+ * enqueues {@link RebuildMessageSearchIndexJob} to do it in the background.
+ */
+public class MessageSearchIndexMigrationJob extends MigrationJob {
+
+  public static final String KEY = "MessageSearchIndexMigrationJob";
+
+  MessageSearchIndexMigrationJob() {
+    this(new Parameters.Builder().build());
+  }
+
+  private MessageSearchIndexMigrationJob(@NonNull Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  public boolean isUiBlocking() {
+    return false;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  public void performMigration() {
+    RebuildMessageSearchIndexJob.enqueue();
+  }
+
+  @Override
+  boolean shouldRetry(@NonNull Exception e) {
+    return false;
+  }
+
+  public static class Factory implements Job.Factory<MessageSearchIndexMigrationJob> {
+    @Override
+    public @NonNull MessageSearchIndexMigrationJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new MessageSearchIndexMigrationJob(parameters);
+    }
+  }
+}
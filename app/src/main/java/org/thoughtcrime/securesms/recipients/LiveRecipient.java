@@ -157,6 +157,22 @@ public final class LiveRecipient {
     return updated;
   }
 
+  /**
+   * Same as {@link #resolve()}, but uses a record that's already been read from disk, if it still needs resolving.
+   */
+  @WorkerThread
+  @NonNull Recipient resolve(@NonNull RecipientRecord record) {
+    Recipient current = recipient.get();
+
+    if (!current.isResolving() || current.getId().isUnknown()) {
+      return current;
+    }
+
+    Recipient updated = createRecipient(record);
+    set(updated);
+    return updated;
+  }
+
   @WorkerThread
   public void refresh() {
     refresh(getId());
@@ -191,7 +207,10 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientRecord  record  = recipientDatabase.getRecord(id);
+    return createRecipient(recipientDatabase.getRecord(id));
+  }
+
+  private @NonNull Recipient createRecipient(@NonNull RecipientRecord record) {
     RecipientDetails details;
     if (record.getGroupId() != null) {
       details = getGroupRecipientDetails(record);
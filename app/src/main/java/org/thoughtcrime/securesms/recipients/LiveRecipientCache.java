@@ -7,6 +7,7 @@ import android.database.Cursor;
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -15,18 +16,23 @@ import org.thoughtcrime.securesms.database.RecipientDatabase;
 import org.thoughtcrime.securesms.database.RecipientDatabase.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.signal.core.util.Stopwatch;
+import org.thoughtcrime.securesms.util.SignalLocalMetrics;
+import org.thoughtcrime.securesms.util.StripedLRUCache;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.signalservice.api.push.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -36,14 +42,15 @@ public final class LiveRecipientCache {
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
   private static final int CACHE_MAX              = 1000;
+  private static final int CACHE_STRIPES          = 16;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
 
-  private final Context                         context;
-  private final RecipientDatabase               recipientDatabase;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private final Context                                     context;
+  private final RecipientDatabase                           recipientDatabase;
+  private final StripedLRUCache<RecipientId, LiveRecipient> recipients;
+  private final LiveRecipient                               unknown;
+  private final Executor                                    resolveExecutor;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
@@ -52,7 +59,7 @@ public final class LiveRecipientCache {
   public LiveRecipientCache(@NonNull Context context) {
     this.context           = context.getApplicationContext();
     this.recipientDatabase = SignalDatabase.recipients();
-    this.recipients        = new LRUCache<>(CACHE_MAX);
+    this.recipients        = new StripedLRUCache<>(CACHE_MAX, CACHE_STRIPES);
     this.warmedUp          = new AtomicBoolean(false);
     this.localRecipientId  = new AtomicReference<>(null);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
@@ -61,41 +68,76 @@ public final class LiveRecipientCache {
 
   @AnyThread
   @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
+    return getLive(id, true);
+  }
+
+  /**
+   * @param resolveInBackground Whether or not to enqueue a resolve if the recipient wasn't cached yet.
+   */
+  private @NonNull LiveRecipient getLive(@NonNull RecipientId id, boolean resolveInBackground) {
     if (id.isUnknown()) return unknown;
 
-    LiveRecipient live;
-    boolean       needsResolve;
+    LiveRecipient live = recipients.get(id);
 
-    synchronized (recipients) {
-      live = recipients.get(id);
+    if (live == null) {
+      LiveRecipient created  = new LiveRecipient(context, new Recipient(id));
+      LiveRecipient existing = recipients.putIfAbsent(id, created);
 
-      if (live == null) {
-        live = new LiveRecipient(context, new Recipient(id));
-        recipients.put(id, live);
-        needsResolve = true;
+      if (existing != null) {
+        live = existing;
       } else {
-        needsResolve = false;
-      }
-    }
+        live = created;
 
-    if (needsResolve) {
-      resolveExecutor.execute(live::resolve);
+        if (resolveInBackground) {
+          resolveExecutor.execute(live::resolve);
+        }
+      }
     }
 
     return live;
   }
 
   /**
-   * Handles remapping cache entries when recipients are merged.
+   * Resolves many recipients at once. The ones that aren't resolved yet are read from disk together, in chunks,
+   * rather than one at a time.
+   *
+   * @return The resolved recipients, in the same order as the ids.
    */
-  public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
+  @WorkerThread
+  public @NonNull List<Recipient> resolve(@NonNull Collection<RecipientId> ids) {
+    List<LiveRecipient> lives     = new ArrayList<>(ids.size());
+    Set<RecipientId>    toResolve = new HashSet<>();
+
+    for (RecipientId id : ids) {
+      LiveRecipient live = getLive(id, false);
+      lives.add(live);
+
+      if (live.get().isResolving() && !id.isUnknown()) {
+        toResolve.add(id);
+      }
+    }
+
+    Map<RecipientId, RecipientRecord> records = recipientDatabase.getRecords(toResolve);
+    List<Recipient>                   results = new ArrayList<>(lives.size());
+
+    for (LiveRecipient live : lives) {
+      RecipientRecord record = records.get(live.getId());
+
+      if (record != null) {
+        results.add(live.resolve(record));
       } else {
-        recipients.remove(oldId);
+        results.add(live.resolve());
       }
     }
+
+    return results;
+  }
+
+  /**
+   * Handles remapping cache entries when recipients are merged.
+   */
+  public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
+    recipients.alias(oldId, newId);
   }
 
   /**
@@ -107,22 +149,18 @@ public final class LiveRecipientCache {
   @AnyThread
   public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     newRecipients.stream().filter(this::isValidForCache).forEach(recipient -> {
-      LiveRecipient live;
+      LiveRecipient created  = new LiveRecipient(context, recipient);
+      LiveRecipient live     = recipients.putIfAbsent(recipient.getId(), created);
       boolean       needsResolve;
 
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
-
-        if (live == null) {
-          live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
-          needsResolve = recipient.isResolving();
-        } else if (live.get().isResolving() || !recipient.isResolving()) {
-          live.set(recipient);
-          needsResolve = recipient.isResolving();
-        } else {
-          needsResolve = false;
-        }
+      if (live == null) {
+        live         = created;
+        needsResolve = recipient.isResolving();
+      } else if (live.get().isResolving() || !recipient.isResolving()) {
+        live.set(recipient);
+        needsResolve = recipient.isResolving();
+      } else {
+        needsResolve = false;
       }
 
       if (needsResolve) {
@@ -206,10 +244,17 @@ public final class LiveRecipientCache {
     }
 
     Stopwatch stopwatch = new Stopwatch("recipient-warm-up");
+    String    metricId  = SignalLocalMetrics.RecipientWarmUp.start();
 
     SignalExecutors.BOUNDED.execute(() -> {
-      ThreadDatabase  threadDatabase = SignalDatabase.threads();
-      List<Recipient> recipients     = new ArrayList<>();
+      List<Recipient> snapshot = loadSnapshot();
+      SignalLocalMetrics.RecipientWarmUp.onSnapshotLoaded(metricId, snapshot.size() > 0);
+
+      stopwatch.split("snapshot");
+
+      ThreadDatabase   threadDatabase = SignalDatabase.threads();
+      List<Recipient>  recipients     = new ArrayList<>();
+      Set<RecipientId> hotIds         = new LinkedHashSet<>();
 
       try (ThreadDatabase.Reader reader = threadDatabase.readerFor(threadDatabase.getRecentConversationList(THREAD_CACHE_WARM_MAX, false, false))) {
         int          i      = 0;
@@ -217,6 +262,7 @@ public final class LiveRecipientCache {
 
         while ((record = reader.getNext()) != null && i < THREAD_CACHE_WARM_MAX) {
           recipients.add(record.getRecipient());
+          hotIds.add(record.getRecipient().getId());
           i++;
         }
       }
@@ -225,26 +271,90 @@ public final class LiveRecipientCache {
       addToCache(recipients);
 
       stopwatch.split("thread");
+      SignalLocalMetrics.RecipientWarmUp.onThreadsLoaded(metricId);
 
       if (SignalStore.registrationValues().isRegistrationComplete() && SignalStore.account().getAci() != null) {
         try (Cursor cursor = SignalDatabase.recipients().getNonGroupContacts(false)) {
-          int count = 0;
-          while (cursor != null && cursor.moveToNext() && count < CONTACT_CACHE_WARM_MAX) {
-            RecipientId id = RecipientId.from(CursorUtil.requireLong(cursor, RecipientDatabase.ID));
-            Recipient.resolved(id);
-            count++;
+          List<RecipientId> ids = new ArrayList<>(CONTACT_CACHE_WARM_MAX);
+          while (cursor != null && cursor.moveToNext() && ids.size() < CONTACT_CACHE_WARM_MAX) {
+            ids.add(RecipientId.from(CursorUtil.requireLong(cursor, RecipientDatabase.ID)));
           }
 
-          Log.d(TAG, "Warmed up " + count + " contact recipient.");
+          resolve(ids);
+          hotIds.addAll(ids);
+
+          Log.d(TAG, "Warmed up " + ids.size() + " contact recipient.");
 
           stopwatch.split("contact");
+          SignalLocalMetrics.RecipientWarmUp.onContactsLoaded(metricId);
         }
       }
 
+      List<RecipientId> leftover = new ArrayList<>();
+      for (Recipient recipient : snapshot) {
+        if (!hotIds.contains(recipient.getId())) {
+          leftover.add(recipient.getId());
+        }
+      }
+
+      if (leftover.size() > 0) {
+        Log.d(TAG, "Refreshing " + leftover.size() + " recipients that were only in the snapshot.");
+        refreshFromSnapshot(leftover);
+      }
+
+      RecipientSnapshot.write(context, hotIds);
+
+      stopwatch.split("write-snapshot");
+      SignalLocalMetrics.RecipientWarmUp.onSnapshotWritten(metricId);
+
       stopwatch.stop(TAG);
     });
   }
 
+  /**
+   * Fills the cache from the {@link RecipientSnapshot}, without replacing or resolving anything. The snapshot recipients
+   * are still marked as resolving, so they're replaced with fresh copies the next time they're resolved.
+   */
+  @WorkerThread
+  private @NonNull List<Recipient> loadSnapshot() {
+    List<Recipient> snapshot = RecipientSnapshot.read(context);
+
+    for (Recipient recipient : snapshot) {
+      if (isValidForCache(recipient)) {
+        recipients.putIfAbsent(recipient.getId(), new LiveRecipient(context, recipient));
+      }
+    }
+
+    Log.d(TAG, "Loaded " + snapshot.size() + " recipients from the snapshot.");
+
+    return snapshot;
+  }
+
+  /**
+   * Refreshes recipients that were loaded from the snapshot and haven't been resolved since. Ones that no longer exist
+   * are dropped from the cache rather than resolved, since they may have been deleted or merged after the snapshot was
+   * written.
+   */
+  @WorkerThread
+  private void refreshFromSnapshot(@NonNull List<RecipientId> ids) {
+    Map<RecipientId, RecipientRecord> records = recipientDatabase.getRecords(ids);
+
+    for (RecipientId id : ids) {
+      LiveRecipient   live   = recipients.get(id);
+      RecipientRecord record = records.get(id);
+
+      if (live == null) {
+        continue;
+      }
+
+      if (record != null) {
+        live.resolve(record);
+      } else if (live.get().isResolving()) {
+        recipients.remove(id);
+      }
+    }
+  }
+
   @AnyThread
   public void clearSelf() {
     synchronized (localRecipientId) {
@@ -254,9 +364,22 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
-      recipients.clear();
-    }
+    recipients.clear();
+    RecipientSnapshot.delete(context);
+  }
+
+  /**
+   * Drops every cached recipient, like {@link #clear()}, but keeps the {@link RecipientSnapshot}. For when the cache may
+   * have seen changes that were rolled back, which never made it into the snapshot.
+   */
+  @AnyThread
+  public void clearMemory() {
+    recipients.clear();
+  }
+
+  /** Only for rendering debug info. */
+  public @NonNull String getDebugInfo() {
+    return "size: " + recipients.size() + ", hits: " + recipients.getHitCount() + ", misses: " + recipients.getMissCount() + ", evictions: " + recipients.getEvictionCount();
   }
 
   private boolean isValidForCache(@NonNull Recipient recipient) {
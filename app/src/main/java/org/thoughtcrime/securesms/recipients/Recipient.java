@@ -183,13 +183,7 @@ public class Recipient {
 
   @WorkerThread
   public static @NonNull List<Recipient> resolvedList(@NonNull Collection<RecipientId> ids) {
-    List<Recipient> recipients = new ArrayList<>(ids.size());
-
-    for (RecipientId recipientId : ids) {
-      recipients.add(resolved(recipientId));
-    }
-
-    return recipients;
+    return ApplicationDependencies.getRecipientCache().resolve(ids);
   }
 
   @WorkerThread
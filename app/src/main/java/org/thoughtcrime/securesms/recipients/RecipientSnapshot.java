@@ -0,0 +1,248 @@
+package org.thoughtcrime.securesms.recipients;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import org.signal.core.util.CursorUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.RecipientDatabase;
+import org.thoughtcrime.securesms.database.SignalDatabase;
+import org.thoughtcrime.securesms.database.helpers.SignalDatabaseMigrations;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
+import org.thoughtcrime.securesms.util.EncryptedStreamUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * An encrypted copy of the recipient rows we're most likely to need right after launch, so that
+ * {@link LiveRecipientCache} can be filled without waiting on the conversation list query.
+ *
+ * The rows are stored as-is and parsed with {@link RecipientDatabase#getRecord(Context, Cursor)}, so there's no second
+ * format to keep in sync. Groups and distribution lists are built the same way {@link LiveRecipient} builds them, minus
+ * their members. A snapshot written by a different database version is thrown away.
+ *
+ * Rows may have changed since the snapshot was written, so every recipient read from here is marked as still resolving,
+ * which makes the cache replace it with a fresh copy the next time it's resolved.
+ */
+final class RecipientSnapshot {
+
+  private static final String TAG = Log.tag(RecipientSnapshot.class);
+
+  private static final String FILE_NAME      = "recipient-snapshot";
+  private static final int    FORMAT_VERSION = 2;
+
+  private static final int TYPE_NULL    = 0;
+  private static final int TYPE_INTEGER = 1;
+  private static final int TYPE_FLOAT   = 2;
+  private static final int TYPE_STRING  = 3;
+  private static final int TYPE_BLOB    = 4;
+
+  private RecipientSnapshot() {}
+
+  /**
+   * @return The recipients in the snapshot, or an empty list if there isn't a usable one.
+   */
+  @WorkerThread
+  static @NonNull List<Recipient> read(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (!file.exists()) {
+      return Collections.emptyList();
+    }
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(EncryptedStreamUtils.INSTANCE.getInputStream(context, file)))) {
+      int formatVersion   = in.readInt();
+      int databaseVersion = in.readInt();
+
+      if (formatVersion != FORMAT_VERSION || databaseVersion != SignalDatabaseMigrations.DATABASE_VERSION) {
+        Log.i(TAG, "Snapshot was written by format " + formatVersion + ", database " + databaseVersion + ". Discarding.");
+        delete(context);
+        return Collections.emptyList();
+      }
+
+      String[] columns = new String[in.readInt()];
+      for (int i = 0; i < columns.length; i++) {
+        columns[i] = in.readUTF();
+      }
+
+      int          rowCount = in.readInt();
+      MatrixCursor cursor   = new MatrixCursor(columns, rowCount);
+
+      for (int i = 0; i < rowCount; i++) {
+        Object[] row = new Object[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+          row[j] = readValue(in);
+        }
+        cursor.addRow(row);
+      }
+
+      try {
+        return toRecipients(context, cursor);
+      } finally {
+        cursor.close();
+      }
+    } catch (IOException | RuntimeException e) {
+      Log.w(TAG, "Failed to read the snapshot. Discarding.", e);
+      delete(context);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * Replaces the snapshot with the current rows for the provided recipients.
+   */
+  @WorkerThread
+  static void write(@NonNull Context context, @NonNull Collection<RecipientId> ids) {
+    File file = getFile(context);
+    File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+    try (Cursor           cursor = SignalDatabase.recipients().getSnapshotRows(ids);
+         DataOutputStream out    = new DataOutputStream(new BufferedOutputStream(EncryptedStreamUtils.INSTANCE.getOutputStream(context, temp))))
+    {
+      String[] columns = cursor.getColumnNames();
+
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(SignalDatabaseMigrations.DATABASE_VERSION);
+      out.writeInt(columns.length);
+
+      for (String column : columns) {
+        out.writeUTF(column);
+      }
+
+      out.writeInt(cursor.getCount());
+
+      while (cursor.moveToNext()) {
+        for (int i = 0; i < columns.length; i++) {
+          writeValue(out, cursor, i);
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to write the snapshot.", e);
+      temp.delete();
+      return;
+    }
+
+    if (!temp.renameTo(file)) {
+      Log.w(TAG, "Failed to move the snapshot into place.");
+      temp.delete();
+    }
+  }
+
+  @AnyThread
+  static void delete(@NonNull Context context) {
+    getFile(context).delete();
+  }
+
+  private static @NonNull List<Recipient> toRecipients(@NonNull Context context, @NonNull Cursor cursor) {
+    RecipientDatabase recipientDatabase = SignalDatabase.recipients();
+    List<Recipient>   recipients        = new ArrayList<>(cursor.getCount());
+
+    while (cursor.moveToNext()) {
+      RecipientRecord  record = recipientDatabase.getRecord(context, cursor);
+      RecipientDetails details;
+
+      if (record.getGroupId() != null) {
+        String groupTitle = CursorUtil.requireString(cursor, RecipientDatabase.SNAPSHOT_GROUP_TITLE);
+        long   avatarId   = CursorUtil.requireLong(cursor, RecipientDatabase.SNAPSHOT_GROUP_AVATAR_ID);
+
+        if (groupTitle == null) {
+          continue;
+        }
+
+        details = new RecipientDetails(groupTitle,
+                                       null,
+                                       avatarId != 0 ? Optional.of(avatarId) : Optional.empty(),
+                                       false,
+                                       false,
+                                       record.getRegistered(),
+                                       record,
+                                       null,
+                                       false);
+      } else if (record.getDistributionListId() != null) {
+        String name = CursorUtil.requireString(cursor, RecipientDatabase.SNAPSHOT_DISTRIBUTION_LIST_NAME);
+
+        details = RecipientDetails.forDistributionList(name, null, record);
+      } else {
+        details = RecipientDetails.forIndividual(context, record);
+      }
+
+      recipients.add(new Recipient(record.getId(), details, false));
+    }
+
+    return recipients;
+  }
+
+  private static void writeValue(@NonNull DataOutputStream out, @NonNull Cursor cursor, int column) throws IOException {
+    switch (cursor.getType(column)) {
+      case Cursor.FIELD_TYPE_INTEGER:
+        out.writeByte(TYPE_INTEGER);
+        out.writeLong(cursor.getLong(column));
+        break;
+      case Cursor.FIELD_TYPE_FLOAT:
+        out.writeByte(TYPE_FLOAT);
+        out.writeDouble(cursor.getDouble(column));
+        break;
+      case Cursor.FIELD_TYPE_STRING:
+        out.writeByte(TYPE_STRING);
+        writeBytes(out, cursor.getString(column).getBytes(StandardCharsets.UTF_8));
+        break;
+      case Cursor.FIELD_TYPE_BLOB:
+        out.writeByte(TYPE_BLOB);
+        writeBytes(out, cursor.getBlob(column));
+        break;
+      default:
+        out.writeByte(TYPE_NULL);
+    }
+  }
+
+  private static @Nullable Object readValue(@NonNull DataInputStream in) throws IOException {
+    int type = in.readByte();
+
+    switch (type) {
+      case TYPE_NULL:    return null;
+      case TYPE_INTEGER: return in.readLong();
+      case TYPE_FLOAT:   return in.readDouble();
+      case TYPE_STRING:  return new String(readBytes(in), StandardCharsets.UTF_8);
+      case TYPE_BLOB:    return readBytes(in);
+      default:           throw new IOException("Unknown type: " + type);
+    }
+  }
+
+  private static void writeBytes(@NonNull DataOutputStream out, @NonNull byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static @NonNull byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+    int length = in.readInt();
+
+    if (length < 0) {
+      throw new IOException("Bad length: " + length);
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static @NonNull File getFile(@NonNull Context context) {
+    return new File(context.getCacheDir(), FILE_NAME);
+  }
+}
@@ -303,6 +303,9 @@ public final class RestoreBackupFragment extends LoggingFragment {
         } catch (FullBackupImporter.DatabaseDowngradeException e) {
           Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
           return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+        } catch (FullBackupImporter.MissingBackupDependencyException e) {
+          Log.w(TAG, "Failed due to an earlier backup the backup depends on being missing or unreadable.", e);
+          return BackupImportResult.FAILURE_MISSING_DEPENDENCY;
         } catch (IOException e) {
           Log.w(TAG, e);
           return BackupImportResult.FAILURE_UNKNOWN;
@@ -324,6 +327,9 @@ public final class RestoreBackupFragment extends LoggingFragment {
           case FAILURE_VERSION_DOWNGRADE:
             Toast.makeText(context, R.string.RegistrationActivity_backup_failure_downgrade, Toast.LENGTH_LONG).show();
             break;
+          case FAILURE_MISSING_DEPENDENCY:
+            Toast.makeText(context, R.string.RegistrationActivity_backup_failure_missing_dependency, Toast.LENGTH_LONG).show();
+            break;
           case FAILURE_UNKNOWN:
             Toast.makeText(context, R.string.RegistrationActivity_incorrect_backup_passphrase, Toast.LENGTH_LONG).show();
             break;
@@ -415,6 +421,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
   private enum BackupImportResult {
     SUCCESS,
     FAILURE_VERSION_DOWNGRADE,
+    FAILURE_MISSING_DEPENDENCY,
     FAILURE_UNKNOWN
   }
 
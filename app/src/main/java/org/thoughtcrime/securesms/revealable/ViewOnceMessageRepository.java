@@ -10,7 +10,6 @@ import org.thoughtcrime.securesms.database.MessageDatabase;
 import org.thoughtcrime.securesms.database.NoSuchMessageException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
-import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.jobs.MultiDeviceViewedUpdateJob;
 import org.thoughtcrime.securesms.jobs.SendViewedReceiptJob;
 
@@ -34,10 +33,7 @@ class ViewOnceMessageRepository {
 
         MessageDatabase.MarkedMessageInfo info = mmsDatabase.setIncomingMessageViewed(record.getId());
         if (info != null) {
-          ApplicationDependencies.getJobManager().add(new SendViewedReceiptJob(record.getThreadId(),
-                                                                               info.getSyncMessageId().getRecipientId(),
-                                                                               info.getSyncMessageId().getTimetamp(),
-                                                                               info.getMessageId()));
+          SendViewedReceiptJob.enqueue(record.getThreadId(), info.getSyncMessageId().getRecipientId(), Collections.singletonList(info));
           MultiDeviceViewedUpdateJob.enqueue(Collections.singletonList(info.getSyncMessageId()));
         }
 
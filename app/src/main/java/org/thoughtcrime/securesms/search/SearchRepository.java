@@ -3,6 +3,8 @@ package org.thoughtcrime.securesms.search;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.MergeCursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
@@ -25,9 +27,11 @@ import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.Mention;
+import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.FtsUtil;
@@ -47,6 +51,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import static org.thoughtcrime.securesms.database.SearchDatabase.SNIPPET_WRAP;
@@ -58,6 +63,8 @@ public class SearchRepository {
 
   private static final String TAG = Log.tag(SearchRepository.class);
 
+  private static final int MESSAGE_PAGE_SIZE = 50;
+
   private final Context           context;
   private final String            noteToSelfTitle;
   private final SearchDatabase    searchDatabase;
@@ -67,20 +74,30 @@ public class SearchRepository {
   private final MentionDatabase   mentionDatabase;
   private final MessageDatabase   mmsDatabase;
 
-  private final LatestPrioritizedSerialExecutor searchExecutor;
-  private final Executor                        serialExecutor;
+  private final LatestPrioritizedSerialExecutor     searchExecutor;
+  private final Executor                            serialExecutor;
+  private final AtomicReference<CancellationSignal> activeMessageSearch;
+
+  /**
+   * The last complete set of ranked message ids, used to narrow down the next query if it refines this one. Only
+   * touched by message search tasks, which {@link #searchExecutor} runs one at a time.
+   */
+  private String          lastRankedQuery;
+  private List<MessageId> lastRankedIds;
+  private long            lastRankedIndexVersion;
 
   public SearchRepository(@NonNull String noteToSelfTitle) {
-    this.context           = ApplicationDependencies.getApplication().getApplicationContext();
-    this.noteToSelfTitle   = noteToSelfTitle;
-    this.searchDatabase    = SignalDatabase.messageSearch();
-    this.threadDatabase    = SignalDatabase.threads();
-    this.recipientDatabase = SignalDatabase.recipients();
-    this.mentionDatabase   = SignalDatabase.mentions();
-    this.mmsDatabase       = SignalDatabase.mms();
-    this.contactRepository = new ContactRepository(context, noteToSelfTitle);
-    this.searchExecutor    = new LatestPrioritizedSerialExecutor(SignalExecutors.BOUNDED);
-    this.serialExecutor    = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.context             = ApplicationDependencies.getApplication().getApplicationContext();
+    this.noteToSelfTitle     = noteToSelfTitle;
+    this.searchDatabase      = SignalDatabase.messageSearch();
+    this.threadDatabase      = SignalDatabase.threads();
+    this.recipientDatabase   = SignalDatabase.recipients();
+    this.mentionDatabase     = SignalDatabase.mentions();
+    this.mmsDatabase         = SignalDatabase.mms();
+    this.contactRepository   = new ContactRepository(context, noteToSelfTitle);
+    this.searchExecutor      = new LatestPrioritizedSerialExecutor(SignalExecutors.BOUNDED);
+    this.serialExecutor      = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.activeMessageSearch = new AtomicReference<>();
   }
 
   public void queryThreads(@NonNull String query, @NonNull Consumer<ThreadSearchResult> callback) {
@@ -105,18 +122,60 @@ public class SearchRepository {
     });
   }
 
+  /**
+   * Searches messages, best match first. Results are delivered a page at a time as they're read, so the callback may be
+   * called several times for the same query, each time with a longer list. Starting a new search cancels the one before.
+   */
   public void queryMessages(@NonNull String query, @NonNull Consumer<MessageSearchResult> callback) {
+    CancellationSignal cancellationSignal = new CancellationSignal();
+    CancellationSignal previous           = activeMessageSearch.getAndSet(cancellationSignal);
+
+    if (previous != null) {
+      previous.cancel();
+    }
+
     searchExecutor.execute(0, () -> {
+      if (cancellationSignal.isCanceled()) {
+        return;
+      }
+
       long   start      = System.currentTimeMillis();
       String cleanQuery = FtsUtil.sanitize(query);
 
-      List<MessageResult> messages        = queryMessages(cleanQuery);
-      List<MessageResult> mentionMessages = queryMentions(sanitizeQueryAsTokens(query));
-      List<MessageResult> combined        = mergeMessagesAndMentions(messages, mentionMessages);
+      try {
+        List<MessageId>     rankedIds = queryRankedMessageIds(cleanQuery, cancellationSignal);
+        List<MessageResult> messages  = new ArrayList<>(rankedIds.size());
 
-      Log.d(TAG, "[messages] Search took " + (System.currentTimeMillis() - start) + " ms");
+        for (int i = 0; i < rankedIds.size(); i += MESSAGE_PAGE_SIZE) {
+          if (cancellationSignal.isCanceled()) {
+            Log.d(TAG, "[messages] Canceled after " + messages.size() + " results.");
+            return;
+          }
+
+          messages.addAll(queryMessagesById(cleanQuery, rankedIds.subList(i, Math.min(i + MESSAGE_PAGE_SIZE, rankedIds.size()))));
+
+          if (i + MESSAGE_PAGE_SIZE < rankedIds.size()) {
+            if (i == 0) {
+              Log.d(TAG, "[messages] First page took " + (System.currentTimeMillis() - start) + " ms");
+            }
+
+            callback.accept(new MessageSearchResult(new ArrayList<>(messages), query));
+          }
+        }
+
+        List<MessageResult> mentionMessages = queryMentions(sanitizeQueryAsTokens(query));
+        List<MessageResult> combined        = appendMentions(messages, mentionMessages);
+
+        if (cancellationSignal.isCanceled()) {
+          return;
+        }
 
-      callback.accept(new MessageSearchResult(combined, query));
+        Log.d(TAG, "[messages] Search took " + (System.currentTimeMillis() - start) + " ms");
+
+        callback.accept(new MessageSearchResult(combined, query));
+      } catch (OperationCanceledException e) {
+        Log.d(TAG, "[messages] Canceled while querying.");
+      }
     });
   }
 
@@ -208,16 +267,73 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query) {
+  /**
+   * Finds the ids of the best matching messages. If the query only narrows down the previous one, and no messages have
+   * been inserted since, just the previous results are searched.
+   */
+  private @NonNull List<MessageId> queryRankedMessageIds(@NonNull String query, @NonNull CancellationSignal cancellationSignal) {
     if (Util.isEmpty(query)) {
       return Collections.emptyList();
     }
 
-    List<MessageResult> results;
-    try (Cursor cursor = searchDatabase.queryMessages(query)) {
-      results = readToList(cursor, new MessageModelBuilder());
+    long            indexVersion = searchDatabase.getIndexVersion();
+    boolean         rebuilding   = RebuildMessageSearchIndexJob.isPending();
+    List<MessageId> within       = null;
+
+    if (!rebuilding && lastRankedQuery != null && lastRankedIndexVersion == indexVersion && FtsUtil.isRefinement(lastRankedQuery, query)) {
+      Log.d(TAG, "[messages] Refining the previous " + lastRankedIds.size() + " results.");
+      within = lastRankedIds;
+    }
+
+    List<MessageId> ids = new ArrayList<>();
+
+    if (within == null || within.size() > 0) {
+      try (Cursor cursor = searchDatabase.queryRankedMessageIds(query, within, cancellationSignal)) {
+        while (cursor != null && cursor.moveToNext()) {
+          ids.add(new MessageId(CursorUtil.requireLong(cursor, SearchDatabase.MESSAGE_ID), CursorUtil.requireBoolean(cursor, SearchDatabase.IS_MMS)));
+        }
+      }
+    }
+
+    if (!rebuilding && ids.size() < SearchDatabase.MAX_RANKED_RESULTS) {
+      lastRankedQuery        = query;
+      lastRankedIds          = ids;
+      lastRankedIndexVersion = indexVersion;
+    } else {
+      lastRankedQuery = null;
+      lastRankedIds   = null;
+    }
+
+    return ids;
+  }
+
+  /**
+   * Reads the full results for a page of ranked ids, keeping them in the same order.
+   */
+  private @NonNull List<MessageResult> queryMessagesById(@NonNull String query, @NonNull List<MessageId> messageIds) {
+    Map<MessageId, MessageResult> resultsById = new HashMap<>(messageIds.size());
+    MessageModelBuilder           builder     = new MessageModelBuilder();
+
+    try (Cursor cursor = searchDatabase.queryMessagesById(query, messageIds)) {
+      while (cursor != null && cursor.moveToNext()) {
+        MessageResult result = builder.build(cursor);
+        resultsById.put(new MessageId(result.getMessageId(), result.isMms()), result);
+      }
+    }
+
+    List<MessageResult> results = new ArrayList<>(messageIds.size());
+
+    for (MessageId messageId : messageIds) {
+      MessageResult result = resultsById.get(messageId);
+      if (result != null) {
+        results.add(result);
+      }
     }
 
+    return updateMentionsWithDisplayNames(results);
+  }
+
+  private @NonNull List<MessageResult> updateMentionsWithDisplayNames(@NonNull List<MessageResult> results) {
     List<Long> messageIds = new LinkedList<>();
     for (MessageResult result : results) {
       if (result.isMms()) {
@@ -421,6 +537,34 @@ public class SearchRepository {
     return combined;
   }
 
+  /**
+   * Keeps the ranked results in order, and adds the messages that only matched by mention after them, newest first.
+   */
+  private static @NonNull List<MessageResult> appendMentions(@NonNull List<MessageResult> rankedMessages, @NonNull List<MessageResult> mentionMessages) {
+    Set<Long> includedMmsMessages = new HashSet<>();
+
+    for (MessageResult result : rankedMessages) {
+      if (result.isMms()) {
+        includedMmsMessages.add(result.getMessageId());
+      }
+    }
+
+    List<MessageResult> mentionOnly = new ArrayList<>(mentionMessages.size());
+    for (MessageResult result : mentionMessages) {
+      if (!includedMmsMessages.contains(result.getMessageId())) {
+        mentionOnly.add(result);
+      }
+    }
+
+    Collections.sort(mentionOnly, Collections.reverseOrder((left, right) -> Long.compare(left.getReceivedTimestampMs(), right.getReceivedTimestampMs())));
+
+    List<MessageResult> combined = new ArrayList<>(rankedMessages.size() + mentionOnly.size());
+    combined.addAll(rankedMessages);
+    combined.addAll(mentionOnly);
+
+    return combined;
+  }
+
   private static class RecipientModelBuilder implements ModelBuilder<Recipient> {
 
     @Override
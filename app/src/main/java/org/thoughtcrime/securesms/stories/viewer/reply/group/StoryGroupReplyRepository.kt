@@ -36,11 +36,11 @@ class StoryGroupReplyRepository {
           val pagedData: ObservablePagedData<MessageId, ReplyBody> = PagedData.createForObservable(StoryGroupReplyDataSource(parentStoryId), PagingConfig.Builder().build())
           val controller: PagingController<MessageId> = pagedData.controller
 
-          val updateObserver = DatabaseObserver.MessageObserver { controller.onDataItemChanged(it) }
+          val updateObserver = DatabaseObserver.BatchObserver { _, messageIds -> controller.onDataItemsChanged(messageIds) }
           val insertObserver = DatabaseObserver.MessageObserver { controller.onDataItemInserted(it, PagingController.POSITION_END) }
           val conversationObserver = DatabaseObserver.Observer { controller.onDataInvalidated() }
 
-          ApplicationDependencies.getDatabaseObserver().registerMessageUpdateObserver(updateObserver)
+          ApplicationDependencies.getDatabaseObserver().registerBatchObserver(updateObserver)
           ApplicationDependencies.getDatabaseObserver().registerMessageInsertObserver(threadId, insertObserver)
           ApplicationDependencies.getDatabaseObserver().registerConversationObserver(threadId, conversationObserver)
 
@@ -17,6 +17,7 @@ import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
+import org.thoughtcrime.securesms.backup.IncrementalBackup;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
@@ -30,6 +31,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 public class BackupUtil {
 
@@ -85,16 +87,23 @@ public class BackupUtil {
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
     }
+
+    IncrementalBackup.clear(ApplicationDependencies.getApplication());
   }
 
   public static void deleteOldBackups() {
     Log.i(TAG, "Deleting older backups");
 
     try {
-      List<BackupInfo> backups = getAllBackupsNewestFirst();
+      List<BackupInfo> backups  = getAllBackupsNewestFirst();
+      Set<String>      retained = IncrementalBackup.getRetainedFileNames(ApplicationDependencies.getApplication());
 
       for (int i = 2; i < backups.size(); i++) {
-        backups.get(i).delete();
+        if (retained.contains(backups.get(i).getUri().getLastPathSegment())) {
+          Log.i(TAG, "Keeping a backup that a newer incremental backup depends on");
+        } else {
+          backups.get(i).delete();
+        }
       }
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
@@ -105,6 +105,13 @@ public final class FeatureFlags {
   private static final String CDS_V2_LOAD_TEST                  = "android.cdsV2LoadTest";
   private static final String SMS_EXPORTER                      = "android.sms.exporter";
   private static final String CDS_V2_COMPAT                     = "android.cdsV2Compat.2";
+  private static final String JOBS_CONCURRENT_SCHEDULING        = "android.jobs.concurrentScheduling";
+  private static final String JOBS_WRITE_BEHIND                 = "android.jobs.writeBehind";
+  private static final String BATCHED_MESSAGE_RETRIEVAL         = "android.batchedMessageRetrieval";
+  private static final String BATCHED_MESSAGE_PROCESSING        = "android.batchedMessageProcessing";
+  private static final String DATABASE_OBSERVER_WINDOW          = "android.databaseObserver.coalesceWindowMs";
+  private static final String CONVERSATION_RESIDENT_PAGES       = "android.conversation.residentPages";
+  private static final String RECEIPT_AGGREGATION_WINDOW        = "android.receipts.aggregationWindowMs";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -161,7 +168,14 @@ public final class FeatureFlags {
       RECIPIENT_MERGE_V2,
       CDS_V2_LOAD_TEST,
       SMS_EXPORTER,
-      CDS_V2_COMPAT
+      CDS_V2_COMPAT,
+      JOBS_CONCURRENT_SCHEDULING,
+      JOBS_WRITE_BEHIND,
+      BATCHED_MESSAGE_RETRIEVAL,
+      BATCHED_MESSAGE_PROCESSING,
+      DATABASE_OBSERVER_WINDOW,
+      CONVERSATION_RESIDENT_PAGES,
+      RECEIPT_AGGREGATION_WINDOW
   );
 
   @VisibleForTesting
@@ -579,6 +593,56 @@ public final class FeatureFlags {
     return getBoolean(CDS_V2_COMPAT, false);
   }
 
+  /**
+   * Whether or not the job manager should schedule jobs without a single global lock.
+   */
+  public static boolean jobsConcurrentScheduling() {
+    return getBoolean(JOBS_CONCURRENT_SCHEDULING, false);
+  }
+
+  /**
+   * Whether or not updates to the state of existing jobs should be written to the database in batches.
+   */
+  public static boolean jobsWriteBehind() {
+    return getBoolean(JOBS_WRITE_BEHIND, false);
+  }
+
+  /**
+   * Whether or not we should read ahead and process envelopes from the websocket in batches.
+   */
+  public static boolean batchedMessageRetrieval() {
+    return getBoolean(BATCHED_MESSAGE_RETRIEVAL, false);
+  }
+
+  /**
+   * Whether or not we should decrypt and process batches of retrieved envelopes inline, in grouped transactions.
+   */
+  public static boolean batchedMessageProcessing() {
+    return getBoolean(BATCHED_MESSAGE_PROCESSING, false);
+  }
+
+  /**
+   * How long, in milliseconds, database notifications are held for so that repeated ones can be merged. Zero disables it.
+   */
+  public static long databaseObserverCoalesceWindowMs() {
+    return Math.max(0, getInteger(DATABASE_OBSERVER_WINDOW, 0));
+  }
+
+  /**
+   * The most pages of a conversation to keep in memory while scrolling through it. Zero keeps every page that's loaded.
+   */
+  public static int conversationResidentPages() {
+    return Math.max(0, getInteger(CONVERSATION_RESIDENT_PAGES, 0));
+  }
+
+  /**
+   * How long, in milliseconds, outgoing receipts are gathered for so that ones going to the same recipient can be sent
+   * together. They're sent one window after that. Zero disables it.
+   */
+  public static long receiptAggregationWindowMs() {
+    return Math.max(0, getInteger(RECEIPT_AGGREGATION_WINDOW, 0));
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
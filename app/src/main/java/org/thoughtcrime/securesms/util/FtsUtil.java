@@ -7,6 +7,8 @@ import androidx.annotation.NonNull;
 import com.annimon.stream.Stream;
 
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 public final class FtsUtil {
@@ -65,6 +67,36 @@ public final class FtsUtil {
                  .toString();
   }
 
+  /**
+   * Whether every message matching the {@code current} prefix query is sure to match the {@code previous} one too, e.g.
+   * "hel" to "hello" or "hello" to "hello wor". True when each token of the previous query is a prefix of the token in
+   * the same position of the current query. Both queries should already be sanitized.
+   */
+  public static boolean isRefinement(@NonNull String previous, @NonNull String current) {
+    List<String> previousTokens = tokenize(previous);
+    List<String> currentTokens  = tokenize(current);
+
+    if (previousTokens.isEmpty() || previousTokens.size() > currentTokens.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < previousTokens.size(); i++) {
+      if (!currentTokens.get(i).startsWith(previousTokens.get(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static @NonNull List<String> tokenize(@NonNull String query) {
+    return Stream.of(query.split(" "))
+                 .map(String::trim)
+                 .filter(s -> s.length() > 0)
+                 .map(s -> s.toLowerCase(Locale.ROOT))
+                 .toList();
+  }
+
   private static String fixQuotes(String s) {
     return "\"" + s.replace("\"", "\"\"") + "\"";
   }
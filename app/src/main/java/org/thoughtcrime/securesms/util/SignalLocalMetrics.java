@@ -69,6 +69,46 @@ public final class SignalLocalMetrics {
     }
   }
 
+  /**
+   * How long it takes to fill the recipient cache after launch. The first split is named after whether or not there
+   * was a snapshot to start from, so the two cases can be compared.
+   */
+  public static final class RecipientWarmUp {
+    private static final String NAME = "recipient-warm-up";
+
+    private static final String SPLIT_SNAPSHOT_LOADED  = "snapshot-loaded";
+    private static final String SPLIT_SNAPSHOT_MISSING = "snapshot-missing";
+    private static final String SPLIT_THREADS_LOADED   = "threads-loaded";
+    private static final String SPLIT_CONTACTS_LOADED  = "contacts-loaded";
+    private static final String SPLIT_SNAPSHOT_WRITTEN = "snapshot-written";
+
+    /**
+     * @return The id of this warm-up, to pass to the rest of the calls, so that overlapping warm-ups are kept apart.
+     */
+    public static @NonNull String start() {
+      String id = NAME + "-" + System.currentTimeMillis();
+      LocalMetrics.getInstance().start(id, NAME);
+      return id;
+    }
+
+    public static void onSnapshotLoaded(@NonNull String id, boolean found) {
+      LocalMetrics.getInstance().split(id, found ? SPLIT_SNAPSHOT_LOADED : SPLIT_SNAPSHOT_MISSING);
+    }
+
+    public static void onThreadsLoaded(@NonNull String id) {
+      LocalMetrics.getInstance().split(id, SPLIT_THREADS_LOADED);
+    }
+
+    public static void onContactsLoaded(@NonNull String id) {
+      LocalMetrics.getInstance().split(id, SPLIT_CONTACTS_LOADED);
+    }
+
+    public static void onSnapshotWritten(@NonNull String id) {
+      LocalMetrics.getInstance().split(id, SPLIT_SNAPSHOT_WRITTEN);
+      LocalMetrics.getInstance().end(id);
+    }
+  }
+
   public static final class ConversationOpen {
     private static final String NAME = "conversation-open";
 
@@ -0,0 +1,194 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded cache that's split into stripes, each with its own lock, so that threads looking up different keys
+ * rarely wait on one another. Each stripe holds an equal share of the maximum size and evicts its own least recently
+ * used entry when it's full.
+ *
+ * Keeps count of hits, misses, and evictions.
+ */
+public final class StripedLRUCache<K, V> {
+
+  private final Stripe<K, V>[] stripes;
+  private final AtomicLong     hits;
+  private final AtomicLong     misses;
+  private final AtomicLong     evictions;
+
+  /**
+   * @param stripeCount Rounded up to a power of two.
+   */
+  @SuppressWarnings("unchecked")
+  public StripedLRUCache(int maxSize, int stripeCount) {
+    if (maxSize < 1 || stripeCount < 1) {
+      throw new IllegalArgumentException("maxSize: " + maxSize + ", stripeCount: " + stripeCount);
+    }
+
+    int count = Integer.highestOneBit(stripeCount);
+    if (count < stripeCount) {
+      count <<= 1;
+    }
+
+    this.hits      = new AtomicLong();
+    this.misses    = new AtomicLong();
+    this.evictions = new AtomicLong();
+    this.stripes   = new Stripe[count];
+
+    int stripeMax = Math.max(1, (maxSize + count - 1) / count);
+
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe<>(stripeMax, evictions);
+    }
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    Stripe<K, V> stripe = stripeFor(key);
+    V            value;
+
+    synchronized (stripe) {
+      value = stripe.get(key);
+    }
+
+    if (value != null) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+
+    return value;
+  }
+
+  /**
+   * Adds the value if there's no entry for the key yet.
+   *
+   * @return The existing value, or null if the provided value was added.
+   */
+  public @Nullable V putIfAbsent(@NonNull K key, @NonNull V value) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      V existing = stripe.get(key);
+
+      if (existing == null) {
+        stripe.put(key, value);
+      }
+
+      return existing;
+    }
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      stripe.put(key, value);
+    }
+  }
+
+  /**
+   * Points {@code alias} at the value currently held for {@code key}, or removes {@code alias} if there is none. Both
+   * stripes are locked for the whole step, so the value can't be replaced or evicted part way through.
+   */
+  public void alias(@NonNull K alias, @NonNull K key) {
+    int aliasIndex = indexFor(alias);
+    int keyIndex   = indexFor(key);
+
+    Stripe<K, V> aliasStripe = stripes[aliasIndex];
+    Stripe<K, V> keyStripe   = stripes[keyIndex];
+
+    // Always lock the lower stripe first, so that two calls going in opposite directions can't deadlock
+    Stripe<K, V> first  = stripes[Math.min(aliasIndex, keyIndex)];
+    Stripe<K, V> second = stripes[Math.max(aliasIndex, keyIndex)];
+
+    synchronized (first) {
+      synchronized (second) {
+        V value = keyStripe.get(key);
+
+        if (value != null) {
+          aliasStripe.put(alias, value);
+        } else {
+          aliasStripe.remove(alias);
+        }
+      }
+    }
+  }
+
+  public void remove(@NonNull K key) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    synchronized (stripe) {
+      stripe.remove(key);
+    }
+  }
+
+  public void clear() {
+    for (Stripe<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        stripe.clear();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+
+    for (Stripe<K, V> stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size();
+      }
+    }
+
+    return size;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  private @NonNull Stripe<K, V> stripeFor(@NonNull K key) {
+    return stripes[indexFor(key)];
+  }
+
+  private int indexFor(@NonNull K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+
+    return hash & (stripes.length - 1);
+  }
+
+  private static final class Stripe<K, V> extends LinkedHashMap<K, V> {
+
+    private final int        maxSize;
+    private final AtomicLong evictions;
+
+    private Stripe(int maxSize, @NonNull AtomicLong evictions) {
+      super(16, 0.75f, true);
+      this.maxSize   = maxSize;
+      this.evictions = evictions;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+      if (size() > maxSize) {
+        evictions.incrementAndGet();
+        return true;
+      }
+
+      return false;
+    }
+  }
+}
@@ -153,6 +153,7 @@ public class TextSecurePreferences {
 
   private static final String LOG_ENCRYPTED_SECRET   = "pref_log_encrypted_secret";
   private static final String LOG_UNENCRYPTED_SECRET = "pref_log_unencrypted_secret";
+  private static final String LOG_RING_BUFFER        = "pref_log_ring_buffer";
 
   private static final String NOTIFICATION_CHANNEL_VERSION          = "pref_notification_channel_version";
   private static final String NOTIFICATION_MESSAGES_CHANNEL_VERSION = "pref_notification_messages_channel_version";
@@ -983,6 +984,14 @@ public class TextSecurePreferences {
     return getStringPreference(context, LOG_UNENCRYPTED_SECRET, null);
   }
 
+  public static boolean isLogRingBufferEnabled(Context context) {
+    return getBooleanPreference(context, LOG_RING_BUFFER, false);
+  }
+
+  public static void setLogRingBufferEnabled(Context context, boolean enabled) {
+    setBooleanPreference(context, LOG_RING_BUFFER, enabled);
+  }
+
   public static int getNotificationChannelVersion(Context context) {
     return getIntegerPreference(context, NOTIFICATION_CHANNEL_VERSION, 1);
   }
@@ -0,0 +1,267 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public final class BackupChainReaderTest {
+
+  private static final String PASSPHRASE = "000000000000000000000000000000";
+
+  private static final byte[] FIRST  = randomBytes(1, 5000);
+  private static final byte[] SECOND = randomBytes(2, 70000);
+  private static final byte[] THIRD  = randomBytes(3, 300);
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void givenReferencesIntoTwoBackups_whenIRead_thenIExpectOnlyTheReferencedAttachmentsFromEach() throws IOException {
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("b1.backup", writeBackup(1, 2));
+    files.put("b2.backup", writeBackup(3));
+
+    BackupChainReader reader = new BackupChainReader();
+    reader.addReference(reference(2, "b1.backup"));
+    reader.addReference(reference(3, "b2.backup"));
+
+    Map<AttachmentId, byte[]> restored = new HashMap<>();
+    reader.readReferencedAttachments(PASSPHRASE, name -> files.containsKey(name) ? new ByteArrayInputStream(files.get(name)) : null, (attachment, in) -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      in.readAttachmentTo(out, attachment.getLength());
+      restored.put(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId()), out.toByteArray());
+    });
+
+    assertEquals(2, restored.size());
+    assertArrayEquals(SECOND, restored.get(new AttachmentId(2, 2)));
+    assertArrayEquals(THIRD, restored.get(new AttachmentId(3, 3)));
+  }
+
+  @Test
+  public void givenAMissingBackup_whenIRead_thenIExpectTheRestoreToFail() throws IOException {
+    BackupChainReader reader = new BackupChainReader();
+    reader.addReference(reference(1, "b1.backup"));
+
+    assertMissing(reader, name -> null, "b1.backup");
+  }
+
+  @Test
+  public void givenABackupWithoutTheReferencedAttachment_whenIRead_thenIExpectTheRestoreToFail() throws IOException {
+    byte[] file = writeBackup(1);
+
+    BackupChainReader reader = new BackupChainReader();
+    reader.addReference(reference(1, "b1.backup"));
+    reader.addReference(reference(2, "b1.backup"));
+
+    assertMissing(reader, name -> new ByteArrayInputStream(file), "b1.backup");
+  }
+
+  @Test
+  public void givenATruncatedBackup_whenIRead_thenIExpectTheRestoreToFail() throws IOException {
+    byte[] file = writeBackup(1, 2);
+
+    BackupChainReader reader = new BackupChainReader();
+    reader.addReference(reference(2, "b1.backup"));
+
+    assertMissing(reader, name -> new ByteArrayInputStream(Arrays.copyOf(file, file.length / 2)), "b1.backup");
+  }
+
+  @Test
+  public void givenABackupWithADifferentPassphrase_whenIRead_thenIExpectTheRestoreToFail() throws IOException {
+    byte[] file = writeBackup(1);
+
+    BackupChainReader reader = new BackupChainReader();
+    reader.addReference(reference(1, "b1.backup"));
+
+    try {
+      reader.readReferencedAttachments("111111111111111111111111111111", name -> new ByteArrayInputStream(file), (attachment, in) -> fail());
+      fail();
+    } catch (FullBackupImporter.MissingBackupDependencyException e) {
+      assertEquals("b1.backup", e.getFileName());
+    }
+  }
+
+  @Test
+  public void givenAnIncrementWithHighWaterMarks_whenIRead_thenIExpectTheNewestVersionOfEachRowThatWasNotDeleted() throws IOException {
+    ByteArrayOutputStream b1 = new ByteArrayOutputStream();
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(b1, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.write(row("sms", 1, "first"));
+      out.write(row("sms", 2, "second"));
+      out.write(row("sms", 3, "third"));
+      out.write(row("part", 1, "part1"));
+      out.write(new AttachmentId(1, 1), new ByteArrayInputStream(FIRST), FIRST.length);
+      out.write(row("part", 2, "part2"));
+      out.write(new AttachmentId(2, 2), new ByteArrayInputStream(SECOND), SECOND.length);
+      out.writeEnd();
+    }
+
+    ByteArrayOutputStream b2 = new ByteArrayOutputStream();
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(b2, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeIncrement(Arrays.asList("b1.backup"), Arrays.asList(mark("sms", 3), mark("part", 2)));
+      out.write(row("sms", 3, "third, edited"));
+      out.write(row("sms", 4, "fourth"));
+      out.writeTombstone("sms", 2);
+      out.write(row("part", 3, "part3"));
+      out.write(new AttachmentId(3, 3), new ByteArrayInputStream(THIRD), THIRD.length);
+      out.writeTombstone("part", 2);
+      out.writeEnd();
+    }
+
+    Map<String, byte[]> files = new HashMap<>();
+    files.put("b1.backup", b1.toByteArray());
+    files.put("b2.backup", b2.toByteArray());
+
+    FakeRowProcessor rows = new FakeRowProcessor();
+    rows.insertIfAbsent(row("sms", 5, "fifth"));
+    rows.insertIfAbsent(row("part", 3, "part3, edited"));
+
+    BackupChainReader reader = new BackupChainReader();
+    reader.setIncrement(BackupProtos.Increment.newBuilder().addDependencies("b1.backup").addDependencies("b2.backup").addHighWaterMarks(mark("sms", 4)).build());
+    reader.addTombstone(BackupProtos.Tombstone.newBuilder().setTable("sms").setRowId(4).build());
+    reader.addReference(reference(3, "b2.backup"));
+
+    Map<AttachmentId, byte[]> restored = new HashMap<>();
+    reader.readChain(PASSPHRASE, name -> files.containsKey(name) ? new ByteArrayInputStream(files.get(name)) : null, rows, (attachment, in) -> {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      in.readAttachmentTo(out, attachment.getLength());
+      restored.put(new AttachmentId(attachment.getRowId(), attachment.getAttachmentId()), out.toByteArray());
+    });
+
+    assertEquals("first", rows.get("sms", 1));
+    assertNull(rows.get("sms", 2));
+    assertEquals("third, edited", rows.get("sms", 3));
+    assertNull(rows.get("sms", 4));
+    assertEquals("fifth", rows.get("sms", 5));
+
+    assertEquals("part1", rows.get("part", 1));
+    assertNull(rows.get("part", 2));
+    assertEquals("part3, edited", rows.get("part", 3));
+
+    assertEquals(2, restored.size());
+    assertArrayEquals(FIRST, restored.get(new AttachmentId(1, 1)));
+    assertArrayEquals(THIRD, restored.get(new AttachmentId(3, 3)));
+  }
+
+  @Test
+  public void givenAnIncrementWithHighWaterMarks_whenADependencyIsMissing_thenIExpectTheRestoreToFail() throws IOException {
+    BackupChainReader reader = new BackupChainReader();
+    reader.setIncrement(BackupProtos.Increment.newBuilder().addDependencies("b1.backup").addHighWaterMarks(mark("sms", 4)).build());
+
+    try {
+      reader.readChain(PASSPHRASE, name -> null, new FakeRowProcessor(), (attachment, in) -> fail());
+      fail();
+    } catch (FullBackupImporter.MissingBackupDependencyException e) {
+      assertEquals("b1.backup", e.getFileName());
+    }
+  }
+
+  private static void assertMissing(BackupChainReader reader, BackupChainReader.BackupFileResolver resolver, String fileName) throws IOException {
+    try {
+      reader.readReferencedAttachments(PASSPHRASE, resolver, (attachment, in) -> in.readAttachmentTo(BackupChainReader.DiscardingOutputStream.INSTANCE, attachment.getLength()));
+      fail();
+    } catch (FullBackupImporter.MissingBackupDependencyException e) {
+      assertNotNull(e.getMessage());
+      assertEquals(fileName, e.getFileName());
+    }
+  }
+
+  private static byte[] writeBackup(long... attachmentIds) throws IOException {
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeSticker(1, new ByteArrayInputStream(THIRD), THIRD.length);
+
+      for (long id : attachmentIds) {
+        byte[] data = dataFor(id);
+        out.write(new AttachmentId(id, id), new ByteArrayInputStream(data), data.length);
+      }
+
+      out.write("avatar", new ByteArrayInputStream(FIRST), FIRST.length);
+      out.writeEnd();
+    }
+
+    return backup.toByteArray();
+  }
+
+  private static byte[] dataFor(long id) {
+    if      (id == 1) return FIRST;
+    else if (id == 2) return SECOND;
+    else              return THIRD;
+  }
+
+  private static BackupProtos.AttachmentReference reference(long id, String fileName) {
+    return BackupProtos.AttachmentReference.newBuilder()
+                                           .setRowId(id)
+                                           .setAttachmentId(id)
+                                           .setLength(dataFor(id).length)
+                                           .setFileName(fileName)
+                                           .build();
+  }
+
+  private static BackupProtos.SqlStatement row(String table, long rowId, String value) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement("INSERT INTO " + table + " VALUES (?,?)")
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(rowId))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(value))
+                                    .build();
+  }
+
+  private static BackupProtos.HighWaterMark mark(String table, long rowId) {
+    return BackupProtos.HighWaterMark.newBuilder().setTable(table).setRowId(rowId).build();
+  }
+
+  private static byte[] randomBytes(int seed, int length) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static final class FakeRowProcessor implements BackupChainReader.RowProcessor {
+    private final Map<String, Map<Long, String>> tables = new HashMap<>();
+
+    @Override
+    public long insertIfAbsent(BackupProtos.SqlStatement statement) {
+      String            table = statement.getStatement().split(" ")[2];
+      long              rowId = statement.getParameters(0).getIntegerParameter();
+      Map<Long, String> rows  = tables.computeIfAbsent(table, t -> new HashMap<>());
+
+      if (rows.containsKey(rowId)) {
+        return -1;
+      }
+
+      rows.put(rowId, statement.getParameters(1).getStringParamter());
+      return rowId;
+    }
+
+    @Override
+    public void delete(String table, long rowId) {
+      tables.get(table).remove(rowId);
+    }
+
+    String get(String table, long rowId) {
+      Map<Long, String> rows = tables.get(table);
+      return rows != null ? rows.get(rowId) : null;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Compares how fast {@link BackupFrameOutputStream} writes attachments that are too large to hold in memory with
+ * encrypting and MACing the same bytes serially on one thread. It's measured with a single encryption thread, where
+ * large streams are streamed through on the writer, and with several, where they're encrypted in chunks, which only
+ * pays off with a core for each of them. The output is discarded, so only the encryption pipeline is measured. Each
+ * round is measured after a warmup.
+ *
+ * Not run as part of the normal test suite. Remove the {@link Ignore} to run locally.
+ */
+@Ignore("Benchmark, run manually")
+public final class BackupFrameOutputStreamBenchmark {
+
+  private static final String PASSPHRASE    = "000000000000000000000000000000";
+  private static final int    STREAM_SIZE   = 16 * 1024 * 1024;
+  private static final int    STREAM_COUNT  = 16;
+  private static final int    WARMUP_ROUNDS = 2;
+  private static final int    ROUNDS        = 3;
+  private static final int    THREADS       = 4;
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void writeLargeStreams() throws Exception {
+    byte[] data = new byte[STREAM_SIZE];
+    new Random(1).nextBytes(data);
+
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      writeSerially(data);
+      writeBackup(data, 1);
+      writeBackup(data, THREADS);
+    }
+
+    for (int round = 0; round < ROUNDS; round++) {
+      double serial    = throughput(writeSerially(data));
+      double streaming = throughput(writeBackup(data, 1));
+      double chunked   = throughput(writeBackup(data, THREADS));
+
+      System.out.println(String.format(Locale.US,
+                                       "[round %d] serial: %.1f MiB/s, 1 thread: %.1f MiB/s (%.2fx), %d threads: %.1f MiB/s (%.2fx)",
+                                       round + 1,
+                                       serial,
+                                       streaming,
+                                       streaming / serial,
+                                       THREADS,
+                                       chunked,
+                                       chunked / serial));
+    }
+  }
+
+  private static long writeBackup(byte[] data, int encryptionThreads) throws IOException {
+    long start = System.nanoTime();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(new NullOutputStream(), PASSPHRASE, encryptionThreads)) {
+      for (int i = 0; i < STREAM_COUNT; i++) {
+        out.write(new AttachmentId(i, i), new ByteArrayInputStream(data), data.length);
+      }
+
+      out.writeEnd();
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Reads, encrypts and MACs each stream in buffer-sized pieces on the calling thread.
+   */
+  private static long writeSerially(byte[] data) throws Exception {
+    SecretKeySpec cipherKey = new SecretKeySpec(new byte[32], "AES");
+    SecretKeySpec macKey    = new SecretKeySpec(new byte[32], "HmacSHA256");
+    OutputStream  out       = new NullOutputStream();
+    byte[]        buffer    = new byte[64 * 1024];
+    long          start     = System.nanoTime();
+
+    for (int i = 0; i < STREAM_COUNT; i++) {
+      byte[] iv     = new byte[16];
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      Mac    mac    = Mac.getInstance("HmacSHA256");
+
+      iv[0] = (byte) i;
+      cipher.init(Cipher.ENCRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      mac.init(macKey);
+      mac.update(iv);
+
+      try (InputStream in = new ByteArrayInputStream(data)) {
+        int read;
+
+        while ((read = in.read(buffer)) != -1) {
+          byte[] ciphertext = cipher.update(buffer, 0, read);
+
+          out.write(ciphertext);
+          mac.update(ciphertext);
+        }
+      }
+
+      out.write(mac.doFinal(), 0, 10);
+    }
+
+    return System.nanoTime() - start;
+  }
+
+  private static double throughput(long elapsed) {
+    return (STREAM_COUNT * (double) STREAM_SIZE / (1024 * 1024)) / (elapsed / 1_000_000_000.0);
+  }
+
+  private static final class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) { }
+
+    @Override
+    public void write(byte[] b, int off, int len) { }
+  }
+}
@@ -0,0 +1,259 @@
+package org.thoughtcrime.securesms.backup;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs with a single encryption thread, where large streams are streamed through on the writer, and with several, where
+ * they're encrypted in chunks.
+ */
+@RunWith(Parameterized.class)
+public final class BackupFrameOutputStreamTest {
+
+  private static final String PASSPHRASE = "000000000000000000000000000000";
+
+  private final int encryptionThreads;
+
+  @Parameterized.Parameters
+  public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][]{
+        { 1 },
+        { 4 }
+    });
+  }
+
+  public BackupFrameOutputStreamTest(int encryptionThreads) {
+    this.encryptionThreads = encryptionThreads;
+  }
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void givenFramesAndStreams_whenIReadTheBackupBack_thenIExpectTheSameFramesAndBytes() throws IOException {
+    Random       random = new Random(1);
+    List<byte[]> blobs  = new ArrayList<>();
+
+    blobs.add(new byte[0]);
+    blobs.add(randomBytes(random, 1));
+    blobs.add(randomBytes(random, 70 * 1024));
+    blobs.add(randomBytes(random, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM));
+    blobs.add(randomBytes(random, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 1));
+    blobs.add(randomBytes(random, 3 * BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 17));
+    blobs.add(randomBytes(random, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + BackupFrameOutputStream.STREAM_CHUNK_SIZE));
+    blobs.add(randomBytes(random, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + BackupFrameOutputStream.STREAM_CHUNK_SIZE - 1));
+
+    for (int i = 0; i < 50; i++) {
+      blobs.add(randomBytes(random, random.nextInt(256 * 1024)));
+    }
+
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE, encryptionThreads)) {
+      out.writeDatabaseVersion(42);
+      out.write(BackupProtos.SharedPreference.newBuilder().setFile("prefs").setKey("key").setValue("value").build());
+      out.write(BackupProtos.KeyValue.newBuilder().setKey("kv").setLongValue(1234).build());
+
+      for (int i = 0; i < 5000; i++) {
+        out.write(statement(i));
+      }
+
+      for (int i = 0; i < blobs.size(); i++) {
+        out.write(new AttachmentId(i, i + 1000), new ByteArrayInputStream(blobs.get(i)), blobs.get(i).length);
+        out.write(statement(i));
+      }
+
+      out.writeSticker(7, new ByteArrayInputStream(blobs.get(2)), blobs.get(2).length);
+      out.write("avatar", new ByteArrayInputStream(blobs.get(1)), blobs.get(1).length);
+      out.writeAttachmentReference(new AttachmentId(99, 1099), 1234, "signal-2022-01-01-00-00-00.backup");
+      out.writeIncrement(Arrays.asList("signal-2022-01-01-00-00-00.backup"), Collections.emptyList());
+      out.writeEnd();
+    }
+
+    BackupRecordInputStream in = new BackupRecordInputStream(new ByteArrayInputStream(backup.toByteArray()), PASSPHRASE);
+
+    assertEquals(42, in.readFrame().getVersion().getVersion());
+    assertEquals("value", in.readFrame().getPreference().getValue());
+    assertEquals(1234, in.readFrame().getKeyValue().getLongValue());
+
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(statement(i), in.readFrame().getStatement());
+    }
+
+    for (int i = 0; i < blobs.size(); i++) {
+      BackupProtos.Attachment attachment = in.readFrame().getAttachment();
+
+      assertEquals(i, attachment.getRowId());
+      assertEquals(i + 1000, attachment.getAttachmentId());
+      assertArrayEquals(blobs.get(i), readStream(in, attachment.getLength()));
+      assertEquals(statement(i), in.readFrame().getStatement());
+    }
+
+    BackupProtos.Sticker sticker = in.readFrame().getSticker();
+    assertEquals(7, sticker.getRowId());
+    assertArrayEquals(blobs.get(2), readStream(in, sticker.getLength()));
+
+    BackupProtos.Avatar avatar = in.readFrame().getAvatar();
+    assertEquals("avatar", avatar.getRecipientId());
+    assertArrayEquals(blobs.get(1), readStream(in, avatar.getLength()));
+
+    BackupProtos.AttachmentReference reference = in.readFrame().getAttachmentReference();
+    assertEquals(99, reference.getRowId());
+    assertEquals(1099, reference.getAttachmentId());
+    assertEquals(1234, reference.getLength());
+    assertEquals("signal-2022-01-01-00-00-00.backup", reference.getFileName());
+
+    assertEquals(Arrays.asList("signal-2022-01-01-00-00-00.backup"), in.readFrame().getIncrement().getDependenciesList());
+    assertTrue(in.readFrame().getEnd());
+  }
+
+  @Test
+  public void givenATamperedStream_whenIReadItBack_thenIExpectABadMac() throws IOException {
+    byte[]                data   = randomBytes(new Random(2), 4096);
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE, encryptionThreads)) {
+      out.write(new AttachmentId(1, 1), new ByteArrayInputStream(data), data.length);
+      out.writeEnd();
+    }
+
+    byte[] bytes = backup.toByteArray();
+    bytes[bytes.length - 100] ^= 1;
+
+    BackupRecordInputStream in         = new BackupRecordInputStream(new ByteArrayInputStream(bytes), PASSPHRASE);
+    BackupProtos.Attachment attachment = in.readFrame().getAttachment();
+
+    try {
+      readStream(in, attachment.getLength());
+      fail();
+    } catch (BackupRecordInputStream.BadMacException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void givenAStreamThatFails_whenIFinish_thenIExpectTheFailureAndEveryStreamClosed() throws IOException {
+    byte[]              data   = randomBytes(new Random(3), 4096);
+    TrackingInputStream good   = new TrackingInputStream(new ByteArrayInputStream(data));
+    TrackingInputStream large  = new TrackingInputStream(new ByteArrayInputStream(new byte[BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 1]));
+    TrackingInputStream broken = new TrackingInputStream(new FailingInputStream());
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(new ByteArrayOutputStream(), PASSPHRASE, encryptionThreads)) {
+      out.write(new AttachmentId(1, 1), good, data.length);
+      out.write(new AttachmentId(2, 2), large, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 1);
+      out.write(new AttachmentId(3, 3), broken, data.length);
+      out.writeEnd();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertTrue(good.closed);
+    assertTrue(large.closed);
+    assertTrue(broken.closed);
+  }
+
+  @Test
+  public void givenALargeStreamShorterThanItsSize_whenIFinish_thenIExpectAFailureAndTheStreamClosed() throws IOException {
+    assertLargeStreamFails(BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 100, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 101);
+  }
+
+  @Test
+  public void givenALargeStreamLongerThanItsSize_whenIFinish_thenIExpectAFailureAndTheStreamClosed() throws IOException {
+    assertLargeStreamFails(BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 101, BackupFrameOutputStream.MAX_IN_MEMORY_STREAM + 100);
+  }
+
+  private void assertLargeStreamFails(int actualSize, int size) throws IOException {
+    TrackingInputStream large = new TrackingInputStream(new ByteArrayInputStream(new byte[actualSize]));
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(new ByteArrayOutputStream(), PASSPHRASE, encryptionThreads)) {
+      out.write(new AttachmentId(1, 1), large, size);
+      out.write(statement(1));
+      out.writeEnd();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+
+    assertTrue(large.closed);
+  }
+
+  private static BackupProtos.SqlStatement statement(int i) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement("INSERT INTO test VALUES (?, ?)")
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(new byte[i % 100])))
+                                    .build();
+  }
+
+  private static byte[] readStream(BackupRecordInputStream in, int length) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    in.readAttachmentTo(out, length);
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static final class FailingInputStream extends InputStream {
+    @Override
+    public int read() throws IOException {
+      throw new IOException("Read failed");
+    }
+  }
+
+  private static final class TrackingInputStream extends InputStream {
+
+    private final InputStream in;
+
+    private volatile boolean closed;
+
+    TrackingInputStream(InputStream in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      closed = true;
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.app.Application;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupManifest;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class BackupVerifierTest {
+
+  private static final String PASSPHRASE       = "000000000000000000000000000000";
+  private static final byte[] DATA             = new byte[100];
+  private static final int    DATABASE_VERSION = 160;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private BackupManifest manifest;
+
+  @Before
+  public void setUp() throws IOException {
+    Log.initialize(new EmptyLogger());
+
+    IncrementalBackup base = IncrementalBackup.start(temporaryFolder.getRoot(), "b1.backup", PASSPHRASE, DATABASE_VERSION, null);
+    base.onExportStarted(IncrementalBackupTest.marks(5), 0);
+    base.onAttachmentExported(new AttachmentId(1, 10), "/data/part1", DATA.length, null);
+
+    try (FileOutputStream out = new FileOutputStream(new File(temporaryFolder.getRoot(), "b1.backup"))) {
+      out.write(new byte[10]);
+    }
+
+    manifest = base.buildManifest(10);
+  }
+
+  @Test
+  public void givenAFullBackup_whenIVerify_thenIExpectItToPass() throws IOException {
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.write(new AttachmentId(1, 10), new ByteArrayInputStream(DATA), DATA.length);
+      out.writeEnd();
+    }
+
+    assertTrue(BackupVerifier.verifyFile(new ByteArrayInputStream(backup.toByteArray()), PASSPHRASE, 2));
+  }
+
+  @Test
+  public void givenAnIncrementOnTheChain_whenIVerify_thenIExpectItToPass() throws IOException {
+    IncrementalBackup increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertTrue(BackupVerifier.verifyFile(writeIncrement(increment, new AttachmentId(1, 10), "b1.backup"), PASSPHRASE, 2, increment));
+  }
+
+  @Test
+  public void givenAnIncrementWithoutAChain_whenIVerify_thenIExpectItToFail() throws IOException {
+    IncrementalBackup increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertFalse(BackupVerifier.verifyFile(writeIncrement(increment, new AttachmentId(1, 10), "b1.backup"), PASSPHRASE, 2, null));
+  }
+
+  @Test
+  public void givenAnIncrementReferencingAnUnknownAttachment_whenIVerify_thenIExpectItToFail() throws IOException {
+    IncrementalBackup increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertFalse(BackupVerifier.verifyFile(writeIncrement(increment, new AttachmentId(2, 20), "b1.backup"), PASSPHRASE, 2, increment));
+  }
+
+  @Test
+  public void givenAnIncrementWhoseChainChanged_whenIVerify_thenIExpectItToFail() throws IOException {
+    IncrementalBackup increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertTrue(new File(temporaryFolder.getRoot(), "b1.backup").delete());
+
+    assertFalse(BackupVerifier.verifyFile(writeIncrement(increment, new AttachmentId(1, 10), "b1.backup"), PASSPHRASE, 2, increment));
+  }
+
+  @Test
+  public void givenAnIncrementWithTheWrongHighWaterMarks_whenIVerify_thenIExpectItToFail() throws IOException {
+    IncrementalBackup     increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+    ByteArrayOutputStream backup    = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeIncrement(increment.getDependencies(), Collections.emptyList());
+      out.writeEnd();
+    }
+
+    assertFalse(BackupVerifier.verifyFile(new ByteArrayInputStream(backup.toByteArray()), PASSPHRASE, 2, increment));
+  }
+
+  @Test
+  public void givenAnIncrementWithTombstones_whenIVerify_thenIExpectOnlyOnesForTrackedTablesToPass() throws IOException {
+    IncrementalBackup increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertTrue(BackupVerifier.verifyFile(writeIncrementWithTombstone(increment, "sms"), PASSPHRASE, 2, increment));
+    assertFalse(BackupVerifier.verifyFile(writeIncrementWithTombstone(increment, "recipient"), PASSPHRASE, 2, increment));
+  }
+
+  @Test
+  public void givenATombstoneOutsideOfAnIncrement_whenIVerify_thenIExpectItToFail() throws IOException {
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeTombstone("sms", 1);
+      out.writeEnd();
+    }
+
+    assertFalse(BackupVerifier.verifyFile(new ByteArrayInputStream(backup.toByteArray()), PASSPHRASE, 2));
+  }
+
+  @Test
+  public void givenAReferenceOutsideOfAnIncrement_whenIVerify_thenIExpectItToFail() throws IOException {
+    IncrementalBackup     increment = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+    ByteArrayOutputStream backup    = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeAttachmentReference(new AttachmentId(1, 10), DATA.length, "b1.backup");
+      out.writeEnd();
+    }
+
+    assertFalse(BackupVerifier.verifyFile(new ByteArrayInputStream(backup.toByteArray()), PASSPHRASE, 2, increment));
+  }
+
+  private static ByteArrayInputStream writeIncrement(IncrementalBackup increment, AttachmentId attachmentId, String fileName) throws IOException {
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeIncrement(increment.getDependencies(), increment.getPreviousHighWaterMarks());
+      out.writeAttachmentReference(attachmentId, DATA.length, fileName);
+      out.writeEnd();
+    }
+
+    return new ByteArrayInputStream(backup.toByteArray());
+  }
+
+  private static ByteArrayInputStream writeIncrementWithTombstone(IncrementalBackup increment, String table) throws IOException {
+    ByteArrayOutputStream backup = new ByteArrayOutputStream();
+
+    try (BackupFrameOutputStream out = new BackupFrameOutputStream(backup, PASSPHRASE)) {
+      out.writeDatabaseVersion(1);
+      out.writeIncrement(increment.getDependencies(), increment.getPreviousHighWaterMarks());
+      out.writeTombstone(table, 1);
+      out.writeEnd();
+    }
+
+    return new ByteArrayInputStream(backup.toByteArray());
+  }
+}
@@ -0,0 +1,242 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.backup.BackupProtos.BackupManifest;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class IncrementalBackupTest {
+
+  private static final String PASSPHRASE       = "000000000000000000000000000000";
+  private static final int    DATABASE_VERSION = 160;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test
+  public void givenNoManifest_whenIStart_thenIExpectAFullBackup() {
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b1.backup", PASSPHRASE, DATABASE_VERSION, null);
+
+    assertFalse(backup.isIncrement());
+    assertEquals(Collections.emptyList(), backup.getDependencies());
+  }
+
+  @Test
+  public void givenAnIntactChain_whenIStart_thenIExpectAnIncrementOnIt() throws IOException {
+    BackupManifest manifest = writeBase();
+
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertTrue(backup.isIncrement());
+    assertTrue(backup.isChainIntact());
+    assertEquals(Collections.singletonList("b1.backup"), backup.getDependencies());
+    assertEquals("b1.backup", backup.findExportedAttachment(new AttachmentId(1, 10), "/data/part1", 100));
+  }
+
+  @Test
+  public void givenAnIntactChain_whenAnAttachmentHasChanged_thenIExpectItToBeWrittenAgain() throws IOException {
+    BackupManifest manifest = writeBase();
+
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertNull(backup.findExportedAttachment(new AttachmentId(1, 10), "/data/part1", 101));
+    assertNull(backup.findExportedAttachment(new AttachmentId(1, 10), "/data/part2", 100));
+    assertNull(backup.findExportedAttachment(new AttachmentId(2, 20), "/data/part1", 100));
+  }
+
+  @Test
+  public void givenADifferentPassphrase_whenIStart_thenIExpectANewChainThatRetainsTheOldOne() throws IOException {
+    BackupManifest manifest = writeBase();
+
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", "111111111111111111111111111111", DATABASE_VERSION, manifest);
+
+    assertFalse(backup.isIncrement());
+    assertEquals(new HashSet<>(Arrays.asList("b1.backup", "b2.backup")), IncrementalBackup.getRetainedFileNames(backup.buildManifest(10)));
+  }
+
+  @Test
+  public void givenAMissingFile_whenIStart_thenIExpectANewChain() throws IOException {
+    BackupManifest manifest = writeBase();
+
+    assertTrue(new File(temporaryFolder.getRoot(), "b1.backup").delete());
+
+    assertFalse(IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest).isIncrement());
+  }
+
+  @Test
+  public void givenAFileThatHasChanged_whenIStart_thenIExpectANewChain() throws IOException {
+    BackupManifest manifest = writeBase();
+
+    writeFile("b1.backup", 11);
+
+    assertFalse(IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest).isIncrement());
+  }
+
+  @Test
+  public void givenAnIncrement_whenTheChainChangesBeforeItIsVerified_thenIExpectTheChainToNotBeIntact() throws IOException {
+    BackupManifest    manifest = writeBase();
+    IncrementalBackup backup   = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertTrue(new File(temporaryFolder.getRoot(), "b1.backup").delete());
+
+    assertFalse(backup.isChainIntact());
+  }
+
+  @Test
+  public void givenRepeatedBackups_whenTheChainIsFull_thenIExpectANewChainAtSixFiles() throws IOException {
+    BackupManifest manifest = null;
+
+    for (int i = 1; i <= 13; i++) {
+      IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b" + i + ".backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+      assertEquals("Backup " + i, (i - 1) % 6 != 0, backup.isIncrement());
+      assertEquals("Backup " + i, (i - 1) % 6, backup.getDependencies().size());
+
+      backup.onExportStarted(marks(i * 10), 0);
+      writeFile(backup.getFileName(), 10);
+      manifest = backup.buildManifest(10);
+
+      assertTrue(manifest.getFilesCount() <= 6);
+    }
+  }
+
+  @Test
+  public void givenANewDatabaseVersion_whenIStart_thenIExpectANewChain() throws IOException {
+    BackupManifest manifest = writeBase();
+
+    assertFalse(IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION + 1, manifest).isIncrement());
+  }
+
+  @Test
+  public void givenAManifestWithoutHighWaterMarks_whenIStart_thenIExpectANewChain() throws IOException {
+    BackupManifest manifest = writeBase().toBuilder().clearHighWaterMarks().build();
+
+    assertFalse(IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, manifest).isIncrement());
+  }
+
+  @Test
+  public void givenAnIncrement_whenIStart_thenIExpectOnlyRowsAboveThePreviousMarksToBeWritten() throws IOException {
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, writeBase());
+
+    for (String table : IncrementalBackup.TRACKED_TABLES) {
+      assertEquals(Long.valueOf(5), backup.getPreviousHighWaterMark(table));
+    }
+
+    assertEquals(IncrementalBackup.TRACKED_TABLES.size(), backup.getPreviousHighWaterMarks().size());
+    assertNull(backup.getPreviousHighWaterMark("recipient"));
+  }
+
+  @Test
+  public void givenAFullBackup_whenIStart_thenIExpectEveryRowToBeWritten() {
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b1.backup", PASSPHRASE, DATABASE_VERSION, null);
+
+    assertNull(backup.getPreviousHighWaterMark("sms"));
+    assertEquals(Collections.emptyList(), backup.getPreviousHighWaterMarks());
+  }
+
+  @Test
+  public void givenAnIncrementThatWritesNoAttachments_whenIFinish_thenIExpectTheManifestToKeepTheEarlierOnes() throws IOException {
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, writeBase());
+    backup.onExportStarted(marks(8), 0);
+
+    BackupManifest manifest = backup.buildManifest(50);
+
+    assertEquals(1, manifest.getAttachmentsCount());
+    assertEquals("b1.backup", manifest.getAttachments(0).getFileName());
+    assertEquals(DATABASE_VERSION, manifest.getDatabaseVersion());
+    assertEquals(IncrementalBackup.TRACKED_TABLES.size(), manifest.getHighWaterMarksCount());
+    assertEquals(8, manifest.getHighWaterMarks(0).getRowId());
+  }
+
+  @Test
+  public void givenAnIncrement_whenIFinish_thenIExpectTheManifestToSayWhereEachAttachmentIs() throws IOException {
+    BackupManifest    base   = writeBase();
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, base);
+
+    backup.onExportStarted(marks(7), 0);
+    backup.onAttachmentExported(new AttachmentId(1, 10), "/data/part1", 100, "b1.backup");
+    backup.onAttachmentExported(new AttachmentId(2, 20), "/data/part2", 200, null);
+
+    BackupManifest manifest = backup.buildManifest(50);
+
+    assertEquals(Arrays.asList("b1.backup", "b2.backup"), Arrays.asList(manifest.getFiles(0).getName(), manifest.getFiles(1).getName()));
+    assertEquals(50, manifest.getFiles(1).getLength());
+    assertEquals("b1.backup", manifest.getAttachments(0).getFileName());
+    assertEquals("b2.backup", manifest.getAttachments(1).getFileName());
+
+    writeFile("b2.backup", 50);
+
+    IncrementalBackup next = IncrementalBackup.start(temporaryFolder.getRoot(), "b3.backup", PASSPHRASE, DATABASE_VERSION, manifest);
+
+    assertEquals("b1.backup", next.findExportedAttachment(new AttachmentId(1, 10), "/data/part1", 100));
+    assertEquals("b2.backup", next.findExportedAttachment(new AttachmentId(2, 20), "/data/part2", 200));
+  }
+
+  @Test
+  public void givenAnIncrement_whenICheckReferences_thenIExpectOnlyOnesMatchingTheChainToBeValid() throws IOException {
+    IncrementalBackup backup = IncrementalBackup.start(temporaryFolder.getRoot(), "b2.backup", PASSPHRASE, DATABASE_VERSION, writeBase());
+
+    assertTrue(backup.isValidReference(reference(1, 10, 100, "b1.backup")));
+    assertFalse(backup.isValidReference(reference(1, 10, 101, "b1.backup")));
+    assertFalse(backup.isValidReference(reference(1, 10, 100, "b0.backup")));
+    assertFalse(backup.isValidReference(reference(2, 20, 100, "b1.backup")));
+  }
+
+  private BackupManifest writeBase() throws IOException {
+    IncrementalBackup base = IncrementalBackup.start(temporaryFolder.getRoot(), "b1.backup", PASSPHRASE, DATABASE_VERSION, null);
+    base.onExportStarted(marks(5), 0);
+    base.onAttachmentExported(new AttachmentId(1, 10), "/data/part1", 100, null);
+
+    writeFile("b1.backup", 10);
+
+    return base.buildManifest(10);
+  }
+
+  private void writeFile(String name, int length) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(new File(temporaryFolder.getRoot(), name))) {
+      out.write(new byte[length]);
+    }
+  }
+
+  static Map<String, Long> marks(long rowId) {
+    Map<String, Long> marks = new HashMap<>();
+
+    for (String table : IncrementalBackup.TRACKED_TABLES) {
+      marks.put(table, rowId);
+    }
+
+    return marks;
+  }
+
+  private static BackupProtos.AttachmentReference reference(long rowId, long uniqueId, int length, String fileName) {
+    return BackupProtos.AttachmentReference.newBuilder()
+                                           .setRowId(rowId)
+                                           .setAttachmentId(uniqueId)
+                                           .setLength(length)
+                                           .setFileName(fileName)
+                                           .build();
+  }
+}
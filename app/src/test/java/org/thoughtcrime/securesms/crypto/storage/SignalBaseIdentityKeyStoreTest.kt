@@ -19,6 +19,7 @@ class SignalBaseIdentityKeyStoreTest {
 
   companion object {
     private const val ADDRESS = "address1"
+    private const val OTHER_ADDRESS = "address2"
   }
 
   @Before
@@ -60,6 +61,26 @@ class SignalBaseIdentityKeyStoreTest {
     verify(mockDb, times(2)).getIdentityStoreRecord(ADDRESS)
   }
 
+  @Test
+  fun `invalidateAll() evicts every cache entry`() {
+    val mockDb = mock(IdentityDatabase::class.java)
+    val subject = SignalBaseIdentityKeyStore(mock(Context::class.java), mockDb)
+    val identityKey = IdentityKey(ECPublicKey.fromPublicKeyBytes(ByteArray(32)))
+
+    `when`(mockDb.getIdentityStoreRecord(ADDRESS)).thenReturn(mockRecord(ADDRESS, identityKey))
+    `when`(mockDb.getIdentityStoreRecord(OTHER_ADDRESS)).thenReturn(mockRecord(OTHER_ADDRESS, identityKey))
+
+    subject.getIdentity(SignalProtocolAddress(ADDRESS, 1))
+    subject.getIdentity(SignalProtocolAddress(OTHER_ADDRESS, 1))
+
+    subject.invalidateAll()
+
+    subject.getIdentity(SignalProtocolAddress(ADDRESS, 1))
+    subject.getIdentity(SignalProtocolAddress(OTHER_ADDRESS, 1))
+    verify(mockDb, times(2)).getIdentityStoreRecord(ADDRESS)
+    verify(mockDb, times(2)).getIdentityStoreRecord(OTHER_ADDRESS)
+  }
+
   private fun mockRecord(addressName: String, identityKey: IdentityKey): IdentityStoreRecord {
     return IdentityStoreRecord(
       addressName = addressName,
@@ -0,0 +1,127 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.model.MessageId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class CoalescingNotificationBusTest {
+
+  private List<Runnable>       scheduled;
+  private List<String>         delivered;
+  private List<Set<Long>>      batchThreadIds;
+  private List<Set<MessageId>> batchMessageIds;
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(mock(Log.Logger.class));
+  }
+
+  @Before
+  public void setUp() {
+    scheduled       = new ArrayList<>();
+    delivered       = new ArrayList<>();
+    batchThreadIds  = new ArrayList<>();
+    batchMessageIds = new ArrayList<>();
+  }
+
+  @Test
+  public void noWindow_deliversEveryNotificationImmediately() {
+    CoalescingNotificationBus subject = bus(0);
+
+    subject.post("a", 1L, null, () -> delivered.add("a1"));
+    subject.post("a", 1L, null, () -> delivered.add("a2"));
+
+    assertEquals(Arrays.asList("a1", "a2"), delivered);
+    assertEquals(0, scheduled.size());
+    assertEquals(2, subject.getPostedCount());
+    assertEquals(2, subject.getDeliveredCount());
+  }
+
+  @Test
+  public void noWindow_onlyReportsBatchesThatNameIds() {
+    CoalescingNotificationBus subject = bus(0);
+
+    subject.post("a", null, null, () -> delivered.add("a"));
+    subject.post("b", 1L, null, () -> delivered.add("b"));
+
+    assertEquals(Arrays.asList("a", "b"), delivered);
+    assertEquals(Collections.singletonList(Collections.singleton(1L)), batchThreadIds);
+    assertEquals(Collections.singletonList(Collections.emptySet()), batchMessageIds);
+  }
+
+  @Test
+  public void window_holdsNotificationsUntilItPasses() {
+    CoalescingNotificationBus subject = bus(1);
+
+    subject.post("a", null, null, () -> delivered.add("a"));
+    subject.post("b", null, null, () -> delivered.add("b"));
+
+    assertEquals(0, delivered.size());
+    assertEquals(1, scheduled.size());
+
+    scheduled.get(0).run();
+
+    assertEquals(Arrays.asList("a", "b"), delivered);
+  }
+
+  @Test
+  public void window_mergesNotificationsWithTheSameKey() {
+    CoalescingNotificationBus subject = bus(1);
+
+    subject.post("a", null, null, () -> delivered.add("a1"));
+    subject.post("b", null, null, () -> delivered.add("b"));
+    subject.post("a", null, null, () -> delivered.add("a2"));
+    scheduled.get(0).run();
+
+    assertEquals(Arrays.asList("a2", "b"), delivered);
+    assertEquals(3, subject.getPostedCount());
+    assertEquals(2, subject.getDeliveredCount());
+  }
+
+  @Test
+  public void window_reportsDirtyIdsOncePerBatch() {
+    CoalescingNotificationBus subject = bus(1);
+    MessageId                 message = new MessageId(5, true);
+
+    subject.post("Conversation:1", 1L, null, () -> {});
+    subject.post("Conversation:2", 2L, null, () -> {});
+    subject.post("MessageInsert:5", 1L, message, () -> {});
+    scheduled.get(0).run();
+
+    assertEquals(1, batchThreadIds.size());
+    assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), batchThreadIds.get(0));
+    assertEquals(Collections.singleton(message), batchMessageIds.get(0));
+  }
+
+  @Test
+  public void window_startsNewBatchAfterFlush() {
+    CoalescingNotificationBus subject = bus(1);
+
+    subject.post("a", 1L, null, () -> delivered.add("a1"));
+    scheduled.get(0).run();
+    subject.post("a", 2L, null, () -> delivered.add("a2"));
+    scheduled.get(1).run();
+
+    assertEquals(Arrays.asList("a1", "a2"), delivered);
+    assertEquals(Arrays.asList(Collections.singleton(1L), Collections.singleton(2L)), batchThreadIds);
+  }
+
+  private CoalescingNotificationBus bus(long windowMs) {
+    return new CoalescingNotificationBus(Runnable::run, scheduled::add, windowMs, (threadIds, messageIds) -> {
+      batchThreadIds.add(new HashSet<>(threadIds));
+      batchMessageIds.add(new HashSet<>(messageIds));
+    });
+  }
+}
@@ -12,6 +12,7 @@ import org.thoughtcrime.securesms.crypto.storage.SignalServiceDataStoreImpl;
 import org.thoughtcrime.securesms.database.DatabaseObserver;
 import org.thoughtcrime.securesms.database.PendingRetryReceiptCache;
 import org.thoughtcrime.securesms.jobmanager.JobManager;
+import org.thoughtcrime.securesms.jobs.ReceiptAggregator;
 import org.thoughtcrime.securesms.megaphone.MegaphoneRepository;
 import org.thoughtcrime.securesms.messages.BackgroundMessageRetriever;
 import org.thoughtcrime.securesms.messages.IncomingMessageObserver;
@@ -155,6 +156,11 @@ public class MockApplicationDependencyProvider implements ApplicationDependencie
     return mock(DatabaseObserver.class);
   }
 
+  @Override
+  public @NonNull ReceiptAggregator provideReceiptAggregator() {
+    return mock(ReceiptAggregator.class);
+  }
+
   @Override
   public @NonNull Payments providePayments(@NonNull SignalServiceAccountManager signalServiceAccountManager) {
     return null;
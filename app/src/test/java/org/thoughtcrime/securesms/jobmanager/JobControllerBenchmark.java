@@ -0,0 +1,77 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Measures job throughput of the {@link JobController} with and without concurrent scheduling by submitting and draining
+ * memory-only jobs. Each configuration is warmed up before being measured.
+ *
+ * Not run as part of the normal test suite. Remove the {@link Ignore} to run locally.
+ */
+@Ignore("Benchmark, run manually")
+public class JobControllerBenchmark {
+
+  private static final int JOB_COUNT        = 100_000;
+  private static final int WARMUP_JOB_COUNT = 10_000;
+  private static final int RUNNER_COUNT     = 6;
+  private static final int MEASURED_ROUNDS  = 3;
+
+  @BeforeClass
+  public static void init() {
+    Log.initialize(mock(Log.Logger.class));
+  }
+
+  @Test
+  public void throughput_noQueues() throws InterruptedException {
+    measure("no queues", 0);
+  }
+
+  @Test
+  public void throughput_manyQueues() throws InterruptedException {
+    measure("64 queues", 64);
+  }
+
+  @Test
+  public void throughput_singleQueue() throws InterruptedException {
+    measure("1 queue", 1);
+  }
+
+  private static void measure(String name, int queueCount) throws InterruptedException {
+    double legacy     = run(false, queueCount);
+    double concurrent = run(true, queueCount);
+
+    System.out.println(String.format(Locale.US, "[%s] global lock: %.0f jobs/s, concurrent: %.0f jobs/s (%.2fx)", name, legacy, concurrent, concurrent / legacy));
+  }
+
+  /**
+   * @return The average number of jobs per second over the measured rounds.
+   */
+  private static double run(boolean concurrentScheduling, int queueCount) throws InterruptedException {
+    JobControllerHarness harness = new JobControllerHarness(concurrentScheduling, RUNNER_COUNT);
+    harness.startRunners();
+
+    assertTrue(harness.submitAndDrain(JobControllerHarness.createJobs(WARMUP_JOB_COUNT, queueCount), 5, TimeUnit.MINUTES));
+
+    long totalNanos = 0;
+
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      List<JobControllerHarness.NoopJob> jobs = JobControllerHarness.createJobs(JOB_COUNT, queueCount);
+
+      long start = System.nanoTime();
+      assertTrue(harness.submitAndDrain(jobs, 5, TimeUnit.MINUTES));
+      totalNanos += System.nanoTime() - start;
+    }
+
+    return (JOB_COUNT * MEASURED_ROUNDS) / (totalNanos / 1_000_000_000d);
+  }
+}
@@ -0,0 +1,196 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+import org.thoughtcrime.securesms.util.Debouncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives a {@link JobController} with a set of worker threads that behave like {@link JobRunner}s, without the Android
+ * dependencies. Jobs are memory-only and do no work, so only the cost of scheduling is measured.
+ */
+final class JobControllerHarness {
+
+  private final JobController                 controller;
+  private final FastJobStorage                jobStorage;
+  private final ConcurrentLinkedQueue<String> completed;
+  private final int                           runnerCount;
+
+  private CountDownLatch latch;
+
+  JobControllerHarness(boolean concurrentScheduling, int runnerCount) {
+    this(concurrentScheduling, runnerCount, FastJobStorage::new);
+  }
+
+  JobControllerHarness(boolean concurrentScheduling, int runnerCount, @NonNull Function<JobDatabase, FastJobStorage> jobStorageFactory) {
+    JobDatabase database = mock(JobDatabase.class);
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    this.jobStorage = jobStorageFactory.apply(database);
+    jobStorage.init();
+
+    this.controller  = new JobController(mock(Application.class),
+                                         jobStorage,
+                                         new JobInstantiator(Collections.singletonMap(NoopJob.KEY, new NoopJob.Factory())),
+                                         new ConstraintInstantiator(Collections.emptyMap()),
+                                         new JsonDataSerializer(),
+                                         new JobTracker(),
+                                         (delay, constraints) -> {},
+                                         mock(Debouncer.class),
+                                         () -> {},
+                                         concurrentScheduling);
+    this.completed   = new ConcurrentLinkedQueue<>();
+    this.runnerCount = runnerCount;
+
+    controller.init();
+  }
+
+  void startRunners() {
+    for (int i = 0; i < runnerCount; i++) {
+      Thread runner = new Thread(() -> {
+        //noinspection InfiniteLoopStatement
+        while (true) {
+          Job job = controller.pullNextEligibleJobForExecution(JobPredicate.NONE);
+          completed.add(job.getId());
+          controller.onJobFinished(job);
+          controller.onSuccess(job, null);
+
+          CountDownLatch current = latch;
+          if (current != null) {
+            current.countDown();
+          }
+        }
+      }, "test-JobRunner-" + i);
+
+      runner.setDaemon(true);
+      runner.start();
+    }
+  }
+
+  /**
+   * Submits the jobs as individual chains, blocking until all of them have run.
+   *
+   * @return True if all jobs ran before the timeout, otherwise false.
+   */
+  boolean submitAndDrain(@NonNull List<NoopJob> jobs, long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+    latch = new CountDownLatch(jobs.size());
+
+    for (NoopJob job : jobs) {
+      controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(job)));
+    }
+
+    return latch.await(timeout, unit);
+  }
+
+  /**
+   * Submits the job as its own chain, from the calling thread.
+   */
+  void submit(@NonNull Job job) {
+    controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(job)));
+  }
+
+  void updateJob(@NonNull String id, @NonNull JobUpdater updater) {
+    controller.updateJob(id, updater);
+  }
+
+  /**
+   * Marks the next eligible job as running, from the calling thread, without running it.
+   */
+  @NonNull Job claimNext() {
+    return controller.pullNextEligibleJobForExecution(JobPredicate.NONE);
+  }
+
+  int getJobCountForFactory(@NonNull String factoryKey) {
+    return jobStorage.getJobCountForFactory(factoryKey);
+  }
+
+  @Nullable JobSpec getJobSpec(@NonNull String id) {
+    return jobStorage.getJobSpec(id);
+  }
+
+  @NonNull List<String> getCompletedJobIds() {
+    return new ArrayList<>(completed);
+  }
+
+  static @NonNull List<NoopJob> createJobs(int count, int queueCount) {
+    List<NoopJob> jobs = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      jobs.add(new NoopJob(queueCount > 0 ? "queue-" + (i % queueCount) : null));
+    }
+
+    return jobs;
+  }
+
+  static final class NoopJob extends Job {
+
+    static final String KEY = "NoopJob";
+
+    private volatile boolean added;
+
+    NoopJob(@Nullable String queue) {
+      this(new Parameters.Builder()
+                         .setQueue(queue)
+                         .setMemoryOnly(true)
+                         .build());
+    }
+
+    NoopJob(@NonNull Parameters parameters) {
+      super(parameters);
+    }
+
+    boolean wasAdded() {
+      return added;
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return Data.EMPTY;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public void onAdded() {
+      added = true;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      return Result.success();
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    static final class Factory implements Job.Factory<NoopJob> {
+      @Override
+      public @NonNull NoopJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new NoopJob(parameters);
+      }
+    }
+  }
+}
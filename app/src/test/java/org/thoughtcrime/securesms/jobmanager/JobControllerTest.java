@@ -0,0 +1,260 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+@RunWith(Parameterized.class)
+public class JobControllerTest {
+
+  @Parameterized.Parameters(name = "concurrentScheduling: {0}")
+  public static Collection<Object[]> data() {
+    return Arrays.asList(new Object[][] { { false }, { true } });
+  }
+
+  private final boolean concurrentScheduling;
+
+  public JobControllerTest(boolean concurrentScheduling) {
+    this.concurrentScheduling = concurrentScheduling;
+  }
+
+  @BeforeClass
+  public static void init() {
+    Log.initialize(mock(Log.Logger.class));
+  }
+
+  @Test
+  public void submitAndDrain_everyJobRunsExactlyOnce() throws InterruptedException {
+    JobControllerHarness               harness = new JobControllerHarness(concurrentScheduling, 4);
+    List<JobControllerHarness.NoopJob> jobs    = JobControllerHarness.createJobs(2000, 0);
+
+    harness.startRunners();
+
+    assertTrue(harness.submitAndDrain(jobs, 30, TimeUnit.SECONDS));
+
+    List<String> completed = harness.getCompletedJobIds();
+
+    assertEquals(jobs.size(), completed.size());
+    assertEquals(jobs.size(), new HashSet<>(completed).size());
+  }
+
+  @Test
+  public void submitAndDrain_jobsInQueueRunInOrder() throws InterruptedException {
+    JobControllerHarness               harness = new JobControllerHarness(concurrentScheduling, 4);
+    List<JobControllerHarness.NoopJob> jobs    = JobControllerHarness.createJobs(2000, 8);
+
+    harness.startRunners();
+
+    assertTrue(harness.submitAndDrain(jobs, 30, TimeUnit.SECONDS));
+
+    Map<String, String> queueById = new HashMap<>();
+    for (Job job : jobs) {
+      queueById.put(job.getId(), job.getParameters().getQueue());
+    }
+
+    Map<String, List<String>> expected = new HashMap<>();
+    for (Job job : jobs) {
+      getOrCreate(expected, job.getParameters().getQueue()).add(job.getId());
+    }
+
+    Map<String, List<String>> actual = new HashMap<>();
+    for (String id : harness.getCompletedJobIds()) {
+      getOrCreate(actual, queueById.get(id)).add(id);
+    }
+
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void submit_concurrentSubmissionsDoNotExceedTheFactoryLimit() throws InterruptedException {
+    JobControllerHarness harness = new JobControllerHarness(concurrentScheduling, 0, JobControllerTest::slowInsertStorage);
+
+    submitConcurrently(harness, () -> new JobControllerHarness.NoopJob(new Job.Parameters.Builder()
+                                                                                         .setMaxInstancesForFactory(1)
+                                                                                         .setMemoryOnly(true)
+                                                                                         .build()));
+
+    assertEquals(1, harness.getJobCountForFactory(JobControllerHarness.NoopJob.KEY));
+  }
+
+  @Test
+  public void submit_concurrentSubmissionsDoNotExceedTheQueueLimit() throws InterruptedException {
+    JobControllerHarness harness = new JobControllerHarness(concurrentScheduling, 0, JobControllerTest::slowInsertStorage);
+
+    submitConcurrently(harness, () -> new JobControllerHarness.NoopJob(new Job.Parameters.Builder()
+                                                                                         .setQueue("queue")
+                                                                                         .setMaxInstancesForQueue(2)
+                                                                                         .setMemoryOnly(true)
+                                                                                         .build()));
+
+    assertEquals(2, harness.getJobCountForFactory(JobControllerHarness.NoopJob.KEY));
+  }
+
+  @Test
+  public void submit_jobIsAddedBeforeItIsInserted() {
+    Map<String, JobControllerHarness.NoopJob> jobsById    = new ConcurrentHashMap<>();
+    List<String>                              notYetAdded = Collections.synchronizedList(new ArrayList<>());
+
+    JobControllerHarness harness = new JobControllerHarness(concurrentScheduling, 0, database -> new FastJobStorage(database) {
+      @Override
+      public synchronized void insertJobs(@NonNull List<FullSpec> fullSpecs) {
+        for (FullSpec fullSpec : fullSpecs) {
+          if (!jobsById.get(fullSpec.getJobSpec().getId()).wasAdded()) {
+            notYetAdded.add(fullSpec.getJobSpec().getId());
+          }
+        }
+        super.insertJobs(fullSpecs);
+      }
+    });
+
+    for (JobControllerHarness.NoopJob job : JobControllerHarness.createJobs(100, 4)) {
+      jobsById.put(job.getId(), job);
+      harness.submit(job);
+    }
+
+    assertEquals(Collections.emptyList(), notYetAdded);
+    assertEquals(100, harness.getJobCountForFactory(JobControllerHarness.NoopJob.KEY));
+  }
+
+  @Test
+  public void submit_initialDelay_postponesFirstRun() throws InterruptedException {
+    JobControllerHarness         harness = new JobControllerHarness(concurrentScheduling, 2);
+    JobControllerHarness.NoopJob delayed = new JobControllerHarness.NoopJob(new Job.Parameters.Builder()
+                                                                                           .setInitialDelay(TimeUnit.MINUTES.toMillis(1))
+                                                                                           .setMemoryOnly(true)
+                                                                                           .build());
+    long start = System.currentTimeMillis();
+
+    harness.submit(delayed);
+    harness.startRunners();
+
+    assertTrue(harness.submitAndDrain(JobControllerHarness.createJobs(10, 0), 30, TimeUnit.SECONDS));
+
+    JobSpec spec = harness.getJobSpec(delayed.getId());
+
+    assertNotNull(spec);
+    assertTrue(spec.getNextRunAttemptTime() >= start + TimeUnit.MINUTES.toMillis(1));
+    assertFalse(harness.getCompletedJobIds().contains(delayed.getId()));
+  }
+
+  @Test
+  public void updateJob_updatesOnlyThatJobWithoutLookingAtTheRest() {
+    JobControllerHarness harness = new JobControllerHarness(concurrentScheduling, 0, database -> new FastJobStorage(database) {
+      @Override
+      public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
+        throw new AssertionError("Should look the job up by id");
+      }
+    });
+
+    List<JobControllerHarness.NoopJob> jobs = JobControllerHarness.createJobs(2, 0);
+    for (Job job : jobs) {
+      harness.submit(job);
+    }
+
+    String untouched = harness.getJobSpec(jobs.get(1).getId()).getSerializedData();
+
+    harness.updateJob(jobs.get(0).getId(), (jobSpec, serializer) -> jobSpec.withData("updated"));
+
+    assertEquals("updated", harness.getJobSpec(jobs.get(0).getId()).getSerializedData());
+    assertEquals(untouched, harness.getJobSpec(jobs.get(1).getId()).getSerializedData());
+  }
+
+  @Test
+  public void updateJob_running_isLeftAlone() {
+    JobControllerHarness         harness = new JobControllerHarness(concurrentScheduling, 0);
+    JobControllerHarness.NoopJob job     = JobControllerHarness.createJobs(1, 0).get(0);
+
+    harness.submit(job);
+
+    String original = harness.getJobSpec(job.getId()).getSerializedData();
+
+    assertEquals(job.getId(), harness.claimNext().getId());
+
+    harness.updateJob(job.getId(), (jobSpec, serializer) -> jobSpec.withData("updated"));
+
+    assertEquals(original, harness.getJobSpec(job.getId()).getSerializedData());
+  }
+
+  /**
+   * Widens the window between checking the instance count and inserting a job, so that racing submissions are caught.
+   */
+  private static FastJobStorage slowInsertStorage(@NonNull JobDatabase database) {
+    return new FastJobStorage(database) {
+      @Override
+      public void insertJobs(@NonNull List<FullSpec> fullSpecs) {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        super.insertJobs(fullSpecs);
+      }
+    };
+  }
+
+  /**
+   * Submits jobs from several threads at once, each as its own chain.
+   */
+  private static void submitConcurrently(@NonNull JobControllerHarness harness, @NonNull Supplier<Job> jobSupplier) throws InterruptedException {
+    CountDownLatch start   = new CountDownLatch(1);
+    List<Thread>   threads = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        for (int j = 0; j < 50; j++) {
+          harness.submit(jobSupplier.get());
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+  }
+
+  private static List<String> getOrCreate(Map<String, List<String>> map, String key) {
+    List<String> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<>();
+      map.put(key, list);
+    }
+    return list;
+  }
+}
@@ -0,0 +1,137 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.StreamUtil;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.Data;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public final class CompactDataSerializerTest {
+
+  private static final float FloatDelta = 0.00001f;
+
+  private final CompactDataSerializer serializer = new CompactDataSerializer();
+
+  @BeforeClass
+  public static void init() {
+    Log.initialize(mock(Log.Logger.class));
+  }
+
+  @Test
+  public void serialize_roundTripsAllTypes() {
+    Data data = new Data.Builder()
+                        .putString("s1", "s1 value")
+                        .putString("s2", "contains 12:, separators_ and \u00e9mojis \uD83D\uDE00")
+                        .putString("null", null)
+                        .putString("", "")
+                        .putStringArray("s_array_1", new String[]{ "a", null, "" })
+                        .putInt("max", Integer.MAX_VALUE)
+                        .putInt("min", Integer.MIN_VALUE)
+                        .putIntArray("i_array_1", new int[]{ 1, -2, Integer.MAX_VALUE })
+                        .putLong("max", Long.MAX_VALUE)
+                        .putLong("min", Long.MIN_VALUE)
+                        .putLongArray("l_array_1", new long[]{ 1, -2, Long.MIN_VALUE })
+                        .putLongArray("l_array_empty", new long[0])
+                        .putFloat("f1", 1.2f)
+                        .putFloat("nan", Float.NaN)
+                        .putFloatArray("f_array_1", new float[]{ 5.6f, Float.NEGATIVE_INFINITY })
+                        .putDouble("d1", 10.2)
+                        .putDouble("tiny", Double.MIN_VALUE)
+                        .putDoubleArray("d_array_1", new double[]{ 50.6, 1e300 })
+                        .putBoolean("b1", true)
+                        .putBoolean("b2", false)
+                        .putBooleanArray("b_array_1", new boolean[]{ false, true })
+                        .putBlobAsString("blob", new byte[]{ 0, 1, 2, (byte) 0xff })
+                        .build();
+
+    Data result = serializer.deserialize(serializer.serialize(data));
+
+    assertEquals("s1 value", result.getString("s1"));
+    assertEquals("contains 12:, separators_ and \u00e9mojis \uD83D\uDE00", result.getString("s2"));
+    assertTrue(result.hasString("null"));
+    assertNull(result.getString("null"));
+    assertEquals("", result.getString(""));
+    assertArrayEquals(new String[]{ "a", null, "" }, result.getStringArray("s_array_1"));
+
+    assertEquals(Integer.MAX_VALUE, result.getInt("max"));
+    assertEquals(Integer.MIN_VALUE, result.getInt("min"));
+    assertArrayEquals(new int[]{ 1, -2, Integer.MAX_VALUE }, result.getIntegerArray("i_array_1"));
+
+    assertEquals(Long.MAX_VALUE, result.getLong("max"));
+    assertEquals(Long.MIN_VALUE, result.getLong("min"));
+    assertArrayEquals(new long[]{ 1, -2, Long.MIN_VALUE }, result.getLongArray("l_array_1"));
+    assertArrayEquals(new long[0], result.getLongArray("l_array_empty"));
+
+    assertEquals(1.2f, result.getFloat("f1"), 0);
+    assertTrue(Float.isNaN(result.getFloat("nan")));
+    assertArrayEquals(new float[]{ 5.6f, Float.NEGATIVE_INFINITY }, result.getFloatArray("f_array_1"), 0);
+
+    assertEquals(10.2, result.getDouble("d1"), 0);
+    assertEquals(Double.MIN_VALUE, result.getDouble("tiny"), 0);
+    assertArrayEquals(new double[]{ 50.6, 1e300 }, result.getDoubleArray("d_array_1"), 0);
+
+    assertTrue(result.getBoolean("b1"));
+    assertFalse(result.getBoolean("b2"));
+    assertArrayEquals(new boolean[]{ false, true }, result.getBooleanArray("b_array_1"));
+
+    assertArrayEquals(new byte[]{ 0, 1, 2, (byte) 0xff }, result.getStringAsBlob("blob"));
+  }
+
+  @Test
+  public void serialize_empty() {
+    Data result = serializer.deserialize(serializer.serialize(Data.EMPTY));
+
+    assertTrue(result.getStrings().isEmpty());
+    assertTrue(result.getLongs().isEmpty());
+    assertTrue(result.getBooleanArrays().isEmpty());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void deserialize_resultCannotBeModified() {
+    Data result = serializer.deserialize(serializer.serialize(new Data.Builder().putString("key", "value").build()));
+
+    result.getStrings().put("key", "other");
+  }
+
+  @Test
+  public void deserialize_legacyJson() throws IOException {
+    Data data = serializer.deserialize(StreamUtil.readFullyAsString(ClassLoader.getSystemClassLoader().getResourceAsStream("data/data_serialized.json")));
+
+    assertEquals("s1 value", data.getString("s1"));
+    assertArrayEquals(new String[]{ "a", "b", "c" }, data.getStringArray("s_array_1"));
+    assertEquals(Integer.MIN_VALUE, data.getInt("min"));
+    assertEquals(Long.MAX_VALUE, data.getLong("max"));
+    assertEquals(3.4f, data.getFloat("f2"), FloatDelta);
+    assertArrayEquals(new double[]{ 50.6, 70.8 }, data.getDoubleArray("d_array_1"), FloatDelta);
+    assertArrayEquals(new boolean[]{ false, true }, data.getBooleanArray("b_array_1"));
+  }
+
+  @Test
+  public void deserialize_jsonWrittenBySerializer_readsSameData() {
+    Data data = new Data.Builder()
+                        .putString("s1", "value")
+                        .putLongArray("l1", new long[]{ 1, 2 })
+                        .build();
+
+    Data result = serializer.deserialize(new JsonDataSerializer().serialize(data));
+
+    assertEquals("value", result.getString("s1"));
+    assertArrayEquals(new long[]{ 1, 2 }, result.getLongArray("l1"));
+  }
+
+  @Test(expected = AssertionError.class)
+  public void deserialize_truncated_throws() {
+    String serialized = serializer.serialize(new Data.Builder().putString("key", "a longer value").build());
+
+    serializer.deserialize(serialized.substring(0, serialized.length() - 4));
+  }
+}
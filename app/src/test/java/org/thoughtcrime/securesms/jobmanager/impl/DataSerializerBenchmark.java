@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import org.junit.BeforeClass;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.Data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the throughput and output size of {@link JsonDataSerializer} and {@link CompactDataSerializer} for a payload
+ * shaped like the data of a PushProcessMessageJob (an envelope blob plus a few small fields) and for a payload of small
+ * values only. Each serializer is warmed up before being measured.
+ *
+ * Not run as part of the normal test suite. Remove the {@link Ignore} to run locally.
+ */
+@Ignore("Benchmark, run manually")
+public class DataSerializerBenchmark {
+
+  private static final int ITERATIONS        = 200_000;
+  private static final int WARMUP_ITERATIONS = 50_000;
+
+  @BeforeClass
+  public static void init() {
+    Log.initialize(mock(Log.Logger.class));
+  }
+
+  @Test
+  public void envelopePayload() {
+    byte[] envelope = new byte[2048];
+    new Random(1).nextBytes(envelope);
+
+    measure("envelope", new Data.Builder()
+                                .putBlobAsString("envelope", envelope)
+                                .putInt("message_state", 0)
+                                .putLong("smsMessageId", 1234)
+                                .putLong("timestamp", System.currentTimeMillis())
+                                .build());
+  }
+
+  @Test
+  public void smallPayload() {
+    measure("small", new Data.Builder()
+                             .putString("recipient", "RecipientId::123")
+                             .putLongArray("message_ids", new long[]{ 1, 2, 3, 4, 5 })
+                             .putLong("thread", 42)
+                             .putBoolean("is_story", false)
+                             .build());
+  }
+
+  private static void measure(String name, Data data) {
+    Result json    = run(new JsonDataSerializer(), data);
+    Result compact = run(new CompactDataSerializer(), data);
+
+    System.out.println(String.format(Locale.US,
+                                     "[%s] serialize: json %.0f ops/s, compact %.0f ops/s (%.2fx) | deserialize: json %.0f ops/s, compact %.0f ops/s (%.2fx) | bytes: json %d, compact %d",
+                                     name,
+                                     json.serializePerSecond,
+                                     compact.serializePerSecond,
+                                     compact.serializePerSecond / json.serializePerSecond,
+                                     json.deserializePerSecond,
+                                     compact.deserializePerSecond,
+                                     compact.deserializePerSecond / json.deserializePerSecond,
+                                     json.bytes,
+                                     compact.bytes));
+  }
+
+  private static Result run(Data.Serializer serializer, Data data) {
+    String serialized = serializer.serialize(data);
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      serializer.deserialize(serializer.serialize(data));
+    }
+
+    long   start = System.nanoTime();
+    String last  = null;
+    for (int i = 0; i < ITERATIONS; i++) {
+      last = serializer.serialize(data);
+    }
+    long serializeNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    Data result = null;
+    for (int i = 0; i < ITERATIONS; i++) {
+      result = serializer.deserialize(serialized);
+    }
+    long deserializeNanos = System.nanoTime() - start;
+
+    assertEquals(serialized, last);
+    assertEquals(data.getStrings(), result.getStrings());
+
+    return new Result(ITERATIONS / (serializeNanos / 1_000_000_000d),
+                      ITERATIONS / (deserializeNanos / 1_000_000_000d),
+                      serialized.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  private static final class Result {
+    private final double serializePerSecond;
+    private final double deserializePerSecond;
+    private final int    bytes;
+
+    private Result(double serializePerSecond, double deserializePerSecond, int bytes) {
+      this.serializePerSecond   = serializePerSecond;
+      this.deserializePerSecond = deserializePerSecond;
+      this.bytes                = bytes;
+    }
+  }
+}
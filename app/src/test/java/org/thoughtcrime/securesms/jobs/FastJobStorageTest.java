@@ -435,6 +435,81 @@ public class FastJobStorageTest {
     assertTrue(jobs.isEmpty());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextItemInQueueAfterFirstIsDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_dependentEligibleAfterDependencyIsDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, true, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.singletonList(new DependencySpec("2", "1", false)));
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterRetryTimeUpdated() {
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 3, -1, EMPTY_DATA, null, true, false),
+                                     Collections.emptyList(),
+                                     Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
+    subject.init();
+    subject.updateJobAfterRetry("1", false, 1, 20, EMPTY_DATA);
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(20).size());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_sortedByCreateTime() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q1", 5, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q2", 1, 3, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec3 = new FullSpec(new JobSpec("3", "f3", null, 3, 1, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2, fullSpec3)));
+    subject.init();
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(3, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+    assertEquals("3", jobs.get(1).getId());
+    assertEquals("1", jobs.get(2).getId());
+  }
+
   @Test
   public void deleteJobs_writesToDatabase() {
     JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
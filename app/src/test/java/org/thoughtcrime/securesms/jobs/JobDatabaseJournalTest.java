@@ -0,0 +1,140 @@
+package org.thoughtcrime.securesms.jobs;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class JobDatabaseJournalTest {
+
+  private JobDatabase    database;
+  private List<Runnable> scheduled;
+
+  @Before
+  public void setUp() {
+    database  = mock(JobDatabase.class);
+    scheduled = new ArrayList<>();
+
+    doAnswer(invocation -> {
+      ((Runnable) invocation.getArgument(0)).run();
+      return null;
+    }).when(database).runInTransaction(any());
+  }
+
+  @Test
+  public void writeThrough_appliesWritesImmediately() {
+    JobDatabaseJournal subject = journal(false);
+
+    subject.updateJobRunningState("1", true);
+    subject.deleteJobs(Collections.singletonList("1"));
+
+    verify(database).updateJobRunningState("1", true);
+    verify(database).deleteJobs(Collections.singletonList("1"));
+    verify(database, never()).runInTransaction(any());
+    assertEquals(0, scheduled.size());
+  }
+
+  @Test
+  public void writeBehind_defersWritesUntilFlush() {
+    JobDatabaseJournal subject = journal(true);
+
+    subject.updateJobRunningState("1", true);
+    subject.updateJobRunningState("2", true);
+
+    verify(database, never()).updateJobRunningState(anyString(), anyBoolean());
+    assertEquals(1, scheduled.size());
+
+    scheduled.get(0).run();
+
+    InOrder inOrder = inOrder(database);
+    inOrder.verify(database).runInTransaction(any());
+    inOrder.verify(database).updateJobRunningState("1", true);
+    inOrder.verify(database).updateJobRunningState("2", true);
+  }
+
+  @Test
+  public void writeBehind_flushesInASingleTransaction() {
+    JobDatabaseJournal subject = journal(true);
+
+    subject.updateJobRunningState("1", true);
+    subject.updateJobAfterRetry("2", false, 1, 10, "data");
+    subject.updateJobs(Collections.singletonList(jobSpec("3")));
+    subject.flush();
+
+    verify(database, times(1)).runInTransaction(any());
+    verify(database).updateJobRunningState("1", true);
+    verify(database).updateJobAfterRetry("2", false, 1, 10, "data");
+    verify(database).updateJobs(Collections.singletonList(jobSpec("3")));
+  }
+
+  @Test
+  public void writeBehind_insertFlushesEarlierWrites() {
+    JobDatabaseJournal subject = journal(true);
+    List<FullSpec>     specs   = Collections.singletonList(new FullSpec(jobSpec("2"), Collections.emptyList(), Collections.emptyList()));
+
+    subject.updateJobRunningState("1", true);
+    subject.insertJobs(specs);
+
+    InOrder inOrder = inOrder(database);
+    inOrder.verify(database).updateJobRunningState("1", true);
+    inOrder.verify(database).insertJobs(specs);
+  }
+
+  @Test
+  public void writeBehind_deleteDropsPendingUpdatesForJob() {
+    JobDatabaseJournal subject = journal(true);
+
+    subject.updateJobRunningState("1", true);
+    subject.updateJobAfterRetry("1", false, 1, 10, "data");
+    subject.updateJobRunningState("2", true);
+    subject.deleteJobs(Collections.singletonList("1"));
+    subject.flush();
+
+    verify(database, never()).updateJobRunningState("1", true);
+    verify(database, never()).updateJobAfterRetry(anyString(), anyBoolean(), anyInt(), anyLong(), anyString());
+    verify(database).updateJobRunningState("2", true);
+    verify(database).deleteJobs(Collections.singletonList("1"));
+  }
+
+  @Test
+  public void writeBehind_retrySupersedesRunningState() {
+    JobDatabaseJournal subject = journal(true);
+
+    subject.updateJobRunningState("1", true);
+    subject.updateJobAfterRetry("1", false, 1, 10, "data");
+    subject.updateJobRunningState("1", true);
+    subject.flush();
+
+    InOrder inOrder = inOrder(database);
+    inOrder.verify(database).updateJobAfterRetry("1", false, 1, 10, "data");
+    inOrder.verify(database).updateJobRunningState("1", true);
+    verify(database, times(1)).updateJobRunningState(anyString(), anyBoolean());
+  }
+
+  private JobDatabaseJournal journal(boolean writeBehind) {
+    return new JobDatabaseJournal(database, writeBehind, writeBehind ? scheduled::add : null, 0, 64);
+  }
+
+  private static JobSpec jobSpec(String id) {
+    return new JobSpec(id, "f1", null, 1, 1, 1, 1, 1, "", null, false, false);
+  }
+}
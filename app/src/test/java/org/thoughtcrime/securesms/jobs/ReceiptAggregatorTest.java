@@ -0,0 +1,301 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.model.MessageId;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.recipients.RecipientId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ReceiptAggregatorTest {
+
+  private static final RecipientId ALICE = RecipientId.from(1);
+  private static final RecipientId BOB   = RecipientId.from(2);
+
+  private List<Job>        enqueued;
+  private Map<String, Job> merged;
+  private int              mergeCount;
+  private List<Runnable>   scheduled;
+  private List<Long>       scheduledDelays;
+
+  @BeforeClass
+  public static void setUpClass() {
+    Log.initialize(mock(Log.Logger.class));
+  }
+
+  @Before
+  public void setUp() {
+    enqueued   = new ArrayList<>();
+    merged     = new HashMap<>();
+    mergeCount      = 0;
+    scheduled       = new ArrayList<>();
+    scheduledDelays = new ArrayList<>();
+  }
+
+  @Test
+  public void noWindow_enqueuesEveryReceiptImmediately() {
+    ReceiptAggregator subject = aggregator(0);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+
+    assertEquals(2, enqueued.size());
+    assertEquals(0, mergeCount);
+    assertEquals(ALICE.toQueueKey(), enqueued.get(0).getParameters().getQueue());
+    assertEquals(2, subject.getUnmergedJobCount());
+    assertEquals(2, subject.getEnqueuedJobCount());
+    assertTrue(scheduled.isEmpty());
+  }
+
+  @Test
+  public void window_enqueuesFirstReceiptImmediately() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+
+    assertEquals(1, enqueued.size());
+    assertEquals(SendDeliveryReceiptJob.KEY, enqueued.get(0).getFactoryKey());
+    assertEquals(SendReadReceiptJob.heldQueueKey(ALICE), enqueued.get(0).getParameters().getQueue());
+    assertEquals(Collections.singletonList(100L), latest(enqueued.get(0)).getLongArrayAsList("message_ids"));
+  }
+
+  @Test
+  public void window_closesOneWindowAfterTheJobIsEnqueued() {
+    ReceiptAggregator subject = aggregator(1000);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+
+    assertEquals(Collections.singletonList(1000L), scheduledDelays);
+  }
+
+  @Test
+  public void window_mergesReceiptsForTheSameRecipientIntoEnqueuedJob() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addDeliveryReceipts(BOB, Collections.singletonList(200L), Collections.singletonList(new MessageId(2, false)));
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(3, true)));
+    closeWindows();
+
+    assertEquals(2, enqueued.size());
+    assertEquals(1, mergeCount);
+
+    Data alice = latest(enqueued.get(0));
+    assertEquals(ALICE.serialize(), alice.getString("recipient"));
+    assertEquals(Arrays.asList(100L, 101L), alice.getLongArrayAsList("message_ids"));
+    assertEquals(Arrays.asList("1|true", "3|true"), alice.getStringArrayAsList("message_db_ids"));
+
+    Data bob = latest(enqueued.get(1));
+    assertEquals(BOB.serialize(), bob.getString("recipient"));
+    assertEquals(Collections.singletonList(200L), bob.getLongArrayAsList("message_ids"));
+
+    assertEquals(3, subject.getReceiptCount());
+    assertEquals(3, subject.getUnmergedJobCount());
+    assertEquals(2, subject.getEnqueuedJobCount());
+  }
+
+  @Test
+  public void window_keepsTypesAndThreadsApart() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addReadReceipts(10, ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addReadReceipts(11, ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+    subject.addViewedReceipts(10, ALICE, Collections.singletonList(102L), Collections.singletonList(new MessageId(3, true)));
+    subject.addReadReceipts(10, ALICE, Collections.singletonList(103L), Collections.singletonList(new MessageId(4, true)));
+    closeWindows();
+
+    assertEquals(3, enqueued.size());
+    assertEquals(SendReadReceiptJob.KEY, enqueued.get(0).getFactoryKey());
+    assertEquals(10, latest(enqueued.get(0)).getLong("thread"));
+    assertEquals(Arrays.asList(100L, 103L), latest(enqueued.get(0)).getLongArrayAsList("message_ids"));
+    assertEquals(SendReadReceiptJob.KEY, enqueued.get(1).getFactoryKey());
+    assertEquals(11, latest(enqueued.get(1)).getLong("thread"));
+    assertEquals(SendViewedReceiptJob.KEY, enqueued.get(2).getFactoryKey());
+  }
+
+  @Test
+  public void window_dropsRepeatedTimestamps() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    closeWindows();
+
+    assertEquals(1, enqueued.size());
+    assertEquals(0, mergeCount);
+    assertEquals(Collections.singletonList(100L), latest(enqueued.get(0)).getLongArrayAsList("message_ids"));
+  }
+
+  @Test
+  public void window_splitsLargeBatches() {
+    ReceiptAggregator subject    = aggregator(1);
+    List<Long>        timestamps = new ArrayList<>();
+    List<MessageId>   messageIds = new ArrayList<>();
+
+    for (int i = 0; i < SendReadReceiptJob.MAX_TIMESTAMPS + 1; i++) {
+      timestamps.add((long) i);
+      messageIds.add(new MessageId(i, true));
+    }
+
+    subject.addReadReceipts(10, ALICE, timestamps, messageIds);
+
+    assertEquals(2, enqueued.size());
+    assertEquals(0, mergeCount);
+    assertEquals(SendReadReceiptJob.MAX_TIMESTAMPS, latest(enqueued.get(0)).getLongArray("message_ids").length);
+    assertEquals(1, latest(enqueued.get(1)).getLongArray("message_ids").length);
+
+    subject.addReadReceipts(10, ALICE, Collections.singletonList(1000L), Collections.singletonList(new MessageId(1000, true)));
+    closeWindows();
+
+    assertEquals(2, enqueued.size());
+    assertEquals(Arrays.asList((long) SendReadReceiptJob.MAX_TIMESTAMPS, 1000L), latest(enqueued.get(1)).getLongArrayAsList("message_ids"));
+  }
+
+  @Test
+  public void window_writesMergesOnceWhenItCloses() {
+    ReceiptAggregator subject = aggregator(1);
+
+    for (int i = 0; i < 50; i++) {
+      subject.addDeliveryReceipts(ALICE, Collections.singletonList((long) i), Collections.singletonList(new MessageId(i, true)));
+    }
+
+    assertEquals(1, enqueued.size());
+    assertEquals(0, mergeCount);
+
+    closeWindows();
+
+    assertEquals(1, mergeCount);
+    assertEquals(50, latest(enqueued.get(0)).getLongArray("message_ids").length);
+  }
+
+  @Test
+  public void window_nothingMerged_writesNothingWhenItCloses() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    closeWindows();
+
+    assertEquals(0, mergeCount);
+  }
+
+  @Test
+  public void window_closed_startsNewJobForLaterReceipts() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    closeWindows();
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+
+    assertEquals(2, enqueued.size());
+    assertEquals(Collections.singletonList(101L), latest(enqueued.get(1)).getLongArrayAsList("message_ids"));
+
+    ReceiptAggregator.Receipts receipts = subject.claim(enqueued.get(0).getId());
+
+    assertNotNull(receipts);
+    assertEquals(Collections.singletonList(100L), receipts.getMessageSentTimestamps());
+  }
+
+  @Test
+  public void claim_returnsEverythingMergedSoFar() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+
+    ReceiptAggregator.Receipts receipts = subject.claim(enqueued.get(0).getId());
+
+    assertNotNull(receipts);
+    assertEquals(Arrays.asList(100L, 101L), receipts.getMessageSentTimestamps());
+    assertEquals(Arrays.asList(new MessageId(1, true), new MessageId(2, true)), receipts.getMessageIds());
+    assertNull(subject.claim(enqueued.get(0).getId()));
+  }
+
+  @Test
+  public void claim_startsNewJobForLaterReceipts() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.claim(enqueued.get(0).getId());
+    subject.addDeliveryReceipts(ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+
+    assertEquals(2, enqueued.size());
+    assertEquals(0, mergeCount);
+    assertEquals(Collections.singletonList(101L), latest(enqueued.get(1)).getLongArrayAsList("message_ids"));
+  }
+
+  @Test
+  public void claim_mergeNotYetWritten_returnsMergedReceiptsAndSkipsTheWrite() {
+    ReceiptAggregator subject = aggregator(1);
+
+    subject.addReadReceipts(10, ALICE, Collections.singletonList(100L), Collections.singletonList(new MessageId(1, true)));
+    subject.addReadReceipts(10, ALICE, Collections.singletonList(101L), Collections.singletonList(new MessageId(2, true)));
+
+    assertEquals(0, mergeCount);
+    assertEquals(Collections.singletonList(100L), latest(enqueued.get(0)).getLongArrayAsList("message_ids"));
+
+    ReceiptAggregator.Receipts receipts = subject.claim(enqueued.get(0).getId());
+
+    assertNotNull(receipts);
+    assertEquals(Arrays.asList(100L, 101L), receipts.getMessageSentTimestamps());
+    assertEquals(Arrays.asList(new MessageId(1, true), new MessageId(2, true)), receipts.getMessageIds());
+
+    closeWindows();
+
+    assertEquals(0, mergeCount);
+  }
+
+  @Test
+  public void claim_unknownJob_returnsNull() {
+    assertNull(aggregator(1).claim("unknown"));
+  }
+
+  private void closeWindows() {
+    List<Runnable> toRun = new ArrayList<>(scheduled);
+    scheduled.clear();
+
+    for (Runnable runnable : toRun) {
+      runnable.run();
+    }
+  }
+
+  private @NonNull Data latest(@NonNull Job job) {
+    Job updated = merged.get(job.getId());
+    return updated != null ? updated.serialize() : job.serialize();
+  }
+
+  private ReceiptAggregator aggregator(long windowMs) {
+    return new ReceiptAggregator(windowMs, new ReceiptAggregator.JobSink() {
+      @Override
+      public void add(@NonNull Job job) {
+        enqueued.add(job);
+      }
+
+      @Override
+      public void merge(@NonNull String jobId, @NonNull Job job) {
+        merged.put(jobId, job);
+        mergeCount++;
+      }
+    }, (delayMs, runnable) -> {
+      scheduled.add(runnable);
+      scheduledDelays.add(delayMs);
+    });
+  }
+}
@@ -0,0 +1,130 @@
+package org.thoughtcrime.securesms.keyvalue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class KeyValueStoreTest {
+
+  @Test
+  public void beginRead_isNotAffectedByLaterWrites() {
+    KeyValueDataSet initial = new KeyValueDataSet();
+    initial.putString("a", "before");
+
+    KeyValueStore  subject  = new KeyValueStore(MockKeyValuePersistentStorage.withDataSet(initial));
+    KeyValueReader snapshot = subject.beginRead();
+
+    subject.beginWrite().putString("a", "after").putLong("b", 1).apply();
+
+    assertEquals("before", snapshot.getString("a", null));
+    assertFalse(snapshot.containsKey("b"));
+    assertEquals("after", subject.getString("a", null));
+    assertEquals(1, subject.getLong("b", 0));
+  }
+
+  @Test
+  public void commit_persistsWritesAndRemoves() {
+    KeyValueDataSet initial = new KeyValueDataSet();
+    initial.putString("a", "value");
+
+    KeyValuePersistentStorage storage = MockKeyValuePersistentStorage.withDataSet(initial);
+    KeyValueStore             subject = new KeyValueStore(storage);
+
+    subject.beginWrite().putInteger("b", 2).apply();
+    subject.beginWrite().remove("a").commit();
+
+    assertFalse(storage.getDataSet().containsKey("a"));
+    assertEquals(2, storage.getDataSet().getInteger("b", 0));
+    assertFalse(subject.containsKey("a"));
+  }
+
+  @Test
+  public void apply_whileStorageIsBusy_mergesPendingWritesIntoOneTransaction() throws InterruptedException {
+    BlockingStorage storage = new BlockingStorage();
+    KeyValueStore   subject = new KeyValueStore(storage);
+
+    subject.beginWrite().putLong("first", 1).apply();
+    storage.started.await();
+
+    subject.beginWrite().putLong("a", 1).putLong("b", 1).apply();
+    subject.beginWrite().remove("a").apply();
+    subject.beginWrite().putLong("b", 2).putLong("c", 3).apply();
+    subject.beginWrite().remove("c").apply();
+    subject.beginWrite().putLong("c", 4).apply();
+
+    storage.release.countDown();
+    subject.blockUntilAllWritesFinished();
+
+    assertEquals(2, storage.writes.size());
+
+    KeyValueDataSet merged = storage.writes.get(1);
+    assertEquals(2, merged.getLong("b", 0));
+    assertEquals(4, merged.getLong("c", 0));
+    assertFalse(merged.containsKey("a"));
+    assertEquals(setOf("a"), storage.removes.get(1));
+
+    assertFalse(subject.containsKey("a"));
+    assertEquals(2, subject.getLong("b", 0));
+    assertEquals(4, subject.getLong("c", 0));
+  }
+
+  @Test
+  public void read_whileStorageIsBusy_doesNotWait() throws InterruptedException {
+    BlockingStorage storage = new BlockingStorage();
+    KeyValueStore   subject = new KeyValueStore(storage);
+
+    subject.beginWrite().putBoolean("flag", true).apply();
+    storage.started.await();
+
+    assertTrue(subject.getBoolean("flag", false));
+
+    storage.release.countDown();
+    subject.blockUntilAllWritesFinished();
+  }
+
+  private static @NonNull Set<String> setOf(String... values) {
+    Set<String> set = new HashSet<>();
+    for (String value : values) {
+      set.add(value);
+    }
+    return set;
+  }
+
+  private static final class BlockingStorage implements KeyValuePersistentStorage {
+
+    private final CountDownLatch        started = new CountDownLatch(1);
+    private final CountDownLatch        release = new CountDownLatch(1);
+    private final List<KeyValueDataSet> writes  = new ArrayList<>();
+    private final List<Set<String>>     removes = new ArrayList<>();
+
+    @Override
+    public void writeDataSet(@NonNull KeyValueDataSet dataSet, @NonNull Collection<String> removes) {
+      this.writes.add(dataSet);
+      this.removes.add(new HashSet<>(removes));
+
+      started.countDown();
+
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public @NonNull KeyValueDataSet getDataSet() {
+      return new KeyValueDataSet();
+    }
+  }
+}
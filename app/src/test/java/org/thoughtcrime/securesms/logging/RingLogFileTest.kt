@@ -0,0 +1,156 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.nio.ByteBuffer
+
+class RingLogFileTest {
+
+  @get:Rule
+  val folder = TemporaryFolder()
+
+  private val key = ByteArray(32) { it.toByte() }
+
+  @Test
+  fun `Given a record with multi-byte characters and a trace, when I encode it, then I can read every part back`() {
+    val buffer = ByteBuffer.allocate(1024)
+
+    assertTrue(RingLogRecord.encode(buffer, 1234L, 'W'.code.toByte(), RingLogRecord.FLAG_KEEP_LONGER, 7L, "Tag", "héllo 👋 wörld", "trace line 1\ntrace line 2"))
+
+    assertEquals(buffer.position(), RingLogRecord.length(buffer, 0))
+    assertTrue(RingLogRecord.isValid(buffer, 0, buffer.position()))
+    assertEquals(1234L, RingLogRecord.timestamp(buffer, 0))
+    assertEquals('W', RingLogRecord.level(buffer, 0))
+    assertEquals(RingLogRecord.FLAG_KEEP_LONGER, RingLogRecord.flags(buffer, 0))
+    assertEquals(7L, RingLogRecord.threadId(buffer, 0))
+    assertEquals("Tag", RingLogRecord.tag(buffer, 0))
+    assertEquals("héllo 👋 wörld\ntrace line 1\ntrace line 2", RingLogRecord.message(buffer, 0))
+    assertEquals(3, RingLogRecord.lineCount(buffer, 0))
+  }
+
+  @Test
+  fun `Given a message that is too long, when I encode it, then it is cut off without splitting a character`() {
+    val buffer = ByteBuffer.allocate(RingLogRecord.MAX_RECORD_SIZE)
+    val message = "a" + "é".repeat(RingLogRecord.MAX_MESSAGE_BYTES)
+
+    assertTrue(RingLogRecord.encode(buffer, 0, 'I'.code.toByte(), 0, 0, "Tag", message, null))
+
+    val decoded = RingLogRecord.message(buffer, 0)
+    assertEquals(RingLogRecord.MAX_MESSAGE_BYTES - 1, decoded.toByteArray().size)
+    assertTrue(message.startsWith(decoded))
+  }
+
+  @Test
+  fun `Given a buffer without enough room, when I encode a record, then nothing is written`() {
+    val buffer = ByteBuffer.allocate(32)
+
+    assertFalse(RingLogRecord.encode(buffer, 0, 'I'.code.toByte(), 0, 0, "Tag", "This message does not fit", null))
+    assertEquals(0, buffer.position())
+  }
+
+  @Test
+  fun `Given records synced a few at a time, when I read the chunk, then I get all of them back`() {
+    val file = File(folder.root, "test.ring")
+    val ring = RingLogFile(file, key, 4, "1.0")
+
+    appendRecord(ring, "first")
+    ring.sync()
+    appendRecord(ring, "second")
+    appendRecord(ring, "third")
+    ring.sync()
+
+    assertEquals(listOf("first", "second", "third"), readAll(ring))
+  }
+
+  @Test
+  fun `Given more records than fit, when I read the ring, then only the newest chunks remain in order`() {
+    val file = File(folder.root, "test.ring")
+    val ring = RingLogFile(file, key, 2, "1.0")
+    val message = "x".repeat(1000)
+    val count = 200
+
+    for (i in 0 until count) {
+      appendRecord(ring, "$i $message")
+    }
+    ring.sync()
+
+    val read = readAll(ring).map { it.substringBefore(' ').toInt() }
+
+    assertEquals(count - 1, read.last())
+    assertEquals((read.first()..read.last()).toList(), read)
+    assertTrue(read.size < count)
+    assertEquals(2L * RingLogFile.CHUNK_SIZE, file.length())
+  }
+
+  @Test
+  fun `Given an existing file, when I open it again, then old records are kept and new ones come after them`() {
+    val file = File(folder.root, "test.ring")
+
+    RingLogFile(file, key, 4, "1.0").apply {
+      appendRecord(this, "before")
+      sync()
+    }
+
+    val reopened = RingLogFile(file, key, 4, "1.1")
+    appendRecord(reopened, "after")
+    reopened.sync()
+
+    assertEquals(listOf("before", "after"), readAll(reopened))
+    assertEquals(listOf("1.0", "1.1"), reopened.getChunks().map { it.versionName })
+  }
+
+  @Test
+  fun `Given records, when I clear the ring, then nothing can be read`() {
+    val ring = RingLogFile(File(folder.root, "test.ring"), key, 4, "1.0")
+
+    appendRecord(ring, "gone")
+    ring.sync()
+    ring.clear()
+
+    assertEquals(emptyList<String>(), readAll(ring))
+  }
+
+  @Test
+  fun `Given a different key, when I read the ring, then the records do not decode`() {
+    val file = File(folder.root, "test.ring")
+
+    RingLogFile(file, key, 4, "1.0").apply {
+      appendRecord(this, "secret")
+      sync()
+    }
+
+    assertFalse(file.readBytes().toString(Charsets.ISO_8859_1).contains("secret"))
+    assertEquals(emptyList<String>(), readAll(RingLogFile(file, ByteArray(32), 4, "1.0")))
+  }
+
+  private fun appendRecord(ring: RingLogFile, message: String) {
+    val buffer = ByteBuffer.allocate(RingLogRecord.MAX_RECORD_SIZE)
+    RingLogRecord.encode(buffer, System.currentTimeMillis(), 'I'.code.toByte(), 0, 1, "Test", message, null)
+    ring.append(buffer.array(), 0, buffer.position())
+  }
+
+  private fun readAll(ring: RingLogFile): List<String> {
+    val plaintext = ByteArray(RingLogFile.BODY_SIZE)
+    val buffer = ByteBuffer.wrap(plaintext)
+    val messages = mutableListOf<String>()
+
+    for (chunk in ring.getChunks()) {
+      if (!ring.read(chunk, plaintext)) {
+        continue
+      }
+
+      var offset = 0
+      while (RingLogRecord.isValid(buffer, offset, chunk.length)) {
+        messages += RingLogRecord.message(buffer, offset)
+        offset += RingLogRecord.length(buffer, offset)
+      }
+    }
+
+    return messages
+  }
+}
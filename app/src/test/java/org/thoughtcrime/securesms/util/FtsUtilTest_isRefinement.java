@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class FtsUtilTest_isRefinement {
+
+  @Test
+  public void isRefinement_longerToken() {
+    assertTrue(FtsUtil.isRefinement("hel", "hello"));
+  }
+
+  @Test
+  public void isRefinement_additionalToken() {
+    assertTrue(FtsUtil.isRefinement("hello", "hello wor"));
+  }
+
+  @Test
+  public void isRefinement_sameQuery() {
+    assertTrue(FtsUtil.isRefinement("hello world", "hello world"));
+  }
+
+  @Test
+  public void isRefinement_ignoresCaseAndExtraSpaces() {
+    assertTrue(FtsUtil.isRefinement("Hel", "  hello   World"));
+  }
+
+  @Test
+  public void isRefinement_shorterToken() {
+    assertFalse(FtsUtil.isRefinement("hello", "hel"));
+  }
+
+  @Test
+  public void isRefinement_differentToken() {
+    assertFalse(FtsUtil.isRefinement("hello", "help"));
+  }
+
+  @Test
+  public void isRefinement_removedToken() {
+    assertFalse(FtsUtil.isRefinement("hello world", "hello"));
+  }
+
+  @Test
+  public void isRefinement_emptyPrevious() {
+    assertFalse(FtsUtil.isRefinement("", "hello"));
+  }
+}
@@ -0,0 +1,175 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class StripedLRUCacheTest {
+
+  @Test
+  public void get_countsHitsAndMisses() {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(10, 2);
+
+    subject.put(1, "one");
+
+    assertEquals("one", subject.get(1));
+    assertNull(subject.get(2));
+    assertEquals(1, subject.getHitCount());
+    assertEquals(1, subject.getMissCount());
+  }
+
+  @Test
+  public void putIfAbsent_keepsExistingValue() {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(10, 2);
+
+    assertNull(subject.putIfAbsent(1, "one"));
+    assertEquals("one", subject.putIfAbsent(1, "uno"));
+    assertEquals("one", subject.get(1));
+  }
+
+  @Test
+  public void put_evictsLeastRecentlyUsedInStripe() {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(2, 1);
+
+    subject.put(1, "one");
+    subject.put(2, "two");
+    subject.get(1);
+    subject.put(3, "three");
+
+    assertEquals("one", subject.get(1));
+    assertNull(subject.get(2));
+    assertEquals("three", subject.get(3));
+    assertEquals(2, subject.size());
+    assertEquals(1, subject.getEvictionCount());
+  }
+
+  @Test
+  public void size_neverExceedsMaxSize() {
+    StripedLRUCache<Integer, Integer> subject = new StripedLRUCache<>(64, 16);
+
+    for (int i = 0; i < 1000; i++) {
+      subject.put(i, i);
+    }
+
+    assertEquals(64, subject.size());
+    assertEquals(1000 - 64, subject.getEvictionCount());
+  }
+
+  @Test
+  public void remove_and_clear() {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(10, 4);
+
+    subject.put(1, "one");
+    subject.put(2, "two");
+    subject.remove(1);
+
+    assertNull(subject.get(1));
+    assertEquals(1, subject.size());
+
+    subject.clear();
+
+    assertEquals(0, subject.size());
+  }
+
+  @Test
+  public void alias_pointsAtCurrentValue() {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(10, 4);
+
+    subject.put(1, "one");
+    subject.put(2, "two");
+    subject.alias(2, 1);
+
+    assertSame(subject.get(1), subject.get(2));
+  }
+
+  @Test
+  public void alias_removesWhenKeyIsMissing() {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(10, 4);
+
+    subject.put(2, "two");
+    subject.alias(2, 1);
+
+    assertNull(subject.get(2));
+    assertEquals(0, subject.size());
+  }
+
+  @Test
+  public void alias_concurrentCallsInOppositeDirectionsDoNotDeadlock() throws InterruptedException {
+    StripedLRUCache<Integer, String> subject = new StripedLRUCache<>(100, 4);
+    CountDownLatch                   start   = new CountDownLatch(1);
+    List<Thread>                     threads = new ArrayList<>();
+
+    subject.put(1, "one");
+    subject.put(2, "two");
+
+    for (int i = 0; i < 4; i++) {
+      boolean forward = i % 2 == 0;
+
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        for (int j = 0; j < 10_000; j++) {
+          if (forward) {
+            subject.alias(1, 2);
+          } else {
+            subject.alias(2, 1);
+          }
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join(10_000);
+      assertFalse(thread.isAlive());
+    }
+  }
+
+  @Test
+  public void putIfAbsent_concurrentCallersAgreeOnOneValue() throws InterruptedException {
+    StripedLRUCache<Integer, Object> subject = new StripedLRUCache<>(100, 4);
+    CountDownLatch                   start   = new CountDownLatch(1);
+    AtomicInteger                    added   = new AtomicInteger();
+    List<Thread>                     threads = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+
+        if (subject.putIfAbsent(1, new Object()) == null) {
+          added.incrementAndGet();
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, added.get());
+    assertSame(subject.get(1), subject.get(1));
+  }
+}
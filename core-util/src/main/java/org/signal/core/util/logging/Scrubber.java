@@ -18,6 +18,8 @@
 package org.signal.core.util.logging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import java.util.Arrays;
 import java.util.HashSet;
@@ -89,8 +91,116 @@ public final class Scrubber {
                                                                                 "mobi", "by", "cat", "wiki", "la", "ga", "xxx", "cf", "hr", "ng", "jobs", "online", "kz", "ug", "gq", "ae", "is",
                                                                                 "lv", "pro", "fm", "tips", "ms", "sa", "app"));
 
+  private static final int E164     = 1;
+  private static final int EMAIL    = 1 << 1;
+  private static final int GROUP_V1 = 1 << 2;
+  private static final int GROUP_V2 = 1 << 3;
+  private static final int UUID     = 1 << 4;
+  private static final int DOMAIN   = 1 << 5;
+  private static final int IPV4     = 1 << 6;
+
+  /**
+   * None of the patterns can match across whitespace, and none of the censors add any, so each whitespace-separated
+   * token can be scrubbed on its own with the exact same result as scrubbing the whole line. The line is scanned once,
+   * the patterns are only run over the tokens that {@link #findCandidates(CharSequence, int, int)} says could match, and
+   * the output is only copied once, when the first token actually changes.
+   */
   public static CharSequence scrub(@NonNull CharSequence in) {
+    StringBuilder output     = null;
+    int           length     = in.length();
+    int           tokenStart = 0;
+
+    for (int i = 0; i <= length; i++) {
+      if (i < length && !isRegexWhitespace(in.charAt(i))) {
+        continue;
+      }
+
+      if (i > tokenStart) {
+        int          candidates = findCandidates(in, tokenStart, i);
+        CharSequence scrubbed   = null;
+
+        if (candidates != 0) {
+          CharSequence token = in.subSequence(tokenStart, i);
+          CharSequence out   = scrubToken(token, candidates);
+
+          if (out != token) {
+            scrubbed = out;
+          }
+        }
+
+        if (scrubbed != null && output == null) {
+          output = new StringBuilder(length);
+          output.append(in, 0, tokenStart);
+        }
+
+        if (output != null) {
+          if (scrubbed != null) {
+            output.append(scrubbed);
+          } else {
+            output.append(in, tokenStart, i);
+          }
+        }
+      }
+
+      if (output != null && i < length) {
+        output.append(in.charAt(i));
+      }
+
+      tokenStart = i + 1;
+    }
+
+    return output != null ? output : in;
+  }
+
+  /**
+   * Runs the patterns that could match over a single token, in the same order as {@link #scrubWithEveryPattern(CharSequence)}.
+   * Each pattern sees the output of the ones before it, so the candidates are looked for again whenever one changes it.
+   */
+  private static CharSequence scrubToken(@NonNull CharSequence in, int candidates) {
+    CharSequence out;
+
+    if ((candidates & E164) != 0 && (out = scrubE164(in)) != in) {
+      in         = out;
+      candidates = findCandidates(in);
+    }
 
+    if ((candidates & EMAIL) != 0 && (out = scrubEmail(in)) != in) {
+      in         = out;
+      candidates = findCandidates(in);
+    }
+
+    if ((candidates & GROUP_V1) != 0 && (out = scrubGroupsV1(in)) != in) {
+      in         = out;
+      candidates = findCandidates(in);
+    }
+
+    if ((candidates & GROUP_V2) != 0 && (out = scrubGroupsV2(in)) != in) {
+      in         = out;
+      candidates = findCandidates(in);
+    }
+
+    if ((candidates & UUID) != 0 && (out = scrubUuids(in)) != in) {
+      in         = out;
+      candidates = findCandidates(in);
+    }
+
+    if ((candidates & DOMAIN) != 0 && (out = scrubDomains(in)) != in) {
+      in         = out;
+      candidates = findCandidates(in);
+    }
+
+    if ((candidates & IPV4) != 0) {
+      in = scrubIpv4(in);
+    }
+
+    return in;
+  }
+
+  /**
+   * Runs every pattern, whether or not {@link #findCandidates(CharSequence)} thinks it could match.
+   */
+  @VisibleForTesting
+  static CharSequence scrubWithEveryPattern(@NonNull CharSequence in) {
     in = scrubE164(in);
     in = scrubEmail(in);
     in = scrubGroupsV1(in);
@@ -102,6 +212,77 @@ public final class Scrubber {
     return in;
   }
 
+  /**
+   * Looks over the input once for the characters each pattern can't match without, so that the patterns that can't
+   * possibly match are never run. Most log lines don't need anything scrubbed, and this lets them skip the regexes
+   * entirely.
+   *
+   * A set bit only means that a pattern might match. An unset bit means it definitely won't.
+   */
+  @VisibleForTesting
+  static int findCandidates(@NonNull CharSequence in) {
+    return findCandidates(in, 0, in.length());
+  }
+
+  /**
+   * Same as {@link #findCandidates(CharSequence)}, but only looks at the characters from {@code start} up to {@code end},
+   * as if they were the whole input.
+   */
+  private static int findCandidates(@NonNull CharSequence in, int start, int end) {
+    int candidates = 0;
+    int hexRun     = 0;
+
+    for (int i = start; i < end; i++) {
+      char c = in.charAt(i);
+
+      switch (c) {
+        case '+':
+          if (digitRun(in, i + 1, end) >= 7) {
+            candidates |= E164;
+          }
+          break;
+        case '%':
+          if (i + 2 < end && in.charAt(i + 1) == '2' && in.charAt(i + 2) == 'B' && digitRun(in, i + 3, end) >= 7) {
+            candidates |= E164;
+          }
+          break;
+        case '@':
+          if (i > start && i + 1 < end && !isRegexWhitespace(in.charAt(i + 1))) {
+            candidates |= EMAIL;
+          }
+          break;
+        case '!':
+          if (i > start + 1 && in.charAt(i - 1) == '_' && in.charAt(i - 2) == '_') {
+            candidates |= GROUP_V1 | GROUP_V2;
+          }
+          break;
+        case '-':
+          if (hexRun >= 8) {
+            candidates |= UUID;
+          }
+          break;
+        case '.':
+          if (i > start && i + 1 < end) {
+            char before = in.charAt(i - 1);
+            char after  = in.charAt(i + 1);
+
+            if (isAsciiLetterOrDigit(before) && (isAsciiLetterOrDigit(after) || after == '-')) {
+              candidates |= DOMAIN;
+            }
+
+            if (isAsciiDigit(before) && isAsciiDigit(after)) {
+              candidates |= IPV4;
+            }
+          }
+          break;
+      }
+
+      hexRun = isAsciiHex(c) ? hexRun + 1 : 0;
+    }
+
+    return candidates;
+  }
+
   private static CharSequence scrubE164(@NonNull CharSequence in) {
     return scrub(in,
                  E164_PATTERN,
@@ -136,33 +317,23 @@ public final class Scrubber {
   private static CharSequence scrubUuids(@NonNull CharSequence in) {
     return scrub(in,
                  UUID_PATTERN,
-                 (matcher, output) -> {
-                   if (matcher.group(1) != null && !matcher.group(1).isEmpty()) {
-                     output.append(matcher.group(1))
-                           .append(matcher.group(2))
-                           .append(matcher.group(3));
-                   } else {
-                     output.append(UUID_CENSOR)
-                           .append(matcher.group(3));
-                   }
-                 });
+                 matcher -> matcher.group(1) == null || matcher.group(1).isEmpty(),
+                 (matcher, output) -> output.append(UUID_CENSOR)
+                                            .append(matcher.group(3)));
   }
 
   private static CharSequence scrubDomains(@NonNull CharSequence in) {
     return scrub(in,
                  DOMAIN_PATTERN,
-                 (matcher, output) -> {
+                 matcher -> {
                    String match = matcher.group(0);
-                   if (matcher.groupCount() == 2 &&
-                       TOP_100_TLDS.contains(matcher.group(2).toLowerCase(Locale.US)) &&
-                       !match.endsWith("whispersystems.org") &&
-                       !match.endsWith("signal.org")) {
-                     output.append(DOMAIN_CENSOR)
-                           .append(matcher.group(2));
-                   } else {
-                     output.append(match);
-                   }
-                 });
+                   return matcher.groupCount() == 2 &&
+                          TOP_100_TLDS.contains(matcher.group(2).toLowerCase(Locale.US)) &&
+                          !match.endsWith("whispersystems.org") &&
+                          !match.endsWith("signal.org");
+                 },
+                 (matcher, output) -> output.append(DOMAIN_CENSOR)
+                                            .append(matcher.group(2)));
   }
 
   private static CharSequence scrubIpv4(@NonNull CharSequence in) {
@@ -173,12 +344,28 @@ public final class Scrubber {
 
 
   private static CharSequence scrub(@NonNull CharSequence in, @NonNull Pattern pattern, @NonNull ProcessMatch processMatch) {
-    final StringBuilder output  = new StringBuilder(in.length());
+    return scrub(in, pattern, null, processMatch);
+  }
+
+  /**
+   * @param filter Decides which matches are scrubbed. The rest are left as they are, and if none are scrubbed the input
+   *               is returned without being copied.
+   */
+  private static CharSequence scrub(@NonNull CharSequence in, @NonNull Pattern pattern, @Nullable MatchFilter filter, @NonNull ProcessMatch processMatch) {
     final Matcher matcher = pattern.matcher(in);
 
-    int lastEndingPos = 0;
+    StringBuilder output        = null;
+    int           lastEndingPos = 0;
 
     while (matcher.find()) {
+      if (filter != null && !filter.shouldScrub(matcher)) {
+        continue;
+      }
+
+      if (output == null) {
+        output = new StringBuilder(in.length());
+      }
+
       output.append(in, lastEndingPos, matcher.start());
 
       processMatch.scrubMatch(matcher, output);
@@ -186,7 +373,7 @@ public final class Scrubber {
       lastEndingPos = matcher.end();
     }
 
-    if (lastEndingPos == 0) {
+    if (output == null) {
       // there were no matches, save copying all the data
       return in;
     } else {
@@ -196,7 +383,40 @@ public final class Scrubber {
     }
   }
 
+  private static int digitRun(@NonNull CharSequence in, int start, int end) {
+    int i = start;
+
+    while (i < end && isAsciiDigit(in.charAt(i))) {
+      i++;
+    }
+
+    return i - start;
+  }
+
+  /**
+   * Matches {@code \s}, which without {@link Pattern#UNICODE_CHARACTER_CLASS} is narrower than {@link Character#isWhitespace(char)}.
+   */
+  private static boolean isRegexWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private static boolean isAsciiDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static boolean isAsciiHex(char c) {
+    return isAsciiDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+
+  private static boolean isAsciiLetterOrDigit(char c) {
+    return isAsciiDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
   private interface ProcessMatch {
     void scrubMatch(@NonNull Matcher matcher, @NonNull StringBuilder output);
   }
+
+  private interface MatchFilter {
+    boolean shouldScrub(@NonNull Matcher matcher);
+  }
 }
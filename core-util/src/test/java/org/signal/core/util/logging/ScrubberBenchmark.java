@@ -0,0 +1,82 @@
+package org.signal.core.util.logging;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of {@link Scrubber#scrub(CharSequence)} with running every pattern over the whole line, one
+ * after another, on a corpus shaped like a real log: mostly lines with nothing to scrub, some with class names and
+ * dotted versions that look like domains, and a few with identifiers that do need scrubbing. Each round is measured
+ * after a warmup.
+ *
+ * Not run as part of the normal test suite. Remove the {@link Ignore} to run locally.
+ */
+@Ignore("Benchmark, run manually")
+public final class ScrubberBenchmark {
+
+  private static final int ITERATIONS        = 1_000_000;
+  private static final int WARMUP_ITERATIONS = 200_000;
+  private static final int ROUNDS            = 3;
+
+  private static final String[] CORPUS = {
+      "[JobRunner] Job finished with result SUCCESS in 12 ms. (Time Since Submission: 40 ms, Lifespan: Immortal, Run Attempt: 1/Unlimited)",
+      "[WebSocketConnection] onMessage(): Received a keepalive response",
+      "Updated 3 of 4 recipients, took 2 ms",
+      "Connected to websocket, reconnecting in 0 ms",
+      "Finished processing org.thoughtcrime.securesms.jobs.PushProcessMessageJob in 12 ms",
+      "Scheduling job PushDecryptMessageJob (JOB::a37cb654-c9e0-4c1e-93df-3d11ca3c97f4) with constraints []",
+      "[MessageContentProcessor] Beginning message processing. Sender: a37cb654-c9e0-4c1e-93df-3d11ca3c97f4.1",
+      "java.io.IOException: unexpected end of stream on https://storage.signal.org/... at okhttp3.internal.http1.Http1ExchangeCodec.readResponseHeaders(Http1ExchangeCodec.kt:205)",
+      "Sending to +15551234567 and __signal_group__v2__!0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef",
+      "Resolved example.com to 192.168.1.1 for abc@def.com"
+  };
+
+  @Test
+  public void scrubLogCorpus() {
+    for (String line : CORPUS) {
+      assertEquals(Scrubber.scrubWithEveryPattern(line).toString(), Scrubber.scrub(line).toString());
+    }
+
+    for (int round = 0; round < ROUNDS; round++) {
+      double everyPattern = measure(Scrubber::scrubWithEveryPattern);
+      double scrub        = measure(Scrubber::scrub);
+
+      System.out.println(String.format(Locale.US,
+                                       "[round %d] every pattern: %.0f lines/s, scrub: %.0f lines/s (%.2fx)",
+                                       round + 1,
+                                       everyPattern,
+                                       scrub,
+                                       scrub / everyPattern));
+    }
+  }
+
+  private static double measure(Scrub scrub) {
+    int checksum = 0;
+
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      checksum += scrub.scrub(CORPUS[i % CORPUS.length]).length();
+    }
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      checksum += scrub.scrub(CORPUS[i % CORPUS.length]).length();
+    }
+
+    long elapsed = System.nanoTime() - start;
+
+    if (checksum == 0) {
+      throw new AssertionError();
+    }
+
+    return ITERATIONS / (elapsed / 1_000_000_000.0);
+  }
+
+  private interface Scrub {
+    CharSequence scrub(CharSequence in);
+  }
+}
@@ -0,0 +1,68 @@
+package org.signal.core.util.logging;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * {@link Scrubber#scrub(CharSequence)} skips patterns that can't match. Makes sure that never changes the output.
+ */
+public final class ScrubberTest_everyPattern {
+
+  private static final String[] FRAGMENTS = {
+      " ", "\t", "\n", "\u000B", "\u2028", ".", "..", "-", "_", "__", "!", "@", "+", "%2B", "%2b", "/", ":", "JOB::", "*",
+      "0", "1", "7", "25", "255", "192.168.1.1", "3.141", "10.0.0.256",
+      "a", "f", "F", "g", "z", "abc", "Abc", "DEF", "ab12",
+      "com", "org", "xyz", "app", "signal.org", "whispersystems.org", "nl.motorsport.com", "java.net.Socket", "a-b.c-d",
+      "+15551234567", "%2B447700900099", "+155556", "123456789012345",
+      "abc@def.com", "a@b", "@x", "x@ ",
+      "__textsecure_group__!", "__signal_group__v2__!", "000102030405060708090a0b0c0d0e0f",
+      "a37cb654-c9e0-4c1e-93df-3d11ca3c97f4", "A37CB654-C9E0-4C1E-93DF-3D11CA3C97F4", "a37cb654-", "c9e0-",
+      "\u00e9", "\ud83d\ude00", "\u00df", "\u0130"
+  };
+
+  private static final String[] LINES = {
+      "",
+      "Nothing to see here.",
+      "[MessageContentProcessor] Beginning message processing. Sender: a37cb654-c9e0-4c1e-93df-3d11ca3c97f4.1",
+      "Connecting to wss://chat.signal.org/v1/websocket/?login=+15551234567.2 via 10.0.2.2:443",
+      "java.io.IOException: unexpected end of stream on https://cdn2.signal.org/... at okhttp3.internal.http1.Http1ExchangeCodec.readResponseHeaders(Http1ExchangeCodec.kt:205)",
+      "Sent to __signal_group__v2__!0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef, abc@def.com, and JOB::a37cb654-c9e0-4c1e-93df-3d11ca3c97f4",
+      "Processed 1.2.3 of 4.5.6-rc1 on build 12345678-abcd"
+  };
+
+  @Test
+  public void scrub_matchesEveryPattern_forRealisticLines() {
+    for (String line : LINES) {
+      assertEquals(line, Scrubber.scrubWithEveryPattern(line).toString(), Scrubber.scrub(line).toString());
+    }
+  }
+
+  @Test
+  public void scrub_matchesEveryPattern_forRandomLines() {
+    Random random = new Random(42);
+
+    for (int i = 0; i < 50_000; i++) {
+      StringBuilder builder = new StringBuilder();
+      int           count   = random.nextInt(12);
+
+      for (int j = 0; j < count; j++) {
+        builder.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+      }
+
+      String line = builder.toString();
+
+      assertEquals(line, Scrubber.scrubWithEveryPattern(line).toString(), Scrubber.scrub(line).toString());
+    }
+  }
+
+  @Test
+  public void scrub_returnsInputUnchanged_whenNothingNeedsScrubbing() {
+    String line = "Finished processing org.thoughtcrime.securesms.jobs.PushProcessMessageJob in 12 ms";
+
+    assertSame(line, Scrubber.scrub(line));
+  }
+}
@@ -157,6 +157,31 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get());
   }
 
+  /**
+   * Retrieves a SignalServiceAttachment, like {@link #retrieveAttachment(SignalServiceAttachmentPointer, File, long, ProgressListener)},
+   * but decrypts it in the same pass over the download that checks its MAC and digest, rather than reading it twice.
+   *
+   * The output is only published once the MAC and digest have been checked, and is discarded if the download or the
+   * check fails.
+   */
+  public void retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, long maxSizeBytes, ProgressListener listener, AttachmentCipherInputStream.StagedOutput output)
+      throws IOException, InvalidMessageException, MissingConfigurationException {
+    boolean downloaded = false;
+
+    try {
+      if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+      socket.retrieveAttachment(pointer.getCdnNumber(), pointer.getRemoteId(), destination, maxSizeBytes, listener);
+      downloaded = true;
+    } finally {
+      if (!downloaded) {
+        output.discard();
+      }
+    }
+
+    AttachmentCipherInputStream.decryptAttachment(destination, pointer.getSize().orElse(0), pointer.getKey(), pointer.getDigest().get(), output);
+  }
+
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
       throws IOException, InvalidMessageException
   {
@@ -85,6 +85,7 @@ import org.whispersystems.signalservice.api.util.Uint64RangeException;
 import org.whispersystems.signalservice.api.util.Uint64Util;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.api.websocket.WebSocketUnavailableException;
+import org.whispersystems.signalservice.internal.ServiceResponse;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
 import org.whispersystems.signalservice.internal.push.AttachmentV2UploadAttributes;
@@ -124,13 +125,16 @@ import org.whispersystems.signalservice.internal.push.http.CancelationSignal;
 import org.whispersystems.signalservice.internal.push.http.PartialSendCompleteListener;
 import org.whispersystems.signalservice.internal.push.http.ResumableUploadSpec;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.FanOutScheduler;
 import org.whispersystems.util.Base64;
 import org.whispersystems.util.ByteArrayUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -142,11 +146,14 @@ import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
 
+import io.reactivex.rxjava3.core.Single;
+
 /**
  * The main interface for sending Signal Service messages.
  *
@@ -156,7 +163,18 @@ public class SignalServiceMessageSender {
 
   private static final String TAG = SignalServiceMessageSender.class.getSimpleName();
 
-  private static final int RETRY_COUNT = 4;
+  // Visible for testing
+  static final int RETRY_COUNT = 4;
+
+  /** How many sends can be waiting on a response from each websocket at once. */
+  // Visible for testing
+  static final int MAX_IN_FLIGHT_WEBSOCKET_SENDS = 32;
+
+  /** How many fan-out sends can be using REST at once. Matches the connection pool size in {@link PushServiceSocket}. */
+  private static final int MAX_IN_FLIGHT_REST_SENDS = 5;
+
+  /** How often a send that's waiting for a permit checks whether it's been canceled. */
+  private static final long PERMIT_POLL_INTERVAL_MS = 250;
 
   private final PushServiceSocket             socket;
   private final SignalServiceAccountDataStore aciStore;
@@ -173,6 +191,10 @@ public class SignalServiceMessageSender {
   private final ExecutorService executor;
   private final long            maxEnvelopeSize;
 
+  private final Semaphore webSocketSendPermits             = new Semaphore(MAX_IN_FLIGHT_WEBSOCKET_SENDS);
+  private final Semaphore unidentifiedWebSocketSendPermits = new Semaphore(MAX_IN_FLIGHT_WEBSOCKET_SENDS);
+  private final Semaphore restSendPermits                  = new Semaphore(MAX_IN_FLIGHT_REST_SENDS);
+
   public SignalServiceMessageSender(SignalServiceConfiguration urls,
                                     CredentialsProvider credentialsProvider,
                                     SignalServiceDataStore store,
@@ -1684,54 +1706,76 @@ public class SignalServiceMessageSender {
     Log.d(TAG, "[" + timestamp + "] Sending to " + recipients.size() + " recipients.");
     enforceMaxContentSize(content);
 
-    long                                   startTime                  = System.currentTimeMillis();
-    List<Future<SendMessageResult>>        futureResults              = new LinkedList<>();
-    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
-    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
-
-    while (recipientIterator.hasNext()) {
-      SignalServiceAddress         recipient = recipientIterator.next();
-      Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
-      futureResults.add(executor.submit(() -> {
-        SendMessageResult result = sendMessage(recipient, access, timestamp, content, online, cancelationSignal, urgent);
-        if (partialListener != null) {
-          partialListener.onPartialSendComplete(result);
+    long                               startTime = System.currentTimeMillis();
+    List<SignalServiceAddress>         targets   = new ArrayList<>(recipients);
+    List<Optional<UnidentifiedAccess>> access    = new ArrayList<>(unidentifiedAccess);
+    FanOutScheduler<SendMessageResult> scheduler = new FanOutScheduler<>(executor);
+
+    for (int i = 0; i < targets.size(); i++) {
+      SignalServiceAddress         recipient       = targets.get(i);
+      Optional<UnidentifiedAccess> recipientAccess = access.get(i);
+
+      scheduler.submit(callback -> sendMessage(new FanOutScheduler.Callback<SendMessageResult>() {
+        @Override
+        public void onSuccess(SendMessageResult result) {
+          try {
+            if (partialListener != null) {
+              partialListener.onPartialSendComplete(result);
+            }
+            callback.onSuccess(result);
+          } catch (Throwable t) {
+            callback.onFailure(t);
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+          callback.onFailure(error);
         }
-        return result;
-      }));
+      }, recipient, recipientAccess, timestamp, content, online, cancelationSignal, urgent));
     }
 
-    List<SendMessageResult> results = new ArrayList<>(futureResults.size());
-    recipientIterator = recipients.iterator();
+    SendMessageResult[] results = new SendMessageResult[targets.size()];
+
+    while (scheduler.hasPending()) {
+      FanOutScheduler.Completion<SendMessageResult> completion;
 
-    for (Future<SendMessageResult> futureResult : futureResults) {
-      SignalServiceAddress recipient = recipientIterator.next();
       try {
-        results.add(futureResult.get());
+        completion = scheduler.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for sends to complete");
+      }
+
+      int                  index     = completion.getIndex();
+      SignalServiceAddress recipient = targets.get(index);
+
+      try {
+        results[index] = completion.get();
       } catch (ExecutionException e) {
         if (e.getCause() instanceof UntrustedIdentityException) {
           Log.w(TAG, e);
-          results.add(SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) e.getCause()).getIdentityKey()));
+          results[index] = SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) e.getCause()).getIdentityKey());
         } else if (e.getCause() instanceof UnregisteredUserException) {
           Log.w(TAG, "[" + timestamp + "] Found unregistered user.");
-          results.add(SendMessageResult.unregisteredFailure(recipient));
+          results[index] = SendMessageResult.unregisteredFailure(recipient);
         } else if (e.getCause() instanceof PushNetworkException) {
           Log.w(TAG, e);
-          results.add(SendMessageResult.networkFailure(recipient));
+          results[index] = SendMessageResult.networkFailure(recipient);
         } else if (e.getCause() instanceof ServerRejectedException) {
           Log.w(TAG, e);
           throw ((ServerRejectedException) e.getCause());
         } else if (e.getCause() instanceof ProofRequiredException) {
           Log.w(TAG, e);
-          results.add(SendMessageResult.proofRequiredFailure(recipient, (ProofRequiredException) e.getCause()));
+          results[index] = SendMessageResult.proofRequiredFailure(recipient, (ProofRequiredException) e.getCause());
         } else if (e.getCause() instanceof RateLimitException) {
           Log.w(TAG, e);
-          results.add(SendMessageResult.rateLimitFailure(recipient, (RateLimitException) e.getCause()));
+          results[index] = SendMessageResult.rateLimitFailure(recipient, (RateLimitException) e.getCause());
+        } else if (e.getCause() instanceof CancelationException || e.getCause() instanceof InterruptedIOException) {
+          throw (IOException) e.getCause();
         } else {
           throw new IOException(e);
         }
-      } catch (InterruptedException e) {
-        throw new IOException(e);
       }
     }
 
@@ -1751,8 +1795,143 @@ public class SignalServiceMessageSender {
       }
     }
 
-    Log.d(TAG, "[" + timestamp + "] Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send.");
-    return results;
+    // The percentiles are measured from submission, so unlike the average they include time spent waiting for an executor thread and a send permit
+    Log.d(TAG, "[" + timestamp + "] Completed send to " + recipients.size() + " recipients in " + (System.currentTimeMillis() - startTime) + " ms, with an average time of " + Math.round(average) + " ms per send. End-to-end per recipient, including queueing, p50: " + scheduler.getLatencyPercentile(50) + " ms, p99: " + scheduler.getLatencyPercentile(99) + " ms");
+    return new ArrayList<>(Arrays.asList(results));
+  }
+
+  /**
+   * Sends to a single recipient as part of a fan-out. The request goes out over the websocket without holding on to the
+   * executor thread while it waits for the response, so that many sends can be in flight at once over the same
+   * connection. Anything other than a straightforward success or failure is handed to the blocking
+   * {@link #sendMessage(SignalServiceAddress, Optional, long, EnvelopeContent, boolean, CancelationSignal, boolean)},
+   * which knows how to retry.
+   */
+  private void sendMessage(FanOutScheduler.Callback<SendMessageResult> callback,
+                           SignalServiceAddress                        recipient,
+                           Optional<UnidentifiedAccess>                unidentifiedAccess,
+                           long                                        timestamp,
+                           EnvelopeContent                             content,
+                           boolean                                     online,
+                           CancelationSignal                           cancelationSignal,
+                           boolean                                     urgent)
+  {
+    long                    startTime = System.currentTimeMillis();
+    OutgoingPushMessageList messages;
+
+    try {
+      if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+        throw new CancelationException();
+      }
+
+      messages = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online, urgent);
+      logSend(timestamp, messages, content);
+
+      if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+        throw new CancelationException();
+      }
+    } catch (CancelationException e) {
+      callback.onFailure(e);
+      return;
+    } catch (Exception e) {
+      Log.w(TAG, "[sendMessage][" + timestamp + "] Failed to prepare the message, retrying... (" + e.getClass().getSimpleName() + ": " + e.getMessage() + ")");
+      sendMessageBlocking(callback, recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, false, 0);
+      return;
+    }
+
+    Semaphore                                    permits = unidentifiedAccess.isPresent() ? unidentifiedWebSocketSendPermits : webSocketSendPermits;
+    Single<ServiceResponse<SendMessageResponse>> request;
+
+    try {
+      acquireSendPermit(permits, cancelationSignal);
+    } catch (IOException e) {
+      callback.onFailure(e);
+      return;
+    }
+
+    try {
+      request = messagingService.send(messages, unidentifiedAccess);
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+
+    request.subscribe(response -> {
+      permits.release();
+      executor.execute(() -> {
+        try {
+          SendMessageResponse sendResponse = new MessagingService.SendResponseProcessor<>(response).getResultOrThrow();
+          callback.onSuccess(SendMessageResult.success(recipient, messages.getDevices(), sendResponse.sentUnidentified(), sendResponse.getNeedsSync() || aciStore.isMultiDevice(), System.currentTimeMillis() - startTime, content.getContent()));
+        } catch (InvalidUnidentifiedAccessHeaderException | UnregisteredUserException e) {
+          callback.onFailure(e);
+        } catch (MismatchedDevicesException e) {
+          Log.w(TAG, "[sendMessage][" + timestamp + "] Handling mismatched devices. (" + e.getMessage() + ")");
+          try {
+            handleMismatchedDevices(socket, recipient, e.getMismatchedDevices());
+          } catch (Throwable t) {
+            callback.onFailure(t);
+            return;
+          }
+          // The pipelined attempt counts against the retries, same as a 409 would in the blocking send
+          sendMessageBlocking(callback, recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, false, 1);
+        } catch (StaleDevicesException e) {
+          Log.w(TAG, "[sendMessage][" + timestamp + "] Handling stale devices. (" + e.getMessage() + ")");
+          handleStaleDevices(recipient, e.getStaleDevices());
+          sendMessageBlocking(callback, recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, false, 1);
+        } catch (IOException e) {
+          Log.w(TAG, "[sendMessage][" + timestamp + "] " + (unidentifiedAccess.isPresent() ? "Unidentified pipe" : "Pipe") + " failed, falling back... (" + e.getClass().getSimpleName() + ": " + e.getMessage() + ")");
+          sendMessageBlocking(callback, recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, true, 0);
+        } catch (Throwable t) {
+          callback.onFailure(t);
+        }
+      });
+    }, error -> {
+      permits.release();
+      executor.execute(() -> sendMessageBlocking(callback, recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, true, 0));
+    });
+  }
+
+  private void sendMessageBlocking(FanOutScheduler.Callback<SendMessageResult> callback,
+                                   SignalServiceAddress                        recipient,
+                                   Optional<UnidentifiedAccess>                unidentifiedAccess,
+                                   long                                        timestamp,
+                                   EnvelopeContent                             content,
+                                   boolean                                     online,
+                                   CancelationSignal                           cancelationSignal,
+                                   boolean                                     urgent,
+                                   boolean                                     skipWebSocket,
+                                   int                                         firstAttempt)
+  {
+    try {
+      callback.onSuccess(sendMessage(recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, skipWebSocket, firstAttempt, restSendPermits));
+    } catch (Throwable t) {
+      callback.onFailure(t);
+    }
+  }
+
+  /**
+   * Waits for a permit without ignoring interrupts or the cancelation signal, so that a send that's stuck behind others
+   * doesn't hold up shutting down the executor or canceling the job.
+   */
+  private static void acquireSendPermit(Semaphore permits, CancelationSignal cancelationSignal) throws IOException {
+    try {
+      while (!permits.tryAcquire(PERMIT_POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+          throw new CancelationException();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send");
+    }
+  }
+
+  private void logSend(long timestamp, OutgoingPushMessageList messages, EnvelopeContent content) {
+    if (content.getContent().isPresent() && content.getContent().get().getSyncMessage() != null && content.getContent().get().getSyncMessage().hasSent()) {
+      Log.d(TAG, "[sendMessage][" + timestamp + "] Sending a sent sync message to devices: " + messages.getDevices());
+    } else if (content.getContent().isPresent() && content.getContent().get().hasSenderKeyDistributionMessage()) {
+      Log.d(TAG, "[sendMessage][" + timestamp + "] Sending a SKDM to " + messages.getDestination() + " for devices: " + messages.getDevices() + (content.getContent().get().getDataMessage() != null ? " (it's piggy-backing on a DataMessage)" : ""));
+    }
   }
 
   private SendMessageResult sendMessage(SignalServiceAddress         recipient,
@@ -1763,12 +1942,34 @@ public class SignalServiceMessageSender {
                                         CancelationSignal            cancelationSignal,
                                         boolean                      urgent)
       throws UntrustedIdentityException, IOException
+  {
+    return sendMessage(recipient, unidentifiedAccess, timestamp, content, online, cancelationSignal, urgent, false, 0, null);
+  }
+
+  /**
+   * @param skipWebSocket True if the message was just sent over the websocket and that failed, so the first attempt
+   *                      should go straight to REST.
+   * @param firstAttempt  How many attempts have already been made, so that a send picked up from the pipelined fan-out
+   *                      doesn't get more than {@link #RETRY_COUNT} in total.
+   * @param restPermits   Limits how many sends from the same fan-out can use REST at once, or null for a send on its own.
+   */
+  private SendMessageResult sendMessage(SignalServiceAddress         recipient,
+                                        Optional<UnidentifiedAccess> unidentifiedAccess,
+                                        long                         timestamp,
+                                        EnvelopeContent              content,
+                                        boolean                      online,
+                                        CancelationSignal            cancelationSignal,
+                                        boolean                      urgent,
+                                        boolean                      skipWebSocket,
+                                        int                          firstAttempt,
+                                        Semaphore                    restPermits)
+      throws UntrustedIdentityException, IOException
   {
     enforceMaxContentSize(content);
 
     long startTime = System.currentTimeMillis();
 
-    for (int i = 0; i < RETRY_COUNT; i++) {
+    for (int i = firstAttempt; i < RETRY_COUNT; i++) {
       if (cancelationSignal != null && cancelationSignal.isCanceled()) {
         throw new CancelationException();
       }
@@ -1776,17 +1977,15 @@ public class SignalServiceMessageSender {
       try {
         OutgoingPushMessageList messages = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online, urgent);
 
-        if (content.getContent().isPresent() && content.getContent().get().getSyncMessage() != null && content.getContent().get().getSyncMessage().hasSent()) {
-          Log.d(TAG, "[sendMessage][" + timestamp + "] Sending a sent sync message to devices: " + messages.getDevices());
-        } else if (content.getContent().isPresent() && content.getContent().get().hasSenderKeyDistributionMessage()) {
-          Log.d(TAG, "[sendMessage][" + timestamp + "] Sending a SKDM to " + messages.getDestination() + " for devices: " + messages.getDevices() + (content.getContent().get().getDataMessage() != null ? " (it's piggy-backing on a DataMessage)" : ""));
-        }
+        logSend(timestamp, messages, content);
 
         if (cancelationSignal != null && cancelationSignal.isCanceled()) {
           throw new CancelationException();
         }
 
-        if (!unidentifiedAccess.isPresent()) {
+        if (skipWebSocket && i == firstAttempt) {
+          Log.i(TAG, "[sendMessage][" + timestamp + "] Skipping the pipe, as it just failed.");
+        } else if (!unidentifiedAccess.isPresent()) {
           try {
             SendMessageResponse response = new MessagingService.SendResponseProcessor<>(messagingService.send(messages, Optional.empty()).blockingGet()).getResultOrThrow();
             return SendMessageResult.success(recipient, messages.getDevices(), response.sentUnidentified(), response.getNeedsSync() || aciStore.isMultiDevice(), System.currentTimeMillis() - startTime, content.getContent());
@@ -1821,7 +2020,18 @@ public class SignalServiceMessageSender {
           throw new CancelationException();
         }
 
-        SendMessageResponse response = socket.sendMessage(messages, unidentifiedAccess);
+        SendMessageResponse response;
+
+        if (restPermits != null) {
+          acquireSendPermit(restPermits, cancelationSignal);
+          try {
+            response = socket.sendMessage(messages, unidentifiedAccess);
+          } finally {
+            restPermits.release();
+          }
+        } else {
+          response = socket.sendMessage(messages, unidentifiedAccess);
+        }
 
         return SendMessageResult.success(recipient, messages.getDevices(), response.sentUnidentified(), response.getNeedsSync() || aciStore.isMultiDevice(), System.currentTimeMillis() - startTime, content.getContent());
 
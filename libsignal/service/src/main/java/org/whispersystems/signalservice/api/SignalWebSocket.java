@@ -13,6 +13,8 @@ import org.whispersystems.signalservice.internal.websocket.WebsocketResponse;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeoutException;
 
@@ -244,18 +246,7 @@ public final class SignalWebSocket {
       WebSocketResponseMessage response = createWebSocketResponse(request);
       try {
         if (isSignalServiceEnvelope(request)) {
-          Optional<String> timestampHeader = findHeader(request);
-          long             timestamp       = 0;
-
-          if (timestampHeader.isPresent()) {
-            try {
-              timestamp = Long.parseLong(timestampHeader.get());
-            } catch (NumberFormatException e) {
-              Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
-            }
-          }
-
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+          SignalServiceEnvelope envelope = toEnvelope(request);
 
           callback.onMessage(envelope);
           return Optional.of(envelope);
@@ -268,6 +259,78 @@ public final class SignalWebSocket {
     }
   }
 
+  /**
+   * <p>
+   * A blocking call that reads a batch of messages off the pipe. It waits for the first message like
+   * {@link #readOrEmpty(long, MessageReceivedCallback)}, and then reads ahead up to {@code maxBatchSize} messages that
+   * have already been received, without waiting for more.
+   * <p>
+   * The whole batch is passed to the callback at once. The acknowledgements for the batch are sent back-to-back once the
+   * callback returns, so the callback can write all of the messages to durable storage in one go before any of them are
+   * acknowledged.
+   * <p>
+   * The same caveat about the empty response as {@link #readOrEmpty(long, MessageReceivedCallback)} applies.
+   *
+   * @param timeout      The timeout to wait for the first message.
+   * @param maxBatchSize The maximum number of messages to pass to the callback at once.
+   * @param callback     A callback that will be called with the messages before their receipt is acknowledged to the
+   *                     server. Not called if no messages were read.
+   * @return True if the server indicated that there are no more queued messages, otherwise false.
+   */
+  @SuppressWarnings("DuplicateThrows")
+  public boolean readBatchOrEmpty(long timeout, int maxBatchSize, MessageBatchReceivedCallback callback)
+      throws TimeoutException, WebSocketUnavailableException, IOException
+  {
+    WebSocketConnection            connection = getWebSocket();
+    List<SignalServiceEnvelope>    envelopes  = new ArrayList<>(maxBatchSize);
+    List<WebSocketResponseMessage> responses  = new ArrayList<>(maxBatchSize);
+    boolean                        empty      = false;
+
+    try {
+      WebSocketRequestMessage request = connection.readRequest(timeout);
+
+      while (request != null) {
+        responses.add(createWebSocketResponse(request));
+
+        if (isSignalServiceEnvelope(request)) {
+          envelopes.add(toEnvelope(request));
+        } else if (isSocketEmptyRequest(request)) {
+          empty = true;
+          break;
+        }
+
+        if (envelopes.size() >= maxBatchSize) {
+          break;
+        }
+
+        request = connection.readRequestIfAvailable().orElse(null);
+      }
+
+      if (envelopes.size() > 0) {
+        callback.onMessages(envelopes);
+      }
+    } finally {
+      connection.sendResponses(responses);
+    }
+
+    return empty;
+  }
+
+  private static SignalServiceEnvelope toEnvelope(WebSocketRequestMessage request) {
+    Optional<String> timestampHeader = findHeader(request);
+    long             timestamp       = 0;
+
+    if (timestampHeader.isPresent()) {
+      try {
+        timestamp = Long.parseLong(timestampHeader.get());
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
+      }
+    }
+
+    return new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+  }
+
   private static boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
     return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
   }
@@ -316,4 +379,12 @@ public final class SignalWebSocket {
   public interface MessageReceivedCallback {
     void onMessage(SignalServiceEnvelope envelope);
   }
+
+  /**
+   * For receiving a callback when a batch of new messages has been
+   * received.
+   */
+  public interface MessageBatchReceivedCallback {
+    void onMessages(List<SignalServiceEnvelope> envelopes);
+  }
 }
@@ -18,6 +18,7 @@ import java.io.FileInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
@@ -45,11 +46,14 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
 
-  private Cipher  cipher;
-  private boolean done;
-  private long    totalDataSize;
-  private long    totalRead;
-  private byte[]  overflowBuffer;
+  private Cipher                  cipher;
+  private boolean                 done;
+  private long                    totalDataSize;
+  private long                    totalRead;
+  private byte[]                  overflowBuffer;
+  private MacVerifyingInputStream verifier;
+  private long                    plaintextLength;
+  private long                    plaintextRead;
 
   public static InputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -85,6 +89,72 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Like {@link #createForAttachment(File, long, byte[], byte[])}, but reads the file only once, checking the MAC and
+   * digest as it decrypts rather than in a separate pass up front.
+   *
+   * The plaintext is written to the output's staging stream as it's decrypted. The output is only published once the
+   * MAC and digest have been checked, and is discarded if anything fails, so nothing unverified is ever released.
+   */
+  public static void decryptAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, StagedOutput output)
+      throws InvalidMessageException, IOException
+  {
+    boolean published = false;
+
+    try (InputStream inputStream = createStreamingForAttachment(file, plaintextLength, combinedKeyMaterial, digest)) {
+      OutputStream staging = output.getStagingStream();
+      byte[]       buffer  = new byte[8192];
+      int          read;
+
+      while ((read = inputStream.read(buffer)) != -1) {
+        staging.write(buffer, 0, read);
+      }
+
+      output.publish();
+      published = true;
+    } catch (IOException e) {
+      if (e.getCause() instanceof InvalidMacException) {
+        throw new InvalidMessageException(e.getCause());
+      }
+
+      throw e;
+    } finally {
+      if (!published) {
+        output.discard();
+      }
+    }
+  }
+
+  /**
+   * A bad MAC or digest is reported as an {@link IOException} from the read that would otherwise reach the end of the
+   * stream, so nothing read from it can be trusted until the end of the stream has been seen.
+   */
+  private static InputStream createStreamingForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac      mac   = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      if (digest == null) {
+        throw new InvalidMacException("Missing digest!");
+      }
+
+      MacVerifyingInputStream verifier = new MacVerifyingInputStream(new FileInputStream(file), file.length(), mac, digest);
+
+      return new AttachmentCipherInputStream(verifier, parts[0], file.length() - BLOCK_SIZE - mac.getMacLength(), plaintextLength);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    } catch (InvalidMacException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
   public static InputStream createForStickerData(byte[] data, byte[] packKey)
       throws InvalidMessageException, IOException
   {
@@ -112,9 +182,23 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
       throws IOException
+  {
+    this(inputStream, cipherKey, totalDataSize, 0);
+  }
+
+  /**
+   * @param plaintextLength Only used when verifying as we go, to know where the padding starts. If the input is a
+   *                        {@link MacVerifyingInputStream}, the MAC is checked before the last of the plaintext is
+   *                        returned.
+   */
+  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize, long plaintextLength)
+      throws IOException
   {
     super(inputStream);
 
+    this.verifier        = inputStream instanceof MacVerifyingInputStream ? (MacVerifyingInputStream) inputStream : null;
+    this.plaintextLength = plaintextLength;
+
     try {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
@@ -148,9 +232,37 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if      (totalRead != totalDataSize) return readIncremental(buffer, offset, length);
-    else if (!done)                      return readFinal(buffer, offset, length);
-    else                                 return -1;
+    if (verifier == null || plaintextLength <= 0) {
+      return readDecrypted(buffer, offset, length);
+    }
+
+    if (plaintextRead >= plaintextLength) {
+      verifier.verify();
+      return -1;
+    }
+
+    int read = readDecrypted(buffer, offset, (int) Math.min(length, plaintextLength - plaintextRead));
+
+    if (read > 0) {
+      plaintextRead += read;
+    }
+
+    if (plaintextRead >= plaintextLength) {
+      verifier.verify();
+    }
+
+    return read;
+  }
+
+  private int readDecrypted(byte[] buffer, int offset, int length) throws IOException {
+    if (totalRead != totalDataSize) {
+      return readIncremental(buffer, offset, length);
+    } else if (!done) {
+      if (verifier != null) verifier.verify();
+      return readFinal(buffer, offset, length);
+    } else {
+      return -1;
+    }
   }
 
   @Override
@@ -281,4 +393,116 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       else                		           return;
     }
   }
+
+  /**
+   * Somewhere to decrypt into that nothing else can see until it's published, like a temporary file that's renamed
+   * into place.
+   */
+  public interface StagedOutput {
+    /**
+     * @return Where unverified plaintext is written.
+     */
+    OutputStream getStagingStream() throws IOException;
+
+    /**
+     * Called once everything has been written and the MAC and digest have been checked.
+     */
+    void publish() throws IOException;
+
+    /**
+     * Called instead of {@link #publish()} if anything fails. Everything that was written has to be thrown away.
+     */
+    void discard();
+  }
+
+  /**
+   * Passes the IV and ciphertext through while feeding them to the MAC and digest, stopping short of the MAC at the
+   * end of the file. {@link #verify()} then reads the MAC and checks both.
+   */
+  private static final class MacVerifyingInputStream extends FilterInputStream {
+
+    private final Mac           mac;
+    private final MessageDigest digest;
+    private final byte[]        theirDigest;
+
+    private long    remainingData;
+    private boolean verified;
+
+    private MacVerifyingInputStream(InputStream inputStream, long length, Mac mac, byte[] theirDigest) {
+      super(inputStream);
+
+      try {
+        this.mac           = mac;
+        this.digest        = MessageDigest.getInstance("SHA256");
+        this.theirDigest   = theirDigest;
+        this.remainingData = length - mac.getMacLength();
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return (read == -1) ? -1 : ((int) buffer[0]) & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (remainingData == 0) {
+        return -1;
+      }
+
+      int read = super.read(buffer, offset, (int) Math.min(length, remainingData));
+
+      if (read > 0) {
+        mac.update(buffer, offset, read);
+        digest.update(buffer, offset, read);
+        remainingData -= read;
+      }
+
+      return read;
+    }
+
+    @Override
+    public long skip(long byteCount) throws IOException {
+      throw new IOException("Skipping would bypass the MAC!");
+    }
+
+    /**
+     * Reads whatever is left of the ciphertext, followed by the MAC, and checks the MAC and digest. Only does the work
+     * the first time it's called.
+     */
+    void verify() throws IOException {
+      if (verified) {
+        return;
+      }
+
+      byte[] buffer = new byte[4096];
+
+      while (remainingData > 0) {
+        if (read(buffer, 0, buffer.length) == -1) {
+          throw new IOException("Stream ended early!");
+        }
+      }
+
+      byte[] ourMac   = mac.doFinal();
+      byte[] theirMac = new byte[mac.getMacLength()];
+      Util.readFully(in, theirMac);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac)) {
+        throw new IOException(new InvalidMacException("MAC doesn't match!"));
+      }
+
+      byte[] ourDigest = digest.digest(theirMac);
+
+      if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+        throw new IOException(new InvalidMacException("Digest doesn't match!"));
+      }
+
+      verified = true;
+    }
+  }
 }
@@ -0,0 +1,554 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.libsignal.protocol.logging.Log;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.local.DecryptedApproveMember;
+import org.signal.storageservice.protos.groups.local.DecryptedBannedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.storageservice.protos.groups.local.DecryptedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedModifyMemberRole;
+import org.signal.storageservice.protos.groups.local.DecryptedPendingMember;
+import org.signal.storageservice.protos.groups.local.DecryptedPendingMemberRemoval;
+import org.signal.storageservice.protos.groups.local.DecryptedRequestingMember;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Applies {@link DecryptedGroupChange}s to {@link DecryptedGroup}s.
+ * <p>
+ * The member, pending, requesting and banned lists are indexed by uuid, so each action in a change is a hash lookup
+ * rather than a scan of the list it acts on. When a run of changes is applied in order, each to the group returned for
+ * the one before, the indexes are carried over from one change to the next instead of being rebuilt.
+ * <p>
+ * The result is always the same as {@link DecryptedGroupUtil#applyWithoutRevisionCheck}.
+ * <p>
+ * Not thread safe.
+ */
+public final class DecryptedGroupApplier {
+
+  private static final String TAG = DecryptedGroupApplier.class.getSimpleName();
+
+  private DecryptedGroup                          group;
+  private IndexedList<DecryptedMember>            members;
+  private IndexedList<DecryptedPendingMember>     pendingMembers;
+  private IndexedList<DecryptedRequestingMember>  requestingMembers;
+  private IndexedList<DecryptedBannedMember>      bannedMembers;
+
+  public DecryptedGroup apply(DecryptedGroup group, DecryptedGroupChange change)
+      throws NotAbleToApplyGroupV2ChangeException
+  {
+    if (change.getRevision() != group.getRevision() + 1) {
+      throw new NotAbleToApplyGroupV2ChangeException();
+    }
+
+    return applyWithoutRevisionCheck(group, change);
+  }
+
+  public DecryptedGroup applyWithoutRevisionCheck(DecryptedGroup group, DecryptedGroupChange change)
+      throws NotAbleToApplyGroupV2ChangeException
+  {
+    if (group != this.group) {
+      index(group);
+    }
+
+    this.group = null;
+
+    applyAddMemberAction(change.getNewMembersList());
+
+    applyDeleteMemberActions(change.getDeleteMembersList());
+
+    applyModifyMemberRoleActions(change.getModifyMemberRolesList());
+
+    applyModifyMemberProfileKeyActions(change.getModifiedProfileKeysList());
+
+    applyAddPendingMemberActions(change.getNewPendingMembersList());
+
+    applyDeletePendingMemberActions(change.getDeletePendingMembersList());
+
+    applyPromotePendingMemberActions(change.getPromotePendingMembersList());
+
+    applyAddRequestingMembers(change.getNewRequestingMembersList());
+
+    applyDeleteRequestingMembers(change.getDeleteRequestingMembersList());
+
+    applyPromoteRequestingMemberActions(change.getPromoteRequestingMembersList());
+
+    applyAddBannedMembersActions(change.getNewBannedMembersList());
+
+    applyDeleteBannedMembersActions(change.getDeleteBannedMembersList());
+
+    applyPromotePendingPniAciMemberActions(change.getPromotePendingPniAciMembersList());
+
+    DecryptedGroup.Builder builder = DecryptedGroup.newBuilder(group)
+                                                   .setRevision(change.getRevision());
+
+    DecryptedGroupUtil.applyModifyTitleAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyDescriptionAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyIsAnnouncementGroupAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyAvatarAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyDisappearingMessagesTimerAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyAttributesAccessControlAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyMembersAccessControlAction(builder, change);
+
+    DecryptedGroupUtil.applyModifyAddFromInviteLinkAccessControlAction(builder, change);
+
+    DecryptedGroupUtil.applyInviteLinkPassword(builder, change);
+
+    if (members.takeModified()) {
+      builder.clearMembers().addAllMembers(members.toList());
+    }
+
+    if (pendingMembers.takeModified()) {
+      builder.clearPendingMembers().addAllPendingMembers(pendingMembers.toList());
+    }
+
+    if (requestingMembers.takeModified()) {
+      builder.clearRequestingMembers().addAllRequestingMembers(requestingMembers.toList());
+    }
+
+    if (bannedMembers.takeModified()) {
+      builder.clearBannedMembers().addAllBannedMembers(bannedMembers.toList());
+    }
+
+    this.group = builder.build();
+
+    return this.group;
+  }
+
+  private void index(DecryptedGroup group) {
+    members           = new IndexedList<>(group.getMembersList(), DecryptedMember::getUuid);
+    pendingMembers    = new IndexedList<>(group.getPendingMembersList(), DecryptedPendingMember::getUuidCipherText, DecryptedPendingMember::getUuid);
+    requestingMembers = new IndexedList<>(group.getRequestingMembersList(), DecryptedRequestingMember::getUuid);
+    bannedMembers     = new IndexedList<>(group.getBannedMembersList(), DecryptedBannedMember::getUuid);
+  }
+
+  private void applyAddMemberAction(List<DecryptedMember> newMembersList) {
+    if (newMembersList.isEmpty()) return;
+
+    if (members.hasDuplicates()) {
+      LinkedHashMap<ByteString, DecryptedMember> deduplicated = new LinkedHashMap<>();
+
+      for (DecryptedMember member : members.toList()) {
+        deduplicated.put(member.getUuid(), member);
+      }
+
+      for (DecryptedMember member : newMembersList) {
+        deduplicated.put(member.getUuid(), member);
+      }
+
+      members.reset(new ArrayList<>(deduplicated.values()));
+    } else {
+      for (DecryptedMember member : newMembersList) {
+        int index = members.indexOf(0, member.getUuid());
+
+        if (index == -1) {
+          members.add(member);
+        } else {
+          members.set(index, member);
+        }
+      }
+    }
+
+    removePendingAndRequestingMembersNowInGroup();
+  }
+
+  private void applyDeleteMemberActions(List<ByteString> deleteMembersList) {
+    for (ByteString removedMember : deleteMembersList) {
+      int index = members.indexOf(0, removedMember);
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted member on change not found in group");
+        continue;
+      }
+
+      members.remove(index);
+    }
+  }
+
+  private void applyModifyMemberRoleActions(List<DecryptedModifyMemberRole> modifyMemberRolesList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedModifyMemberRole modifyMemberRole : modifyMemberRolesList) {
+      int index = members.indexOf(0, modifyMemberRole.getUuid());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      Member.Role role = modifyMemberRole.getRole();
+
+      ensureKnownRole(role);
+
+      members.set(index, DecryptedMember.newBuilder(members.get(index))
+                                        .setRole(role)
+                                        .build());
+    }
+  }
+
+  private void applyModifyMemberProfileKeyActions(List<DecryptedMember> modifiedProfileKeysList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedMember modifyProfileKey : modifiedProfileKeysList) {
+      int index = members.indexOf(0, modifyProfileKey.getUuid());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      members.set(index, DecryptedMember.newBuilder(members.get(index))
+                                        .setProfileKey(modifyProfileKey.getProfileKey())
+                                        .build());
+    }
+  }
+
+  private void applyAddPendingMemberActions(List<DecryptedPendingMember> newPendingMembersList) throws NotAbleToApplyGroupV2ChangeException {
+    List<DecryptedPendingMember> toAdd = new ArrayList<>(newPendingMembersList.size());
+
+    for (DecryptedPendingMember pendingMember : newPendingMembersList) {
+      if (members.contains(0, pendingMember.getUuid())) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      if (!pendingMembers.contains(0, pendingMember.getUuidCipherText())) {
+        toAdd.add(pendingMember);
+      }
+    }
+
+    for (DecryptedPendingMember pendingMember : toAdd) {
+      pendingMembers.add(pendingMember);
+    }
+  }
+
+  private void applyDeletePendingMemberActions(List<DecryptedPendingMemberRemoval> deletePendingMembersList) {
+    for (DecryptedPendingMemberRemoval removedMember : deletePendingMembersList) {
+      int index = pendingMembers.indexOf(0, removedMember.getUuidCipherText());
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted pending member on change not found in group");
+        continue;
+      }
+
+      pendingMembers.remove(index);
+    }
+  }
+
+  private void applyPromotePendingMemberActions(List<DecryptedMember> promotePendingMembersList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedMember newMember : promotePendingMembersList) {
+      int index = pendingMembers.indexOf(1, newMember.getUuid());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      pendingMembers.remove(index);
+      members.add(newMember);
+    }
+  }
+
+  private void applyAddRequestingMembers(List<DecryptedRequestingMember> newRequestingMembers) {
+    for (DecryptedRequestingMember requestingMember : newRequestingMembers) {
+      requestingMembers.add(requestingMember);
+    }
+  }
+
+  private void applyDeleteRequestingMembers(List<ByteString> deleteRequestingMembersList) {
+    for (ByteString removedMember : deleteRequestingMembersList) {
+      int index = requestingMembers.indexOf(0, removedMember);
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted member on change not found in group");
+        continue;
+      }
+
+      requestingMembers.remove(index);
+    }
+  }
+
+  private void applyPromoteRequestingMemberActions(List<DecryptedApproveMember> promoteRequestingMembers) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedApproveMember approvedMember : promoteRequestingMembers) {
+      int index = requestingMembers.indexOf(0, approvedMember.getUuid());
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted member on change not found in group");
+        continue;
+      }
+
+      DecryptedRequestingMember requestingMember = requestingMembers.get(index);
+      Member.Role               role             = approvedMember.getRole();
+
+      ensureKnownRole(role);
+
+      requestingMembers.remove(index);
+      members.add(DecryptedMember.newBuilder()
+                                 .setUuid(approvedMember.getUuid())
+                                 .setProfileKey(requestingMember.getProfileKey())
+                                 .setRole(role)
+                                 .build());
+    }
+  }
+
+  private void applyAddBannedMembersActions(List<DecryptedBannedMember> newBannedMembersList) {
+    List<DecryptedBannedMember> toAdd = new ArrayList<>(newBannedMembersList.size());
+
+    for (DecryptedBannedMember member : newBannedMembersList) {
+      if (bannedMembers.contains(0, member.getUuid())) {
+        Log.w(TAG, "Banned member already in banned list");
+      } else {
+        toAdd.add(member);
+      }
+    }
+
+    for (DecryptedBannedMember member : toAdd) {
+      bannedMembers.add(member);
+    }
+  }
+
+  private void applyDeleteBannedMembersActions(List<DecryptedBannedMember> deleteMembersList) {
+    for (DecryptedBannedMember removedMember : deleteMembersList) {
+      int index = bannedMembers.indexOf(0, removedMember.getUuid());
+
+      if (index == -1) {
+        Log.w(TAG, "Deleted banned member on change not found in banned list");
+        continue;
+      }
+
+      bannedMembers.remove(index);
+    }
+  }
+
+  private void applyPromotePendingPniAciMemberActions(List<DecryptedMember> promotePendingPniAciMembersList) throws NotAbleToApplyGroupV2ChangeException {
+    for (DecryptedMember newMember : promotePendingPniAciMembersList) {
+      int index = pendingMembers.indexOf(1, newMember.getPni());
+
+      if (index == -1) {
+        throw new NotAbleToApplyGroupV2ChangeException();
+      }
+
+      pendingMembers.remove(index);
+      members.add(newMember);
+    }
+  }
+
+  private void removePendingAndRequestingMembersNowInGroup() {
+    for (int i = pendingMembers.capacity() - 1; i >= 0; i--) {
+      DecryptedPendingMember pendingMember = pendingMembers.get(i);
+      if (pendingMember != null && members.contains(0, pendingMember.getUuid())) {
+        pendingMembers.remove(i);
+      }
+    }
+
+    for (int i = requestingMembers.capacity() - 1; i >= 0; i--) {
+      DecryptedRequestingMember requestingMember = requestingMembers.get(i);
+      if (requestingMember != null && members.contains(0, requestingMember.getUuid())) {
+        requestingMembers.remove(i);
+      }
+    }
+  }
+
+  private static void ensureKnownRole(Member.Role role) throws NotAbleToApplyGroupV2ChangeException {
+    if (role != Member.Role.ADMINISTRATOR && role != Member.Role.DEFAULT) {
+      throw new NotAbleToApplyGroupV2ChangeException();
+    }
+  }
+
+  /**
+   * A list that can be looked up by one or more keys in constant time.
+   * <p>
+   * Removed items leave a null behind so that the positions of the others don't move, and each key maps to the first
+   * position holding it, which is what a linear scan of the list would find.
+   */
+  private static final class IndexedList<E> {
+
+    private final List<Function<E, ByteString>> keys;
+    private final List<Map<ByteString, Integer>> firstPositions;
+    private final List<Map<ByteString, Integer>> counts;
+    private final List<E>                        items;
+
+    private int     size;
+    private boolean modified;
+
+    @SafeVarargs
+    IndexedList(List<E> items, Function<E, ByteString>... keys) {
+      this.keys           = Arrays.asList(keys);
+      this.firstPositions = new ArrayList<>(keys.length);
+      this.counts         = new ArrayList<>(keys.length);
+      this.items          = new ArrayList<>(items.size());
+
+      for (int i = 0; i < keys.length; i++) {
+        firstPositions.add(new HashMap<>(items.size()));
+        counts.add(new HashMap<>(items.size()));
+      }
+
+      for (E item : items) {
+        append(item);
+      }
+    }
+
+    /**
+     * @return The position of the first item with this value for the key, or -1.
+     */
+    int indexOf(int key, ByteString value) {
+      Integer position = firstPositions.get(key).get(value);
+      return position != null ? position : -1;
+    }
+
+    boolean contains(int key, ByteString value) {
+      return firstPositions.get(key).containsKey(value);
+    }
+
+    /**
+     * @return True if any two items share a value for the first key.
+     */
+    boolean hasDuplicates() {
+      return counts.get(0).size() != size;
+    }
+
+    /**
+     * @return The number of positions, including those of removed items.
+     */
+    int capacity() {
+      return items.size();
+    }
+
+    /**
+     * @return The item at the position, or null if it has been removed.
+     */
+    E get(int position) {
+      return items.get(position);
+    }
+
+    void add(E item) {
+      append(item);
+      modified = true;
+    }
+
+    void set(int position, E item) {
+      E previous = items.get(position);
+
+      for (int i = 0; i < keys.size(); i++) {
+        removeKey(i, keys.get(i).apply(previous), position);
+      }
+
+      items.set(position, item);
+
+      for (int i = 0; i < keys.size(); i++) {
+        addKey(i, keys.get(i).apply(item), position);
+      }
+
+      modified = true;
+    }
+
+    void remove(int position) {
+      E item = items.set(position, null);
+
+      for (int i = 0; i < keys.size(); i++) {
+        removeKey(i, keys.get(i).apply(item), position);
+      }
+
+      size--;
+      modified = true;
+    }
+
+    void reset(List<E> newItems) {
+      items.clear();
+      size = 0;
+
+      for (int i = 0; i < keys.size(); i++) {
+        firstPositions.get(i).clear();
+        counts.get(i).clear();
+      }
+
+      for (E item : newItems) {
+        append(item);
+      }
+
+      modified = true;
+    }
+
+    /**
+     * @return The items that haven't been removed, in order.
+     */
+    List<E> toList() {
+      if (size == items.size()) {
+        return Collections.unmodifiableList(items);
+      }
+
+      List<E> list = new ArrayList<>(size);
+
+      for (E item : items) {
+        if (item != null) {
+          list.add(item);
+        }
+      }
+
+      return list;
+    }
+
+    /**
+     * @return True if the list has changed since the last call. Once most positions are of removed items, they are
+     *         dropped, as no one else can be holding on to a position at that point.
+     */
+    boolean takeModified() {
+      boolean wasModified = modified;
+
+      if (items.size() - size > size) {
+        reset(toList());
+      }
+
+      modified = false;
+      return wasModified;
+    }
+
+    private void append(E item) {
+      int position = items.size();
+
+      items.add(item);
+      size++;
+
+      for (int i = 0; i < keys.size(); i++) {
+        addKey(i, keys.get(i).apply(item), position);
+      }
+    }
+
+    private void addKey(int key, ByteString value, int position) {
+      firstPositions.get(key).merge(value, position, Math::min);
+      counts.get(key).merge(value, 1, Integer::sum);
+    }
+
+    private void removeKey(int key, ByteString value, int position) {
+      Map<ByteString, Integer> keyCounts = counts.get(key);
+      int                      count     = keyCounts.get(value) - 1;
+
+      if (count == 0) {
+        keyCounts.remove(value);
+        firstPositions.get(key).remove(value);
+        return;
+      }
+
+      keyCounts.put(value, count);
+
+      if (firstPositions.get(key).get(value) == position) {
+        for (int i = position + 1; i < items.size(); i++) {
+          E item = items.get(i);
+
+          if (item != null && value.equals(keys.get(key).apply(item))) {
+            firstPositions.get(key).put(value, i);
+            return;
+          }
+        }
+      }
+    }
+  }
+}
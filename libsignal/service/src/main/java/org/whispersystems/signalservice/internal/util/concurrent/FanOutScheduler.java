@@ -0,0 +1,157 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs a batch of tasks on an executor and hands back their outcomes in the order they finish, rather than the order
+ * they were submitted, so that one slow task doesn't hold up handling the rest.
+ *
+ * A task finishes by calling its {@link Callback}, which can happen on any thread. That lets a task hand a request off
+ * to something asynchronous, like a websocket, and free up its executor thread while it waits for the response.
+ *
+ * Not thread safe, apart from the callbacks: tasks should be submitted and taken from a single thread.
+ */
+public final class FanOutScheduler<T> {
+
+  private final Executor                     executor;
+  private final BlockingQueue<Completion<T>> completions;
+  private final List<Long>                   latencies;
+
+  private int submitted;
+  private int taken;
+
+  public FanOutScheduler(Executor executor) {
+    this.executor    = executor;
+    this.completions = new LinkedBlockingQueue<>();
+    this.latencies   = new ArrayList<>();
+  }
+
+  public void submit(Task<T> task) {
+    int         index    = submitted++;
+    Callback<T> callback = new CompletionCallback(index, System.currentTimeMillis());
+
+    executor.execute(() -> {
+      try {
+        task.run(callback);
+      } catch (Throwable t) {
+        callback.onFailure(t);
+      }
+    });
+  }
+
+  public boolean hasPending() {
+    return taken < submitted;
+  }
+
+  /**
+   * Blocks until the next task finishes.
+   */
+  public Completion<T> take() throws InterruptedException {
+    if (!hasPending()) {
+      throw new IllegalStateException("Nothing left to take!");
+    }
+
+    Completion<T> completion = completions.take();
+
+    taken++;
+    latencies.add(completion.getDuration());
+
+    return completion;
+  }
+
+  /**
+   * @param percentile Between 0 and 100.
+   * @return The time, in milliseconds, from submission until completion that the given percentage of the tasks taken so
+   *         far finished within, or -1 if none have been taken.
+   */
+  public long getLatencyPercentile(double percentile) {
+    if (latencies.isEmpty()) {
+      return -1;
+    }
+
+    List<Long> sorted = new ArrayList<>(latencies);
+    Collections.sort(sorted);
+
+    int rank = (int) Math.ceil(percentile / 100 * sorted.size());
+
+    return sorted.get(Math.min(Math.max(rank, 1), sorted.size()) - 1);
+  }
+
+  public interface Task<T> {
+    /**
+     * Called on the executor. Must eventually call exactly one method on the callback, unless it throws.
+     */
+    void run(Callback<T> callback) throws Exception;
+  }
+
+  public interface Callback<T> {
+    void onSuccess(T result);
+    void onFailure(Throwable error);
+  }
+
+  public static final class Completion<T> {
+    private final int       index;
+    private final T         result;
+    private final Throwable error;
+    private final long      duration;
+
+    private Completion(int index, T result, Throwable error, long duration) {
+      this.index    = index;
+      this.result   = result;
+      this.error    = error;
+      this.duration = duration;
+    }
+
+    /**
+     * @return The position of the task in the order it was submitted.
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public T get() throws ExecutionException {
+      if (error != null) {
+        throw new ExecutionException(error);
+      }
+
+      return result;
+    }
+
+    public long getDuration() {
+      return duration;
+    }
+  }
+
+  private final class CompletionCallback implements Callback<T> {
+    private final int           index;
+    private final long          startTime;
+    private final AtomicBoolean finished;
+
+    private CompletionCallback(int index, long startTime) {
+      this.index     = index;
+      this.startTime = startTime;
+      this.finished  = new AtomicBoolean(false);
+    }
+
+    @Override
+    public void onSuccess(T result) {
+      if (finished.compareAndSet(false, true)) {
+        completions.add(new Completion<>(index, result, null, System.currentTimeMillis() - startTime));
+      }
+    }
+
+    @Override
+    public void onFailure(Throwable error) {
+      if (finished.compareAndSet(false, true)) {
+        completions.add(new Completion<>(index, null, error, System.currentTimeMillis() - startTime));
+      }
+    }
+  }
+}
@@ -19,15 +19,18 @@ import org.whispersystems.signalservice.internal.util.Util;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -60,9 +63,28 @@ public class WebSocketConnection extends WebSocketListener {
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   public  static final int    KEEPALIVE_TIMEOUT_SECONDS = 30;
 
-  private final LinkedList<WebSocketRequestMessage> incomingRequests = new LinkedList<>();
-  private final Map<Long, OutgoingRequest>          outgoingRequests = new HashMap<>();
-  private final Set<Long>                           keepAlives       = new HashSet<>();
+  private static final long REQUEST_TIMEOUT_MS       = TimeUnit.SECONDS.toMillis(10);
+  private static final int  MAX_OUTSTANDING_REQUESTS = 256;
+  private static final long MAX_QUEUED_BYTES         = 4 * 1024 * 1024;
+
+  /**
+   * Put on the incoming queue when the connection goes away, to wake up anyone blocked in {@link #readRequest(long)}.
+   * Compared by identity.
+   */
+  private static final WebSocketRequestMessage CONNECTION_CLOSED = WebSocketRequestMessage.newBuilder().build();
+
+  /**
+   * Shared by all connections to time out requests that never get a response.
+   */
+  private static final ScheduledExecutorService TIMEOUT_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "websocket-timeout");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final BlockingQueue<WebSocketRequestMessage> incomingRequests = new LinkedBlockingQueue<>();
+  private final Map<Long, OutgoingRequest>             outgoingRequests = new ConcurrentHashMap<>();
+  private final Set<Long>                              keepAlives       = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
   private final String                                    name;
   private final String                                    wsUri;
@@ -74,8 +96,9 @@ public class WebSocketConnection extends WebSocketListener {
   private final Optional<Dns>                             dns;
   private final Optional<SignalProxy>                     signalProxy;
   private final BehaviorSubject<WebSocketConnectionState> webSocketState;
+  private final long                                      requestTimeoutMillis;
 
-  private WebSocket client;
+  private volatile WebSocket client;
 
   public WebSocketConnection(String name,
                              SignalServiceConfiguration serviceConfiguration,
@@ -92,15 +115,27 @@ public class WebSocketConnection extends WebSocketListener {
                              HealthMonitor healthMonitor,
                              String extraPathUri)
   {
-    this.name                = "[" + name + ":" + System.identityHashCode(this) + "]";
-    this.trustStore          = serviceConfiguration.getSignalServiceUrls()[0].getTrustStore();
-    this.credentialsProvider = credentialsProvider;
-    this.signalAgent         = signalAgent;
-    this.interceptors        = serviceConfiguration.getNetworkInterceptors();
-    this.dns                 = serviceConfiguration.getDns();
-    this.signalProxy         = serviceConfiguration.getSignalProxy();
-    this.healthMonitor       = healthMonitor;
-    this.webSocketState      = BehaviorSubject.createDefault(WebSocketConnectionState.DISCONNECTED);
+    this(name, serviceConfiguration, credentialsProvider, signalAgent, healthMonitor, extraPathUri, REQUEST_TIMEOUT_MS);
+  }
+
+  WebSocketConnection(String name,
+                      SignalServiceConfiguration serviceConfiguration,
+                      Optional<CredentialsProvider> credentialsProvider,
+                      String signalAgent,
+                      HealthMonitor healthMonitor,
+                      String extraPathUri,
+                      long requestTimeoutMillis)
+  {
+    this.name                 = "[" + name + ":" + System.identityHashCode(this) + "]";
+    this.trustStore           = serviceConfiguration.getSignalServiceUrls()[0].getTrustStore();
+    this.credentialsProvider  = credentialsProvider;
+    this.signalAgent          = signalAgent;
+    this.interceptors         = serviceConfiguration.getNetworkInterceptors();
+    this.dns                  = serviceConfiguration.getDns();
+    this.signalProxy          = serviceConfiguration.getSignalProxy();
+    this.healthMonitor        = healthMonitor;
+    this.webSocketState       = BehaviorSubject.createDefault(WebSocketConnectionState.DISCONNECTED);
+    this.requestTimeoutMillis = requestTimeoutMillis;
 
     String uri = serviceConfiguration.getSignalServiceUrls()[0].getUrl().replace("https://", "wss://").replace("http://", "ws://");
 
@@ -156,14 +191,21 @@ public class WebSocketConnection extends WebSocketListener {
         requestBuilder.addHeader("X-Signal-Agent", signalAgent);
       }
 
-      webSocketState.onNext(WebSocketConnectionState.CONNECTING);
-
-      this.client = okHttpClient.newWebSocket(requestBuilder.build(), this);
+      connect(okHttpClient, requestBuilder.build());
     }
     return webSocketState;
   }
 
-  public synchronized boolean isDead() {
+  /**
+   * Opens the websocket with the provided client and request, which lets tests connect to a local server without TLS.
+   */
+  synchronized void connect(OkHttpClient okHttpClient, Request request) {
+    webSocketState.onNext(WebSocketConnectionState.CONNECTING);
+
+    this.client = okHttpClient.newWebSocket(request, this);
+  }
+
+  public boolean isDead() {
     return client == null;
   }
 
@@ -174,12 +216,11 @@ public class WebSocketConnection extends WebSocketListener {
       client.close(1000, "OK");
       client = null;
       webSocketState.onNext(WebSocketConnectionState.DISCONNECTING);
+      incomingRequests.offer(CONNECTION_CLOSED);
     }
-
-    notifyAll();
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
     if (client == null) {
@@ -188,43 +229,96 @@ public class WebSocketConnection extends WebSocketListener {
 
     long startTime = System.currentTimeMillis();
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
+    while (true) {
+      WebSocketRequestMessage request;
+
+      try {
+        request = incomingRequests.poll(Math.max(0, timeoutMillis - elapsedTime(startTime)), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      if (request == null) {
+        throw new TimeoutException("Timeout exceeded");
+      } else if (request != CONNECTION_CLOSED) {
+        return request;
+      } else if (client == null) {
+        incomingRequests.offer(CONNECTION_CLOSED);
+        throw new IOException("Connection closed!");
+      }
+
+      // Left over from a connection that has since been replaced
     }
+  }
 
-    if (incomingRequests.isEmpty() && client == null) {
+  /**
+   * Same as {@link #readRequest(long)}, but returns immediately with nothing if there are no requests that have already
+   * been received.
+   */
+  public Optional<WebSocketRequestMessage> readRequestIfAvailable() throws IOException {
+    WebSocketRequestMessage request = incomingRequests.poll();
+
+    while (request == CONNECTION_CLOSED) {
+      if (client == null) {
+        incomingRequests.offer(CONNECTION_CLOSED);
+        throw new IOException("Connection closed!");
+      }
+
+      request = incomingRequests.poll();
+    }
+
+    if (request == null && client == null) {
       throw new IOException("Connection closed!");
-    } else if (incomingRequests.isEmpty()) {
-      throw new TimeoutException("Timeout exceeded");
-    } else {
-      return incomingRequests.removeFirst();
     }
+
+    return Optional.ofNullable(request);
   }
 
-  public synchronized Single<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
+  /**
+   * Fails with an {@link IOException} rather than queueing behind a backlog if too many requests are already waiting on
+   * a response, or too much data is waiting to be written, so that callers can fall back to another way of sending.
+   */
+  public Single<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("No connection!");
     }
 
+    if (outgoingRequests.size() >= MAX_OUTSTANDING_REQUESTS || client.queueSize() >= MAX_QUEUED_BYTES) {
+      warn("Backed up! Outstanding requests: " + outgoingRequests.size() + ", queued bytes: " + client.queueSize());
+      throw new IOException("Too many requests in flight!");
+    }
+
     WebSocketMessage message = WebSocketMessage.newBuilder()
                                                .setType(WebSocketMessage.Type.REQUEST)
                                                .setRequest(request)
                                                .build();
 
-    SingleSubject<WebsocketResponse> single = SingleSubject.create();
+    SingleSubject<WebsocketResponse> single   = SingleSubject.create();
+    OutgoingRequest                  outgoing = new OutgoingRequest(single);
 
-    outgoingRequests.put(request.getId(), new OutgoingRequest(single));
+    outgoingRequests.put(request.getId(), outgoing);
+    outgoing.setTimeout(TIMEOUT_EXECUTOR.schedule(() -> {
+      if (outgoingRequests.remove(request.getId(), outgoing)) {
+        outgoing.onError(new TimeoutException("No response after " + requestTimeoutMillis + " ms"));
+      }
+    }, requestTimeoutMillis, TimeUnit.MILLISECONDS));
 
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      if (outgoingRequests.remove(request.getId(), outgoing)) {
+        outgoing.cancelTimeout();
+      }
       throw new IOException("Write failed!");
     }
 
     return single.subscribeOn(Schedulers.io())
-                 .observeOn(Schedulers.io())
-                 .timeout(10, TimeUnit.SECONDS, Schedulers.io());
+                 .observeOn(Schedulers.io());
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -239,7 +333,19 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
-  public synchronized void sendKeepAlive() throws IOException {
+  /**
+   * Sends each of the responses, in order.
+   */
+  public void sendResponses(List<WebSocketResponseMessage> responses) throws IOException {
+    for (WebSocketResponseMessage response : responses) {
+      sendResponse(response);
+    }
+  }
+
+
+  public void sendKeepAlive() throws IOException {
+    WebSocket client = this.client;
+
     if (client != null) {
       log( "Sending keep alive...");
       long id = System.currentTimeMillis();
@@ -268,12 +374,12 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE) {
-        incomingRequests.add(message.getRequest());
+        incomingRequests.offer(message.getRequest());
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
         OutgoingRequest listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) {
@@ -288,8 +394,6 @@ public class WebSocketConnection extends WebSocketListener {
           healthMonitor.onKeepAliveResponse(message.getResponse().getId(), credentialsProvider.isPresent());
         }
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       warn(e);
     }
@@ -301,8 +405,6 @@ public class WebSocketConnection extends WebSocketListener {
     webSocketState.onNext(WebSocketConnectionState.DISCONNECTED);
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   @Override
@@ -316,23 +418,20 @@ public class WebSocketConnection extends WebSocketListener {
     }
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   private void cleanupAfterShutdown() {
-    Iterator<Map.Entry<Long, OutgoingRequest>> iterator = outgoingRequests.entrySet().iterator();
-
-    while (iterator.hasNext()) {
-      Map.Entry<Long, OutgoingRequest> entry = iterator.next();
-      entry.getValue().onError(new IOException("Closed unexpectedly"));
-      iterator.remove();
+    for (Map.Entry<Long, OutgoingRequest> entry : outgoingRequests.entrySet()) {
+      if (outgoingRequests.remove(entry.getKey(), entry.getValue())) {
+        entry.getValue().onError(new IOException("Closed unexpectedly"));
+      }
     }
 
     if (client != null) {
       log("Client not null when closed");
       client.close(1000, "OK");
       client = null;
+      incomingRequests.offer(CONNECTION_CLOSED);
     }
   }
 
@@ -382,18 +481,37 @@ public class WebSocketConnection extends WebSocketListener {
     Log.w(TAG, name + " " + message, e);
   }
 
+  /**
+   * Whoever removes one of these from {@link #outgoingRequests} is the one who gets to complete it.
+   */
   private static class OutgoingRequest {
     private final SingleSubject<WebsocketResponse> responseSingle;
 
+    private volatile ScheduledFuture<?> timeout;
+
     private OutgoingRequest(SingleSubject<WebsocketResponse> future) {
       this.responseSingle = future;
     }
 
+    public void setTimeout(ScheduledFuture<?> timeout) {
+      this.timeout = timeout;
+    }
+
+    public void cancelTimeout() {
+      ScheduledFuture<?> timeout = this.timeout;
+
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+    }
+
     public void onSuccess(WebsocketResponse response) {
+      cancelTimeout();
       responseSingle.onSuccess(response);
     }
 
     public void onError(Throwable throwable) {
+      cancelTimeout();
       responseSingle.onError(throwable);
     }
   }
@@ -0,0 +1,259 @@
+package org.whispersystems.signalservice.api;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.whispersystems.signalservice.api.websocket.WebSocketFactory;
+import org.whispersystems.signalservice.internal.websocket.LocalWebSocketConnection;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.ByteString;
+
+/**
+ * A local websocket server for {@link SignalServiceMessageSender}. It answers every message send according to a
+ * {@link Responder}, which can also hold a send to answer it later, and keeps track of how many sends were waiting on an
+ * answer at once.
+ */
+final class FakeMessageServer extends WebSocketListener {
+
+  private static final String MESSAGES_PATH = "/v1/messages/";
+
+  private final MockWebServer              server;
+  private final ScheduledExecutorService   delayExecutor;
+  private final Map<String, AtomicInteger> attempts;
+  private final List<HeldRequest>          held;
+  private final AtomicInteger              pending;
+  private final AtomicInteger              maxPending;
+  private final AtomicInteger              total;
+
+  private volatile Responder responder;
+  private volatile long      delayMillis;
+
+  FakeMessageServer() throws IOException {
+    this.server        = new MockWebServer();
+    this.delayExecutor = Executors.newScheduledThreadPool(2);
+    this.attempts      = new ConcurrentHashMap<>();
+    this.held          = new ArrayList<>();
+    this.pending       = new AtomicInteger();
+    this.maxPending    = new AtomicInteger();
+    this.total         = new AtomicInteger();
+    this.responder     = (destination, attempt) -> Answer.ok();
+
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().withWebSocketUpgrade(FakeMessageServer.this);
+      }
+    });
+    server.start();
+  }
+
+  /**
+   * @return A connected {@link SignalWebSocket} whose identified and unidentified connections both go to this server.
+   */
+  SignalWebSocket connect() {
+    SignalWebSocket signalWebSocket = new SignalWebSocket(new WebSocketFactory() {
+      @Override
+      public WebSocketConnection createWebSocket() {
+        return new LocalWebSocketConnection("identified", server);
+      }
+
+      @Override
+      public WebSocketConnection createUnidentifiedWebSocket() {
+        return new LocalWebSocketConnection("unidentified", server);
+      }
+    });
+
+    signalWebSocket.connect();
+
+    return signalWebSocket;
+  }
+
+  void setResponder(Responder responder) {
+    this.responder = responder;
+  }
+
+  /**
+   * Waits this long before sending each answer, like a real server would.
+   */
+  void setDelay(long delayMillis) {
+    this.delayMillis = delayMillis;
+  }
+
+  /**
+   * @return How many sends to the destination have reached the server.
+   */
+  int getAttempts(String destination) {
+    AtomicInteger count = attempts.get(destination);
+    return count != null ? count.get() : 0;
+  }
+
+  int getTotalAttempts() {
+    return total.get();
+  }
+
+  /**
+   * @return The most sends that were waiting on an answer at once.
+   */
+  int getMaxPending() {
+    return maxPending.get();
+  }
+
+  void resetMaxPending() {
+    maxPending.set(pending.get());
+  }
+
+  /**
+   * @return True if at least this many sends are being held, false if it timed out first.
+   */
+  boolean awaitHeld(int count, long timeoutMillis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+
+    synchronized (held) {
+      while (held.size() < count) {
+        long remaining = deadline - System.currentTimeMillis();
+
+        if (remaining <= 0) {
+          return false;
+        }
+
+        held.wait(remaining);
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Answers every send that's being held.
+   */
+  void releaseHeld(Answer answer) {
+    List<HeldRequest> released;
+
+    synchronized (held) {
+      released = new ArrayList<>(held);
+      held.clear();
+    }
+
+    for (HeldRequest request : released) {
+      answer(request.webSocket, request.id, answer);
+    }
+  }
+
+  void shutdown() throws IOException {
+    releaseHeld(Answer.ok());
+    delayExecutor.shutdownNow();
+    server.shutdown();
+  }
+
+  @Override
+  public void onMessage(WebSocket webSocket, ByteString bytes) {
+    WebSocketMessage message;
+
+    try {
+      message = WebSocketMessage.parseFrom(bytes.toByteArray());
+    } catch (InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    if (message.getType() != WebSocketMessage.Type.REQUEST || !message.getRequest().getPath().startsWith(MESSAGES_PATH)) {
+      return;
+    }
+
+    WebSocketRequestMessage request     = message.getRequest();
+    String                  destination = request.getPath().substring(MESSAGES_PATH.length());
+    int                     attempt     = attempts.computeIfAbsent(destination, d -> new AtomicInteger()).incrementAndGet();
+
+    total.incrementAndGet();
+    maxPending.accumulateAndGet(pending.incrementAndGet(), Math::max);
+
+    Answer answer = responder.respond(destination, attempt);
+
+    if (answer == null) {
+      synchronized (held) {
+        held.add(new HeldRequest(webSocket, request.getId()));
+        held.notifyAll();
+      }
+    } else if (delayMillis > 0) {
+      delayExecutor.schedule(() -> answer(webSocket, request.getId(), answer), delayMillis, TimeUnit.MILLISECONDS);
+    } else {
+      answer(webSocket, request.getId(), answer);
+    }
+  }
+
+  @Override
+  public void onClosing(WebSocket webSocket, int code, String reason) {
+    webSocket.close(1000, "OK");
+  }
+
+  /**
+   * The send stops counting as pending before the answer goes out, so that the client can't have sent another one in
+   * its place before it's counted.
+   */
+  private void answer(WebSocket webSocket, long id, Answer answer) {
+    pending.decrementAndGet();
+
+    WebSocketResponseMessage response = WebSocketResponseMessage.newBuilder()
+                                                                .setId(id)
+                                                                .setStatus(answer.status)
+                                                                .setMessage(answer.status == 200 ? "OK" : "Error")
+                                                                .setBody(com.google.protobuf.ByteString.copyFromUtf8(answer.body))
+                                                                .build();
+
+    webSocket.send(ByteString.of(WebSocketMessage.newBuilder().setType(WebSocketMessage.Type.RESPONSE).setResponse(response).build().toByteArray()));
+  }
+
+  interface Responder {
+    /**
+     * @param attempt Starts at 1 for the first send to the destination.
+     * @return The answer, or null to hold the send until {@link #releaseHeld(Answer)}.
+     */
+    Answer respond(String destination, int attempt);
+  }
+
+  static final class Answer {
+    private final int    status;
+    private final String body;
+
+    private Answer(int status, String body) {
+      this.status = status;
+      this.body   = body;
+    }
+
+    static Answer ok() {
+      return new Answer(200, "");
+    }
+
+    static Answer of(int status, String body) {
+      return new Answer(status, body);
+    }
+  }
+
+  private static final class HeldRequest {
+    private final WebSocket webSocket;
+    private final long      id;
+
+    private HeldRequest(WebSocket webSocket, long id) {
+      this.webSocket = webSocket;
+      this.id        = id;
+    }
+  }
+}
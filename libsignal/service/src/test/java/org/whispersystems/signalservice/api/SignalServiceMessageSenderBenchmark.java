@@ -0,0 +1,82 @@
+package org.whispersystems.signalservice.api;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.testutil.InMemoryAccountDataStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertNotNull;
+import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
+
+/**
+ * Measures how long {@link SignalServiceMessageSender} takes to send a message to a large group one recipient at a time,
+ * over a local websocket server that takes a fixed time to answer each send, like a real one would. Each round is
+ * measured after a warmup.
+ *
+ * Not run as part of the normal test suite. Remove the {@link Ignore} to run locally.
+ */
+@Ignore("Benchmark, run manually")
+public final class SignalServiceMessageSenderBenchmark {
+
+  private static final int  RECIPIENTS      = 1000;
+  private static final long SERVER_DELAY_MS = 20;
+  private static final int  THREADS         = 4;
+  private static final int  WARMUP_ROUNDS   = 2;
+  private static final int  ROUNDS          = 5;
+
+  @Test
+  public void sendToLargeGroup() throws Exception {
+    assumeLibSignalSupportedOnOS();
+
+    FakeMessageServer        server   = new FakeMessageServer();
+    InMemoryAccountDataStore store    = new InMemoryAccountDataStore();
+    ExecutorService          executor = Executors.newFixedThreadPool(THREADS);
+
+    try {
+      SignalServiceMessageSender sender     = SignalServiceMessageSenderTest.createSender(server, store, executor);
+      List<SignalServiceAddress> recipients = SignalServiceMessageSenderTest.createRecipients(store, RECIPIENTS);
+
+      server.setDelay(SERVER_DELAY_MS);
+
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        SignalServiceMessageSenderTest.send(sender, recipients, null);
+      }
+
+      for (int round = 0; round < ROUNDS; round++) {
+        server.resetMaxPending();
+
+        long                    start   = System.nanoTime();
+        List<SendMessageResult> results = SignalServiceMessageSenderTest.send(sender, recipients, null);
+        long                    elapsed = (System.nanoTime() - start) / 1_000_000;
+
+        List<Long> durations = new ArrayList<>(results.size());
+        for (SendMessageResult result : results) {
+          assertNotNull(result.getSuccess());
+          durations.add(result.getSuccess().getDuration());
+        }
+        Collections.sort(durations);
+
+        System.out.println(String.format(Locale.US,
+                                         "[round %d] %d sends in %d ms (%.0f sends/s), p50: %d ms, p99: %d ms, most in flight: %d",
+                                         round + 1,
+                                         results.size(),
+                                         elapsed,
+                                         results.size() / (elapsed / 1000.0),
+                                         durations.get(durations.size() / 2),
+                                         durations.get(durations.size() * 99 / 100),
+                                         server.getMaxPending()));
+      }
+    } finally {
+      server.shutdown();
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,295 @@
+package org.whispersystems.signalservice.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.IdentityKeyPair;
+import org.signal.libsignal.protocol.SessionBuilder;
+import org.signal.libsignal.protocol.SignalProtocolAddress;
+import org.signal.libsignal.protocol.ecc.Curve;
+import org.signal.libsignal.protocol.ecc.ECKeyPair;
+import org.signal.libsignal.protocol.state.PreKeyBundle;
+import org.whispersystems.signalservice.api.crypto.ContentHint;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.ACI;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.configuration.SignalCdsiUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalContactDiscoveryUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalKeyBackupServiceUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalStorageUrl;
+import org.whispersystems.signalservice.internal.push.http.CancelationSignal;
+import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
+import org.whispersystems.signalservice.testutil.InMemoryAccountDataStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
+
+/**
+ * Sends to many recipients at once through a local websocket server, to check that the sends that go out without
+ * waiting on a response give their permits back however they finish, and fall back to the blocking send when the server
+ * asks for the devices to be sorted out first.
+ *
+ * REST isn't set up, so anything that would fall back to it isn't covered here.
+ */
+public final class SignalServiceMessageSenderTest {
+
+  private static final long TIMEOUT = 10_000;
+
+  private FakeMessageServer          server;
+  private InMemoryAccountDataStore   store;
+  private ExecutorService            executor;
+  private ExecutorService            caller;
+  private SignalServiceMessageSender subject;
+
+  @Before
+  public void setUp() throws Exception {
+    assumeLibSignalSupportedOnOS();
+
+    server   = new FakeMessageServer();
+    store    = new InMemoryAccountDataStore();
+    executor = Executors.newFixedThreadPool(4);
+    caller   = Executors.newSingleThreadExecutor();
+    subject  = createSender(server, store, executor);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (server != null) {
+      server.shutdown();
+    }
+
+    if (executor != null) {
+      executor.shutdownNow();
+      caller.shutdownNow();
+    }
+  }
+
+  @Test(timeout = 30_000)
+  public void sendDataMessage_successfulSends_releasePermits() throws Exception {
+    List<SignalServiceAddress> recipients = createRecipients(store, SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS * 3);
+
+    List<SendMessageResult> results = send(subject, recipients, null);
+
+    assertEquals(recipients.size(), results.size());
+    for (SendMessageResult result : results) {
+      assertNotNull(result.getSuccess());
+    }
+    assertTrue(server.getMaxPending() <= SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS);
+
+    assertAllPermitsAvailable();
+  }
+
+  @Test(timeout = 30_000)
+  public void sendDataMessage_failedSends_releasePermits() throws Exception {
+    List<SignalServiceAddress> recipients = createRecipients(store, SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS * 3);
+
+    server.setResponder((destination, attempt) -> FakeMessageServer.Answer.of(404, ""));
+
+    List<SendMessageResult> results = send(subject, recipients, null);
+
+    for (SendMessageResult result : results) {
+      assertTrue(result.isUnregisteredFailure());
+    }
+
+    server.setResponder((destination, attempt) -> FakeMessageServer.Answer.ok());
+    assertAllPermitsAvailable();
+  }
+
+  @Test(timeout = 30_000)
+  public void sendDataMessage_mismatchedDevices_archivesAndResends() throws Exception {
+    SignalServiceAddress recipient = createRecipients(store, 1).get(0);
+
+    server.setResponder((destination, attempt) -> attempt == 1 ? FakeMessageServer.Answer.of(409, "{\"missingDevices\":[],\"extraDevices\":[2]}")
+                                                               : FakeMessageServer.Answer.ok());
+
+    List<SendMessageResult> results = send(subject, Collections.singletonList(recipient), null);
+
+    assertNotNull(results.get(0).getSuccess());
+    assertEquals(2, server.getAttempts(recipient.getIdentifier()));
+    assertTrue(store.getArchivedSessions().contains(new SignalProtocolAddress(recipient.getIdentifier(), 2)));
+  }
+
+  @Test(timeout = 30_000)
+  public void sendDataMessage_staleDevices_archivesAndResends() throws Exception {
+    SignalServiceAddress recipient = createRecipients(store, 1).get(0);
+
+    server.setResponder((destination, attempt) -> attempt == 1 ? FakeMessageServer.Answer.of(410, "{\"staleDevices\":[2]}")
+                                                               : FakeMessageServer.Answer.ok());
+
+    List<SendMessageResult> results = send(subject, Collections.singletonList(recipient), null);
+
+    assertNotNull(results.get(0).getSuccess());
+    assertEquals(2, server.getAttempts(recipient.getIdentifier()));
+    assertTrue(store.getArchivedSessions().contains(new SignalProtocolAddress(recipient.getIdentifier(), 2)));
+  }
+
+  @Test(timeout = 30_000)
+  public void sendDataMessage_staleDevicesEveryTime_countsPipelinedAttemptAgainstRetries() throws Exception {
+    SignalServiceAddress recipient = createRecipients(store, 1).get(0);
+
+    server.setResponder((destination, attempt) -> FakeMessageServer.Answer.of(410, "{\"staleDevices\":[2]}"));
+
+    try {
+      send(subject, Collections.singletonList(recipient), null);
+      fail("Expected the send to give up");
+    } catch (IOException e) {
+      assertEquals(SignalServiceMessageSender.RETRY_COUNT, server.getAttempts(recipient.getIdentifier()));
+    }
+  }
+
+  @Test(timeout = 30_000)
+  public void sendDataMessage_canceledWhileWaitingForPermit_stopsSending() throws Exception {
+    List<SignalServiceAddress> recipients = createRecipients(store, SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS + 1);
+    AtomicBoolean              canceled   = new AtomicBoolean();
+
+    server.setResponder((destination, attempt) -> null);
+
+    Future<List<SendMessageResult>> future = sendInBackground(recipients, canceled::get);
+
+    assertTrue(server.awaitHeld(SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS, TIMEOUT));
+    assertFalse(future.isDone());
+
+    canceled.set(true);
+
+    try {
+      future.get();
+      fail("Expected the send to be canceled");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CancelationException);
+    }
+
+    assertEquals(SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS, server.getTotalAttempts());
+  }
+
+  /**
+   * Holds a full set of sends on the server. They can only all go out at once if every earlier send gave its permit back.
+   */
+  private void assertAllPermitsAvailable() throws Exception {
+    List<SignalServiceAddress> recipients = createRecipients(store, SignalServiceMessageSender.MAX_IN_FLIGHT_WEBSOCKET_SENDS);
+
+    server.setResponder((destination, attempt) -> null);
+
+    Future<List<SendMessageResult>> future = sendInBackground(recipients, null);
+
+    assertTrue(server.awaitHeld(recipients.size(), TIMEOUT));
+    server.releaseHeld(FakeMessageServer.Answer.ok());
+
+    for (SendMessageResult result : future.get()) {
+      assertNotNull(result.getSuccess());
+    }
+  }
+
+  private Future<List<SendMessageResult>> sendInBackground(List<SignalServiceAddress> recipients, CancelationSignal cancelationSignal) {
+    return caller.submit(() -> send(subject, recipients, cancelationSignal));
+  }
+
+  static List<SendMessageResult> send(SignalServiceMessageSender sender, List<SignalServiceAddress> recipients, CancelationSignal cancelationSignal)
+      throws Exception
+  {
+    List<Optional<UnidentifiedAccessPair>> access = new ArrayList<>(recipients.size());
+
+    for (int i = 0; i < recipients.size(); i++) {
+      access.add(Optional.empty());
+    }
+
+    SignalServiceDataMessage message = SignalServiceDataMessage.newBuilder()
+                                                               .withTimestamp(System.currentTimeMillis())
+                                                               .withBody("Hello")
+                                                               .build();
+
+    return sender.sendDataMessage(recipients,
+                                  access,
+                                  false,
+                                  ContentHint.DEFAULT,
+                                  message,
+                                  SignalServiceMessageSender.LegacyGroupEvents.EMPTY,
+                                  null,
+                                  cancelationSignal,
+                                  false);
+  }
+
+  /**
+   * A sender with no REST endpoints, whose messages all go out over the server's websocket.
+   */
+  static SignalServiceMessageSender createSender(FakeMessageServer server, InMemoryAccountDataStore store, ExecutorService executor) {
+    SignalServiceConfiguration configuration = new SignalServiceConfiguration(new SignalServiceUrl[0],
+                                                                              new HashMap<>(),
+                                                                              new SignalContactDiscoveryUrl[0],
+                                                                              new SignalKeyBackupServiceUrl[0],
+                                                                              new SignalStorageUrl[0],
+                                                                              new SignalCdsiUrl[0],
+                                                                              new ArrayList<>(),
+                                                                              Optional.empty(),
+                                                                              Optional.empty(),
+                                                                              null);
+
+    SignalServiceDataStore dataStore = mock(SignalServiceDataStore.class);
+    when(dataStore.aci()).thenReturn(store);
+    when(dataStore.pni()).thenReturn(store);
+
+    ReentrantLock     lock        = new ReentrantLock();
+    SignalSessionLock sessionLock = () -> {
+      lock.lock();
+      return lock::unlock;
+    };
+
+    return new SignalServiceMessageSender(configuration,
+                                          new StaticCredentialsProvider(ACI.from(UUID.randomUUID()), null, "+15555550100", 1, "password"),
+                                          dataStore,
+                                          sessionLock,
+                                          null,
+                                          server.connect(),
+                                          Optional.empty(),
+                                          null,
+                                          executor,
+                                          0,
+                                          false);
+  }
+
+  /**
+   * @return Recipients with a single device, each of which already has a session in the store.
+   */
+  static List<SignalServiceAddress> createRecipients(InMemoryAccountDataStore store, int count) throws Exception {
+    List<SignalServiceAddress> recipients = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      SignalServiceAddress recipient       = new SignalServiceAddress(ACI.from(UUID.randomUUID()));
+      ECKeyPair            identityKeyPair = Curve.generateKeyPair();
+      IdentityKeyPair      identity        = new IdentityKeyPair(new IdentityKey(identityKeyPair.getPublicKey()), identityKeyPair.getPrivateKey());
+      ECKeyPair            preKey          = Curve.generateKeyPair();
+      ECKeyPair            signedPreKey    = Curve.generateKeyPair();
+      byte[]               signature       = Curve.calculateSignature(identity.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+      PreKeyBundle         bundle          = new PreKeyBundle(2, 1, 1, preKey.getPublicKey(), 1, signedPreKey.getPublicKey(), signature, identity.getPublicKey());
+
+      new SessionBuilder(store, new SignalProtocolAddress(recipient.getIdentifier(), 1)).process(bundle);
+      recipients.add(recipient);
+    }
+
+    return recipients;
+  }
+}
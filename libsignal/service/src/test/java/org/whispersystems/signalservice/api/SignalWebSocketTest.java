@@ -0,0 +1,195 @@
+package org.whispersystems.signalservice.api;
+
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.websocket.WebSocketFactory;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+
+import io.reactivex.rxjava3.core.Observable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Replays recorded requests through a stand-in {@link WebSocketConnection} to check how {@link SignalWebSocket} reads
+ * and acknowledges them.
+ */
+public final class SignalWebSocketTest {
+
+  private static final long TIMEOUT = 1000;
+
+  private LinkedList<WebSocketRequestMessage> pendingRequests;
+  private List<Long>                          acknowledgedIds;
+  private List<String>                        events;
+  private SignalWebSocket                     subject;
+
+  @Before
+  public void setUp() throws Exception {
+    pendingRequests = new LinkedList<>();
+    acknowledgedIds = new ArrayList<>();
+    events          = new ArrayList<>();
+
+    WebSocketConnection connection = mock(WebSocketConnection.class);
+    when(connection.connect()).thenReturn(Observable.never());
+    when(connection.readRequest(anyLong())).thenAnswer(invocation -> {
+      if (pendingRequests.isEmpty()) {
+        throw new TimeoutException();
+      }
+      return pendingRequests.removeFirst();
+    });
+    when(connection.readRequestIfAvailable()).thenAnswer(invocation -> Optional.ofNullable(pendingRequests.pollFirst()));
+    doAnswer(invocation -> {
+      List<WebSocketResponseMessage> responses = invocation.getArgument(0);
+      for (WebSocketResponseMessage response : responses) {
+        acknowledgedIds.add(response.getId());
+      }
+      events.add("ack " + responses.size());
+      return null;
+    }).when(connection).sendResponses(anyList());
+    doAnswer(invocation -> {
+      WebSocketResponseMessage response = invocation.getArgument(0);
+      acknowledgedIds.add(response.getId());
+      events.add("ack 1");
+      return null;
+    }).when(connection).sendResponse(any());
+
+    WebSocketFactory factory = mock(WebSocketFactory.class);
+    when(factory.createWebSocket()).thenReturn(connection);
+    when(factory.createUnidentifiedWebSocket()).thenReturn(connection);
+
+    subject = new SignalWebSocket(factory);
+    subject.connect();
+  }
+
+  @Test
+  public void readBatchOrEmpty_readsAheadUpToBatchSize_andAcknowledgesAfterCallback() throws Exception {
+    record(envelopes(5));
+
+    List<SignalServiceEnvelope> received = new ArrayList<>();
+
+    boolean empty = subject.readBatchOrEmpty(TIMEOUT, 3, envelopes -> {
+      received.addAll(envelopes);
+      events.add("process " + envelopes.size());
+    });
+
+    assertFalse(empty);
+    assertEquals(3, received.size());
+    assertEquals(Arrays.asList("process 3", "ack 3"), events);
+    assertEquals(Arrays.asList(0L, 1L, 2L), acknowledgedIds);
+    assertEquals(2, pendingRequests.size());
+  }
+
+  @Test
+  public void readBatchOrEmpty_stopsAtQueueEmpty() throws Exception {
+    record(envelopes(2));
+    pendingRequests.add(queueEmpty(100));
+    record(envelopes(1));
+
+    List<SignalServiceEnvelope> received = new ArrayList<>();
+
+    boolean empty = subject.readBatchOrEmpty(TIMEOUT, 10, received::addAll);
+
+    assertTrue(empty);
+    assertEquals(2, received.size());
+    assertEquals(Arrays.asList(0L, 1L, 100L), acknowledgedIds);
+    assertEquals(1, pendingRequests.size());
+  }
+
+  @Test
+  public void readBatchOrEmpty_onlyQueueEmpty_doesNotCallCallback() throws Exception {
+    pendingRequests.add(queueEmpty(0));
+
+    boolean empty = subject.readBatchOrEmpty(TIMEOUT, 10, envelopes -> events.add("process " + envelopes.size()));
+
+    assertTrue(empty);
+    assertEquals(Arrays.asList("ack 1"), events);
+  }
+
+  @Test(expected = TimeoutException.class)
+  public void readBatchOrEmpty_nothingToRead_timesOut() throws Exception {
+    subject.readBatchOrEmpty(TIMEOUT, 10, envelopes -> {});
+  }
+
+  @Test
+  public void replay_batchedAndUnbatched_deliverSameEnvelopesInOrder() throws Exception {
+    List<WebSocketRequestMessage> recording = envelopes(1000);
+
+    record(recording);
+    pendingRequests.add(queueEmpty(recording.size()));
+
+    List<Long> unbatched = new ArrayList<>();
+    while (subject.readOrEmpty(TIMEOUT, envelope -> unbatched.add(envelope.getTimestamp())).isPresent()) { }
+
+    acknowledgedIds.clear();
+    record(recording);
+    pendingRequests.add(queueEmpty(recording.size()));
+
+    List<Long> batched = new ArrayList<>();
+    while (!subject.readBatchOrEmpty(TIMEOUT, 32, envelopes -> {
+      for (SignalServiceEnvelope envelope : envelopes) {
+        batched.add(envelope.getTimestamp());
+      }
+    })) { }
+
+    assertEquals(recording.size(), unbatched.size());
+    assertEquals(unbatched, batched);
+    assertEquals(recording.size() + 1, acknowledgedIds.size());
+  }
+
+  private void record(List<WebSocketRequestMessage> requests) {
+    pendingRequests.addAll(requests);
+  }
+
+  private static List<WebSocketRequestMessage> envelopes(int count) {
+    List<WebSocketRequestMessage> requests = new ArrayList<>(count);
+    String                        sender   = UUID.randomUUID().toString();
+
+    for (int i = 0; i < count; i++) {
+      Envelope envelope = Envelope.newBuilder()
+                                  .setType(Envelope.Type.CIPHERTEXT)
+                                  .setSourceUuid(sender)
+                                  .setSourceDevice(1)
+                                  .setTimestamp(i)
+                                  .setContent(ByteString.copyFrom(new byte[64]))
+                                  .build();
+
+      requests.add(WebSocketRequestMessage.newBuilder()
+                                          .setId(i)
+                                          .setVerb("PUT")
+                                          .setPath("/api/v1/message")
+                                          .setBody(envelope.toByteString())
+                                          .build());
+    }
+
+    return requests;
+  }
+
+  private static WebSocketRequestMessage queueEmpty(long id) {
+    return WebSocketRequestMessage.newBuilder()
+                                  .setId(id)
+                                  .setVerb("PUT")
+                                  .setPath("/api/v1/queue/empty")
+                                  .build();
+  }
+}
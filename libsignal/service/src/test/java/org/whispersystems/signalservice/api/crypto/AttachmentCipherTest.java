@@ -19,6 +19,8 @@ import java.security.Security;
 import java.util.Arrays;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.whispersystems.signalservice.testutil.LibSignalLibraryUtil.assumeLibSignalSupportedOnOS;
 
@@ -194,6 +196,119 @@ public final class AttachmentCipherTest {
     assertTrue(hitCorrectException);
   }
 
+  @Test
+  public void attachment_streaming_encryptDecrypt() throws IOException, InvalidMessageException {
+    byte[]           key            = Util.getSecretBytes(64);
+    byte[]           plaintextInput = Util.getSecretBytes(100_000);
+    EncryptResult    encryptResult  = encryptData(plaintextInput, key);
+    File             cipherFile     = writeToFile(encryptResult.ciphertext);
+    TestStagedOutput output         = new TestStagedOutput();
+
+    AttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, output);
+
+    assertArrayEquals(plaintextInput, output.released);
+    assertFalse(output.discarded);
+
+    cipherFile.delete();
+  }
+
+  @Test
+  public void attachment_streaming_encryptDecryptPaddedContent() throws IOException, InvalidMessageException {
+    int[] lengths = { 531, 600, 724, 1019, 1024, 100_000 };
+
+    for (int length : lengths) {
+      byte[]                plaintextInput  = Util.getSecretBytes(length);
+      byte[]                key             = Util.getSecretBytes(64);
+      InputStream           dataStream      = new PaddingInputStream(new ByteArrayInputStream(plaintextInput), length);
+      ByteArrayOutputStream encryptedStream = new ByteArrayOutputStream();
+      DigestingOutputStream digestStream    = new AttachmentCipherOutputStreamFactory(key, null).createFor(encryptedStream);
+
+      Util.copy(dataStream, digestStream);
+      digestStream.flush();
+
+      File             cipherFile = writeToFile(encryptedStream.toByteArray());
+      TestStagedOutput output     = new TestStagedOutput();
+
+      AttachmentCipherInputStream.decryptAttachment(cipherFile, length, key, digestStream.getTransmittedDigest(), output);
+
+      assertArrayEquals(plaintextInput, output.released);
+
+      cipherFile.delete();
+    }
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadMac() throws IOException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(100_000);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+
+    for (int position : new int[] { 0, encryptResult.ciphertext.length / 2, encryptResult.ciphertext.length - 1 }) {
+      byte[] badCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+      badCiphertext[position] += 1;
+
+      File             cipherFile          = writeToFile(badCiphertext);
+      TestStagedOutput output              = new TestStagedOutput();
+      boolean          hitCorrectException = false;
+
+      try {
+        AttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, output);
+      } catch (InvalidMessageException e) {
+        hitCorrectException = true;
+      } finally {
+        cipherFile.delete();
+      }
+
+      assertTrue(hitCorrectException);
+      assertNull(output.released);
+      assertTrue(output.discarded);
+    }
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnBadDigest() throws IOException {
+    byte[]           key                 = Util.getSecretBytes(64);
+    byte[]           plaintextInput      = "Mary Jane Watson".getBytes();
+    EncryptResult    encryptResult       = encryptData(plaintextInput, key);
+    File             cipherFile          = writeToFile(encryptResult.ciphertext);
+    TestStagedOutput output              = new TestStagedOutput();
+    boolean          hitCorrectException = false;
+
+    try {
+      AttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, new byte[32], output);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+    assertNull(output.released);
+    assertTrue(output.discarded);
+  }
+
+  @Test
+  public void attachment_streaming_decryptFailOnTruncatedFile() throws IOException {
+    byte[]           key                 = Util.getSecretBytes(64);
+    byte[]           plaintextInput      = Util.getSecretBytes(100_000);
+    EncryptResult    encryptResult       = encryptData(plaintextInput, key);
+    File             cipherFile          = writeToFile(Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length - 100));
+    TestStagedOutput output              = new TestStagedOutput();
+    boolean          hitCorrectException = false;
+
+    try {
+      AttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, output);
+    } catch (InvalidMessageException | IOException e) {
+      hitCorrectException = true;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+    assertNull(output.released);
+    assertTrue(output.discarded);
+  }
+
   @Test
   public void sticker_encryptDecrypt() throws IOException, InvalidMessageException {
     assumeLibSignalSupportedOnOS();
@@ -293,6 +408,32 @@ public final class AttachmentCipherTest {
     return new HKDFv3().deriveSecrets(shortKey, "Sticker Pack".getBytes(), 64);
   }
 
+  /**
+   * Only releases what was written once it's published.
+   */
+  private static class TestStagedOutput implements AttachmentCipherInputStream.StagedOutput {
+    private final ByteArrayOutputStream staging = new ByteArrayOutputStream();
+
+    private byte[]  released;
+    private boolean discarded;
+
+    @Override
+    public OutputStream getStagingStream() {
+      return staging;
+    }
+
+    @Override
+    public void publish() {
+      released = staging.toByteArray();
+    }
+
+    @Override
+    public void discard() {
+      discarded = true;
+      staging.reset();
+    }
+  }
+
   private static class EncryptResult {
     final byte[] ciphertext;
     final byte[] digest;
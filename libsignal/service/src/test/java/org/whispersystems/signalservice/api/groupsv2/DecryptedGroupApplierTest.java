@@ -0,0 +1,150 @@
+package org.whispersystems.signalservice.api.groupsv2;
+
+import org.junit.Test;
+import org.signal.libsignal.zkgroup.profiles.ProfileKey;
+import org.signal.storageservice.protos.groups.Member;
+import org.signal.storageservice.protos.groups.local.DecryptedGroup;
+import org.signal.storageservice.protos.groups.local.DecryptedGroupChange;
+import org.signal.storageservice.protos.groups.local.DecryptedMember;
+import org.signal.storageservice.protos.groups.local.DecryptedModifyMemberRole;
+import org.whispersystems.signalservice.api.util.UuidUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.admin;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.asAdmin;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.member;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.pendingMember;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.randomProfileKey;
+import static org.whispersystems.signalservice.api.groupsv2.ProtoTestUtils.withProfileKey;
+
+public final class DecryptedGroupApplierTest {
+
+  @Test
+  public void applying_a_run_of_changes_matches_applying_each_separately() throws NotAbleToApplyGroupV2ChangeException {
+    List<UUID>             uuids   = new ArrayList<>();
+    DecryptedGroup.Builder builder = DecryptedGroup.newBuilder().setRevision(10);
+
+    for (int i = 0; i < 50; i++) {
+      UUID uuid = UUID.randomUUID();
+      uuids.add(uuid);
+      builder.addMembers(member(uuid));
+    }
+
+    List<DecryptedGroupChange> changes = new ArrayList<>();
+
+    for (int revision = 11; revision < 31; revision++) {
+      ProfileKey profileKey = randomProfileKey();
+      UUID       newMember  = UUID.randomUUID();
+
+      changes.add(DecryptedGroupChange.newBuilder()
+                                      .setRevision(revision)
+                                      .addDeleteMembers(UuidUtil.toByteString(uuids.remove(0)))
+                                      .addModifyMemberRoles(DecryptedModifyMemberRole.newBuilder()
+                                                                                     .setUuid(UuidUtil.toByteString(uuids.get(revision % uuids.size())))
+                                                                                     .setRole(Member.Role.ADMINISTRATOR))
+                                      .addModifiedProfileKeys(withProfileKey(member(uuids.get(0)), profileKey))
+                                      .addNewMembers(member(newMember))
+                                      .addNewPendingMembers(pendingMember(UUID.randomUUID()))
+                                      .build());
+
+      uuids.add(newMember);
+    }
+
+    DecryptedGroupApplier applier  = new DecryptedGroupApplier();
+    DecryptedGroup        expected = builder.build();
+    DecryptedGroup        actual   = expected;
+
+    for (DecryptedGroupChange change : changes) {
+      expected = DecryptedGroupUtil.apply(expected, change);
+      actual   = applier.apply(actual, change);
+
+      assertEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void a_change_that_cannot_be_applied_does_not_affect_later_changes() throws NotAbleToApplyGroupV2ChangeException {
+    UUID            uuid1   = UUID.randomUUID();
+    UUID            uuid2   = UUID.randomUUID();
+    DecryptedMember member1 = member(uuid1);
+    DecryptedMember member2 = member(uuid2);
+
+    DecryptedGroupApplier applier = new DecryptedGroupApplier();
+    DecryptedGroup        group   = DecryptedGroup.newBuilder()
+                                                  .setRevision(10)
+                                                  .addMembers(member1)
+                                                  .addMembers(member2)
+                                                  .build();
+
+    try {
+      applier.apply(group, DecryptedGroupChange.newBuilder()
+                                               .setRevision(11)
+                                               .addDeleteMembers(UuidUtil.toByteString(uuid1))
+                                               .addModifyMemberRoles(DecryptedModifyMemberRole.newBuilder()
+                                                                                              .setUuid(UuidUtil.toByteString(UUID.randomUUID()))
+                                                                                              .setRole(Member.Role.ADMINISTRATOR))
+                                               .build());
+      fail();
+    } catch (NotAbleToApplyGroupV2ChangeException e) {
+      // expected
+    }
+
+    DecryptedGroup newGroup = applier.apply(group, DecryptedGroupChange.newBuilder()
+                                                                       .setRevision(11)
+                                                                       .addModifyMemberRoles(DecryptedModifyMemberRole.newBuilder()
+                                                                                                                      .setUuid(UuidUtil.toByteString(uuid2))
+                                                                                                                      .setRole(Member.Role.ADMINISTRATOR))
+                                                                       .build());
+
+    assertEquals(DecryptedGroup.newBuilder()
+                               .setRevision(11)
+                               .addMembers(member1)
+                               .addMembers(asAdmin(member2))
+                               .build(),
+                 newGroup);
+  }
+
+  @Test
+  public void duplicate_members_are_removed_and_changed_in_list_order() throws NotAbleToApplyGroupV2ChangeException {
+    UUID            uuid      = UUID.randomUUID();
+    DecryptedMember member    = member(uuid);
+    DecryptedMember duplicate = admin(uuid);
+    DecryptedMember other     = member(UUID.randomUUID());
+
+    DecryptedGroupApplier applier = new DecryptedGroupApplier();
+    DecryptedGroup        group   = DecryptedGroup.newBuilder()
+                                                  .setRevision(10)
+                                                  .addMembers(member)
+                                                  .addMembers(other)
+                                                  .addMembers(duplicate)
+                                                  .build();
+
+    DecryptedGroup afterDelete = applier.apply(group, DecryptedGroupChange.newBuilder()
+                                                                          .setRevision(11)
+                                                                          .addDeleteMembers(UuidUtil.toByteString(uuid))
+                                                                          .build());
+
+    assertEquals(DecryptedGroup.newBuilder()
+                               .setRevision(11)
+                               .addMembers(other)
+                               .addMembers(duplicate)
+                               .build(),
+                 afterDelete);
+
+    DecryptedGroup afterDeleteAgain = applier.apply(afterDelete, DecryptedGroupChange.newBuilder()
+                                                                                     .setRevision(12)
+                                                                                     .addDeleteMembers(UuidUtil.toByteString(uuid))
+                                                                                     .build());
+
+    assertEquals(DecryptedGroup.newBuilder()
+                               .setRevision(12)
+                               .addMembers(other)
+                               .build(),
+                 afterDeleteAgain);
+  }
+}
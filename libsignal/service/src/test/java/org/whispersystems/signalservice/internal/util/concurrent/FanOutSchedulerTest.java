@@ -0,0 +1,152 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class FanOutSchedulerTest {
+
+  private final ExecutorService          executor = Executors.newFixedThreadPool(4);
+  private final ScheduledExecutorService server   = Executors.newScheduledThreadPool(2);
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+    server.shutdownNow();
+  }
+
+  @Test
+  public void results_are_taken_in_completion_order() throws Exception {
+    FanOutScheduler<String> scheduler = new FanOutScheduler<>(executor);
+    CountDownLatch          release   = new CountDownLatch(1);
+
+    scheduler.submit(callback -> {
+      release.await();
+      callback.onSuccess("slow");
+    });
+    scheduler.submit(callback -> callback.onSuccess("fast"));
+
+    FanOutScheduler.Completion<String> first = scheduler.take();
+    release.countDown();
+    FanOutScheduler.Completion<String> second = scheduler.take();
+
+    assertEquals(1, first.getIndex());
+    assertEquals("fast", first.get());
+    assertEquals(0, second.getIndex());
+    assertEquals("slow", second.get());
+    assertFalse(scheduler.hasPending());
+  }
+
+  @Test
+  public void failures_are_reported_through_the_completion() throws Exception {
+    FanOutScheduler<String> scheduler = new FanOutScheduler<>(executor);
+
+    scheduler.submit(callback -> { throw new IOException("thrown"); });
+    scheduler.submit(callback -> callback.onFailure(new IOException("reported")));
+
+    Set<String> messages = new HashSet<>();
+
+    while (scheduler.hasPending()) {
+      try {
+        scheduler.take().get();
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+        messages.add(e.getCause().getMessage());
+      }
+    }
+
+    assertTrue(messages.contains("thrown"));
+    assertTrue(messages.contains("reported"));
+  }
+
+  @Test
+  public void only_the_first_callback_counts() throws Exception {
+    FanOutScheduler<String> scheduler = new FanOutScheduler<>(executor);
+
+    scheduler.submit(callback -> {
+      callback.onSuccess("first");
+      callback.onFailure(new IOException());
+      callback.onSuccess("second");
+    });
+
+    assertEquals("first", scheduler.take().get());
+    assertFalse(scheduler.hasPending());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void take_without_anything_pending_throws() throws Exception {
+    new FanOutScheduler<String>(executor).take();
+  }
+
+  /**
+   * Simulates a fan-out to many recipients against a fake server whose responses arrive asynchronously, as they do over
+   * the websocket, with a small number of slow outliers. The executor is far smaller than the number of sends, and the
+   * server holds every response until all of the sends have started, so this only finishes if tasks hand off their
+   * executor thread while waiting.
+   */
+  @Test(timeout = 30_000)
+  public void many_asynchronous_tasks_share_a_small_executor() throws Exception {
+    FanOutScheduler<Integer> scheduler  = new FanOutScheduler<>(executor);
+    Random                   random     = new Random(1234);
+    int                      recipients = 1000;
+    CountDownLatch           started    = new CountDownLatch(recipients);
+
+    for (int i = 0; i < recipients; i++) {
+      int  recipient = i;
+      long latency   = random.nextInt(100) == 0 ? 200 : 5 + random.nextInt(15);
+
+      scheduler.submit(callback -> {
+        started.countDown();
+        server.execute(() -> {
+          try {
+            started.await();
+            server.schedule(() -> callback.onSuccess(recipient), latency, TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            callback.onFailure(e);
+          }
+        });
+      });
+    }
+
+    List<Integer> results = new ArrayList<>();
+
+    while (scheduler.hasPending()) {
+      FanOutScheduler.Completion<Integer> completion = scheduler.take();
+      assertEquals(completion.getIndex(), (int) completion.get());
+      results.add(completion.get());
+    }
+
+    assertEquals(recipients, results.size());
+    assertEquals(recipients, new HashSet<>(results).size());
+
+    long p50 = scheduler.getLatencyPercentile(50);
+    long p99 = scheduler.getLatencyPercentile(99);
+
+    assertTrue(p50 >= 5);
+    assertTrue(p50 <= p99);
+    assertTrue(p99 <= scheduler.getLatencyPercentile(100));
+  }
+
+  @Test
+  public void latency_percentile_is_negative_before_anything_is_taken() {
+    assertEquals(-1, new FanOutScheduler<String>(executor).getLatencyPercentile(50));
+  }
+}
@@ -0,0 +1,56 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import org.whispersystems.signalservice.api.websocket.HealthMonitor;
+import org.whispersystems.signalservice.api.websocket.WebSocketConnectionState;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Optional;
+
+import io.reactivex.rxjava3.core.Observable;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * A {@link WebSocketConnection} to a {@link MockWebServer}, without TLS, so that it can be handed out by a
+ * {@link org.whispersystems.signalservice.api.websocket.WebSocketFactory} and connected to like any other.
+ */
+public final class LocalWebSocketConnection extends WebSocketConnection {
+
+  private final MockWebServer server;
+
+  public LocalWebSocketConnection(String name, MockWebServer server) {
+    super(name, configuration(server), Optional.empty(), null, new NoopHealthMonitor());
+    this.server = server;
+  }
+
+  @Override
+  public synchronized Observable<WebSocketConnectionState> connect() {
+    connect(new OkHttpClient(), new Request.Builder().url(server.url("/v1/websocket/")).build());
+    return Observable.never();
+  }
+
+  private static SignalServiceConfiguration configuration(MockWebServer server) {
+    return new SignalServiceConfiguration(new SignalServiceUrl[] { new SignalServiceUrl(server.url("/").toString(), null) },
+                                          new HashMap<>(),
+                                          null,
+                                          null,
+                                          null,
+                                          null,
+                                          new ArrayList<>(),
+                                          Optional.empty(),
+                                          Optional.empty(),
+                                          null);
+  }
+
+  private static final class NoopHealthMonitor implements HealthMonitor {
+    @Override
+    public void onKeepAliveResponse(long sentTimestamp, boolean isIdentifiedWebSocket) { }
+
+    @Override
+    public void onMessageError(int status, boolean isIdentifiedWebSocket) { }
+  }
+}
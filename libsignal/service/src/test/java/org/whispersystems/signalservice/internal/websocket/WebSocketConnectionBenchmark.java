@@ -0,0 +1,233 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.whispersystems.signalservice.api.websocket.HealthMonitor;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+/**
+ * Measures request throughput and latency of a {@link WebSocketConnection} against a local websocket server. Several
+ * threads each keep a window of requests in flight while another thread reads and acknowledges requests pushed by the
+ * server, so that sends, responses and reads all contend for the connection at once. The first round is a warmup.
+ *
+ * Not run as part of the normal test suite. Remove the {@link Ignore} to run locally.
+ */
+@Ignore("Benchmark, run manually")
+public class WebSocketConnectionBenchmark {
+
+  private static final int THREAD_COUNT        = 16;
+  private static final int REQUESTS_PER_THREAD = 3000;
+  private static final int WINDOW              = 8;
+  private static final int INBOUND_REQUESTS    = 20_000;
+  private static final int ROUNDS              = 4;
+
+  @Test
+  public void pipelinedRequests() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      run(round);
+    }
+  }
+
+  private static void run(int round) throws Exception {
+    MockWebServer server = new MockWebServer();
+    server.enqueue(new MockResponse().withWebSocketUpgrade(new EchoServer()));
+    server.start();
+
+    try {
+      WebSocketConnection connection = new WebSocketConnection("benchmark", configuration(server), Optional.empty(), null, new NoopHealthMonitor());
+      connection.connect(new OkHttpClient(), new Request.Builder().url(server.url("/")).build());
+
+      AtomicInteger read   = new AtomicInteger();
+      Thread        reader = new Thread(() -> {
+        try {
+          while (read.get() < INBOUND_REQUESTS) {
+            WebSocketRequestMessage request = connection.readRequest(5_000);
+            connection.sendResponse(WebSocketResponseMessage.newBuilder().setId(request.getId()).setStatus(200).setMessage("OK").build());
+            read.incrementAndGet();
+          }
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      });
+
+      long[]       latencies = new long[THREAD_COUNT * REQUESTS_PER_THREAD];
+      AtomicLong   ids       = new AtomicLong(1);
+      List<Thread> senders   = new ArrayList<>(THREAD_COUNT);
+      long         start     = System.nanoTime();
+
+      reader.start();
+
+      for (int t = 0; t < THREAD_COUNT; t++) {
+        int    offset = t * REQUESTS_PER_THREAD;
+        Thread sender = new Thread(() -> send(connection, ids, latencies, offset));
+        senders.add(sender);
+        sender.start();
+      }
+
+      for (Thread sender : senders) {
+        sender.join();
+      }
+
+      long sendsDone = System.nanoTime();
+      reader.join();
+      long readsDone = System.nanoTime();
+
+      long[] succeeded = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+
+      System.out.println(String.format(Locale.US, "[%s] %d requests in %d ms (%d failed), p50: %.2f ms, p99: %.2f ms. %d inbound requests read in %d ms",
+                                       round == 0 ? "warmup" : "round " + round,
+                                       latencies.length,
+                                       (sendsDone - start) / 1_000_000,
+                                       latencies.length - succeeded.length,
+                                       succeeded[succeeded.length / 2] / 1e6,
+                                       succeeded[(int) (succeeded.length * 0.99)] / 1e6,
+                                       read.get(),
+                                       (readsDone - start) / 1_000_000));
+
+      assertEquals(INBOUND_REQUESTS, read.get());
+
+      connection.disconnect();
+    } finally {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Sends this thread's share of the requests, keeping up to {@link #WINDOW} of them in flight. A failed request is
+   * recorded with a latency of -1.
+   */
+  private static void send(WebSocketConnection connection, AtomicLong ids, long[] latencies, int offset) {
+    Semaphore      window = new Semaphore(WINDOW);
+    CountDownLatch done   = new CountDownLatch(REQUESTS_PER_THREAD);
+
+    for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+      int  index = offset + i;
+      long start = System.nanoTime();
+
+      window.acquireUninterruptibly();
+
+      try {
+        connection.sendRequest(WebSocketRequestMessage.newBuilder()
+                                                      .setId(ids.getAndIncrement())
+                                                      .setVerb("PUT")
+                                                      .setPath("/v1/messages/benchmark")
+                                                      .setBody(com.google.protobuf.ByteString.copyFrom(new byte[500]))
+                                                      .build())
+                  .subscribe(response -> {
+                    latencies[index] = System.nanoTime() - start;
+                    window.release();
+                    done.countDown();
+                  }, error -> {
+                    latencies[index] = -1;
+                    window.release();
+                    done.countDown();
+                  });
+      } catch (IOException e) {
+        latencies[index] = -1;
+        window.release();
+        done.countDown();
+      }
+    }
+
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static SignalServiceConfiguration configuration(MockWebServer server) {
+    return new SignalServiceConfiguration(new SignalServiceUrl[] { new SignalServiceUrl(server.url("/").toString(), null) },
+                                          new HashMap<>(),
+                                          null,
+                                          null,
+                                          null,
+                                          null,
+                                          new ArrayList<>(),
+                                          Optional.empty(),
+                                          Optional.empty(),
+                                          null);
+  }
+
+  /**
+   * Responds to every request right away, and pushes {@link #INBOUND_REQUESTS} requests of its own once connected.
+   */
+  private static final class EchoServer extends WebSocketListener {
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+      new Thread(() -> {
+        for (int i = 0; i < INBOUND_REQUESTS; i++) {
+          WebSocketRequestMessage request = WebSocketRequestMessage.newBuilder()
+                                                                   .setId(-i - 1)
+                                                                   .setVerb("PUT")
+                                                                   .setPath("/api/v1/message")
+                                                                   .setBody(com.google.protobuf.ByteString.copyFrom(new byte[200]))
+                                                                   .build();
+
+          webSocket.send(ByteString.of(WebSocketMessage.newBuilder().setType(WebSocketMessage.Type.REQUEST).setRequest(request).build().toByteArray()));
+        }
+      }).start();
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+      try {
+        WebSocketMessage message = WebSocketMessage.parseFrom(bytes.toByteArray());
+
+        if (message.getType() == WebSocketMessage.Type.REQUEST) {
+          WebSocketResponseMessage response = WebSocketResponseMessage.newBuilder()
+                                                                      .setId(message.getRequest().getId())
+                                                                      .setStatus(200)
+                                                                      .setMessage("OK")
+                                                                      .build();
+
+          webSocket.send(ByteString.of(WebSocketMessage.newBuilder().setType(WebSocketMessage.Type.RESPONSE).setResponse(response).build().toByteArray()));
+        }
+      } catch (InvalidProtocolBufferException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      webSocket.close(1000, "OK");
+    }
+  }
+
+  private static final class NoopHealthMonitor implements HealthMonitor {
+    @Override
+    public void onKeepAliveResponse(long sentTimestamp, boolean isIdentifiedWebSocket) { }
+
+    @Override
+    public void onMessageError(int status, boolean isIdentifiedWebSocket) { }
+  }
+}
@@ -0,0 +1,409 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.whispersystems.signalservice.api.websocket.HealthMonitor;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.rxjava3.observers.TestObserver;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+public final class WebSocketConnectionTest {
+
+  private static final int MAX_OUTSTANDING_REQUESTS = 256;
+
+  private final OkHttpClient okHttpClient = new OkHttpClient();
+
+  private MockWebServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new MockWebServer();
+    server.start();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  @Test
+  public void concurrent_requests_each_get_their_own_response() throws Exception {
+    int        threadCount       = 8;
+    int        requestsPerThread = 30;
+    TestServer testServer        = enqueueServer();
+    AtomicLong ids               = new AtomicLong(1);
+
+    WebSocketConnection connection = connect(10_000);
+    testServer.awaitOpen();
+
+    Map<Long, String> responses = new ConcurrentHashMap<>();
+    List<Throwable>   errors    = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch    done      = new CountDownLatch(threadCount * requestsPerThread);
+    List<Thread>      threads   = new ArrayList<>();
+
+    for (int t = 0; t < threadCount; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < requestsPerThread; i++) {
+          long id = ids.getAndIncrement();
+
+          try {
+            connection.sendRequest(request(id)).subscribe(response -> {
+              responses.put(id, response.getBody());
+              done.countDown();
+            }, error -> {
+              errors.add(error);
+              done.countDown();
+            });
+          } catch (IOException e) {
+            errors.add(e);
+            done.countDown();
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    List<WebSocketRequestMessage> received = testServer.takeRequests(threadCount * requestsPerThread);
+    Collections.reverse(received);
+
+    for (WebSocketRequestMessage request : received) {
+      testServer.respond(request);
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(Collections.emptyList(), errors);
+    assertEquals(threadCount * requestsPerThread, responses.size());
+
+    for (Map.Entry<Long, String> entry : responses.entrySet()) {
+      assertEquals(pathFor(entry.getKey()), entry.getValue());
+    }
+
+    connection.disconnect();
+  }
+
+  @Test
+  public void request_without_a_response_times_out_and_a_late_response_is_ignored() throws Exception {
+    TestServer          testServer = enqueueServer();
+    WebSocketConnection connection = connect(200);
+
+    TestObserver<WebsocketResponse> timedOut = connection.sendRequest(request(1)).test();
+
+    assertTrue(timedOut.await(5, TimeUnit.SECONDS));
+    timedOut.assertError(TimeoutException.class);
+
+    testServer.respond(testServer.takeRequests(1).get(0));
+
+    TestObserver<WebsocketResponse> next = connection.sendRequest(request(2)).test();
+    testServer.respond(testServer.takeRequests(1).get(0));
+
+    assertTrue(next.await(5, TimeUnit.SECONDS));
+    next.assertNoErrors();
+    assertEquals(pathFor(2), next.values().get(0).getBody());
+    timedOut.assertValueCount(0);
+
+    connection.disconnect();
+  }
+
+  @Test
+  public void requests_are_rejected_once_too_many_are_outstanding() throws Exception {
+    TestServer          testServer = enqueueServer();
+    WebSocketConnection connection = connect(10_000);
+
+    List<TestObserver<WebsocketResponse>> outstanding = new ArrayList<>();
+
+    for (int i = 0; i < MAX_OUTSTANDING_REQUESTS; i++) {
+      outstanding.add(connection.sendRequest(request(i)).test());
+    }
+
+    try {
+      connection.sendRequest(request(MAX_OUTSTANDING_REQUESTS));
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+
+    testServer.respond(testServer.takeRequests(1).get(0));
+    assertTrue(outstanding.get(0).await(5, TimeUnit.SECONDS));
+    outstanding.get(0).assertNoErrors();
+
+    TestObserver<WebsocketResponse> accepted = connection.sendRequest(request(MAX_OUTSTANDING_REQUESTS)).test();
+
+    connection.disconnect();
+
+    assertTrue(accepted.await(5, TimeUnit.SECONDS));
+    accepted.assertError(IOException.class);
+
+    for (TestObserver<WebsocketResponse> observer : outstanding.subList(1, outstanding.size())) {
+      assertTrue(observer.await(5, TimeUnit.SECONDS));
+      observer.assertError(IOException.class);
+    }
+  }
+
+  @Test
+  public void incoming_requests_are_read_in_order() throws Exception {
+    TestServer          testServer = enqueueServer();
+    WebSocketConnection connection = connect(10_000);
+    testServer.awaitOpen();
+
+    testServer.sendRequest(request(1));
+    testServer.sendRequest(request(2));
+
+    assertEquals(1, connection.readRequest(5_000).getId());
+    assertEquals(2, connection.readRequest(5_000).getId());
+    assertFalse(connection.readRequestIfAvailable().isPresent());
+
+    try {
+      connection.readRequest(100);
+      fail();
+    } catch (TimeoutException e) {
+      // expected
+    }
+
+    connection.disconnect();
+  }
+
+  @Test
+  public void every_blocked_reader_wakes_up_on_disconnect() throws Exception {
+    enqueueServer();
+
+    WebSocketConnection connection  = connect(10_000);
+    int                 readerCount = 4;
+    List<Throwable>     results     = Collections.synchronizedList(new ArrayList<>());
+    List<Thread>        readers     = new ArrayList<>();
+
+    for (int i = 0; i < readerCount; i++) {
+      Thread reader = new Thread(() -> {
+        try {
+          connection.readRequest(30_000);
+          results.add(null);
+        } catch (Exception e) {
+          results.add(e);
+        }
+      });
+      readers.add(reader);
+      reader.start();
+    }
+
+    for (Thread reader : readers) {
+      awaitBlocked(reader);
+    }
+
+    long start = System.currentTimeMillis();
+    connection.disconnect();
+
+    for (Thread reader : readers) {
+      reader.join(5_000);
+      assertFalse(reader.isAlive());
+    }
+
+    assertTrue(System.currentTimeMillis() - start < 5_000);
+    assertEquals(readerCount, results.size());
+
+    for (Throwable result : results) {
+      assertNotNull(result);
+      assertTrue(result instanceof IOException);
+    }
+
+    try {
+      connection.readRequestIfAvailable();
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void blocked_reader_and_outstanding_requests_fail_when_the_server_closes() throws Exception {
+    TestServer          testServer = enqueueServer();
+    WebSocketConnection connection = connect(10_000);
+    testServer.awaitOpen();
+
+    TestObserver<WebsocketResponse> outstanding = connection.sendRequest(request(1)).test();
+    testServer.takeRequests(1);
+
+    CountDownLatch readerFailed = new CountDownLatch(1);
+    Thread reader = new Thread(() -> {
+      try {
+        connection.readRequest(30_000);
+      } catch (IOException e) {
+        readerFailed.countDown();
+      } catch (TimeoutException e) {
+        // fall through and fail below
+      }
+    });
+    reader.start();
+    awaitBlocked(reader);
+
+    testServer.close();
+
+    assertTrue(readerFailed.await(5, TimeUnit.SECONDS));
+    assertTrue(outstanding.await(5, TimeUnit.SECONDS));
+    outstanding.assertError(IOException.class);
+    assertTrue(connection.isDead());
+  }
+
+  private WebSocketConnection connect(long requestTimeoutMillis) {
+    SignalServiceConfiguration configuration = new SignalServiceConfiguration(new SignalServiceUrl[] { new SignalServiceUrl(server.url("/").toString(), null) },
+                                                                              new HashMap<>(),
+                                                                              null,
+                                                                              null,
+                                                                              null,
+                                                                              null,
+                                                                              new ArrayList<>(),
+                                                                              Optional.empty(),
+                                                                              Optional.empty(),
+                                                                              null);
+
+    WebSocketConnection connection = new WebSocketConnection("test", configuration, Optional.empty(), null, new NoopHealthMonitor(), "", requestTimeoutMillis);
+    connection.connect(okHttpClient, new Request.Builder().url(server.url("/")).build());
+
+    return connection;
+  }
+
+  private TestServer enqueueServer() {
+    TestServer testServer = new TestServer();
+    server.enqueue(new MockResponse().withWebSocketUpgrade(testServer));
+    return testServer;
+  }
+
+  private static void awaitBlocked(Thread thread) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5_000;
+
+    while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(Thread.State.TIMED_WAITING, thread.getState());
+  }
+
+  private static WebSocketRequestMessage request(long id) {
+    return WebSocketRequestMessage.newBuilder()
+                                  .setId(id)
+                                  .setVerb("PUT")
+                                  .setPath(pathFor(id))
+                                  .build();
+  }
+
+  private static String pathFor(long id) {
+    return "/v1/test/" + id;
+  }
+
+  /**
+   * Collects the requests the client sends, and only responds when asked to, echoing the request's path as the body.
+   */
+  private static final class TestServer extends WebSocketListener {
+
+    private final BlockingQueue<WebSocketRequestMessage> requests = new LinkedBlockingQueue<>();
+    private final CountDownLatch                         opened   = new CountDownLatch(1);
+
+    private volatile WebSocket socket;
+
+    @Override
+    public void onOpen(WebSocket webSocket, Response response) {
+      socket = webSocket;
+      opened.countDown();
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+      try {
+        WebSocketMessage message = WebSocketMessage.parseFrom(bytes.toByteArray());
+
+        if (message.getType() == WebSocketMessage.Type.REQUEST) {
+          requests.add(message.getRequest());
+        }
+      } catch (InvalidProtocolBufferException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      webSocket.close(1000, "OK");
+    }
+
+    void awaitOpen() throws InterruptedException {
+      assertTrue(opened.await(5, TimeUnit.SECONDS));
+    }
+
+    List<WebSocketRequestMessage> takeRequests(int count) throws InterruptedException {
+      List<WebSocketRequestMessage> taken = new ArrayList<>(count);
+
+      for (int i = 0; i < count; i++) {
+        WebSocketRequestMessage request = requests.poll(5, TimeUnit.SECONDS);
+        assertNotNull(request);
+        taken.add(request);
+      }
+
+      return taken;
+    }
+
+    void respond(WebSocketRequestMessage request) {
+      WebSocketResponseMessage response = WebSocketResponseMessage.newBuilder()
+                                                                  .setId(request.getId())
+                                                                  .setStatus(200)
+                                                                  .setMessage("OK")
+                                                                  .setBody(com.google.protobuf.ByteString.copyFromUtf8(request.getPath()))
+                                                                  .build();
+
+      socket.send(ByteString.of(WebSocketMessage.newBuilder().setType(WebSocketMessage.Type.RESPONSE).setResponse(response).build().toByteArray()));
+    }
+
+    void sendRequest(WebSocketRequestMessage request) {
+      socket.send(ByteString.of(WebSocketMessage.newBuilder().setType(WebSocketMessage.Type.REQUEST).setRequest(request).build().toByteArray()));
+    }
+
+    void close() {
+      socket.close(1000, "Bye");
+    }
+  }
+
+  private static final class NoopHealthMonitor implements HealthMonitor {
+    @Override
+    public void onKeepAliveResponse(long sentTimestamp, boolean isIdentifiedWebSocket) { }
+
+    @Override
+    public void onMessageError(int status, boolean isIdentifiedWebSocket) { }
+  }
+}
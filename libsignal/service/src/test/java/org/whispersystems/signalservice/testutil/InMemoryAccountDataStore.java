@@ -0,0 +1,257 @@
+package org.whispersystems.signalservice.testutil;
+
+import org.signal.libsignal.protocol.IdentityKey;
+import org.signal.libsignal.protocol.IdentityKeyPair;
+import org.signal.libsignal.protocol.InvalidKeyIdException;
+import org.signal.libsignal.protocol.NoSessionException;
+import org.signal.libsignal.protocol.SignalProtocolAddress;
+import org.signal.libsignal.protocol.ecc.Curve;
+import org.signal.libsignal.protocol.ecc.ECKeyPair;
+import org.signal.libsignal.protocol.groups.state.SenderKeyRecord;
+import org.signal.libsignal.protocol.message.CiphertextMessage;
+import org.signal.libsignal.protocol.state.PreKeyRecord;
+import org.signal.libsignal.protocol.state.SessionRecord;
+import org.signal.libsignal.protocol.state.SignedPreKeyRecord;
+import org.whispersystems.signalservice.api.SignalServiceAccountDataStore;
+import org.whispersystems.signalservice.api.push.DistributionId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A {@link SignalServiceAccountDataStore} that keeps everything in memory and trusts every identity, for tests that need
+ * to encrypt real messages without a database.
+ */
+public final class InMemoryAccountDataStore implements SignalServiceAccountDataStore {
+
+  private final IdentityKeyPair identityKeyPair;
+  private final int             registrationId;
+
+  private final Map<SignalProtocolAddress, IdentityKey>        identities      = new HashMap<>();
+  private final Map<SignalProtocolAddress, SessionRecord>      sessions        = new HashMap<>();
+  private final Map<Integer, PreKeyRecord>                     preKeys         = new HashMap<>();
+  private final Map<Integer, SignedPreKeyRecord>               signedPreKeys   = new HashMap<>();
+  private final Map<String, SenderKeyRecord>                   senderKeys      = new HashMap<>();
+  private final Map<DistributionId, Set<SignalProtocolAddress>> senderKeyShares = new HashMap<>();
+  private final List<SignalProtocolAddress>                    archived        = new ArrayList<>();
+
+  public InMemoryAccountDataStore() {
+    ECKeyPair keyPair = Curve.generateKeyPair();
+
+    this.identityKeyPair = new IdentityKeyPair(new IdentityKey(keyPair.getPublicKey()), keyPair.getPrivateKey());
+    this.registrationId  = 1;
+  }
+
+  /**
+   * @return Every address whose session has been archived, in order.
+   */
+  public synchronized List<SignalProtocolAddress> getArchivedSessions() {
+    return new ArrayList<>(archived);
+  }
+
+  @Override
+  public boolean isMultiDevice() {
+    return false;
+  }
+
+  @Override
+  public IdentityKeyPair getIdentityKeyPair() {
+    return identityKeyPair;
+  }
+
+  @Override
+  public int getLocalRegistrationId() {
+    return registrationId;
+  }
+
+  @Override
+  public synchronized boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+    IdentityKey previous = identities.put(address, identityKey);
+    return previous != null && !previous.equals(identityKey);
+  }
+
+  @Override
+  public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+    return true;
+  }
+
+  @Override
+  public synchronized IdentityKey getIdentity(SignalProtocolAddress address) {
+    return identities.get(address);
+  }
+
+  @Override
+  public synchronized PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+    PreKeyRecord record = preKeys.get(preKeyId);
+
+    if (record == null) {
+      throw new InvalidKeyIdException("No such pre-key: " + preKeyId);
+    }
+
+    return record;
+  }
+
+  @Override
+  public synchronized void storePreKey(int preKeyId, PreKeyRecord record) {
+    preKeys.put(preKeyId, record);
+  }
+
+  @Override
+  public synchronized boolean containsPreKey(int preKeyId) {
+    return preKeys.containsKey(preKeyId);
+  }
+
+  @Override
+  public synchronized void removePreKey(int preKeyId) {
+    preKeys.remove(preKeyId);
+  }
+
+  @Override
+  public synchronized SessionRecord loadSession(SignalProtocolAddress address) {
+    SessionRecord record = sessions.get(address);
+    return record != null ? record : new SessionRecord();
+  }
+
+  @Override
+  public synchronized List<SessionRecord> loadExistingSessions(List<SignalProtocolAddress> addresses) throws NoSessionException {
+    List<SessionRecord> records = new ArrayList<>(addresses.size());
+
+    for (SignalProtocolAddress address : addresses) {
+      SessionRecord record = sessions.get(address);
+
+      if (record == null) {
+        throw new NoSessionException("No session for " + address);
+      }
+
+      records.add(record);
+    }
+
+    return records;
+  }
+
+  @Override
+  public synchronized List<Integer> getSubDeviceSessions(String name) {
+    List<Integer> devices = new ArrayList<>();
+
+    for (SignalProtocolAddress address : sessions.keySet()) {
+      if (address.getName().equals(name) && address.getDeviceId() != 1) {
+        devices.add(address.getDeviceId());
+      }
+    }
+
+    return devices;
+  }
+
+  @Override
+  public synchronized Set<SignalProtocolAddress> getAllAddressesWithActiveSessions(List<String> addressNames) {
+    Set<SignalProtocolAddress> addresses = new HashSet<>();
+
+    for (SignalProtocolAddress address : sessions.keySet()) {
+      if (addressNames.contains(address.getName()) && containsSession(address)) {
+        addresses.add(address);
+      }
+    }
+
+    return addresses;
+  }
+
+  @Override
+  public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    sessions.put(address, record);
+  }
+
+  @Override
+  public synchronized boolean containsSession(SignalProtocolAddress address) {
+    SessionRecord record = sessions.get(address);
+
+    return record != null &&
+           record.hasSenderChain() &&
+           record.getSessionVersion() == CiphertextMessage.CURRENT_VERSION;
+  }
+
+  @Override
+  public synchronized void deleteSession(SignalProtocolAddress address) {
+    sessions.remove(address);
+  }
+
+  @Override
+  public synchronized void deleteAllSessions(String name) {
+    sessions.keySet().removeIf(address -> address.getName().equals(name));
+  }
+
+  @Override
+  public synchronized void archiveSession(SignalProtocolAddress address) {
+    archived.add(address);
+
+    SessionRecord record = sessions.get(address);
+
+    if (record != null) {
+      record.archiveCurrentState();
+    }
+  }
+
+  @Override
+  public synchronized SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+    SignedPreKeyRecord record = signedPreKeys.get(signedPreKeyId);
+
+    if (record == null) {
+      throw new InvalidKeyIdException("No such signed pre-key: " + signedPreKeyId);
+    }
+
+    return record;
+  }
+
+  @Override
+  public synchronized List<SignedPreKeyRecord> loadSignedPreKeys() {
+    return new ArrayList<>(signedPreKeys.values());
+  }
+
+  @Override
+  public synchronized void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+    signedPreKeys.put(signedPreKeyId, record);
+  }
+
+  @Override
+  public synchronized boolean containsSignedPreKey(int signedPreKeyId) {
+    return signedPreKeys.containsKey(signedPreKeyId);
+  }
+
+  @Override
+  public synchronized void removeSignedPreKey(int signedPreKeyId) {
+    signedPreKeys.remove(signedPreKeyId);
+  }
+
+  @Override
+  public synchronized void storeSenderKey(SignalProtocolAddress sender, UUID distributionId, SenderKeyRecord record) {
+    senderKeys.put(sender + ":" + distributionId, record);
+  }
+
+  @Override
+  public synchronized SenderKeyRecord loadSenderKey(SignalProtocolAddress sender, UUID distributionId) {
+    return senderKeys.get(sender + ":" + distributionId);
+  }
+
+  @Override
+  public synchronized Set<SignalProtocolAddress> getSenderKeySharedWith(DistributionId distributionId) {
+    Set<SignalProtocolAddress> addresses = senderKeyShares.get(distributionId);
+    return addresses != null ? new HashSet<>(addresses) : new HashSet<>();
+  }
+
+  @Override
+  public synchronized void markSenderKeySharedWith(DistributionId distributionId, Collection<SignalProtocolAddress> addresses) {
+    senderKeyShares.computeIfAbsent(distributionId, id -> new HashSet<>()).addAll(addresses);
+  }
+
+  @Override
+  public synchronized void clearSenderKeySharedWith(Collection<SignalProtocolAddress> addresses) {
+    for (Set<SignalProtocolAddress> shared : senderKeyShares.values()) {
+      shared.removeAll(addresses);
+    }
+  }
+}
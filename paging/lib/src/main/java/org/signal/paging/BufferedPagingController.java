@@ -2,6 +2,7 @@ package org.signal.paging;
 
 import androidx.annotation.NonNull;
 
+import java.util.Collection;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -58,7 +59,11 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
         activeController.onDataInvalidated();
       }
 
-      activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size());
+      if (config.maxResidentPages() > 0) {
+        activeController = new WindowedPagingController<>(dataSource, config, dataStream, dataSource.size());
+      } else {
+        activeController = new FixedSizePagingController<>(dataSource, config, dataStream, dataSource.size());
+      }
       activeController.onDataNeededAroundIndex(lastRequestedIndex);
     });
   }
@@ -72,6 +77,15 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
+  @Override
+  public void onDataItemsChanged(@NonNull Collection<Key> keys) {
+    serializationExecutor.execute(() -> {
+      if (activeController != null) {
+        activeController.onDataItemsChanged(keys);
+      }
+    });
+  }
+
   @Override
   public void onDataItemInserted(Key key, int position) {
     serializationExecutor.execute(() -> {
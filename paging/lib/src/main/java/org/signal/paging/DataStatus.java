@@ -40,6 +40,10 @@ class DataStatus {
     state.set(startInclusive, endExclusive, true);
   }
 
+  void clearRange(int startInclusive, int endExclusive) {
+    state.clear(startInclusive, endExclusive);
+  }
+
   int getEarliestUnmarkedIndexInRange(int startInclusive, int endExclusive) {
     for (int i = startInclusive; i < endExclusive; i++) {
       if (!state.get(i)) {
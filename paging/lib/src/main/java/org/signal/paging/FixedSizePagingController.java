@@ -5,6 +5,8 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -181,6 +183,61 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
+  @Override
+  public void onDataItemsChanged(@NonNull Collection<Key> keys) {
+    if (DEBUG) Log.d(TAG, buildItemsChangedLog(keys.size(), ""));
+
+    List<Key> changedKeys = new ArrayList<>(keys);
+
+    FETCH_EXECUTOR.execute(() -> {
+      List<Data> updatedList = null;
+
+      for (Key key : changedKeys) {
+        Integer position = keyToPosition.get(key);
+
+        if (position == null) {
+          continue;
+        }
+
+        if (invalidated) {
+          Log.w(TAG, "Invalidated! Part way through loading a batch of changes.");
+          return;
+        }
+
+        synchronized (loadState) {
+          loadState.mark(position);
+        }
+
+        Data item = dataSource.load(key);
+
+        if (item == null) {
+          Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+          continue;
+        }
+
+        if (updatedList == null) {
+          updatedList = new CompressedList<>(data);
+        }
+
+        updatedList.set(position, item);
+      }
+
+      if (updatedList == null) {
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after a batch of changes was loaded.");
+        return;
+      }
+
+      data = updatedList;
+      dataStream.next(updatedList);
+
+      if (DEBUG) Log.d(TAG, buildItemsChangedLog(changedKeys.size(), "Published updated data"));
+    });
+  }
+
   @Override
   public void onDataItemInserted(Key key, int inputPosition) {
     if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, inputPosition, ""));
@@ -252,4 +309,8 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private String buildItemChangedLog(Key key, String message) {
     return "[onDataItemChanged(" + key + "), size: " + loadState.size() + "] " + message;
   }
+
+  private String buildItemsChangedLog(int count, String message) {
+    return "[onDataItemsChanged(" + count + " keys), size: " + loadState.size() + "] " + message;
+  }
 }
@@ -1,6 +1,7 @@
 package org.signal.paging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import java.util.concurrent.Executor;
 
@@ -9,14 +10,18 @@ import java.util.concurrent.Executor;
  */
 public final class PagingConfig {
 
-  private final int bufferPages;
-  private final int startIndex;
-  private final int pageSize;
+  private final int         bufferPages;
+  private final int         startIndex;
+  private final int         pageSize;
+  private final int         maxResidentPages;
+  private final PagingStats stats;
 
   private PagingConfig(@NonNull Builder builder) {
-    this.bufferPages = builder.bufferPages;
-    this.startIndex  = builder.startIndex;
-    this.pageSize    = builder.pageSize;
+    this.bufferPages      = builder.bufferPages;
+    this.startIndex       = builder.startIndex;
+    this.pageSize         = builder.pageSize;
+    this.maxResidentPages = builder.maxResidentPages;
+    this.stats            = builder.stats;
   }
 
   /**
@@ -42,10 +47,28 @@ public final class PagingConfig {
     return startIndex;
   }
 
+  /**
+   * @return The most pages to keep in memory at once, or 0 to keep everything that's been loaded. When set, pages far
+   *         from the active position are dropped and loaded again if they're needed, and how far ahead is loaded
+   *         adapts to how fast the position is moving.
+   */
+  int maxResidentPages() {
+    return maxResidentPages;
+  }
+
+  /**
+   * @return Where to record paging statistics, if anywhere. Only used when {@link #maxResidentPages()} is set.
+   */
+  @Nullable PagingStats stats() {
+    return stats;
+  }
+
   public static class Builder {
-    private int bufferPages = 1;
-    private int startIndex  = 0;
-    private int pageSize    = 50;
+    private int         bufferPages      = 1;
+    private int         startIndex       = 0;
+    private int         pageSize         = 50;
+    private int         maxResidentPages = 0;
+    private PagingStats stats            = null;
 
     public @NonNull Builder setBufferPages(int bufferPages) {
       if (bufferPages < 1) {
@@ -74,7 +97,25 @@ public final class PagingConfig {
       return this;
     }
 
+    public @NonNull Builder setMaxResidentPages(int maxResidentPages) {
+      if (maxResidentPages < 0) {
+        throw new IllegalArgumentException("Requested: " + maxResidentPages);
+      }
+
+      this.maxResidentPages = maxResidentPages;
+      return this;
+    }
+
+    public @NonNull Builder setStats(@Nullable PagingStats stats) {
+      this.stats = stats;
+      return this;
+    }
+
     public @NonNull PagingConfig build() {
+      if (maxResidentPages > 0 && maxResidentPages < bufferPages * 2 + 1) {
+        throw new IllegalArgumentException("You must keep at least the buffer pages on both sides of the active page resident! Requested: " + maxResidentPages);
+      }
+
       return new PagingConfig(this);
     }
   }
@@ -1,5 +1,8 @@
 package org.signal.paging;
 
+import androidx.annotation.NonNull;
+
+import java.util.Collection;
 
 public interface PagingController<Key> {
   int POSITION_END = -1;
@@ -7,5 +10,11 @@ public interface PagingController<Key> {
   void onDataNeededAroundIndex(int aroundIndex);
   void onDataInvalidated();
   void onDataItemChanged(Key key);
+
+  /**
+   * Same as calling {@link #onDataItemChanged(Object)} for each key, except that the changes are published together.
+   * Keys that aren't loaded are ignored.
+   */
+  void onDataItemsChanged(@NonNull Collection<Key> keys);
   void onDataItemInserted(Key key, int position);
 }
@@ -0,0 +1,90 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+
+import java.util.Locale;
+
+/**
+ * Counts how well paging is keeping up with the position being requested. Pass one to
+ * {@link PagingConfig.Builder#setStats(PagingStats)} and read it whenever you'd like. It's shared across invalidations,
+ * so the numbers cover the whole life of the {@link PagedData}.
+ */
+public final class PagingStats {
+
+  private long hits;
+  private long misses;
+  private long loads;
+  private long loadedItems;
+  private long loadTimeMs;
+  private long evictedItems;
+  private long canceledLoads;
+
+  synchronized void recordRequest(boolean hit) {
+    if (hit) {
+      hits++;
+    } else {
+      misses++;
+    }
+  }
+
+  synchronized void recordLoad(int itemCount, long durationMs) {
+    loads++;
+    loadedItems += itemCount;
+    loadTimeMs  += durationMs;
+  }
+
+  synchronized void recordEviction(int itemCount) {
+    evictedItems += itemCount;
+  }
+
+  synchronized void recordCanceledLoad() {
+    canceledLoads++;
+  }
+
+  /**
+   * @return How many times a position was requested that was already loaded, or already being loaded.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return How many times a position was requested that wasn't loaded yet.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getLoads() {
+    return loads;
+  }
+
+  public synchronized long getLoadedItems() {
+    return loadedItems;
+  }
+
+  public synchronized long getEvictedItems() {
+    return evictedItems;
+  }
+
+  /**
+   * @return How many loads were dropped because the position moved too far away before they finished.
+   */
+  public synchronized long getCanceledLoads() {
+    return canceledLoads;
+  }
+
+  /**
+   * @return The average duration of a load, or 0 if nothing has been loaded yet.
+   */
+  public synchronized float getAverageLoadTimeMs() {
+    return loads > 0 ? loadTimeMs / (float) loads : 0;
+  }
+
+  @Override
+  public synchronized @NonNull String toString() {
+    return String.format(Locale.US,
+                         "hits: %d, misses: %d, loads: %d (%d items, avg %.1f ms), evicted: %d, canceled: %d",
+                         hits, misses, loads, loadedItems, getAverageLoadTimeMs(), evictedItems, canceledLoads);
+  }
+}
@@ -0,0 +1,471 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * An alternative to {@link FixedSizePagingController} for data sets that are too big to keep in memory as they're
+ * scrolled through. It also handles a single invalidation cycle, but only keeps the pages within
+ * {@link PagingConfig#maxResidentPages()} of the active position. Pages further away than that are dropped, and are
+ * loaded again if the position comes back to them.
+ *
+ * How far ahead it loads depends on how fast the position is moving, so that a fling doesn't outrun the loads. Loads
+ * that the position has moved away from by the time they run are canceled.
+ *
+ * Same as {@link FixedSizePagingController}, all interface methods are assumed to be called on the same thread, and
+ * loads are done on a separate single-thread executor.
+ */
+class WindowedPagingController<Key, Data> implements PagingController<Key> {
+
+  private static final String TAG = Log.tag(WindowedPagingController.class);
+
+  private static final Executor FETCH_EXECUTOR = SignalExecutors.newCachedSingleThreadExecutor("signal-WindowedPagingController");
+
+  /** How many loads' worth of movement to stay ahead of. */
+  private static final int LOOKAHEAD_LOADS = 2;
+
+  /** Requests further apart than this are treated as a new movement rather than the continuation of the last one. */
+  private static final long VELOCITY_RESET_MS = 500;
+
+  /** Stand-in for the average load time until something has been loaded. */
+  private static final float DEFAULT_LOAD_TIME_MS = 50;
+
+  private final PagedDataSource<Key, Data> dataSource;
+  private final PagingConfig               config;
+  private final DataStream<Data>           dataStream;
+  private final DataStatus                 loadState;
+  private final Map<Key, Integer>          keyToPosition;
+  private final PagingStats                stats;
+  private final Executor                   fetchExecutor;
+  private final Set<Request>               requests;
+
+  private List<Data> data;
+
+  private int   lastRequestedIndex;
+  private long  lastRequestTime;
+  private float velocity;
+
+  private volatile int     activeIndex;
+  private volatile boolean invalidated;
+
+  WindowedPagingController(@NonNull PagedDataSource<Key, Data> dataSource,
+                           @NonNull PagingConfig config,
+                           @NonNull DataStream<Data> dataStream,
+                           int size)
+  {
+    this(dataSource, config, dataStream, size, FETCH_EXECUTOR);
+  }
+
+  @VisibleForTesting
+  WindowedPagingController(@NonNull PagedDataSource<Key, Data> dataSource,
+                           @NonNull PagingConfig config,
+                           @NonNull DataStream<Data> dataStream,
+                           int size,
+                           @NonNull Executor fetchExecutor)
+  {
+    this.dataSource    = dataSource;
+    this.config        = config;
+    this.dataStream    = dataStream;
+    this.loadState     = DataStatus.obtain(size);
+    this.data          = new CompressedList<>(loadState.size());
+    this.keyToPosition = new HashMap<>();
+    this.stats         = config.stats() != null ? config.stats() : new PagingStats();
+    this.fetchExecutor = fetchExecutor;
+    this.requests      = new HashSet<>();
+    this.activeIndex   = config.startIndex();
+  }
+
+  @Override
+  public void onDataNeededAroundIndex(int aroundIndex) {
+    onDataNeededAroundIndex(aroundIndex, System.currentTimeMillis());
+  }
+
+  @VisibleForTesting
+  void onDataNeededAroundIndex(int aroundIndex, long now) {
+    if (invalidated) {
+      Log.w(TAG, "[onDataNeededAroundIndex(" + aroundIndex + ")] Invalidated! At very beginning.");
+      return;
+    }
+
+    updateVelocity(aroundIndex, now);
+    activeIndex = aroundIndex;
+
+    cancelRequestsOutsideWindow(aroundIndex);
+
+    final Request request;
+
+    synchronized (loadState) {
+      if (loadState.size() == 0) {
+        dataStream.next(Collections.emptyList());
+        return;
+      }
+
+      stats.recordRequest(aroundIndex < loadState.size() && loadState.get(aroundIndex));
+
+      int pageSize       = config.pageSize();
+      int activePage     = aroundIndex / pageSize;
+      int lookaheadPages = getLookaheadPages(velocity, stats.getAverageLoadTimeMs());
+      int leftPage       = activePage - config.bufferPages() - (velocity < 0 ? lookaheadPages : 0);
+      int rightPage      = activePage + config.bufferPages() + (velocity > 0 ? lookaheadPages : 0);
+
+      int leftLoadBoundary  = Math.max(0, leftPage * pageSize);
+      int rightLoadBoundary = Math.min(loadState.size(), (rightPage + 1) * pageSize);
+
+      int loadStart = loadState.getEarliestUnmarkedIndexInRange(leftLoadBoundary, rightLoadBoundary);
+
+      if (loadStart < 0) {
+        return;
+      }
+
+      int loadEnd = loadState.getLatestUnmarkedIndexInRange(loadStart, rightLoadBoundary) + 1;
+
+      if (loadEnd <= loadStart) {
+        return;
+      }
+
+      loadState.markRange(loadStart, loadEnd);
+      request = new Request(loadStart, loadEnd);
+    }
+
+    synchronized (requests) {
+      requests.add(request);
+    }
+
+    fetchExecutor.execute(() -> load(request));
+  }
+
+  @Override
+  public void onDataInvalidated() {
+    if (invalidated) {
+      return;
+    }
+
+    invalidated = true;
+
+    synchronized (requests) {
+      for (Request request : requests) {
+        request.canceled = true;
+      }
+      requests.clear();
+    }
+
+    loadState.recycle();
+  }
+
+  @Override
+  public void onDataItemChanged(Key key) {
+    fetchExecutor.execute(() -> {
+      Integer position = keyToPosition.get(key);
+
+      if (position == null) {
+        Log.w(TAG, "Notified of key " + key + " but it wasn't resident!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just before individual change was loaded for position " + position);
+        return;
+      }
+
+      Data item = dataSource.load(key);
+
+      if (item == null) {
+        Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after individual change was loaded for position " + position);
+        return;
+      }
+
+      List<Data> updatedList = new CompressedList<>(data);
+
+      updatedList.set(position, item);
+      data = updatedList;
+      dataStream.next(updatedList);
+    });
+  }
+
+  @Override
+  public void onDataItemsChanged(@NonNull Collection<Key> keys) {
+    List<Key> changedKeys = new ArrayList<>(keys);
+
+    fetchExecutor.execute(() -> {
+      List<Data> updatedList = null;
+
+      for (Key key : changedKeys) {
+        Integer position = keyToPosition.get(key);
+
+        if (position == null) {
+          continue;
+        }
+
+        if (invalidated) {
+          Log.w(TAG, "Invalidated! Part way through loading a batch of changes.");
+          return;
+        }
+
+        Data item = dataSource.load(key);
+
+        if (item == null) {
+          Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+          continue;
+        }
+
+        if (updatedList == null) {
+          updatedList = new CompressedList<>(data);
+        }
+
+        updatedList.set(position, item);
+      }
+
+      if (updatedList == null) {
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after a batch of changes was loaded.");
+        return;
+      }
+
+      data = updatedList;
+      dataStream.next(updatedList);
+    });
+  }
+
+  @Override
+  public void onDataItemInserted(Key key, int inputPosition) {
+    fetchExecutor.execute(() -> {
+      int position = inputPosition;
+      if (position == POSITION_END) {
+        position = data.size();
+      }
+
+      if (keyToPosition.containsKey(key)) {
+        Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the item already exists!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just before individual insert was loaded for position " + position);
+        return;
+      }
+
+      synchronized (loadState) {
+        loadState.insertState(position, true);
+      }
+
+      Data item = dataSource.load(key);
+
+      if (item == null) {
+        Log.w(TAG, "Notified of key " + key + " being inserted at " + position + ", but the loaded item was null!");
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after individual insert was loaded for position " + position);
+        return;
+      }
+
+      List<Data> updatedList = new CompressedList<>(data);
+
+      updatedList.add(position, item);
+      rebuildKeyToPositionMap(updatedList);
+
+      data = updatedList;
+      dataStream.next(updatedList);
+    });
+  }
+
+  /**
+   * @return How many pages to load past the buffer in the direction the position is moving. Enough to cover the
+   *         distance it'll move during a couple of loads, but never so much that the pages would be outside the window
+   *         and get evicted as soon as they're loaded.
+   */
+  @VisibleForTesting
+  int getLookaheadPages(float velocity, float averageLoadTimeMs) {
+    int   pageSize   = config.pageSize();
+    int   maxPages   = getResidentRadius() - config.bufferPages();
+    float loadTimeMs = averageLoadTimeMs > 0 ? averageLoadTimeMs : DEFAULT_LOAD_TIME_MS;
+    int   items      = (int) Math.ceil(Math.abs(velocity) * loadTimeMs * LOOKAHEAD_LOADS);
+
+    return Math.min((items + pageSize - 1) / pageSize, maxPages);
+  }
+
+  private void load(@NonNull Request request) {
+    if (invalidated) {
+      Log.w(TAG, "[load(" + request + ")] Invalidated! At beginning of load task.");
+      return;
+    }
+
+    if (request.canceled) {
+      stats.recordCanceledLoad();
+      return;
+    }
+
+    long       startTime = System.currentTimeMillis();
+    List<Data> loaded    = dataSource.load(request.start, request.end - request.start, () -> invalidated || request.canceled);
+
+    synchronized (requests) {
+      requests.remove(request);
+    }
+
+    if (invalidated) {
+      Log.w(TAG, "[load(" + request + ")] Invalidated! Just after data was loaded.");
+      return;
+    }
+
+    if (request.canceled) {
+      stats.recordCanceledLoad();
+      return;
+    }
+
+    stats.recordLoad(loaded.size(), System.currentTimeMillis() - startTime);
+
+    List<Data> updated = new CompressedList<>(data);
+
+    for (int i = 0, len = Math.min(loaded.size(), data.size() - request.start); i < len; i++) {
+      int  position = request.start + i;
+      Data item     = loaded.get(i);
+
+      updated.set(position, item);
+      keyToPosition.put(dataSource.getKey(item), position);
+    }
+
+    evictOutsideWindow(updated, activeIndex);
+
+    data = updated;
+    dataStream.next(updated);
+  }
+
+  private void updateVelocity(int index, long now) {
+    long elapsed = now - lastRequestTime;
+
+    if (lastRequestTime == 0 || elapsed > VELOCITY_RESET_MS) {
+      velocity = 0;
+    } else if (elapsed > 0) {
+      velocity = (velocity + (index - lastRequestedIndex) / (float) elapsed) / 2;
+    } else {
+      return;
+    }
+
+    lastRequestedIndex = index;
+    lastRequestTime    = now;
+  }
+
+  /**
+   * Cancels the loads that don't overlap the window around the new position anymore, and frees up their range so that
+   * it'll be requested again if the position comes back.
+   */
+  private void cancelRequestsOutsideWindow(int index) {
+    int windowStart = getWindowStart(index);
+    int windowEnd   = getWindowEnd(index);
+
+    synchronized (requests) {
+      for (Iterator<Request> iterator = requests.iterator(); iterator.hasNext(); ) {
+        Request request = iterator.next();
+
+        if (request.end <= windowStart || request.start >= windowEnd) {
+          request.canceled = true;
+          iterator.remove();
+
+          synchronized (loadState) {
+            loadState.clearRange(request.start, request.end);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops the items outside of the window around the position, so that they'll be loaded again if they're needed.
+   */
+  private void evictOutsideWindow(@NonNull List<Data> list, int index) {
+    int windowStart = Math.max(0, getWindowStart(index));
+    int windowEnd   = Math.min(list.size(), getWindowEnd(index));
+    int evicted     = evictRange(list, 0, windowStart) + evictRange(list, windowEnd, list.size());
+
+    if (evicted > 0) {
+      stats.recordEviction(evicted);
+    }
+  }
+
+  private int evictRange(@NonNull List<Data> list, int start, int end) {
+    int evicted = 0;
+
+    for (int i = start; i < end; i++) {
+      Data item = list.get(i);
+
+      if (item != null) {
+        keyToPosition.remove(dataSource.getKey(item));
+        list.set(i, null);
+
+        synchronized (loadState) {
+          loadState.clearRange(i, i + 1);
+        }
+
+        evicted++;
+      }
+    }
+
+    return evicted;
+  }
+
+  private void rebuildKeyToPositionMap(@NonNull List<Data> dataList) {
+    keyToPosition.clear();
+
+    for (int i = 0, len = dataList.size(); i < len; i++) {
+      Data item = dataList.get(i);
+      if (item != null) {
+        keyToPosition.put(dataSource.getKey(item), i);
+      }
+    }
+  }
+
+  /**
+   * @return How many pages on either side of the active page are kept in memory.
+   */
+  private int getResidentRadius() {
+    return (config.maxResidentPages() - 1) / 2;
+  }
+
+  private int getWindowStart(int index) {
+    return (index / config.pageSize() - getResidentRadius()) * config.pageSize();
+  }
+
+  private int getWindowEnd(int index) {
+    return (index / config.pageSize() + getResidentRadius() + 1) * config.pageSize();
+  }
+
+  private static final class Request {
+    private final int start;
+    private final int end;
+
+    private volatile boolean canceled;
+
+    private Request(int start, int end) {
+      this.start = start;
+      this.end   = end;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return start + ".." + end;
+    }
+  }
+}
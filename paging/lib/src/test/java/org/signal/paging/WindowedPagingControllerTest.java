@@ -0,0 +1,244 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WindowedPagingControllerTest {
+
+  private static final int SIZE = 1000;
+
+  private TestDataSource      dataSource;
+  private List<List<Integer>> published;
+  private List<Runnable>      queued;
+  private PagingStats         stats;
+
+  @Before
+  public void setUp() {
+    dataSource = new TestDataSource();
+    published  = new ArrayList<>();
+    queued     = new ArrayList<>();
+    stats      = new PagingStats();
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_loadsBufferAroundIndex() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, Runnable::run);
+
+    subject.onDataNeededAroundIndex(55, 1);
+
+    assertEquals(1, dataSource.loads.size());
+    assertEquals(40, dataSource.loads.get(0)[0]);
+    assertEquals(70, dataSource.loads.get(0)[1]);
+    assertEquals(Integer.valueOf(55), latest().get(55));
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_evictsPagesOutsideWindow() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, Runnable::run);
+
+    subject.onDataNeededAroundIndex(5, 1);
+    assertNotNull(latest().get(5));
+
+    subject.onDataNeededAroundIndex(500, 1_000);
+
+    assertNull(latest().get(5));
+    assertNotNull(latest().get(500));
+    assertEquals(20, stats.getEvictedItems());
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_reloadsEvictedPagesOnReturn() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, Runnable::run);
+
+    subject.onDataNeededAroundIndex(5, 1);
+    subject.onDataNeededAroundIndex(500, 1_000);
+    subject.onDataNeededAroundIndex(5, 2_000);
+
+    assertEquals(Integer.valueOf(5), latest().get(5));
+    assertNull(latest().get(500));
+    assertEquals(3, dataSource.loads.size());
+    assertEquals(3, stats.getMisses());
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_countsHitsForResidentItems() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, Runnable::run);
+
+    subject.onDataNeededAroundIndex(5, 1);
+    subject.onDataNeededAroundIndex(6, 1_000);
+    subject.onDataNeededAroundIndex(7, 2_000);
+
+    assertEquals(1, stats.getMisses());
+    assertEquals(2, stats.getHits());
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_cancelsLoadsOutsideWindow() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, queued::add);
+
+    subject.onDataNeededAroundIndex(5, 1);
+    subject.onDataNeededAroundIndex(500, 1_000);
+
+    for (Runnable runnable : queued) {
+      runnable.run();
+    }
+
+    assertEquals(1, dataSource.loads.size());
+    assertEquals(490, dataSource.loads.get(0)[0]);
+    assertEquals(1, stats.getCanceledLoads());
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_canceledRangeIsRequestedAgain() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, queued::add);
+
+    subject.onDataNeededAroundIndex(5, 1);
+    subject.onDataNeededAroundIndex(500, 1_000);
+    subject.onDataNeededAroundIndex(5, 2_000);
+
+    assertEquals(3, queued.size());
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_loadsFurtherAheadWhenMovingFast() {
+    WindowedPagingController<Integer, Integer> subject = controller(11, Runnable::run);
+
+    subject.onDataNeededAroundIndex(0, 1);
+    subject.onDataNeededAroundIndex(20, 11);
+    subject.onDataNeededAroundIndex(40, 21);
+
+    int[] lastLoad = dataSource.loads.get(dataSource.loads.size() - 1);
+    assertTrue("Expected to load past 60, but loaded to " + lastLoad[1], lastLoad[1] > 60);
+  }
+
+  @Test
+  public void onDataNeededAroundIndex_doesNotLoadAheadWhenMovingSlowly() {
+    WindowedPagingController<Integer, Integer> subject = controller(11, Runnable::run);
+
+    subject.onDataNeededAroundIndex(0, 1);
+    subject.onDataNeededAroundIndex(20, 10_000);
+    subject.onDataNeededAroundIndex(40, 20_000);
+
+    int[] lastLoad = dataSource.loads.get(dataSource.loads.size() - 1);
+    assertEquals(60, lastLoad[1]);
+  }
+
+  @Test
+  public void getLookaheadPages_neverExceedsWindow() {
+    WindowedPagingController<Integer, Integer> subject = controller(11, Runnable::run);
+
+    assertEquals(0, subject.getLookaheadPages(0, 10));
+    assertEquals(1, subject.getLookaheadPages(0.1f, 10));
+    assertEquals(4, subject.getLookaheadPages(100, 10));
+    assertEquals(4, subject.getLookaheadPages(-100, 10));
+  }
+
+  @Test
+  public void onDataInvalidated_dropsPendingLoads() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, queued::add);
+
+    subject.onDataNeededAroundIndex(5, 1);
+    subject.onDataInvalidated();
+
+    for (Runnable runnable : queued) {
+      runnable.run();
+    }
+
+    assertEquals(0, dataSource.loads.size());
+    assertFalse(published.size() > 0);
+  }
+
+  @Test
+  public void onDataItemsChanged_publishesResidentChangesTogether() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, Runnable::run);
+
+    subject.onDataNeededAroundIndex(55, 1);
+    int publishCount = published.size();
+
+    dataSource.itemOffset = SIZE;
+    subject.onDataItemsChanged(Arrays.asList(41, 42, 900));
+
+    assertEquals(publishCount + 1, published.size());
+    assertEquals(Integer.valueOf(41 + SIZE), latest().get(41));
+    assertEquals(Integer.valueOf(42 + SIZE), latest().get(42));
+    assertEquals(Integer.valueOf(43), latest().get(43));
+    assertEquals(Arrays.asList(41, 42), dataSource.itemLoads);
+  }
+
+  @Test
+  public void onDataItemsChanged_nothingResident_doesNotPublish() {
+    WindowedPagingController<Integer, Integer> subject = controller(3, Runnable::run);
+
+    subject.onDataNeededAroundIndex(55, 1);
+    int publishCount = published.size();
+
+    subject.onDataItemsChanged(Collections.singletonList(900));
+
+    assertEquals(publishCount, published.size());
+    assertEquals(0, dataSource.itemLoads.size());
+  }
+
+  private WindowedPagingController<Integer, Integer> controller(int maxResidentPages, @NonNull Executor executor) {
+    PagingConfig config = new PagingConfig.Builder().setPageSize(10)
+                                                    .setBufferPages(1)
+                                                    .setMaxResidentPages(maxResidentPages)
+                                                    .setStats(stats)
+                                                    .build();
+
+    return new WindowedPagingController<>(dataSource, config, published::add, SIZE, executor);
+  }
+
+  private List<Integer> latest() {
+    return published.get(published.size() - 1);
+  }
+
+  private static final class TestDataSource implements PagedDataSource<Integer, Integer> {
+
+    private final List<int[]>   loads     = new ArrayList<>();
+    private final List<Integer> itemLoads = new ArrayList<>();
+
+    private int itemOffset;
+
+    @Override
+    public int size() {
+      return SIZE;
+    }
+
+    @Override
+    public @NonNull List<Integer> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      loads.add(new int[] { start, start + length });
+
+      List<Integer> items = new ArrayList<>(length);
+      for (int i = start; i < start + length; i++) {
+        items.add(i);
+      }
+      return items;
+    }
+
+    @Override
+    public @Nullable Integer load(Integer key) {
+      itemLoads.add(key);
+      return key + itemOffset;
+    }
+
+    @Override
+    public @NonNull Integer getKey(@NonNull Integer data) {
+      return data;
+    }
+  }
+}